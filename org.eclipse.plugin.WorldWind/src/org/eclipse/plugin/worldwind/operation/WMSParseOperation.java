@@ -10,8 +10,9 @@
  *******************************************************************************/
 package org.eclipse.plugin.worldwind.operation;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URL;
 
@@ -20,6 +21,9 @@ import org.eclipse.jface.operation.IRunnableWithProgress;
 import org.eclipse.jface.viewers.TableViewer;
 import org.eclipse.swt.widgets.Display;
 
+import org.eclipse.plugin.worldwind.contrib.LayerUtils;
+import org.eclipse.plugin.worldwind.contrib.Messages;
+import org.eclipse.plugin.worldwind.contrib.parsers.CacheMetadata;
 import org.eclipse.plugin.worldwind.contrib.parsers.SimpleHTTPClient;
 import org.eclipse.plugin.worldwind.contrib.parsers.SimpleWMSParser;
 import org.eclipse.plugin.worldwind.contrib.parsers.WMS_Capabilities;
@@ -31,6 +35,9 @@ import org.eclipse.plugin.worldwind.contrib.parsers.WMS_Capabilities;
  */
 public class WMSParseOperation implements IRunnableWithProgress
 {
+	// Cached capabilities w/o Expires or max-age are revalidated after 1h
+	private static final long CAPABILITIES_TTL = 3600 * 1000;
+	
 	// Unknown progress size?
 	private URL url;
 	private String serverName;
@@ -54,20 +61,25 @@ public class WMSParseOperation implements IRunnableWithProgress
 	public void run(IProgressMonitor monitor) 
 		throws InvocationTargetException, InterruptedException 
 	{
-		// Load remote WMS XML from url
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		// WMS XML is cached & revalidated w/ a conditional GET 
+		final File file = getCacheFile(url);
 
 		try {
 			monitor.beginTask(serverName, IProgressMonitor.UNKNOWN ); 
 
 			// Long operation: load XML via HTTP
-			SimpleHTTPClient client = new SimpleHTTPClient(url);
-			client.doGet(bos); 
-			bos.close();
+			fetchCapabilities(file);
 			
 			// parse WMS XML
 			SimpleWMSParser parser = new SimpleWMSParser();
-			parser.parse(serverName, new ByteArrayInputStream(bos.toString().getBytes()));
+			InputStream is = new FileInputStream(file);
+			
+			try {
+				parser.parse(serverName, is);
+			}
+			finally {
+				is.close();
+			}
 
 			capabilities 	= parser.getCapabilities();
 			totalParsed 	= parser.getParsedCount();
@@ -89,6 +101,10 @@ public class WMSParseOperation implements IRunnableWithProgress
 			//e.printStackTrace();
 			monitor.done();
 			
+			// invalid doc: don't keep it in cache
+			file.delete();
+			CacheMetadata.delete(file);
+			
 			throw new InterruptedException(
 					e.getClass().getName()  + ": " + e.getMessage());
 		}
@@ -101,6 +117,42 @@ public class WMSParseOperation implements IRunnableWithProgress
 		
 	}
 
+	/*
+	 * Cache location of the capabilities doc for a URL
+	 */
+	private static File getCacheFile (URL url) {
+		return LayerUtils.newCacheFile("WMS/" + Messages.forCachePath(url.getHost()) 
+				+ "/" + Integer.toHexString(url.toString().hashCode()) + ".xml");
+	}
+	
+	/*
+	 * Download the capabilities into the cache or revalidate a stale cached copy.
+	 * A 304 (Not Modified) response keeps the cached file.
+	 */
+	private void fetchCapabilities (File file) throws Exception
+	{
+		CacheMetadata meta = file.exists() ? CacheMetadata.load(file) : null;
+		
+		if ( meta != null && !meta.isStale(CAPABILITIES_TTL))
+			return;
+		
+		SimpleHTTPClient client = new SimpleHTTPClient(url);
+		client.setLayer("WMS Capabilities");
+		
+		try {
+			client.doConditionalGet(file);
+		} 
+		catch (Exception e) {
+			// don't keep partial/invalid docs
+			file.delete();
+			CacheMetadata.delete(file);
+			throw e;
+		}
+		finally {
+			client.close();
+		}
+	}
+	
 	public WMS_Capabilities getCapabilities() {
 		return capabilities;
 	}
@@ -10,8 +10,17 @@
  *******************************************************************************/
 package org.eclipse.plugin.worldwind.utils;
 
+import org.eclipse.jface.action.ContributionItem;
 import org.eclipse.jface.action.IStatusLineManager;
+import org.eclipse.jface.action.StatusLineLayoutData;
 import org.eclipse.jface.resource.ImageDescriptor;
+import org.eclipse.plugin.worldwind.contrib.layers.DownloadScheduler;
+import org.eclipse.plugin.worldwind.contrib.parsers.DownloadMetrics;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.CLabel;
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.ui.ISharedImages;
 import org.eclipse.ui.PlatformUI;
 //import org.eclipse.ui.internal.util.StatusLineContributionItem;
@@ -25,15 +34,70 @@ public class StatusLine
 {
 	static final String HEARTBEAT 	= "HEARTBEAT";
 //	static final String LOOP_STATUS = "LOOP_STATUS";
+	static final String DOWNLOADS 	= "DOWNLOADS";
+	
+	// Download readout refresh interval (ms)
+	static final int DOWNLOADS_REFRESH = 2000;
 	
 	IStatusLineManager statusLine;
 	
 	private boolean locked = false;
 	
+	private LabelItem downloads;
+	
+	/**
+	 * Fixed width status line label
+	 */
+	private static class LabelItem extends ContributionItem
+	{
+		private CLabel label;
+		private String text = "";
+		private String toolTip;
+		private int widthInChars;
+		
+		LabelItem(String id, int widthInChars) {
+			super(id);
+			this.widthInChars = widthInChars;
+		}
+		
+		@Override
+		public void fill(Composite parent) 
+		{
+			label = new CLabel(parent, SWT.SHADOW_NONE);
+			
+			GC gc = new GC(parent);
+			gc.setFont(parent.getFont());
+			
+			StatusLineLayoutData data = new StatusLineLayoutData();
+			data.widthHint = gc.getFontMetrics().getAverageCharWidth() * widthInChars;
+			gc.dispose();
+			
+			label.setLayoutData(data);
+			label.setText(text);
+			label.setToolTipText(toolTip);
+		}
+		
+		void setText(String text, String toolTip) {
+			this.text 		= text;
+			this.toolTip 	= toolTip;
+			
+			if ( label != null && !label.isDisposed()) {
+				label.setText(text);
+				label.setToolTipText(toolTip);
+			}
+		}
+	}
+	
 	@SuppressWarnings("restriction")
 	public StatusLine(IStatusLineManager statusLine) {
 		this.statusLine = statusLine;
 
+		downloads = new LabelItem(DOWNLOADS, 70);
+		this.statusLine.add(downloads);
+		
+		if ( Display.getCurrent() != null )
+			startDownloadMonitor(Display.getCurrent());
+
 //		StatusLineContributionItem item1 = new StatusLineContributionItem(LOOP_STATUS, 70);
 //		item1.setVisible(true);
 //		this.statusLine.add(item1);
@@ -84,6 +148,34 @@ public class StatusLine
 //		else statusLine.setMessage(message);
 //	}
 	
+	/*
+	 * Refresh the network readout: requests in flight, latency, errors & queued
+	 * downloads. A deep queue w/ high latency means the network is the bottleneck.
+	 * Per host details are shown as a tool tip.
+	 */
+	private void startDownloadMonitor (final Display display)
+	{
+		display.timerExec(DOWNLOADS_REFRESH, new Runnable() {
+			public void run() {
+				if ( display.isDisposed() ) return;
+				
+				final DownloadMetrics metrics = DownloadMetrics.getInstance();
+				
+				StringBuffer tip = new StringBuffer();
+				for (String host : metrics.getHostSummary()) 
+					tip.append(host + "\n");
+				
+				tip.append("Errors by status: " + metrics.getErrorsByStatus());
+				
+				downloads.setText(metrics.getReadout() 
+						+ " | " + DownloadScheduler.getInstance().getQueueDepth() + " queued"
+						, tip.toString());
+				
+				display.timerExec(DOWNLOADS_REFRESH, this);
+			}
+		});
+	}
+	
 	/**
 	 * Used to lock the progress bar. Threads in several views can control the PM.
 	 */
@@ -0,0 +1,603 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import org.eclipse.plugin.worldwind.contrib.parsers.CacheMetadata;
+import org.eclipse.plugin.worldwind.contrib.parsers.SimpleHTTPClient;
+
+/**
+ * In memory index of the files in the WW file store, so cache lookups
+ * done on the render thread are hash lookups instead of a
+ * <code>findFile</code> probe (stat) of every cache location.
+ *
+ * <p>The index is saved to the write location ({@link #FILE_NAME}) and
+ * loaded/built by a background thread at startup. Until it is ready lookups
+ * fall back to the file store. Our writers (downloads, transcoder, deletes)
+ * update it directly; changes made by others (WW itself, the user) are
+ * picked up by polling the modification time of the cache folders
+ * every {@link #POLL_INTERVAL} ms.</p>
+ *
+ * <p>Polling stands in for a file watcher: Java 6 has no file change
+ * notifications (<code>WatchService</code> is Java 7) and the store may
+ * hold thousands of folders. Changes by others show up within a poll.</p>
+ *
+ * @author vsilva
+ *
+ */
+public class FileStoreIndex
+{
+	private static final Logger logger = Logger.getLogger(FileStoreIndex.class);
+
+	public static final String FILE_NAME = "FileStoreIndex.dat";
+
+	// Time between folder polls (ms)
+	public static final long POLL_INTERVAL = 30 * 1000;
+
+	// Min time between saves (ms)
+	static final long SAVE_INTERVAL = 5 * 60 * 1000;
+
+	// Coarsest modification time resolution of the file systems (FAT: 2 s)
+	static final long MTIME_GRANULARITY = 2000;
+
+	private static final int VERSION = 1;
+
+	// Never looked up by name: temp files, partial downloads, HTTP metadata
+	private static final String[] IGNORED_SUFFIXES = { ".tmp"
+		, SimpleHTTPClient.PART_SUFFIX, CacheMetadata.SUFFIX };
+
+	/*
+	 * A cache folder
+	 */
+	private static class Dir
+	{
+		final int location;
+
+		// relative to the location, '/' terminated. "" = location root
+		final String path;
+
+		// last seen. 0 = never listed (or to be listed again)
+		long lastModified;
+
+		// # of updates by writers, see list()
+		int writes;
+
+		final Set<String> files = new HashSet<String>();
+		final Set<String> dirs 	= new HashSet<String>();
+
+		Dir(int location, String path) {
+			this.location 	= location;
+			this.path 		= path;
+		}
+	}
+
+	// File store locations (search order) & their URIs
+	private final List<File> locations = new ArrayList<File>();
+	private final List<URI> locationURIs = new ArrayList<URI>();
+
+	// relative path -> first location holding it. Guarded by this
+	private final Map<String, Integer> files = new HashMap<String, Integer>();
+
+	// absolute folder -> contents. Guarded by this
+	private final Map<File, Dir> dirs = new HashMap<File, Dir>();
+
+	private volatile boolean ready;
+	private boolean dirty;
+	private long lastSave;
+
+	private static final FileStoreIndex instance = new FileStoreIndex();
+
+	private FileStoreIndex()
+	{
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				watch();
+			}
+		}, "FileStoreIndex");
+
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	public static FileStoreIndex getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return true once the index is loaded or built. Lookups go to the
+	 * file store until then.
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Find a file in the WW file store
+	 * @param path Path relative to the file store
+	 * @return file URL or null if not in the store
+	 */
+	public URL findFile (String path)
+	{
+		if ( ! ready )
+			return LayerUtils.getWWFileStore().findFile(path, false);
+
+		path = normalize(path);
+
+		final Integer location;
+
+		synchronized (this) {
+			location = files.get(path);
+		}
+
+		if ( location == null )
+			return null;
+
+		try {
+			// no File.toURI(): it stats the file
+			return locationURIs.get(location).resolve(new URI(null, null, path, null)).toURL();
+		}
+		catch (Exception e) {
+			logger.error("Invalid cache path " + path + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param path Path relative to the file store
+	 * @return true if the file is in the store
+	 */
+	public boolean contains (String path) {
+		return findFile(path) != null;
+	}
+
+	/**
+	 * Record a file written to the store
+	 * @param file
+	 */
+	public void added (File file)
+	{
+		final File parent = file.getAbsoluteFile().getParentFile();
+
+		synchronized (this) {
+			final Dir dir = getDir(parent);
+
+			if ( dir != null ) {
+				add(dir, file.getName());
+				dir.writes++;
+			}
+		}
+	}
+
+	/**
+	 * Record a file deleted from the store
+	 * @param file
+	 */
+	public void removed (File file)
+	{
+		final File parent = file.getAbsoluteFile().getParentFile();
+
+		synchronized (this) {
+			final Dir dir = dirs.get(parent);
+
+			if ( dir != null ) {
+				remove(dir, file.getName());
+				dir.writes++;
+			}
+		}
+	}
+
+	/**
+	 * @return # of files indexed
+	 */
+	public synchronized int size() {
+		return files.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Files: " + files.size() + " Folders: " + dirs.size() + " Ready: " + ready;
+	}
+
+	private static String normalize (String path)
+	{
+		path = path.replace('\\', '/');
+
+		while ( path.startsWith("/"))
+			path = path.substring(1);
+
+		return path;
+	}
+
+	private static boolean isIgnored (String name)
+	{
+		if ( name.equals(FILE_NAME))
+			return true;
+
+		for (String suffix : IGNORED_SUFFIXES) {
+			if ( name.endsWith(suffix))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Folder of a new file, created (w/ its parents) if not listed yet.
+	 * Callers hold the lock.
+	 * @return null if the folder is not in the store
+	 */
+	private Dir getDir (File folder)
+	{
+		if ( folder == null )
+			return null;
+
+		Dir dir = dirs.get(folder);
+
+		if ( dir != null )
+			return dir;
+
+		final Dir parent = getDir(folder.getParentFile());
+
+		if ( parent == null )
+			return null;
+
+		// listed on the next poll
+		dir = new Dir(parent.location, parent.path + folder.getName() + "/");
+		parent.dirs.add(folder.getName());
+		dirs.put(folder, dir);
+		return dir;
+	}
+
+	/*
+	 * Callers hold the lock
+	 */
+	private void add (Dir dir, String name)
+	{
+		if ( isIgnored(name) || ! dir.files.add(name) )
+			return;
+
+		final String path 		= dir.path + name;
+		final Integer location 	= files.get(path);
+
+		if ( location == null || location > dir.location )
+			files.put(path, dir.location);
+
+		dirty = true;
+	}
+
+	private void remove (Dir dir, String name)
+	{
+		if ( ! dir.files.remove(name))
+			return;
+
+		final String path = dir.path + name;
+		dirty = true;
+
+		if ( ! Integer.valueOf(dir.location).equals(files.get(path)))
+			return;
+
+		// next location holding it
+		for (int i = dir.location + 1; i < locations.size(); i++) {
+			final Dir other = dirs.get(new File(locations.get(i), dir.path));
+
+			if ( other != null && other.files.contains(name)) {
+				files.put(path, i);
+				return;
+			}
+		}
+		files.remove(path);
+	}
+
+	private void removeDir (File folder)
+	{
+		final Dir dir = dirs.remove(folder);
+
+		if ( dir == null ) return;
+
+		for (String name : new ArrayList<String>(dir.files))
+			remove(dir, name);
+
+		for (String name : dir.dirs)
+			removeDir(new File(folder, name));
+
+		dirty = true;
+	}
+
+	/*
+	 * Background thread: load or build the index, then poll the folders
+	 */
+	private void watch ()
+	{
+		for (File location : LayerUtils.getWWFileStore().getLocations()) {
+			final File dir = location.getAbsoluteFile();
+
+			locations.add(dir);
+
+			String uri = dir.toURI().toString();
+			locationURIs.add(URI.create(uri.endsWith("/") ? uri : uri + "/"));
+		}
+
+		final long start = System.currentTimeMillis();
+
+		if ( load() )
+			ready = true;
+
+		synchronized (this) {
+			for (int i = 0; i < locations.size(); i++) {
+				if ( ! dirs.containsKey(locations.get(i)))
+					dirs.put(locations.get(i), new Dir(i, ""));
+			}
+		}
+
+		poll();
+		ready = true;
+
+		logger.debug("File store index ready in " + (System.currentTimeMillis() - start) + " ms. " + this);
+
+		while ( true )
+		{
+			save(false);
+
+			try {
+				Thread.sleep(POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+			poll();
+		}
+	}
+
+	/*
+	 * List the folders modified since the last poll. A new or deleted
+	 * entry changes the modification time of its folder.
+	 */
+	private void poll ()
+	{
+		final LinkedList<File> changed = new LinkedList<File>();
+		final Map<File, Long> times = new HashMap<File, Long>();
+
+		synchronized (this) {
+			for (Map.Entry<File, Dir> e : dirs.entrySet())
+				times.put(e.getKey(), e.getValue().lastModified);
+		}
+
+		for (Map.Entry<File, Long> e : times.entrySet()) {
+			if ( e.getKey().lastModified() != e.getValue() )
+				changed.add(e.getKey());
+		}
+
+		while ( ! changed.isEmpty() )
+			changed.addAll(list(changed.removeFirst()));
+	}
+
+	/*
+	 * Sync the index w/ the contents of a folder
+	 * @return new sub folders, to be listed
+	 */
+	private List<File> list (File folder)
+	{
+		final List<File> newDirs = new ArrayList<File>();
+		final int writes;
+
+		synchronized (this) {
+			final Dir dir = dirs.get(folder);
+			writes = dir != null ? dir.writes : 0;
+		}
+
+		final long modified 	= folder.lastModified();
+		final File[] entries 	= folder.listFiles();
+		final long listed 		= System.currentTimeMillis();
+
+		// I/O done, update
+		synchronized (this)
+		{
+			if ( entries == null ) {
+				// deleted
+				removeDir(folder);
+				return newDirs;
+			}
+
+			final Dir dir = dirs.get(folder);
+
+			// updated by a writer while listing: the listing may be stale. 
+			// Try again on the next poll
+			if ( dir == null || dir.writes != writes )
+				return newDirs;
+
+			final Set<String> oldFiles 	= new HashSet<String>(dir.files);
+			final Set<String> oldDirs 	= new HashSet<String>(dir.dirs);
+
+			for (File f : entries)
+			{
+				final String name = f.getName();
+
+				if ( oldFiles.remove(name) || oldDirs.remove(name))
+					continue;
+
+				if ( f.isDirectory()) {
+					dir.dirs.add(name);
+					dirs.put(f, new Dir(dir.location, dir.path + name + "/"));
+					newDirs.add(f);
+				}
+				else
+					add(dir, name);
+			}
+
+			// gone
+			for (String name : oldFiles)
+				remove(dir, name);
+
+			for (String name : oldDirs) {
+				dir.dirs.remove(name);
+				removeDir(new File(folder, name));
+			}
+
+			// modified within the time resolution of the listing: an entry
+			// created after listFiles() may not change the time. List again
+			// on the next poll
+			dir.lastModified = listed - modified < MTIME_GRANULARITY ? 0 : modified;
+		}
+		return newDirs;
+	}
+
+	private File getFile () {
+		return new File(LayerUtils.getWWFileStore().getWriteLocation(), FILE_NAME);
+	}
+
+	/*
+	 * Load the saved index. Discarded if the store locations changed.
+	 * @return false if there is no usable index
+	 */
+	private boolean load ()
+	{
+		final File file = getFile();
+
+		if ( ! file.exists() )
+			return false;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new GZIPInputStream(new FileInputStream(file))));
+			try {
+				if ( in.readInt() != VERSION )
+					return false;
+
+				final int count = in.readInt();
+
+				if ( count != locations.size())
+					return false;
+
+				for (int i = 0; i < count; i++) {
+					if ( ! in.readUTF().equals(locations.get(i).getPath()))
+						return false;
+				}
+
+				final int dirCount = in.readInt();
+
+				synchronized (this)
+				{
+					for (int i = 0; i < dirCount; i++)
+					{
+						final Dir dir = new Dir(in.readInt(), in.readUTF());
+						dir.lastModified = in.readLong();
+
+						for (int j = in.readInt(); j > 0; j--)
+							dir.dirs.add(in.readUTF());
+
+						dirs.put(new File(locations.get(dir.location), dir.path), dir);
+
+						for (int j = in.readInt(); j > 0; j--)
+							add(dir, in.readUTF());
+					}
+					dirty = false;
+				}
+			}
+			finally {
+				in.close();
+			}
+			logger.debug("Loaded file store index " + file + ". " + this);
+			return true;
+		}
+		catch (Exception e) {
+			logger.error("Unable to load file store index " + file + ": " + e);
+
+			synchronized (this) {
+				files.clear();
+				dirs.clear();
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Save the index to the write location (if modified)
+	 * @param force Ignore the min time between saves
+	 */
+	public void save (boolean force)
+	{
+		final File file = getFile();
+		final File tmp 	= new File(file.getPath() + ".tmp");
+
+		try {
+			synchronized (this)
+			{
+				if ( ! dirty || (!force && System.currentTimeMillis() - lastSave < SAVE_INTERVAL))
+					return;
+
+				// the index is small next to the cache: write it under the lock
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+						new GZIPOutputStream(new FileOutputStream(tmp))));
+				try {
+					out.writeInt(VERSION);
+					out.writeInt(locations.size());
+
+					for (File location : locations)
+						out.writeUTF(location.getPath());
+
+					out.writeInt(dirs.size());
+
+					for (Dir dir : dirs.values())
+					{
+						out.writeInt(dir.location);
+						out.writeUTF(dir.path);
+						out.writeLong(dir.lastModified);
+						out.writeInt(dir.dirs.size());
+
+						for (String name : dir.dirs)
+							out.writeUTF(name);
+
+						out.writeInt(dir.files.size());
+
+						for (String name : dir.files)
+							out.writeUTF(name);
+					}
+				}
+				finally {
+					out.close();
+				}
+				dirty 		= false;
+				lastSave 	= System.currentTimeMillis();
+			}
+
+			if ( ! tmp.renameTo(file) ) {
+				file.delete();
+
+				if ( ! tmp.renameTo(file) )
+					throw new IOException("Unable to rename " + tmp + " to " + file);
+			}
+		}
+		catch (IOException e) {
+			logger.error("Unable to save file store index " + file + ": " + e);
+			tmp.delete();
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package org.eclipse.plugin.worldwind.contrib;
 
 import java.io.File;
+import java.net.URL;
 
 import org.apache.log4j.Logger;
 
@@ -83,5 +84,37 @@ public class LayerUtils
 	public static File newCacheFile(String name) {
 		return getWWFileStore().newFile(name);
 	}
+
+	/**
+	 * Find a file in the WW cache. An in memory lookup once the cache is
+	 * indexed (see {@link FileStoreIndex}): safe to call on every frame.
+	 * @param name Path relative to the cache
+	 * @return file URL or null if not cached
+	 */
+	public static URL findCacheFile(String name) {
+		return FileStoreIndex.getInstance().findFile(name);
+	}
+	
+	/**
+	 * @param name Path relative to the cache
+	 * @return true if the file is in the WW cache
+	 */
+	public static boolean isCached(String name) {
+		return findCacheFile(name) != null;
+	}
+	
+	/**
+	 * Delete a file from the WW cache (and its index)
+	 * @param file
+	 * @return true if deleted
+	 */
+	public static boolean deleteCacheFile(File file) 
+	{
+		if ( ! file.delete() )
+			return false;
+		
+		FileStoreIndex.getInstance().removed(file);
+		return true;
+	}
 	
 }
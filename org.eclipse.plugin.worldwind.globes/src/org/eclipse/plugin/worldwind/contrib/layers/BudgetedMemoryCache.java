@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import gov.nasa.worldwind.cache.Cacheable;
+import gov.nasa.worldwind.cache.MemoryCache;
+
+/**
+ * Layer memory cache charged against the global {@link TextureBudget}.
+ * Entries are kept in access order with a hit count: evictions take the 
+ * least frequently used of the {@link #EVICTION_SAMPLE} least recently
+ * used entries. All the budgeted caches share the lock of the budget.
+ *
+ * <p>The capacity is a hard limit of this cache (the budget by default),
+ * the effective limit is the share given by the budget 
+ * ({@link #getShare()}).</p>
+ *
+ * @author vsilva
+ *
+ */
+public class BudgetedMemoryCache implements MemoryCache
+{
+	// Oldest entries considered for eviction
+	static final int EVICTION_SAMPLE = 4;
+
+	private final TextureBudget budget;
+	private final String key;
+	private String name;
+
+	private final CopyOnWriteArrayList<CacheListener> listeners = new CopyOnWriteArrayList<CacheListener>();
+
+	// access ordered. guarded by the budget
+	private final LinkedHashMap<Object, Slot> slots = new LinkedHashMap<Object, Slot>(256, 0.75f, true);
+
+	private long used;
+	private long capacity;
+	private long lowWater;
+
+	// stats
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	// set by the budget
+	volatile long lastRendered;
+	volatile long share;
+
+	/*
+	 * A cached object
+	 */
+	private static class Slot
+	{
+		final Object value;
+		final long size;
+		long lastAccess;
+		int frequency;
+
+		Slot(Object value, long size, long lastAccess) {
+			this.value 		= value;
+			this.size 		= size;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	BudgetedMemoryCache(TextureBudget budget, String key)
+	{
+		this.budget 	= budget;
+		this.key 		= key;
+		this.capacity 	= budget.getBudget();
+		this.lowWater 	= (long)(0.9 * capacity);
+		this.share 		= capacity;
+	}
+
+	/**
+	 * @return Key of this cache in the WW memory cache set
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void addCacheListener(CacheListener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	public void removeCacheListener(CacheListener listener) {
+		listeners.remove(listener);
+	}
+
+	public Set<Object> getKeySet() {
+		synchronized (budget) {
+			return new HashSet<Object>(slots.keySet());
+		}
+	}
+
+	public boolean contains(Object key) {
+		synchronized (budget) {
+			return slots.containsKey(key);
+		}
+	}
+
+	public boolean add(Object key, Cacheable clientObject) {
+		return add(key, clientObject, clientObject.getSizeInBytes());
+	}
+
+	public boolean add(Object key, Object clientObject, long clientObjectSize)
+	{
+		if ( key == null || clientObject == null || clientObjectSize > capacity )
+			return false;
+
+		Slot old;
+
+		synchronized (budget)
+		{
+			old = slots.remove(key);
+
+			if ( old != null ) 
+				release(old);
+
+			slots.put(key, new Slot(clientObject, clientObjectSize, budget.tick()));
+			used += clientObjectSize;
+			budget.charge(clientObjectSize);
+
+			// over the hard limit of this cache
+			if ( used > capacity ) {
+				while ( used > lowWater && evictOne() )
+					;
+			}
+			budget.evict();
+		}
+
+		if ( old != null && old.value != clientObject )
+			notifyRemoved(key, old.value);
+		return true;
+	}
+
+	public void remove(Object key)
+	{
+		Slot slot;
+
+		synchronized (budget) {
+			slot = slots.remove(key);
+
+			if ( slot != null )
+				release(slot);
+		}
+
+		if ( slot != null )
+			notifyRemoved(key, slot.value);
+	}
+
+	public Object getObject(Object key)
+	{
+		synchronized (budget)
+		{
+			final Slot slot = slots.get(key);
+
+			if ( slot == null ) {
+				misses++;
+				return null;
+			}
+			hits++;
+			slot.lastAccess = budget.tick();
+			slot.frequency++;
+			return slot.value;
+		}
+	}
+
+	public void clear()
+	{
+		LinkedHashMap<Object, Slot> removed;
+
+		synchronized (budget) {
+			removed = new LinkedHashMap<Object, Slot>(slots);
+			slots.clear();
+			budget.charge(-used);
+			used = 0;
+		}
+
+		for (Object k : removed.keySet())
+			notifyRemoved(k, removed.get(k).value);
+	}
+
+	public int getNumObjects() {
+		synchronized (budget) {
+			return slots.size();
+		}
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public long getUsedCapacity() {
+		synchronized (budget) {
+			return used;
+		}
+	}
+
+	public long getFreeCapacity() {
+		return Math.max(0, Math.min(capacity, share) - getUsedCapacity());
+	}
+
+	public long getLowWater() {
+		return lowWater;
+	}
+
+	public void setLowWater(long loWater) {
+		if ( loWater < capacity && loWater >= 0)
+			this.lowWater = loWater;
+	}
+
+	public void setCapacity(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return Bytes of the global budget given to this cache
+	 */
+	public long getShare() {
+		return share;
+	}
+
+	/**
+	 * @return time (ms) the layer of this cache was last rendered
+	 */
+	public long getLastRendered() {
+		return lastRendered;
+	}
+
+	public long getHits() {
+		synchronized (budget) {
+			return hits;
+		}
+	}
+
+	public long getMisses() {
+		synchronized (budget) {
+			return misses;
+		}
+	}
+
+	public long getEvictions() {
+		synchronized (budget) {
+			return evictions;
+		}
+	}
+
+	/*
+	 * Access time of the least recently used entry (caller holds the lock)
+	 */
+	long getEldestAccess () {
+		return slots.isEmpty() ? Long.MAX_VALUE : slots.values().iterator().next().lastAccess;
+	}
+
+	/*
+	 * Evict the least frequently used of the oldest entries. Frequencies
+	 * of the entries passed over are halved so entries hot in the past
+	 * age out (caller holds the lock).
+	 */
+	boolean evictOne ()
+	{
+		Object victimKey 	= null;
+		Slot victim 		= null;
+		int victimFrequency = 0;
+		int n = 0;
+
+		// iterate the entries: get() would reorder the map
+		for (Iterator<Map.Entry<Object, Slot>> it = slots.entrySet().iterator(); it.hasNext() && n < EVICTION_SAMPLE; n++) 
+		{
+			final Map.Entry<Object, Slot> e = it.next();
+			final Slot slot = e.getValue();
+
+			if ( victim == null || slot.frequency < victimFrequency ) {
+				victimKey 		= e.getKey();
+				victim 			= slot;
+				victimFrequency = slot.frequency;
+			}
+			slot.frequency >>= 1;
+		}
+
+		if ( victim == null )
+			return false;
+
+		slots.remove(victimKey);
+		release(victim);
+		evictions++;
+
+		notifyRemoved(victimKey, victim.value);
+		return true;
+	}
+
+	private void release (Slot slot) {
+		used -= slot.size;
+		budget.charge(-slot.size);
+	}
+
+	private void notifyRemoved (Object key, Object value)
+	{
+		for (CacheListener listener : listeners)
+			listener.entryRemoved(key, value);
+	}
+
+	@Override
+	public String toString() {
+		synchronized (budget) {
+			return name + " used=" + used + " share=" + share + " objects=" + slots.size()
+				+ " hits=" + hits + " misses=" + misses + " evictions=" + evictions
+				+ (System.currentTimeMillis() - lastRendered < TextureBudget.VISIBLE_INTERVAL 
+						? " visible" : "");
+		}
+	}
+}
@@ -0,0 +1,552 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import org.eclipse.plugin.worldwind.contrib.parsers.HTTPConnectionPool;
+
+import gov.nasa.worldwind.geom.LatLon;
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.render.DrawContext;
+
+/**
+ * Prioritized download queue for tiles and ground overlays.
+ *
+ * <p>Requests are served closest to the eye first (sectors containing the eye
+ * have distance 0), coarser zoom levels first on ties. The queue is bounded:
+ * when full, the farthest request is dropped. Layers call {@link #updateView(DrawContext)}
+ * every frame; when the view changes queued requests are re-prioritized and those
+ * whose sector left the visible sector are dropped.</p>
+ *
+ * <p>Dropped requests are notified via {@link Request#dropped()} so the owner can
+ * reset its loading state and submit again later.</p>
+ *
+ * <p>Prefetch requests (see {@link MotionPrefetcher}) run after all on-screen
+ * requests, on at most {@link #DEFAULT_PREFETCH_WORKERS} threads, and are kept
+ * while their sector is visible or inside the predicted view.</p>
+ *
+ * <p>Requests that tell their URL ({@link Request#getURL()}) are only taken
+ * off the queue while their host has a free connection in the
+ * {@link HTTPConnectionPool}, so a slow host can't hold all the workers
+ * while requests for other hosts wait.</p>
+ *
+ * @author vsilva
+ *
+ */
+public class DownloadScheduler
+{
+	private static final Logger logger = Logger.getLogger(DownloadScheduler.class);
+
+	// Max # of queued requests
+	public static final int DEFAULT_CAPACITY = 256;
+
+	// # of download threads
+	public static final int DEFAULT_WORKERS = 8;
+
+	// # of download threads available to prefetch requests
+	public static final int DEFAULT_PREFETCH_WORKERS = 2;
+
+	// Time between checks of busy hosts when only their requests are queued (ms)
+	static final long HOST_POLL_INTERVAL = 250;
+
+	private final TreeSet<Request> queue = new TreeSet<Request>();
+	private final Object lock = queue;
+
+	private int capacity = DEFAULT_CAPACITY;
+
+	// View used to prioritize
+	private Position eyePosition;
+	private Sector visibleSector;
+
+	// Predicted view (prefetch)
+	private Sector prefetchSector;
+	private int maxPrefetchActive = DEFAULT_PREFETCH_WORKERS;
+
+	// host -> # of requests running. Guarded by lock
+	private final Map<String, Integer> hostsActive = new HashMap<String, Integer>();
+
+	private final AtomicInteger active 		= new AtomicInteger();
+	private final AtomicInteger prefetchActive = new AtomicInteger();
+	private final AtomicLong prefetched 	= new AtomicLong();
+	private final AtomicLong sequence 		= new AtomicLong();
+	private final AtomicLong submitted 		= new AtomicLong();
+	private final AtomicLong completed 		= new AtomicLong();
+	private final AtomicLong dropped 		= new AtomicLong();
+
+	private static final DownloadScheduler instance = new DownloadScheduler(DEFAULT_WORKERS);
+
+	/**
+	 * A prioritized download. Subclasses implement run() to do the work
+	 * and dropped() to undo any loading state when the request is discarded.
+	 */
+	public static abstract class Request implements Runnable, Comparable<Request>
+	{
+		final Sector sector;
+		final int zoom;
+		final Object owner;
+
+		// low priority, for a predicted view
+		boolean prefetch;
+
+		long seq;
+		double distance;
+
+		// resource URL & its host key (null = no host limit)
+		URL url;
+		String host;
+
+		/**
+		 * @param sector Lat/lon box of the resource (null = never dropped for visibility)
+		 * @param zoom Zoom level of the resource (0 for overlays)
+		 * @param owner Layer that owns the request. Used by {@link DownloadScheduler#cancel(Object)}
+		 */
+		public Request(Sector sector, int zoom, Object owner) {
+			this(sector, zoom, owner, false);
+		}
+
+		/**
+		 * @param sector Lat/lon box of the resource
+		 * @param zoom Zoom level of the resource
+		 * @param owner Layer that owns the request
+		 * @param prefetch If true the request runs after all on-screen requests
+		 */
+		public Request(Sector sector, int zoom, Object owner, boolean prefetch) {
+			this.sector 	= sector;
+			this.zoom 		= zoom;
+			this.owner 		= owner;
+			this.prefetch 	= prefetch;
+		}
+
+		/**
+		 * Called when the request is discarded without running
+		 */
+		protected void dropped() {
+		}
+
+		public Sector getSector() {
+			return sector;
+		}
+
+		public int getZoom() {
+			return zoom;
+		}
+
+		public boolean isPrefetch() {
+			return prefetch;
+		}
+
+		/**
+		 * @return URL downloaded by this request or null if unknown.
+		 * Used to limit the # of requests running per host.
+		 */
+		protected URL getURL() {
+			return null;
+		}
+
+		public int compareTo(Request o) {
+			if ( prefetch != o.prefetch )
+				return prefetch ? 1 : -1;
+			if ( distance != o.distance )
+				return distance < o.distance ? -1 : 1;
+			if ( zoom != o.zoom )
+				return zoom < o.zoom ? -1 : 1;
+			return seq < o.seq ? -1 : seq > o.seq ? 1 : 0;
+		}
+	}
+
+	private DownloadScheduler(int workers)
+	{
+		for (int i = 0; i < workers; i++) {
+			Thread t = new Thread(new Worker(), "DownloadScheduler-" + i);
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			t.start();
+		}
+	}
+
+	public static DownloadScheduler getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Queue a request.
+	 * @param request
+	 * @return false if the request was rejected: its sector is not visible or the
+	 * queue is full of closer requests. {@link Request#dropped()} is not called in this case.
+	 */
+	public boolean submit (Request request)
+	{
+		Request evicted = null;
+
+		synchronized (lock)
+		{
+			if ( ! isVisible(request) ) {
+				logger.debug("Rejected " + request + " (not visible)");
+				return false;
+			}
+
+			request.seq 		= sequence.incrementAndGet();
+			request.distance 	= computeDistance(request);
+			request.url 		= request.getURL();
+			request.host 		= request.url != null ? HTTPConnectionPool.hostKey(request.url) : null;
+
+			if ( queue.size() >= capacity )
+			{
+				Request last = queue.last();
+
+				if ( request.compareTo(last) > 0) {
+					logger.debug("Rejected " + request + " (queue full)");
+					return false;
+				}
+				evicted = queue.pollLast();
+			}
+			queue.add(request);
+			submitted.incrementAndGet();
+			lock.notify();
+		}
+
+		// outside the lock: owners may synchronize on their own state
+		if ( evicted != null )
+			drop(evicted);
+
+		return true;
+	}
+
+	/**
+	 * Update the eye position & visible sector from the draw context. Called by
+	 * layers on each frame; the queue is only re-sorted when the view changes.
+	 * @param dc
+	 */
+	public void updateView (DrawContext dc)
+	{
+		if ( dc.getView() == null ) return;
+
+		final Position eye 		= dc.getView().getEyePosition();
+		final Sector visible 	= dc.getVisibleSector();
+
+		List<Request> discarded = null;
+
+		synchronized (lock)
+		{
+			if ( eye == null
+					|| ( eye.equals(eyePosition)
+						&& (visible == null ? visibleSector == null : visible.equals(visibleSector))))
+				return;
+
+			eyePosition 	= eye;
+			visibleSector 	= visible;
+
+			if ( queue.isEmpty() ) return;
+
+			List<Request> requests = new ArrayList<Request>(queue);
+			queue.clear();
+
+			for (Request r : requests)
+			{
+				if ( isVisible(r) ) {
+					r.distance = computeDistance(r);
+					queue.add(r);
+				}
+				else {
+					if ( discarded == null ) discarded = new ArrayList<Request>();
+					discarded.add(r);
+				}
+			}
+		}
+
+		if ( discarded != null ) {
+			logger.debug("Dropped " + discarded.size() + " requests out of view. Queued=" + getQueueDepth());
+
+			for (Request r : discarded)
+				drop(r);
+		}
+	}
+
+	/**
+	 * Turn a queued prefetch request into an on-screen request (its resource
+	 * became visible).
+	 * @param request
+	 * @return false if the request is no longer queued
+	 */
+	public boolean promote (Request request)
+	{
+		synchronized (lock)
+		{
+			if ( ! request.prefetch )
+				return true;
+
+			// remove before changing the sort key
+			if ( ! queue.remove(request) )
+				return false;
+
+			request.prefetch = false;
+			request.distance = computeDistance(request);
+			queue.add(request);
+			lock.notifyAll();
+			return true;
+		}
+	}
+
+	/**
+	 * Set the predicted view footprint. Prefetch requests outside both the
+	 * visible and predicted sectors are dropped on the next view change.
+	 * @param sector Predicted sector or null if the view is not moving
+	 */
+	public void setPrefetchSector (Sector sector) {
+		synchronized (lock) {
+			prefetchSector = sector;
+		}
+	}
+
+	/**
+	 * Drop all queued requests of a given owner (e.g. a layer being disabled)
+	 * @param owner
+	 */
+	public void cancel (Object owner)
+	{
+		List<Request> discarded = new ArrayList<Request>();
+
+		synchronized (lock)
+		{
+			for (Iterator<Request> it = queue.iterator(); it.hasNext();) {
+				Request r = it.next();
+
+				if ( r.owner == owner ) {
+					it.remove();
+					discarded.add(r);
+				}
+			}
+		}
+		for (Request r : discarded)
+			drop(r);
+	}
+
+	private boolean isVisible (Request r) {
+		if ( r.sector == null || visibleSector == null || r.sector.intersects(visibleSector))
+			return true;
+
+		return r.prefetch && prefetchSector != null && r.sector.intersects(prefetchSector);
+	}
+
+	/*
+	 * Angular distance (radians) from the eye to the request sector.
+	 * 0 if the sector contains the eye.
+	 */
+	private double computeDistance (Request r)
+	{
+		if ( r.sector == null || eyePosition == null )
+			return 0;
+
+		if ( r.sector.contains(eyePosition.getLatitude(), eyePosition.getLongitude()) )
+			return 0;
+
+		return LatLon.greatCircleDistance(
+				new LatLon(eyePosition.getLatitude(), eyePosition.getLongitude())
+				, r.sector.getCentroid()).radians;
+	}
+
+	private void drop (Request r)
+	{
+		dropped.incrementAndGet();
+		try {
+			r.dropped();
+		} catch (Exception e) {
+			logger.error("Drop of " + r + " failed: " + e);
+		}
+	}
+
+	/*
+	 * Closest request that can run now: prefetch slots left & its host
+	 * not busy. Callers hold the lock.
+	 * @return null if none
+	 */
+	private Request next ()
+	{
+		for (Request r : queue) 
+		{
+			// prefetch requests sort last
+			if ( r.prefetch && prefetchActive.get() >= maxPrefetchActive )
+				return null;
+
+			if ( r.host == null || isHostFree(r) )
+				return r;
+		}
+		return null;
+	}
+
+	/*
+	 * Free connection for the request host? Our own running requests are
+	 * counted here (they may not hold a pool permit yet), other downloads
+	 * thru the pool's permits.
+	 */
+	private boolean isHostFree (Request r)
+	{
+		final HTTPConnectionPool pool 	= HTTPConnectionPool.getInstance();
+		final Integer running 			= hostsActive.get(r.host);
+
+		return (running == null || running < pool.getMaxConnectionsPerHost()) 
+			&& pool.hasCapacity(r.url);
+	}
+
+	private void hostStarted (Request r) {
+		if ( r.host == null ) return;
+		final Integer running = hostsActive.get(r.host);
+		hostsActive.put(r.host, running == null ? 1 : running + 1);
+	}
+
+	private void hostFinished (Request r) {
+		if ( r.host == null ) return;
+		final Integer running = hostsActive.get(r.host);
+
+		if ( running == null || running <= 1 )
+			hostsActive.remove(r.host);
+		else
+			hostsActive.put(r.host, running - 1);
+	}
+
+	/*
+	 * Download thread: runs the closest request whose host is not busy
+	 */
+	private class Worker implements Runnable
+	{
+		public void run()
+		{
+			while ( true )
+			{
+				Request r;
+
+				synchronized (lock)
+				{
+					while ( (r = next()) == null ) 
+					{
+						try {
+							// requests waiting for busy hosts: connections released by
+							// other downloads are not notified, check again later
+							lock.wait(queue.isEmpty() ? 0 : HOST_POLL_INTERVAL);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					queue.remove(r);
+					hostStarted(r);
+
+					if ( r.prefetch )
+						prefetchActive.incrementAndGet();
+				}
+
+				active.incrementAndGet();
+				try {
+					r.run();
+				}
+				catch (Throwable t) {
+					logger.error("Download " + r + " failed: " + t);
+				}
+				finally {
+					active.decrementAndGet();
+					completed.incrementAndGet();
+
+					if ( r.prefetch ) 
+						prefetched.incrementAndGet();
+
+					// a host or prefetch slot is free
+					synchronized (lock) {
+						hostFinished(r);
+
+						if ( r.prefetch )
+							prefetchActive.decrementAndGet();
+
+						lock.notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set the max # of queued requests.
+	 * @param capacity
+	 */
+	public void setCapacity(int capacity) {
+		if ( capacity < 1 )
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		this.capacity = capacity;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Set the max # of download threads running prefetch requests at once.
+	 * @param workers
+	 */
+	public void setMaxPrefetchWorkers(int workers) {
+		synchronized (lock) {
+			maxPrefetchActive = workers;
+			lock.notifyAll();
+		}
+	}
+
+	/*
+	 * Statistics
+	 */
+
+	/** @return # of requests waiting to run */
+	public int getQueueDepth() {
+		synchronized (lock) {
+			return queue.size();
+		}
+	}
+
+	/** @return # of requests running */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/** @return # of prefetch requests run */
+	public long getPrefetchedCount() {
+		return prefetched.get();
+	}
+
+	/** @return # of requests discarded (out of view, queue full or canceled) */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	@Override
+	public String toString() {
+		return "Downloads queued=" + getQueueDepth()
+			+ " active=" + active
+			+ " completed=" + completed
+			+ " prefetched=" + prefetched
+			+ " dropped=" + dropped;
+	}
+}
@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.imageio.ImageIO;
+
+import org.eclipse.plugin.worldwind.contrib.Messages;
+import org.eclipse.plugin.worldwind.contrib.parsers.DownloadMetrics;
+
+import com.sun.opengl.util.texture.TextureData;
+import com.sun.opengl.util.texture.TextureIO;
+
+import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.layers.TextureTile;
+
+/**
+ * Frame times of the render thread w/o GL, as recorded by the layer
+ * {@link TextureLoader.FrameTimer}s, before & after moving work off the
+ * render thread. Frames are paced at 60 Hz (vsync), so a frame is never
+ * shorter than ~16 ms. Two layers render per frame: the frame count must
+ * match the frames rendered (timers record once per frame).
+ *
+ * <p>Tile decode: bursts of tiles come into view (a zoom step every half
+ * second). Before, each tile image was decoded on the render thread. After,
+ * the {@link TextureLoader} threads decode & the render thread only uploads
+ * within the {@link TextureLoader.UploadBudget}. The GL upload is emulated
+ * by a buffer copy in both.</p>
+ *
+ * <p>Loading placeholder: the ground overlays of a loop warm up. Before,
+ * each loading overlay decoded <code>loading.png</code> into a new tile
+ * (uploaded when drawn) on every frame. After, the {@link LoadingPlaceholder}
+ * image is decoded & uploaded once and each overlay keeps a lightweight
+ * {@link LoadingPlaceholder.Tile}. Drawing is GL work (the same in both)
+ * and is left out.</p>
+ * <pre>
+ * java ...FrameTimeComparison [seconds per run (10)]
+ * </pre>
+ * @author vsilva
+ *
+ */
+public class FrameTimeComparison
+{
+	// vsync period (ms)
+	static final long FRAME = 16;
+
+	// tiles coming into view per burst & frames between bursts
+	static final int BURST 			= 24;
+	static final int BURST_FRAMES 	= 30;
+
+	static final int TILES 		= 96;
+	static final int TILE_SIZE 	= 256;
+
+	// loading overlays (a 24 frame loop)
+	static final int OVERLAYS 	= 24;
+
+	/**
+	 * Work of the render thread
+	 */
+	static enum Mode {
+		/** Tiles decoded on the render thread */
+		DECODE,
+		/** Tiles decoded in the background, uploads w/ a budget */
+		UPLOAD,
+		/** Placeholder decoded per overlay & frame */
+		PLACEHOLDER_PER_FRAME,
+		/** Shared placeholder */
+		PLACEHOLDER_SHARED
+	};
+
+	// render thread state
+	private final TextureLoader.FrameTimer tileTimer 	= new TextureLoader.FrameTimer();
+	private final TextureLoader.FrameTimer otherTimer 	= new TextureLoader.FrameTimer();
+	private final TextureLoader.UploadBudget budget 	= new TextureLoader.UploadBudget();
+
+	// GL upload stand-in
+	private final ByteBuffer vram = ByteBuffer.allocateDirect(4 * TILE_SIZE * TILE_SIZE * 2);
+
+	private final File[] tiles;
+	private int frames, uploads, next;
+
+	// decoded off the render thread
+	private final ConcurrentLinkedQueue<TextureData> decoded = new ConcurrentLinkedQueue<TextureData>();
+
+	// tiles waiting for a free decoder slot (render thread)
+	private final LinkedList<File> backlog = new LinkedList<File>();
+
+	// placeholder tiles of the loading overlays (shared placeholder)
+	private LoadingPlaceholder.Tile[] placeholders;
+
+	FrameTimeComparison(File[] tiles) {
+		this.tiles = tiles;
+	}
+
+	public static void main(String[] args)
+	{
+		final long millis = (args.length > 0 ? Integer.parseInt(args[0]) : 10) * 1000L;
+
+		try {
+			final File dir = File.createTempFile("frametimes", "");
+			dir.delete();
+			dir.mkdirs();
+
+			final File[] tiles = createTiles(dir);
+
+			System.out.println("Tile decode: " + BURST + " tiles every " + BURST_FRAMES
+					+ " frames, " + (millis / 1000) + " s per run");
+
+			// warm up (JIT, image readers)
+			for (Mode mode : Mode.values())
+				new FrameTimeComparison(tiles).run(1000, mode);
+
+			report("decode on render thread ", new FrameTimeComparison(tiles), millis, Mode.DECODE);
+			report("decode in background    ", new FrameTimeComparison(tiles), millis, Mode.UPLOAD);
+
+			System.out.println("Loading placeholder: " + OVERLAYS + " overlays loading");
+
+			report("placeholder per frame   ", new FrameTimeComparison(tiles), millis, Mode.PLACEHOLDER_PER_FRAME);
+			report("shared placeholder      ", new FrameTimeComparison(tiles), millis, Mode.PLACEHOLDER_SHARED);
+
+			for (File f : tiles)
+				f.delete();
+			dir.delete();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * JPEG tiles w/ noise (realistic decode cost)
+	 */
+	private static File[] createTiles (File dir) throws IOException
+	{
+		final File[] files 	= new File[TILES];
+		final Random random = new Random(1);
+
+		for (int i = 0; i < TILES; i++)
+		{
+			BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = image.createGraphics();
+			g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt()), TILE_SIZE, TILE_SIZE, new Color(random.nextInt())));
+			g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+			g.dispose();
+
+			for (int y = 0; y < TILE_SIZE; y++)
+				for (int x = 0; x < TILE_SIZE; x++)
+					if ( random.nextInt(4) == 0 )
+						image.setRGB(x, y, image.getRGB(x, y) ^ (random.nextInt() & 0x3f3f3f));
+
+			files[i] = new File(dir, i + ".jpg");
+			ImageIO.write(image, "jpg", files[i]);
+		}
+		return files;
+	}
+
+	private static void report (String name, FrameTimeComparison test, long millis, Mode mode)
+		throws IOException
+	{
+		final TextureLoader loader = TextureLoader.getInstance();
+		loader.resetFrameTimes();
+
+		test.run(millis, mode);
+
+		final DownloadMetrics.Histogram frames = loader.getFrameTimes();
+		final DownloadMetrics.Histogram render = loader.getRenderTimes();
+
+		System.out.println(name + " frames: " + frames.getCount() + "/" + (test.frames - 1)
+				+ " mean=" + frames.getMean() + " p99=" + frames.getPercentile(0.99)
+				+ " max=" + frames.getMax() + " long (>" + TextureLoader.LONG_FRAME + " ms)="
+				+ loader.getLongFrames()
+				+ " | render pass mean=" + render.getMean() + " max=" + render.getMax()
+				+ " | uploads=" + test.uploads);
+	}
+
+	/*
+	 * Render loop
+	 */
+	void run (long millis, Mode mode) throws IOException
+	{
+		final long end = System.currentTimeMillis() + millis;
+
+		while ( System.currentTimeMillis() < end )
+		{
+			final long start = System.nanoTime();
+
+			// tile (or overlay) layer
+			tileTimer.begin();
+			try {
+				switch ( mode ) {
+				case DECODE: 
+					decodeTiles(); 
+					break;
+				case UPLOAD: 
+					uploadTiles(); 
+					break;
+				case PLACEHOLDER_PER_FRAME: 
+					decodePlaceholders(); 
+					break;
+				case PLACEHOLDER_SHARED: 
+					sharedPlaceholders(); 
+					break;
+				}
+			}
+			finally {
+				tileTimer.end();
+			}
+
+			// another layer (must not count as a frame)
+			otherTimer.begin();
+			otherTimer.end();
+
+			frames++;
+
+			// wait for the next vsync
+			final long elapsed = (System.nanoTime() - start) / 1000000;
+
+			try {
+				Thread.sleep(elapsed < FRAME ? FRAME - elapsed : FRAME - elapsed % FRAME);
+			}
+			catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/*
+	 * Before: tiles coming into view are decoded by the render thread
+	 */
+	private void decodeTiles () throws IOException
+	{
+		if ( frames % BURST_FRAMES != 0 )
+			return;
+
+		for (int i = 0; i < BURST; i++)
+			upload(decode(nextTile()));
+	}
+
+	/*
+	 * After: decode in the background, upload within the frame budget
+	 */
+	private void uploadTiles ()
+	{
+		if ( frames % BURST_FRAMES == 0 )
+			for (int i = 0; i < BURST; i++)
+				backlog.add(nextTile());
+
+		// decoder queue full: try again on a later frame
+		while ( ! backlog.isEmpty() )
+		{
+			final File file = backlog.getFirst();
+
+			final boolean queued = TextureLoader.getInstance().submit(new Runnable() {
+				public void run() {
+					try {
+						decoded.add(decode(file));
+					}
+					catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+
+			if ( ! queued )
+				break;
+
+			backlog.removeFirst();
+		}
+
+		budget.reset();
+
+		TextureData data;
+		while ( (data = decoded.peek()) != null && budget.acquire(data.getEstimatedMemorySize()) )
+			upload(decoded.poll());
+	}
+
+	/*
+	 * Before: each loading overlay decodes the placeholder into a new tile
+	 */
+	private void decodePlaceholders () throws IOException
+	{
+		for (int i = 0; i < OVERLAYS; i++) {
+			final TextureTile tile = new TextureTile(Sector.FULL_SPHERE);
+			tile.setTextureData(decodePlaceholder());
+			
+			// uploaded when drawn
+			upload(tile.getTextureData());
+		}
+	}
+
+	/*
+	 * After: the placeholder is decoded & uploaded once, overlays keep a tile
+	 */
+	private void sharedPlaceholders () throws IOException
+	{
+		if ( placeholders != null ) 
+			return;
+
+		upload(decodePlaceholder());
+
+		placeholders = new LoadingPlaceholder.Tile[OVERLAYS];
+
+		for (int i = 0; i < OVERLAYS; i++) 
+			placeholders[i] = new LoadingPlaceholder.Tile(Sector.FULL_SPHERE);
+	}
+
+	private static TextureData decodePlaceholder () throws IOException
+	{
+		final InputStream is = Messages.getInputStream(LoadingPlaceholder.class, LoadingPlaceholder.IMAGE);
+		try {
+			return TextureIO.newTextureData(is, false, TextureIO.PNG);
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	private File nextTile () {
+		return tiles[next++ % tiles.length];
+	}
+
+	private static TextureData decode (File file) throws IOException
+	{
+		final InputStream is = new FileInputStream(file);
+		try {
+			return TextureLoader.decode(is, true);
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	/*
+	 * GL upload stand-in: copy the pixels
+	 */
+	private void upload (TextureData data)
+	{
+		final ByteBuffer pixels = (ByteBuffer)data.getBuffer();
+
+		vram.clear();
+		pixels.rewind();
+
+		if ( pixels.remaining() <= vram.remaining() )
+			vram.put(pixels);
+
+		data.flush();
+		uploads++;
+	}
+}
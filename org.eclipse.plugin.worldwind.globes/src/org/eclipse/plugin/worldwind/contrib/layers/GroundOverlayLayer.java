@@ -15,31 +15,34 @@ import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.imageio.ImageIO;
 import org.apache.log4j.Logger;
 
 import org.eclipse.plugin.worldwind.contrib.Messages;
+import org.eclipse.plugin.worldwind.contrib.parsers.CacheMetadata;
+import org.eclipse.plugin.worldwind.contrib.parsers.NegativeCache;
 import org.eclipse.plugin.worldwind.contrib.parsers.ParserUtils;
 import org.eclipse.plugin.worldwind.contrib.parsers.SimpleHTTPClient;
 import org.eclipse.plugin.worldwind.contrib.parsers.WMS_Capabilities;
+import org.eclipse.plugin.worldwind.contrib.FileStoreIndex;
 import org.eclipse.plugin.worldwind.contrib.LayerUtils;
 
 import com.sun.opengl.util.texture.Texture;
+import com.sun.opengl.util.texture.TextureData;
 import com.sun.opengl.util.texture.TextureIO;
 
-import gov.nasa.worldwind.Configuration;
 import gov.nasa.worldwind.WorldWind;
-import gov.nasa.worldwind.avlist.AVKey;
-import gov.nasa.worldwind.cache.BasicMemoryCache;
 import gov.nasa.worldwind.cache.GpuResourceCache;
-import gov.nasa.worldwind.cache.MemoryCache;
 //import gov.nasa.worldwind.cache.TextureCache;
 import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.geom.Vec4;
@@ -62,6 +65,9 @@ public class GroundOverlayLayer extends AbstractLayer
 {
 	private static final Logger logger = Logger.getLogger(GroundOverlayLayer.class);
 
+	// Set to true to draw large images as one texture (see OverlayPyramid)
+	public static final String TILED_OFF_PROPERTY = "worldwind.overlay.tiled.off";
+
 	private String description;
 	
 	private TextureTile tile = null;
@@ -76,12 +82,65 @@ public class GroundOverlayLayer extends AbstractLayer
 	
 	private Sector sector;
 	
-	// Web Download read timeout
-	private boolean loading = false;
+	/**
+	 * Texture pipeline states: fetch -> verify -> decode -> upload. All
+	 * stages but the upload run in the background.
+	 */
+	public static enum State {
+		/** Not loaded (or dropped from the memory cache) */
+		ABSENT,
+		/** Waiting in the download queue, downloading or copying into the cache */
+		FETCHING,
+		/** Checking the downloaded response (content type, size) */
+		VERIFYING,
+		/** Image in the cache */
+		ON_DISK,
+		/** Image being decoded by the {@link TextureLoader} threads */
+		DECODING,
+		/** Texture data decoded, waiting for the GL upload */
+		DECODED,
+		/** Texture in the memory cache */
+		RESIDENT,
+		/** Fetch or decode failed. Retried after {@link #RETRY_DELAY} ms */
+		FAILED
+	};
+	
+	// Time before a failed texture is loaded again (ms)
+	static final long RETRY_DELAY = 30 * 1000;
+	
+	private final AtomicReference<State> state = new AtomicReference<State>(State.ABSENT);
+	
+	// Decoded image waiting for the GL upload (DECODED)
+	private volatile TextureData textureData;
+	private volatile long retryAt;
+	
+	// GL uploads per frame, shared by all the overlays (render thread).
+	// A new frame starts when an overlay renders again.
+	private static final TextureLoader.UploadBudget uploadBudget = new TextureLoader.UploadBudget();
+	private static final Set<GroundOverlayLayer> frameOverlays 
+		= Collections.newSetFromMap(new IdentityHashMap<GroundOverlayLayer, Boolean>());
 	
 	private String formatName;
 	private String fileSuffix;
 	
+	// HTTP validators of the cached texture
+	private CacheMetadata cacheMetadata;
+	private volatile boolean revalidating = false;
+	
+	// Textures w/o Expires or max-age are revalidated after this many ms
+	private long timeToLive = 10 * 60 * 1000;
+	
+	// Drawn while loading. Style null = the LoadingPlaceholder default
+	private final LoadingPlaceholder.Tile placeholder;
+	private LoadingPlaceholder.Style placeholderStyle;
+	
+	// Large images are drawn from a tile pyramid (if tiled)
+	private boolean tiled = ! Boolean.getBoolean(TILED_OFF_PROPERTY);
+	private volatile OverlayPyramid pyramid;
+	
+	// Frame & render pass times
+	private final TextureLoader.FrameTimer frameTimer = new TextureLoader.FrameTimer();
+	
 	// Animation loop status listeners
     private CopyOnWriteArrayList<OverlayListener> listeners 
     	= new CopyOnWriteArrayList<OverlayListener>();
@@ -105,6 +164,7 @@ public class GroundOverlayLayer extends AbstractLayer
 			throw new IllegalArgumentException("Invalid layer name or sector");
 		
         this.tile 		= new TextureTile(sector);
+        this.placeholder = new LoadingPlaceholder.Tile(sector);
 		this.textureURL = textureURL;
 		this.sector 	= sector;
 		this.fileSuffix = fileSuffix;
@@ -127,16 +187,7 @@ public class GroundOverlayLayer extends AbstractLayer
 	}
 
 	private void initCache () {
-        if (!WorldWind.getMemoryCacheSet().containsCache(GroundOverlayLayer.class.getName()))
-        {
-            long size = Configuration.getLongValue(AVKey.TEXTURE_IMAGE_CACHE_SIZE, 4000000L);
-            MemoryCache cache = new BasicMemoryCache((long) (0.95 * size), size);
-            
-            cache.setName("Ground Overlays");
-            WorldWind.getMemoryCacheSet().addCache(GroundOverlayLayer.class.getName(), cache);
-            
-            logger.debug("Initialized memory cache: " + cache);
-        }
+		TextureBudget.getInstance().createCache(GroundOverlayLayer.class.getName(), "Ground Overlays");
 	}
 	
 	private String buildTileKey ()
@@ -162,120 +213,382 @@ public class GroundOverlayLayer extends AbstractLayer
 	 */
     protected final void doRender(DrawContext dc)
     {
-		logger.debug("----> START doRender:" + getName() + " loading tx=" + loading);
+    	frameTimer.begin();
+    	try {
+    		renderOverlay(dc);
+    	}
+    	finally {
+    		frameTimer.end();
+    	}
+    }
+    
+    private void renderOverlay(DrawContext dc)
+    {
+		logger.debug("----> START doRender:" + getName() + " state=" + state.get());
 		
         if (dc.getSurfaceGeometry() == null || dc.getSurfaceGeometry().size() < 1)
             return; 
 
-        /*
-         * If the texture is being loaded show a "load" PMG and return
-         */
-        if ( loading ) {
-        	showLoadingTexture(dc);
-			return ;
-        }
-        
-        // If not in memory
-        if ( ! isTileInMemory())  
-        {
-        	logger.debug("Texture " + tileKey + " not in memory. loading from disk");
-        	
-        	// Load from disk
-        	URL url = LayerUtils.getWWFileStore().findFile(tileKey, false);
+        // re-prioritize queued downloads for the current view
+        DownloadScheduler.getInstance().updateView(dc);
 
-        	if ( url != null  ) 
-        	{
-        		logger.debug("Loading texture from disk: " + url );
-        		
-        		if ( !loadTexture(dc.getTextureCache(), url) ) {
-        			logger.debug("Load failed...abort render.");
-        			return; 
-        		}
-        	}
-        	else {
-        		// not in disk, load from remote URL
-        		logger.debug("Tile not in disk. Loading  from url " 
-        				+ textureURL  
-        				+ " key=" + tileKey); 
+        // visible: keep a larger share of the texture budget
+        TextureBudget.getInstance().touch(GroundOverlayLayer.class.getName());
+        TextureTranscoder.checkSupport(dc.getGL());
+        OverlayPyramid.checkSupport(dc.getGL());
         
-        		if ( ! fetchOverlay(false) ) {
-        			logger.error("ASynch fetch for " + textureURL + " FAILED");
-        			
-        			// tile fetch failed, delete from cache. Tile will be re fetched on
-        			// the next call.
-        			deleteFromCache();
-        			
-        			//onError(this, new IOException("Synch fetch for " + textureURL + " FAILED"));
-        			return;
-        		}
-        	}
-        }
-        else {
-        	tile = getTileFromMemoryCache(); 
-        	logger.debug("Loading tile from memory " + tileKey + " tile=" + tile);
+        // new frame?
+        if ( ! frameOverlays.add(this) ) {
+        	frameOverlays.clear();
+        	frameOverlays.add(this);
+        	uploadBudget.reset();
         }
         
-        if ( ! loading) {
-        	logger.debug("Redering tile=" + tile + " opacity=" + getOpacity());
-        	dc.getGeographicSurfaceTileRenderer().renderTile(dc, tile, getOpacity());
+        final TextureTile resident = getTileFromMemoryCache();
+        
+        if ( resident != null ) {
+        	tile = resident;
+        	renderTexture(dc);
         }
-        else
-        	showLoadingTexture(dc);
+        else 
+        	load(dc);
         
         logger.debug("----> END doRender:" + getName() );
     }
 
+    private void renderTexture (DrawContext dc)
+    {
+    	logger.debug("Redering tile=" + tile + " opacity=" + getOpacity());
+    	dc.getGeographicSurfaceTileRenderer().renderTile(dc, tile, getOpacity());
+    	
+    	// preview for overlays loading over the same sector (loop frames)
+    	LoadingPlaceholder.getInstance().setPreview(sector, tile);
+    }
+    
+    /*
+     * Texture not in memory: move it thru the pipeline. Draws the 
+     * placeholder while in progress.
+     */
+    private void load (DrawContext dc)
+    {
+    	State current = state.get();
+    	
+    	// dropped from the memory cache (or revalidated): load again
+    	if ( current == State.RESIDENT && state.compareAndSet(State.RESIDENT, State.ABSENT))
+    		current = State.ABSENT;
+    	
+    	switch ( current ) 
+    	{
+    		case ABSENT:
+    		case ON_DISK:
+    			final URL url = LayerUtils.findCacheFile(tileKey);
+    			
+    			if ( url != null ) 
+    			{
+    				// large image: draw its tiles
+    				if ( renderPyramid(dc, url) )
+    					return;
+    				
+    				logger.debug("Texture " + tileKey + " not in memory. Decoding " + url);
+    				decodeLater(url);
+    			}
+    			else if ( NegativeCache.getInstance().contains(getName(), tileKey) ) {
+    				// failed recently: don't fetch again until the entry expires
+    				return;
+    			}
+    			else {
+    				logger.debug("Tile not in disk. Loading from url " + textureURL + " key=" + tileKey); 
+    				fetchLater();
+    			}
+    			break;
+    			
+    		case DECODED:
+    			if ( upload(dc) ) {
+    				renderTexture(dc);
+    				return;
+    			}
+    			break;
+    			
+    		case FAILED:
+    			if ( System.currentTimeMillis() >= retryAt )
+    				state.compareAndSet(State.FAILED, State.ABSENT);
+    			return;
+    			
+    		default:
+    			// fetching, verifying, decoding
+    			break;
+    	}
+    	showLoadingTexture(dc);
+    }
+    
+    /*
+     * Fetch into the cache in the background: downloads are queued by 
+     * distance to the eye, local files copied by the WW task service.
+     */
+    private void fetchLater ()
+    {
+    	final State current = state.get();
+    	
+    	if ( (current != State.ABSENT && current != State.ON_DISK && current != State.FAILED) 
+    			|| ! state.compareAndSet(current, State.FETCHING))
+    		return;
+    	
+    	final Runnable task = new Runnable() {
+    		public void run() 
+    		{
+    			if ( fetchOverlay(true) && LayerUtils.isCached(tileKey) )
+    				state.set(State.ON_DISK);
+    			else {
+    				logger.error("Fetch for " + textureURL + " FAILED");
+    				
+    				// Tile re fetched after the retry delay
+    				deleteFromCache();
+    				failed();
+    			}
+    		}
+    	};
+    	
+    	if ( textureURL.toString().startsWith("http") ) 
+    	{
+    		boolean queued = DownloadScheduler.getInstance().submit(
+    				new DownloadScheduler.Request(sector, 0, this) 
+    		{
+    			@Override
+    			protected void dropped() {
+    				state.compareAndSet(State.FETCHING, State.ABSENT);
+    			}
+    			
+    			@Override
+    			public String toString() {
+    				return tileKey;
+    			}
+    			
+    			@Override
+    			protected URL getURL() {
+    				return textureURL;
+    			}
+    			
+    			public void run() {
+    				task.run();
+    			}
+    		});
+    		
+    		// Not visible: fetched when it comes into view
+    		if ( ! queued )
+    			state.compareAndSet(State.FETCHING, State.ABSENT);
+    	}
+    	else
+    		WorldWind.getTaskService().addTask(task);
+    }
+    
+    /*
+     * Decode the cached image by the TextureLoader threads (the DDS if
+     * transcoded): ABSENT/ON_DISK -> DECODING -> DECODED, or FAILED if corrupt
+     */
+    private void decodeLater (final URL url)
+    {
+    	final State current = state.get();
+    	
+    	if ( (current != State.ABSENT && current != State.ON_DISK) 
+    			|| ! state.compareAndSet(current, State.DECODING))
+    		return;
+    	
+    	// too large to tile: decoded whole it would fail the same way
+    	final OverlayPyramid failed = pyramid != null 
+    		&& pyramid.getState() == OverlayPyramid.State.FAILED ? pyramid : null;
+    	
+    	final boolean queued = TextureLoader.getInstance().submit(new Runnable() 
+    	{
+    		public void run() 
+    		{
+    			try {
+    				if ( failed != null ) {
+    					textureData = failed.decodeScaled(true);
+    					state.compareAndSet(State.DECODING, State.DECODED);
+    					return;
+    				}
+    				
+    				// prefer the transcoded texture
+    				final File dds = findCompressedFile(url);
+    				
+    				logger.debug("Decoding texture " + (dds != null ? dds : url));
+    				
+    				final TextureData data = TextureLoader.decode(dds != null ? dds.toURI().toURL() : url, true);
+    				
+    				textureData = data;
+    				state.compareAndSet(State.DECODING, State.DECODED);
+    				
+    				if ( dds == null )
+    					transcode(url, data.getWidth(), data.getHeight());
+    			}
+    			catch (Exception e) {
+    				// corrupt image in the cache: drop it & don't fetch again for a while
+    				NegativeCache.getInstance().put(getName(), tileKey
+    						, NegativeCache.Reason.CORRUPT, String.valueOf(e));
+    				deleteFromCache();
+    				failed();
+    				
+    				// notify listeners of error
+    				onError(GroundOverlayLayer.this, e);
+    			}
+    			finally {
+    				// an Error (out of memory): never left DECODING, retried later
+    				if ( state.get() == State.DECODING ) {
+    					logger.error("Unable to decode " + url);
+    					failed();
+    				}
+    			}
+    		}
+    	});
+    	
+    	// decoder busy: try again on a later frame
+    	if ( ! queued ) 
+    		state.compareAndSet(State.DECODING, current);
+    }
+    
+    /*
+     * GL upload of the decoded texture if the frame budget allows: DECODED -> RESIDENT
+     * @return false if not uploaded
+     */
+    private boolean upload (DrawContext dc)
+    {
+    	final TextureData data = textureData;
+    	
+    	if ( data == null || ! uploadBudget.acquire(data.getEstimatedMemorySize()) )
+    		return false;
+    	
+    	tile.setTexture(dc.getTextureCache(), TextureIO.newTexture(data));
+    	textureData = null;
+    	
+    	if ( ! addTileToMemoryCache() ) {
+    		logger.error("Unable to load " + tileKey + " to memory cache");
+    	}
+    	
+    	state.compareAndSet(State.DECODED, State.RESIDENT);
+    	return true;
+    }
+    
+    private void failed () {
+    	textureData = null;
+    	retryAt 	= System.currentTimeMillis() + RETRY_DELAY;
+    	state.set(State.FAILED);
+    }
+    
+    /**
+     * @return State of the texture pipeline
+     */
+    public State getState() {
+    	return state.get();
+    }
+
 	/*
-	 * Return a "loading.png" texture when
+	 * Draw the tile pyramid of a large image (built on first use).
+	 * @return false if the image is drawn as one texture
 	 */
-	private void showLoadingTexture(DrawContext dc)  
+	private boolean renderPyramid (DrawContext dc, URL url)
 	{
-		try {
-			TextureTile tile = new TextureTile(getSector());
-			tile.setTextureData(TextureIO.newTextureData(
-						Messages.getInputStream(GroundOverlayLayer.class, "loading.png")
-						, false
-						, TextureIO.PNG));
-			
-			dc.getGeographicSurfaceTileRenderer().renderTile(dc
-					, tile 
-					, getOpacity());
-			
-		} catch (Exception e) {
+		if ( ! tiled || ! "file".equals(url.getProtocol()) )
+			return false;
+		
+		if ( pyramid == null ) {
+			try {
+				pyramid = new OverlayPyramid(new File(url.toURI()), sector);
+			} 
+			catch (URISyntaxException e) {
+				return false;
+			}
 		}
+		
+		switch ( pyramid.getState() ) 
+		{
+			case NOT_TILED:
+			case FAILED:
+				return false;
+				
+			case READY:
+				if ( ! pyramid.render(dc, getOpacity()) )
+					showLoadingTexture(dc);
+				return true;
+				
+			default:
+				// looking for or slicing the image
+				showLoadingTexture(dc);
+				return true;
+		}
+	}
+	
+	/**
+	 * @param tiled If true images larger than {@link OverlayPyramid#getThreshold()}
+	 * are sliced into a tile pyramid & drawn by level of detail
+	 */
+	public void setTiled(boolean tiled) {
+		this.tiled 	= tiled;
+		pyramid 	= null;
 	}
 	
+	public boolean isTiled() {
+		return tiled;
+	}
 	
 	/*
-	 * Fetch ground overlay from a URL: http:/ or file:/
+	 * Draw the loading placeholder: pre-decoded & shared by all overlays
 	 */
-    //private synchronized boolean loadTexture(TextureCache tc, URL textureURL) 
-	private synchronized boolean loadTexture(GpuResourceCache tc, URL textureURL)
+	private void showLoadingTexture(DrawContext dc) {
+		LoadingPlaceholder.getInstance().render(dc, placeholder, getOpacity(), placeholderStyle);
+	}
+	
+	/**
+	 * @param style Placeholder drawn while loading or null for the 
+	 * {@link LoadingPlaceholder} default
+	 */
+	public void setPlaceholderStyle(LoadingPlaceholder.Style style) {
+		this.placeholderStyle = style;
+	}
+	
+	public LoadingPlaceholder.Style getPlaceholderStyle() {
+		return placeholderStyle;
+	}
+	
+	
+    /*
+     * DDS of a texture in the file store (if transcoding is on)
+     */
+    private static File findCompressedFile (URL textureURL) 
     {
-    	Texture texture = null;
+    	if ( ! TextureTranscoder.isEnabled() || ! "file".equals(textureURL.getProtocol()) )
+    		return null;
     	
-        try {
-        	// load from URL
-        	logger.debug("Fetching texture from URL " + textureURL);
-        	//textureData = TextureIO.newTextureData(textureURL, true, null);
-        	texture = TextureIO.newTexture(textureURL, true, null);
-        }
-        catch (Exception e) {
-        	// notify listeners of error
-        	onError(this, e);
-        	return false;
-        }
-       
-        
-        tile.setTexture(tc, texture);
-        
-        if ( ! addTileToMemoryCache() ) {
-        	logger.error("Unable to load " + tileKey + " to memory cache");
-        }
-        
-        return true;
+    	try {
+    		return TextureTranscoder.findCompressedFile(new File(textureURL.toURI()));
+		} 
+    	catch (URISyntaxException e) {
+			return null;
+		}
     }
-
+    
+    /*
+     * Transcode a texture from the file store, once (decode thread): 
+     * DDS needs a power of 2 size.
+     */
+    private static void transcode (URL textureURL, int width, int height)
+    {
+    	if ( ! TextureTranscoder.isEnabled() || ! "file".equals(textureURL.getProtocol()) 
+    			|| Integer.bitCount(width) != 1 
+    			|| Integer.bitCount(height) != 1 )
+    		return;
+    	
+    	try {
+    		final File file = new File(textureURL.toURI());
+    		final BufferedImage image = ImageIO.read(file);
+    		
+    		if ( image != null )
+    			TextureTranscoder.transcode(image, TextureTranscoder.getCompressedFile(file));
+    	} 
+    	catch (Exception e) {
+    		logger.error("Unable to transcode " + textureURL + ": " + e);
+    	}
+    }
+    
     /**
      * Download a remote resource into a {@link File}
      * @param resourceURL remote {@link URL}
@@ -283,11 +596,18 @@ public class GroundOverlayLayer extends AbstractLayer
      */
     private void downloadResource(URL resourceURL, final File outFile) throws Exception 
     {
+    	SimpleHTTPClient client 		= null;
+    	NegativeCache.Reason failure 	= null;
+    	
     	try {
-    		loading = true;
-    		
-			SimpleHTTPClient client = new SimpleHTTPClient(resourceURL);
-			client.doGet(new FileOutputStream(outFile));
+			client = new SimpleHTTPClient(resourceURL);
+			client.setLayer(getName());
+			
+			// Large textures: keep partial downloads & resume them on retry
+			client.setResumable(true);
+			client.doConditionalGet(outFile);
+			
+			state.compareAndSet(State.FETCHING, State.VERIFYING);
 			
         	final String contentType 	= client.getContentType();
         	final int respCode			= client.getStatus();
@@ -330,8 +650,10 @@ public class GroundOverlayLayer extends AbstractLayer
         	
         	client.close();
         	
-        	if ( errorMessage != null ) 
+        	if ( errorMessage != null ) {
+        		failure = NegativeCache.Reason.NOT_IMAGE;
                 throw new IOException("Download failed: " + errorMessage );
+        	}
         	
         	// Verify file
         	if ( outFile.exists()) {
@@ -341,13 +663,25 @@ public class GroundOverlayLayer extends AbstractLayer
         		
         		logger.debug("Size of " + outFile + " : " + size);
         		
-        		if ( size == 0 ) 
+        		if ( size == 0 ) {
+        			failure = NegativeCache.Reason.CORRUPT;
         			throw new IOException("Download of " + getName() + " failed: Invalid file size.");
+        		}
         		
         	}
+        	
+        	// fetched OK: forget past failures
+        	NegativeCache.getInstance().remove(getName(), tileKey);
 		} 
     	catch ( Exception e) 
     	{
+    		// 404, error page...: don't fetch again for a while
+    		if ( failure == null && client != null )
+    			failure = NegativeCache.forStatus(client.getStatus());
+    		
+    		if ( failure != null )
+    			NegativeCache.getInstance().put(getName(), tileKey, failure, e.getMessage());
+    		
     		// remove file from disk
             if ( outFile != null && outFile.exists()) 
             {
@@ -355,14 +689,12 @@ public class GroundOverlayLayer extends AbstractLayer
             	
             	if ( outFile != null && outFile.exists() ) {
             		logger.error("Deleting cache file " + outFile);
-            		outFile.delete();
+            		LayerUtils.deleteCacheFile(outFile);
+            		CacheMetadata.delete(outFile);
             	}
             }
             throw new Exception(e);
     	}
-    	finally {
-    		loading = false;
-    	}
     }
     
     
@@ -389,7 +721,7 @@ public class GroundOverlayLayer extends AbstractLayer
     }
     
     public boolean isTileInCache () {
-    	boolean bool = LayerUtils.getWWFileStore().findFile(tileKey, false) != null;
+    	boolean bool = LayerUtils.findCacheFile(tileKey) != null;
     	logger.debug("Tile in cache? " + bool);
     	return bool;
     }
@@ -507,6 +839,7 @@ public class GroundOverlayLayer extends AbstractLayer
 		
 		// rebuild tile key
 		tileKey	= buildTileKey();
+		pyramid = null;
 		
 	}
 
@@ -532,7 +865,7 @@ public class GroundOverlayLayer extends AbstractLayer
 			
 			logger.debug("Looking for tile key " + tileKey + " in WW cache");
 			
-			if ( LayerUtils.getWWFileStore().findFile(tileKey, false) == null ) 
+			if ( LayerUtils.findCacheFile(tileKey) == null ) 
 			{ 
 				// Tile not in cache
 				final File file = LayerUtils.newCacheFile(tileKey);
@@ -540,25 +873,20 @@ public class GroundOverlayLayer extends AbstractLayer
 				// if remote url http://
 				if  ( textureURL.toString().startsWith("http")) 
 				{
+					final NegativeCache.Entry failure = NegativeCache.getInstance().get(getName(), tileKey);
+					
+					if ( failure != null )
+						throw new IOException("Fetch of " + textureURL + " failed recently: " + failure);
+					
 					if( synchronous ) {
 						logger.debug("Not in cache. Synchronously fetching "+ textureURL+ " into " + file);
 						downloadResource(textureURL, file);
 					}
 					else {
 						logger.debug("Not in cache. Asynch fetch for " + textureURL);
-					
-						// Use the WW task service to load the URL asynchronously
-						WorldWind.getTaskService().addTask(new Runnable() 
-						{
-							public void run() {
-								try {
-									downloadResource(textureURL, file);
-								} 
-								catch (Exception e) {
-									onError(GroundOverlayLayer.this, e);
-								}
-							}
-						});
+						
+						// Queue by distance to the eye. Show the loading texture while queued
+						fetchLater();
 					}
 				}
 				// Local path or file:/ URL
@@ -569,6 +897,7 @@ public class GroundOverlayLayer extends AbstractLayer
 						
 						logger.debug("Copying " + src + " to " + file );
 						Messages.copyResource(src, file);
+						FileStoreIndex.getInstance().added(file);
 					}
 					else {
 						logger.debug("Texture " + file + " already in cache.");
@@ -586,8 +915,10 @@ public class GroundOverlayLayer extends AbstractLayer
 					}
 				}
 			}
-			else
+			else {
 				logger.debug("Tile " + tileKey + " already in WW cache");
+				revalidate(synchronous);
+			}
 			
 			return true;
 		}
@@ -598,6 +929,78 @@ public class GroundOverlayLayer extends AbstractLayer
 		}
 	}
 
+	/*
+	 * Revalidate the cached texture w/ a conditional GET if its metadata is stale.
+	 * If the server returns a new image the texture is dropped from memory
+	 * so the next frame reloads it from disk.
+	 */
+	private void revalidate (boolean synchronous) throws URISyntaxException
+	{
+		if ( revalidating ) return;
+		
+		final File file = getFileFromCache();
+		
+		if ( file == null ) return;
+		
+		if ( cacheMetadata == null )
+			cacheMetadata = CacheMetadata.load(file);
+		
+		if ( cacheMetadata == null 
+				|| cacheMetadata.getURL() == null
+				|| !cacheMetadata.hasValidators() 
+				|| !cacheMetadata.isStale(timeToLive) )
+			return;
+		
+		revalidating = true;
+		
+		Runnable task = new Runnable() 
+		{
+			public void run() {
+				try {
+					logger.debug("Revalidating " + cacheMetadata.getURL() + " " + file);
+					
+					SimpleHTTPClient client = new SimpleHTTPClient(cacheMetadata.getURL());
+					client.setLayer(getName());
+					
+					// an error page w/ a 200 must not replace the image
+					client.setAcceptedContentType("image/");
+					
+					if ( client.doConditionalGet(file) ) 
+					{
+						logger.debug("Texture " + tileKey + " modified. Removing from memory.");
+						WorldWind.getMemoryCache(GroundOverlayLayer.class.getName()).remove(tileKey);
+						
+						// tiles rebuilt from the new image
+						pyramid = null;
+					}
+					client.close();
+				} 
+				catch (Exception e) {
+					// keep the cached texture
+					logger.error("Revalidation of " + cacheMetadata.getURL() + " failed: " + e.getMessage());
+				}
+				finally {
+					cacheMetadata = CacheMetadata.load(file);
+					revalidating 	= false;
+				}
+			}
+		};
+		
+		if ( synchronous ) 
+			task.run();
+		else
+			WorldWind.getTaskService().addTask(task);
+	}
+	
+	/**
+	 * Set the time to live of a cached texture with no HTTP expiration info.
+	 * Stale textures are revalidated w/ a conditional GET by {@link #fetchOverlay(boolean)}
+	 * @param millis
+	 */
+	public void setTimeToLive(long millis) {
+		timeToLive = millis;
+	}
+	
 	/*
 	 * Notify listeners of a Layer error
 	 */
@@ -644,7 +1047,7 @@ public class GroundOverlayLayer extends AbstractLayer
 		String icon;
 		
 		// use tile from cache if available
-		URL localFile = LayerUtils.getWWFileStore().findFile(tileKey, false);
+		URL localFile = LayerUtils.findCacheFile(tileKey);
 		
 		// Absolute paths?
 		try {
@@ -705,7 +1108,7 @@ public class GroundOverlayLayer extends AbstractLayer
 	{
 		logger.debug("Deleting tile " + tileKey + " from WW cache.");
 		
-		URL url = LayerUtils.getWWFileStore().findFile(tileKey, false);
+		URL url = LayerUtils.findCacheFile(tileKey);
 		
 		if ( url == null) return;
 
@@ -718,7 +1121,13 @@ public class GroundOverlayLayer extends AbstractLayer
 			WorldWind.getMemoryCache(GroundOverlayLayer.class.getName()).remove(tileKey);
 			
 			logger.debug("Removing file from disk/memory cache " + f);
-			f.delete();
+			LayerUtils.deleteCacheFile(f);
+			LayerUtils.deleteCacheFile(TextureTranscoder.getCompressedFile(f));
+			OverlayPyramid.delete(f);
+			pyramid = null;
+			
+			CacheMetadata.delete(f);
+			cacheMetadata = null;
 		} 
 		catch (URISyntaxException e) {
 			logger.error("Unable to delete cache folder: " + url + ":" + e.getMessage());
@@ -727,6 +1136,7 @@ public class GroundOverlayLayer extends AbstractLayer
 	
 	@Override
 	public void dispose() {
+		DownloadScheduler.getInstance().cancel(this);
 		super.dispose();
 //		deleteFromCache();
 	}
@@ -738,7 +1148,7 @@ public class GroundOverlayLayer extends AbstractLayer
 	 */
 	public File getFileFromCache() throws URISyntaxException 
 	{
-		URL url = LayerUtils.getWWFileStore().findFile(tileKey, false);
+		URL url = LayerUtils.findCacheFile(tileKey);
 		
 		if ( url != null) 
 			return new File(url.toURI());
@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.media.opengl.GL;
+
+import org.apache.log4j.Logger;
+
+import org.eclipse.plugin.worldwind.contrib.Messages;
+
+import com.sun.opengl.util.texture.Texture;
+import com.sun.opengl.util.texture.TextureData;
+import com.sun.opengl.util.texture.TextureIO;
+
+import gov.nasa.worldwind.cache.GpuResourceCache;
+import gov.nasa.worldwind.geom.Extent;
+import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.globes.Globe;
+import gov.nasa.worldwind.layers.TextureTile;
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.render.SurfaceTile;
+
+/**
+ * Placeholder drawn by the ground overlays while their texture loads.
+ * The loading image is decoded once & uploaded once per GL context (kept
+ * in the WW texture cache), each overlay draws it thru a lightweight 
+ * {@link Tile} of its sector.
+ *
+ * <p>Styles ({@link Style}): a spinning loading image, a preview (the 
+ * last overlay drawn over the same sector, e.g. the previous frame of a
+ * loop) or nothing. The default is set by the system property 
+ * {@link #STYLE_PROPERTY}.</p>
+ *
+ * @author vsilva
+ *
+ */
+public class LoadingPlaceholder
+{
+	private static final Logger logger = Logger.getLogger(LoadingPlaceholder.class);
+
+	public static final String STYLE_PROPERTY = "worldwind.overlay.placeholder";
+
+	// Spinner image & key in the texture cache
+	static final String IMAGE = "loading.png";
+	static final String TEXTURE_KEY = LoadingPlaceholder.class.getName();
+
+	// Spinner speed (degrees/s)
+	static final double SPIN_SPEED = 180;
+
+	// Max # of preview sectors
+	static final int MAX_PREVIEWS = 64;
+
+	/**
+	 * Placeholder styles
+	 */
+	public static enum Style {
+		/** Spinning loading image */
+		SPINNER,
+		/** Last overlay drawn over the same sector (spinner if none) */
+		PREVIEW,
+		/** Nothing */
+		NONE
+	};
+
+	private volatile Style style = parseStyle(System.getProperty(STYLE_PROPERTY));
+
+	// decoded image (shared by all GL contexts)
+	private TextureData imageData;
+	private boolean imageFailed;
+
+	// Last overlay tile drawn by sector (LRU), render thread
+	private final LinkedHashMap<Sector, TextureTile> previews = new LinkedHashMap<Sector, TextureTile>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Sector, TextureTile> eldest) {
+			return size() > MAX_PREVIEWS;
+		}
+	};
+
+	private static final LoadingPlaceholder instance = new LoadingPlaceholder();
+
+	private LoadingPlaceholder() {
+	}
+
+	public static LoadingPlaceholder getInstance() {
+		return instance;
+	}
+
+	private static Style parseStyle (String value)
+	{
+		try {
+			return value != null ? Style.valueOf(value.toUpperCase()) : Style.SPINNER;
+		}
+		catch (IllegalArgumentException e) {
+			logger.error("Invalid " + STYLE_PROPERTY + "=" + value);
+			return Style.SPINNER;
+		}
+	}
+
+	/**
+	 * @param style Default placeholder style
+	 */
+	public void setStyle(Style style) {
+		this.style = style;
+	}
+
+	public Style getStyle() {
+		return style;
+	}
+
+	/**
+	 * Remember the tile of an overlay as preview for its sector. Called by 
+	 * the overlays when drawn.
+	 * @param sector
+	 * @param tile
+	 */
+	public void setPreview (Sector sector, TextureTile tile) {
+		previews.put(sector, tile);
+	}
+
+	/**
+	 * Draw the placeholder of a sector
+	 * @param dc
+	 * @param tile Placeholder tile of the sector
+	 * @param opacity
+	 * @param style Style or null for the default
+	 */
+	public void render (DrawContext dc, Tile tile, double opacity, Style style)
+	{
+		if ( style == null )
+			style = this.style;
+
+		if ( style == Style.NONE )
+			return;
+
+		if ( style == Style.PREVIEW ) {
+			final TextureTile preview = previews.get(tile.getSector());
+
+			if ( preview != null && preview.isTextureInMemory(dc.getTextureCache()) ) {
+				dc.getGeographicSurfaceTileRenderer().renderTile(dc, preview, opacity);
+				return;
+			}
+		}
+
+		if ( getTexture(dc) != null )
+			dc.getGeographicSurfaceTileRenderer().renderTile(dc, tile, opacity);
+	}
+
+	/*
+	 * The loading texture of the current GL context: uploaded once, 
+	 * reloaded if evicted from the texture cache.
+	 */
+	Texture getTexture (DrawContext dc)
+	{
+		final GpuResourceCache tc = dc.getTextureCache();
+		Texture texture = tc.getTexture(TEXTURE_KEY);
+
+		if ( texture != null )
+			return texture;
+
+		final TextureData data = getImageData();
+
+		if ( data == null )
+			return null;
+
+		texture = TextureIO.newTexture(data);
+		texture.setTexParameteri(GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP_TO_EDGE);
+		texture.setTexParameteri(GL.GL_TEXTURE_WRAP_T, GL.GL_CLAMP_TO_EDGE);
+
+		tc.put(TEXTURE_KEY, texture);
+		return texture;
+	}
+
+	/*
+	 * Decode the loading image (once)
+	 */
+	private synchronized TextureData getImageData ()
+	{
+		if ( imageData != null || imageFailed )
+			return imageData;
+
+		try {
+			imageData = TextureIO.newTextureData(
+					Messages.getInputStream(LoadingPlaceholder.class, IMAGE), false, TextureIO.PNG);
+		}
+		catch (Exception e) {
+			logger.error("Unable to load " + IMAGE + ": " + e);
+			imageFailed = true;
+		}
+		return imageData;
+	}
+
+	/**
+	 * Lightweight placeholder tile of a sector: binds the shared loading
+	 * texture, spinning around its center.
+	 */
+	public static class Tile implements SurfaceTile
+	{
+		private final Sector sector;
+
+		// bounding volume for the globe & exaggeration it was computed for
+		private Extent extent;
+		private Globe globe;
+		private double verticalExaggeration;
+
+		public Tile(Sector sector) {
+			this.sector = sector;
+		}
+
+		public boolean bind(DrawContext dc)
+		{
+			final Texture texture = instance.getTexture(dc);
+
+			if ( texture == null )
+				return false;
+
+			texture.bind();
+			return true;
+		}
+
+		public void applyInternalTransform(DrawContext dc)
+		{
+			final Texture texture 	= instance.getTexture(dc);
+			final GL gl 			= dc.getGL();
+
+			gl.glMatrixMode(GL.GL_TEXTURE);
+			gl.glLoadIdentity();
+
+			if ( texture != null && texture.getMustFlipVertically() ) {
+				gl.glScaled(1, -1, 1);
+				gl.glTranslated(0, -1, 0);
+			}
+
+			// spin around the center
+			final double angle = (System.currentTimeMillis() % 360000) * SPIN_SPEED / 1000;
+
+			gl.glTranslated(0.5, 0.5, 0);
+			gl.glRotated(-angle, 0, 0, 1);
+			gl.glTranslated(-0.5, -0.5, 0);
+		}
+
+		public Sector getSector() {
+			return sector;
+		}
+
+		public Extent getExtent(DrawContext dc)
+		{
+			if ( extent == null || globe != dc.getGlobe() 
+					|| verticalExaggeration != dc.getVerticalExaggeration()) 
+			{
+				globe 					= dc.getGlobe();
+				verticalExaggeration 	= dc.getVerticalExaggeration();
+				extent 					= Sector.computeBoundingCylinder(globe, verticalExaggeration, sector);
+			}
+			return extent;
+		}
+	}
+}
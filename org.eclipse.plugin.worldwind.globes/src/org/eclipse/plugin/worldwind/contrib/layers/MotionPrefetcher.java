@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers;
+
+import org.apache.log4j.Logger;
+
+import org.eclipse.plugin.worldwind.contrib.parsers.DownloadMetrics;
+
+import gov.nasa.worldwind.View;
+import gov.nasa.worldwind.geom.Angle;
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.render.DrawContext;
+
+/**
+ * Motion predictive prefetch. Tracks the eye position of the (orbit) view
+ * across frames, smooths its velocity and extrapolates the eye and the
+ * visible sector a few seconds ahead. Tiled layers use the prediction to
+ * queue low priority {@link DownloadScheduler} requests for the tiles the
+ * camera is heading to.
+ *
+ * <p>Prefetch is throttled by a bandwidth budget (token bucket, bytes/s)
+ * charged w/ the average response size measured by {@link DownloadMetrics}.
+ * On-screen requests always run first (see {@link DownloadScheduler}).</p>
+ *
+ * @author vsilva
+ *
+ */
+public class MotionPrefetcher
+{
+	private static final Logger logger = Logger.getLogger(MotionPrefetcher.class);
+
+	// Seconds ahead
+	public static final double DEFAULT_LOOK_AHEAD = 3;
+
+	// Prefetch budget (bytes/s)
+	public static final long DEFAULT_BANDWIDTH = 256 * 1024;
+
+	// Response size used until downloads are measured
+	static final long DEFAULT_REQUEST_BYTES = 20 * 1024;
+
+	// Velocity smoothing (0..1, weight of the latest sample)
+	static final double SMOOTHING = 0.3;
+
+	// Min time between samples (several layers update per frame)
+	static final long MIN_SAMPLE_INTERVAL = 30;
+
+	// Samples older than this reset the velocity (ms)
+	static final long MAX_SAMPLE_INTERVAL = 1000;
+
+	// Min predicted shift, as a fraction of the visible sector, to prefetch
+	static final double MIN_SHIFT = 0.05;
+
+	private double lookAhead 	= DEFAULT_LOOK_AHEAD;
+	private long bandwidth 		= DEFAULT_BANDWIDTH;
+	private boolean enabled 	= true;
+
+	// last sample
+	private long lastTime;
+	private double lastLat, lastLon, lastAlt;
+
+	// smoothed velocity: deg/s, deg/s, m/s
+	private double vLat, vLon, vAlt;
+
+	private volatile Sector predictedSector;
+	private volatile Position predictedEye;
+
+	// token bucket (bytes)
+	private double tokens;
+	private long tokenTime;
+
+	private static final MotionPrefetcher instance = new MotionPrefetcher();
+
+	private MotionPrefetcher() {
+	}
+
+	public static MotionPrefetcher getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Sample the view. Called by layers on each frame.
+	 * @param dc
+	 */
+	public synchronized void update (DrawContext dc)
+	{
+		final View view = dc.getView();
+
+		if ( view == null || view.getEyePosition() == null || !enabled)
+			return;
+
+		final long now = System.currentTimeMillis();
+		final long dt = now - lastTime;
+
+		if ( dt < MIN_SAMPLE_INTERVAL )
+			return;
+
+		final Position eye 	= view.getEyePosition();
+		final double lat 	= eye.getLatitude().degrees;
+		final double lon 	= eye.getLongitude().degrees;
+		final double alt 	= eye.getElevation();
+
+		if ( dt > MAX_SAMPLE_INTERVAL ) {
+			// first sample or view idle: restart
+			vLat = vLon = vAlt = 0;
+		}
+		else {
+			double dLon = lon - lastLon;
+
+			// crossing the date line
+			if ( dLon > 180 ) dLon -= 360;
+			if ( dLon < -180 ) dLon += 360;
+
+			final double secs = dt / 1000.0;
+
+			vLat = SMOOTHING * (lat - lastLat) / secs + (1 - SMOOTHING) * vLat;
+			vLon = SMOOTHING * dLon / secs + (1 - SMOOTHING) * vLon;
+			vAlt = SMOOTHING * (alt - lastAlt) / secs + (1 - SMOOTHING) * vAlt;
+		}
+
+		lastTime 	= now;
+		lastLat 	= lat;
+		lastLon 	= lon;
+		lastAlt 	= alt;
+
+		predict(dc.getVisibleSector());
+	}
+
+	/*
+	 * Extrapolate the eye & visible sector
+	 */
+	private void predict (Sector visible)
+	{
+		final double dLat = vLat * lookAhead;
+		final double dLon = vLon * lookAhead;
+
+		if ( visible == null
+				|| (Math.abs(dLat) < MIN_SHIFT * visible.getDeltaLatDegrees()
+					&& Math.abs(dLon) < MIN_SHIFT * visible.getDeltaLonDegrees()) )
+		{
+			// not moving (enough)
+			if ( predictedSector != null )
+				DownloadScheduler.getInstance().setPrefetchSector(null);
+
+			predictedSector = null;
+			predictedEye 	= null;
+			return;
+		}
+
+		predictedEye = new Position(Angle.fromDegrees(clamp(lastLat + dLat, 90))
+				, Angle.fromDegrees(clamp(lastLon + dLon, 180))
+				, Math.max(lastAlt + vAlt * lookAhead, 1));
+
+		predictedSector = Sector.fromDegrees(
+				clamp(visible.getMinLatitude().degrees + dLat, 90)
+				, clamp(visible.getMaxLatitude().degrees + dLat, 90)
+				, clamp(visible.getMinLongitude().degrees + dLon, 180)
+				, clamp(visible.getMaxLongitude().degrees + dLon, 180));
+
+		DownloadScheduler.getInstance().setPrefetchSector(predictedSector);
+
+		if ( logger.isDebugEnabled() )
+			logger.debug("Velocity lat/lon=" + vLat + "/" + vLon + " deg/s alt=" + vAlt
+					+ " m/s. Predicted eye=" + predictedEye);
+	}
+
+	private static double clamp (double v, double max) {
+		return v < -max ? -max : v > max ? max : v;
+	}
+
+	/**
+	 * Spend the prefetch budget of one request
+	 * @return false if the budget is exhausted
+	 */
+	public boolean acquire () {
+		return acquire(estimateRequestBytes());
+	}
+
+	/**
+	 * Spend bytes of the prefetch budget. The bucket holds up to one
+	 * second of bandwidth.
+	 * @param bytes
+	 * @return false if the budget is exhausted
+	 */
+	public synchronized boolean acquire (long bytes)
+	{
+		final long now = System.currentTimeMillis();
+
+		tokens 		= Math.min(bandwidth, tokens + (now - tokenTime) * bandwidth / 1000.0);
+		tokenTime 	= now;
+
+		if ( tokens < bytes )
+			return false;
+
+		tokens -= bytes;
+		return true;
+	}
+
+	/**
+	 * @return average response size (bytes) measured so far
+	 */
+	public long estimateRequestBytes()
+	{
+		final DownloadMetrics.Stats total = DownloadMetrics.getInstance().getTotal();
+		final long requests = total.getRequests();
+
+		return requests > 0 && total.getWireBytes() > 0
+			? Math.max(total.getWireBytes() / requests, 1)
+			: DEFAULT_REQUEST_BYTES;
+	}
+
+	/**
+	 * @return visible sector extrapolated {@link #getLookAhead()} seconds ahead
+	 * or null if the view is not moving
+	 */
+	public Sector getPredictedSector() {
+		return predictedSector;
+	}
+
+	/**
+	 * @return eye position extrapolated {@link #getLookAhead()} seconds ahead
+	 * or null if the view is not moving
+	 */
+	public Position getPredictedEye() {
+		return predictedEye;
+	}
+
+	/**
+	 * @param seconds How far ahead to predict the view
+	 */
+	public synchronized void setLookAhead(double seconds) {
+		this.lookAhead = seconds;
+	}
+
+	public double getLookAhead() {
+		return lookAhead;
+	}
+
+	/**
+	 * @param bytesPerSec Prefetch budget
+	 */
+	public synchronized void setBandwidth(long bytesPerSec) {
+		this.bandwidth = bytesPerSec;
+	}
+
+	public long getBandwidth() {
+		return bandwidth;
+	}
+
+	public synchronized void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+
+		if ( ! enabled ) {
+			predictedSector = null;
+			predictedEye 	= null;
+			DownloadScheduler.getInstance().setPrefetchSector(null);
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+}
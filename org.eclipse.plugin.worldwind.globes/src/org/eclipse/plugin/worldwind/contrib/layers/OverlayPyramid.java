@@ -0,0 +1,841 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.media.opengl.GL;
+
+import org.apache.log4j.Logger;
+
+import com.sun.opengl.util.texture.TextureData;
+import com.sun.opengl.util.texture.TextureIO;
+
+import gov.nasa.worldwind.WorldWind;
+import gov.nasa.worldwind.cache.MemoryCache;
+import gov.nasa.worldwind.geom.Extent;
+import gov.nasa.worldwind.geom.Frustum;
+import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Globe;
+import gov.nasa.worldwind.layers.TextureTile;
+import gov.nasa.worldwind.render.DrawContext;
+
+/**
+ * Multi level tile pyramid of a large ground overlay image. The image
+ * is sliced once, in the background, into {@link #TILE_SIZE} tiles stored
+ * next to it in the cache ([image].tiles/[level]/[row]_[col].png). Level 0
+ * is the whole image scaled down to one tile, each level doubles the
+ * resolution of the previous one up to the full resolution. The image is
+ * read in strips sized to the free heap, never decoded whole.
+ *
+ * <p>Tiles are selected per frame by their screen space error (like the
+ * WW tiled image layers), decoded by the {@link TextureLoader} threads and
+ * kept in a {@link TextureBudget} cache, so texture memory & uploads follow
+ * the screen coverage of the overlay, not the size of its image. Images
+ * up to {@link #THRESHOLD_PROPERTY} pixels (and the GL max texture size)
+ * are not tiled.</p>
+ *
+ * @author vsilva
+ *
+ */
+public class OverlayPyramid
+{
+	private static final Logger logger = Logger.getLogger(OverlayPyramid.class);
+
+	public static final String THRESHOLD_PROPERTY = "worldwind.overlay.tiled.threshold";
+
+	public static final int TILE_SIZE = 512;
+
+	// Pyramid folder: [image][SUFFIX]
+	public static final String SUFFIX = ".tiles";
+
+	// Written last: marks a complete pyramid
+	static final String MANIFEST = "pyramid.properties";
+
+	// Texel size / pixel size above which a tile is split
+	public static final double DEFAULT_MAX_SCREEN_SPACE_ERROR = 1.5;
+
+	// Images larger than this (either side) are tiled
+	private static int threshold = Integer.getInteger(THRESHOLD_PROPERTY, 2048);
+
+	// GL_MAX_TEXTURE_SIZE. 0 = unknown
+	private static volatile int maxTextureSize;
+
+	/**
+	 * Pyramid states
+	 */
+	public static enum State {
+		/** Looking for the pyramid or the image size */
+		CHECKING,
+		/** Slicing the image */
+		BUILDING,
+		/** Tiles ready */
+		READY,
+		/** Small image: draw it as one texture */
+		NOT_TILED,
+		/** Slicing failed: draw it as one texture */
+		FAILED
+	};
+
+	/*
+	 * A tile of the pyramid (render thread)
+	 */
+	private class Tile
+	{
+		final int level, row, col;
+		final Sector sector;
+		final String key;
+
+		// texel size on a unit sphere
+		final double texelSize;
+
+		Extent extent;
+		Globe globe;
+		double verticalExaggeration;
+
+		Tile[] children;
+
+		// decoded by the loader threads, uploaded by the render thread
+		volatile TextureData data;
+		volatile boolean decoding;
+
+		// unreadable: its parent is drawn instead
+		volatile boolean failed;
+
+		Tile(int level, int row, int col)
+		{
+			this.level 	= level;
+			this.row 	= row;
+			this.col 	= col;
+
+			// pixels of the full res image covered
+			final int scale = 1 << (levels - 1 - level);
+			final int x0 	= col * TILE_SIZE * scale;
+			final int y0 	= row * TILE_SIZE * scale;
+			final int x1 	= Math.min(x0 + TILE_SIZE * scale, width);
+			final int y1 	= Math.min(y0 + TILE_SIZE * scale, height);
+
+			final Sector bounds = OverlayPyramid.this.sector;
+			final double north 	= bounds.getMaxLatitude().degrees;
+			final double west 	= bounds.getMinLongitude().degrees;
+			final double dLat 	= bounds.getDeltaLatDegrees();
+			final double dLon 	= bounds.getDeltaLonDegrees();
+
+			this.sector = Sector.fromDegrees(north - dLat * y1 / height, north - dLat * y0 / height
+					, west + dLon * x0 / width, west + dLon * x1 / width);
+
+			this.texelSize = Math.max(this.sector.getDeltaLatRadians() * scale / (y1 - y0)
+					, this.sector.getDeltaLonRadians()
+						* Math.cos(this.sector.getCentroid().getLatitude().radians) * scale / (x1 - x0));
+
+			this.key = dir.getPath() + "/" + source + "/" + level + "/" + row + "_" + col;
+		}
+
+		Extent getExtent (DrawContext dc)
+		{
+			if ( extent == null || globe != dc.getGlobe()
+					|| verticalExaggeration != dc.getVerticalExaggeration())
+			{
+				globe 					= dc.getGlobe();
+				verticalExaggeration 	= dc.getVerticalExaggeration();
+				extent 					= Sector.computeBoundingCylinder(globe, verticalExaggeration, sector);
+			}
+			return extent;
+		}
+
+		Tile[] getChildren ()
+		{
+			if ( children == null )
+			{
+				List<Tile> list = new ArrayList<Tile>(4);
+
+				for (int r = 2 * row; r <= 2 * row + 1 && r < getRows(level + 1); r++) {
+					for (int c = 2 * col; c <= 2 * col + 1 && c < getColumns(level + 1); c++)
+						list.add(new Tile(level + 1, r, c));
+				}
+				children = list.toArray(new Tile[list.size()]);
+			}
+			return children;
+		}
+
+		File getFile (String suffix) {
+			return new File(dir, level + "/" + row + "_" + col + suffix);
+		}
+	}
+
+	/*
+	 * Row of tiles of a level being filled (build)
+	 */
+	private static class TileRow
+	{
+		final BufferedImage image;
+
+		// rows filled & tile row #
+		int fill, row;
+
+		TileRow(int width, boolean alpha) {
+			image = new BufferedImage(width, TILE_SIZE, alpha
+					? BufferedImage.TYPE_INT_ARGB
+					: BufferedImage.TYPE_INT_RGB);
+		}
+	}
+
+	private final File image;
+	private final File dir;
+	private final Sector sector;
+
+	private volatile State state = State.CHECKING;
+
+	// full res size, # of levels & tile format
+	private int width, height, levels;
+	private String format;
+
+	// length & date of the image sliced: in the memory cache keys, so the
+	// textures of a replaced (revalidated) image are never drawn
+	private String source;
+
+	private Tile root;
+
+	private double maxScreenSpaceError = DEFAULT_MAX_SCREEN_SPACE_ERROR;
+
+	private final TextureLoader.UploadBudget uploadBudget = new TextureLoader.UploadBudget();
+	private final List<TextureTile> drawTiles = new ArrayList<TextureTile>();
+
+	/**
+	 * Open the pyramid of an image in the cache. The pyramid is looked up
+	 * (or built) in the background, see {@link #getState()}.
+	 * @param image Overlay image
+	 * @param sector Overlay sector
+	 */
+	public OverlayPyramid(File image, Sector sector)
+	{
+		this.image 	= image;
+		this.dir 	= getDirectory(image);
+		this.sector = sector;
+
+		TextureBudget.getInstance().createCache(OverlayPyramid.class.getName(), "Ground Overlay Tiles");
+
+		WorldWind.getTaskService().addTask(new Runnable() {
+			public void run() {
+				open();
+			}
+		});
+	}
+
+	/**
+	 * @param image Overlay image
+	 * @return pyramid folder of the image
+	 */
+	public static File getDirectory (File image) {
+		return new File(image.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Read the GL max texture size. Called on the render thread.
+	 * @param gl
+	 */
+	public static void checkSupport (GL gl)
+	{
+		if ( maxTextureSize != 0 ) return;
+
+		final int[] size = new int[1];
+		gl.glGetIntegerv(GL.GL_MAX_TEXTURE_SIZE, size, 0);
+		maxTextureSize = size[0] > 0 ? size[0] : Integer.MAX_VALUE;
+
+		logger.debug("GL max texture size: " + maxTextureSize);
+	}
+
+	/**
+	 * @param pixels Images larger than this (either side) are tiled
+	 */
+	public static void setThreshold(int pixels) {
+		threshold = pixels;
+	}
+
+	public static int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @param pixels Max texel size, in screen pixels, before a tile is
+	 * replaced by its children
+	 */
+	public void setMaxScreenSpaceError(double pixels) {
+		this.maxScreenSpaceError = pixels;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return # of levels (0 if not ready)
+	 */
+	public int getLevels() {
+		return state == State.READY ? levels : 0;
+	}
+
+	private int getColumns (int level) {
+		return (int)Math.ceil((double)width / ((long)TILE_SIZE << (levels - 1 - level)));
+	}
+
+	private int getRows (int level) {
+		return (int)Math.ceil((double)height / ((long)TILE_SIZE << (levels - 1 - level)));
+	}
+
+	/*
+	 * Background: load the manifest or build the pyramid
+	 */
+	private void open ()
+	{
+		try {
+			if ( loadManifest() ) {
+				ready();
+				return;
+			}
+
+			final int[] size = readSize(image);
+
+			if ( size == null ) {
+				state = State.FAILED;
+				return;
+			}
+
+			final int max = Math.min(threshold, maxTextureSize > 0 ? maxTextureSize : Integer.MAX_VALUE);
+
+			if ( size[0] <= max && size[1] <= max ) {
+				state = State.NOT_TILED;
+				return;
+			}
+
+			state = State.BUILDING;
+			build();
+			ready();
+		}
+		catch (Throwable e) {
+			logger.error("Unable to build the tile pyramid of " + image + ": " + e);
+			state = State.FAILED;
+		}
+	}
+
+	private void ready ()
+	{
+		root 	= new Tile(0, 0, 0);
+		state 	= State.READY;
+
+		logger.debug("Tile pyramid " + dir + " " + width + "x" + height + " levels=" + levels);
+	}
+
+	/*
+	 * Image size w/o decoding it
+	 */
+	private static int[] readSize (File file) throws IOException
+	{
+		final ImageReader reader = openReader(file);
+
+		if ( reader == null )
+			return null;
+
+		try {
+			return new int[] { reader.getWidth(0), reader.getHeight(0) };
+		}
+		finally {
+			close(reader);
+		}
+	}
+
+	/*
+	 * @return reader of the image or null if not an image
+	 */
+	private static ImageReader openReader (File file) throws IOException
+	{
+		final ImageInputStream in = ImageIO.createImageInputStream(file);
+
+		if ( in == null )
+			return null;
+
+		final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+
+		if ( ! readers.hasNext() ) {
+			in.close();
+			return null;
+		}
+
+		final ImageReader reader = readers.next();
+		reader.setInput(in);
+		return reader;
+	}
+
+	private static void close (ImageReader reader) throws IOException
+	{
+		final Object in = reader.getInput();
+		reader.dispose();
+
+		if ( in instanceof ImageInputStream )
+			((ImageInputStream)in).close();
+	}
+
+	/*
+	 * Rows of the image read at once: the tile rows that fit in a quarter
+	 * of the free heap (readers may hold a copy)
+	 */
+	private static int getStripHeight (int width, int height)
+	{
+		final Runtime rt 	= Runtime.getRuntime();
+		final long free 	= rt.maxMemory() - rt.totalMemory() + rt.freeMemory();
+		final long rows 	= Math.max(1, free / 4 / (4L * width * TILE_SIZE));
+
+		return (int)Math.min(rows * TILE_SIZE, height);
+	}
+
+	/*
+	 * @return false if there is no pyramid for the current image
+	 */
+	private boolean loadManifest () throws IOException
+	{
+		final File file = new File(dir, MANIFEST);
+
+		if ( ! file.exists() )
+			return false;
+
+		Properties props = new Properties();
+		InputStream is = new FileInputStream(file);
+
+		try {
+			props.load(is);
+		}
+		finally {
+			is.close();
+		}
+
+		try {
+			// image replaced (revalidated) or different tile size: rebuild
+			if ( Long.parseLong(props.getProperty("source.length")) != image.length()
+					|| Long.parseLong(props.getProperty("source.modified")) != image.lastModified()
+					|| Integer.parseInt(props.getProperty("tile.size")) != TILE_SIZE )
+				return false;
+
+			width 	= Integer.parseInt(props.getProperty("width"));
+			height 	= Integer.parseInt(props.getProperty("height"));
+			levels 	= Integer.parseInt(props.getProperty("levels"));
+			format 	= props.getProperty("format");
+			source 	= props.getProperty("source.length") + "_" + props.getProperty("source.modified");
+			return true;
+		}
+		catch (Exception e) {
+			logger.error("Invalid pyramid manifest " + file + ": " + e);
+			return false;
+		}
+	}
+
+	/*
+	 * Slice the image: strips of the full res image are cut into tile rows,
+	 * each tile row is written & halved into the tile row of the level up.
+	 */
+	private void build () throws IOException
+	{
+		final long start = System.currentTimeMillis();
+
+		delete(image);
+
+		final ImageReader reader = openReader(image);
+
+		if ( reader == null )
+			throw new IOException("Unable to decode " + image);
+
+		try {
+			width 	= reader.getWidth(0);
+			height 	= reader.getHeight(0);
+			levels 	= 1;
+
+			while ( ((long)TILE_SIZE << (levels - 1)) < Math.max(width, height) )
+				levels++;
+
+			for (int l = 0; l < levels; l++) {
+				final File folder = new File(dir, String.valueOf(l));
+
+				if ( ! folder.mkdirs() )
+					throw new IOException("Unable to create " + folder);
+			}
+
+			final TileRow[] rows 	= new TileRow[levels];
+			final int stripHeight 	= getStripHeight(width, height);
+			final ImageReadParam param = reader.getDefaultReadParam();
+
+			for (int y = 0; y < height; y += stripHeight)
+			{
+				param.setSourceRegion(new Rectangle(0, y, width, Math.min(stripHeight, height - y)));
+
+				final BufferedImage strip = reader.read(0, param);
+
+				if ( format == null ) {
+					final boolean alpha = strip.getColorModel().hasAlpha();
+
+					// keep JPEGs small: no alpha
+					format = alpha ? "png" : "jpg";
+
+					for (int l = 0; l < levels; l++)
+						rows[l] = new TileRow((int)Math.ceil((double)width / (1L << (levels - 1 - l))), alpha);
+				}
+				addRows(rows, levels - 1, strip);
+			}
+
+			// partial tile rows (bottom of the image)
+			for (int l = levels - 1; l >= 0; l--) {
+				if ( rows[l].fill > 0 )
+					flush(rows, l);
+			}
+		}
+		finally {
+			close(reader);
+		}
+
+		// done
+		Properties props = new Properties();
+		props.setProperty("width", String.valueOf(width));
+		props.setProperty("height", String.valueOf(height));
+		props.setProperty("levels", String.valueOf(levels));
+		props.setProperty("format", format);
+		props.setProperty("tile.size", String.valueOf(TILE_SIZE));
+		props.setProperty("source.length", String.valueOf(image.length()));
+		props.setProperty("source.modified", String.valueOf(image.lastModified()));
+
+		source = image.length() + "_" + image.lastModified();
+
+		OutputStream os = new FileOutputStream(new File(dir, MANIFEST));
+
+		try {
+			props.store(os, "Tile pyramid of " + image.getName());
+		}
+		finally {
+			os.close();
+		}
+
+		logger.debug("Built tile pyramid of " + image + " (" + width + "x" + height + ", "
+				+ levels + " levels) in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/*
+	 * Add image rows to the tile row of a level: full tile rows are flushed
+	 */
+	private void addRows (TileRow[] rows, int level, BufferedImage src) throws IOException
+	{
+		final TileRow row 	= rows[level];
+		final int w 		= row.image.getWidth();
+
+		for (int y = 0; y < src.getHeight(); )
+		{
+			final int n = Math.min(src.getHeight() - y, TILE_SIZE - row.fill);
+
+			Graphics2D g = row.image.createGraphics();
+			g.setComposite(AlphaComposite.Src);
+			g.drawImage(src, 0, row.fill, w, row.fill + n, 0, y, w, y + n, null);
+			g.dispose();
+
+			row.fill 	+= n;
+			y 			+= n;
+
+			if ( row.fill == TILE_SIZE )
+				flush(rows, level);
+		}
+	}
+
+	/*
+	 * Write the tiles of a tile row & add it, halved, to the level up
+	 */
+	private void flush (TileRow[] rows, int level) throws IOException
+	{
+		final TileRow row 		= rows[level];
+		final File folder 		= new File(dir, String.valueOf(level));
+		final BufferedImage band = row.image.getSubimage(0, 0, row.image.getWidth(), row.fill);
+
+		for (int col = 0; col * TILE_SIZE < band.getWidth(); col++)
+		{
+			final int x = col * TILE_SIZE;
+
+			final BufferedImage tile = band.getSubimage(x, 0
+					, Math.min(TILE_SIZE, band.getWidth() - x), band.getHeight());
+
+			// DDS if enabled & the tile size is a power of 2
+			if ( ! TextureTranscoder.isEnabled()
+					|| ! TextureTranscoder.transcode(tile, new File(folder, row.row + "_" + col + TextureTranscoder.SUFFIX)))
+			{
+				ImageIO.write(toRGB(tile), format, new File(folder, row.row + "_" + col + "." + format));
+			}
+		}
+
+		if ( level > 0 )
+			addRows(rows, level - 1, halve(band));
+
+		row.fill = 0;
+		row.row++;
+	}
+
+	/*
+	 * JPEG writers choke on images w/ alpha: drop it
+	 */
+	private BufferedImage toRGB (BufferedImage tile)
+	{
+		if ( ! "jpg".equals(format) || tile.getType() == BufferedImage.TYPE_INT_RGB )
+			return tile;
+
+		BufferedImage rgb = new BufferedImage(tile.getWidth(), tile.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = rgb.createGraphics();
+		g.drawImage(tile, 0, 0, null);
+		g.dispose();
+		return rgb;
+	}
+
+	private static BufferedImage halve (BufferedImage src)
+	{
+		final int w = (src.getWidth() + 1) / 2;
+		final int h = (src.getHeight() + 1) / 2;
+
+		BufferedImage dst = new BufferedImage(w, h, src.getColorModel().hasAlpha()
+				? BufferedImage.TYPE_INT_ARGB
+				: BufferedImage.TYPE_INT_RGB);
+
+		Graphics2D g = dst.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(src, 0, 0, w, h, null);
+		g.dispose();
+		return dst;
+	}
+
+	/**
+	 * Decode the image as one texture subsampled to fit the tiling threshold
+	 * & the GL max texture size: what is drawn when the pyramid failed.
+	 * Called from the decode threads.
+	 * @param mipmap Build mipmaps on upload
+	 * @return texture data ready to be uploaded
+	 * @throws IOException if the image cannot be read
+	 */
+	public TextureData decodeScaled (boolean mipmap) throws IOException
+	{
+		final ImageReader reader = openReader(image);
+
+		if ( reader == null )
+			throw new IOException("Unable to decode " + image);
+
+		try {
+			final int max 	= Math.min(threshold, maxTextureSize > 0 ? maxTextureSize : Integer.MAX_VALUE);
+			final int size 	= Math.max(reader.getWidth(0), reader.getHeight(0));
+			final int step 	= (size + max - 1) / max;
+
+			final ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceSubsampling(step, step, 0, 0);
+
+			logger.debug("Decoding " + image + " subsampled by " + step);
+
+			return TextureIO.newTextureData(reader.read(0, param), mipmap);
+		}
+		finally {
+			close(reader);
+		}
+	}
+
+	/**
+	 * Delete the pyramid of an image
+	 * @param image
+	 */
+	public static void delete (File image) {
+		deleteFolder(getDirectory(image));
+	}
+
+	private static void deleteFolder (File folder)
+	{
+		final File[] files = folder.listFiles();
+
+		if ( files == null ) return;
+
+		for (File f : files) {
+			if ( f.isDirectory())
+				deleteFolder(f);
+			else
+				f.delete();
+		}
+		folder.delete();
+	}
+
+	/**
+	 * Draw the visible tiles of the pyramid. While a tile is loading its
+	 * parent is drawn.
+	 * @param dc
+	 * @param opacity
+	 * @return false if nothing could be drawn (level 0 loading)
+	 */
+	public boolean render (DrawContext dc, double opacity)
+	{
+		if ( state != State.READY )
+			return false;
+
+		TextureBudget.getInstance().touch(OverlayPyramid.class.getName());
+
+		uploadBudget.reset();
+		drawTiles.clear();
+
+		addTiles(dc, dc.getView().getFrustumInModelCoordinates(), dc.getView().getEyePoint(), root);
+
+		if ( drawTiles.isEmpty() )
+			return getTextureTile(dc, root) != null;
+
+		for (TextureTile textureTile : drawTiles)
+			dc.getGeographicSurfaceTileRenderer().renderTile(dc, textureTile, opacity);
+
+		return true;
+	}
+
+	/*
+	 * Add a tile or its children, if they are ready & the tile texels
+	 * are too big on screen
+	 */
+	private void addTiles (DrawContext dc, Frustum frustum, Vec4 eye, Tile tile)
+	{
+		if ( ! isVisible(dc, tile.sector) )
+			return;
+
+		final Extent extent = tile.getExtent(dc);
+
+		if ( ! frustum.intersects(extent) )
+			return;
+
+		if ( tile.level < levels - 1 && computeScreenSpaceError(dc, eye, tile, extent) > maxScreenSpaceError )
+		{
+			boolean ready = true;
+
+			// load all the visible children before switching to them
+			for (Tile child : tile.getChildren()) {
+				if ( isVisible(dc, child.sector)
+						&& frustum.intersects(child.getExtent(dc))
+						&& getTextureTile(dc, child) == null 
+						&& ! child.failed )
+				{
+					ready = false;
+				}
+			}
+
+			if ( ready ) {
+				for (Tile child : tile.getChildren())
+					addTiles(dc, frustum, eye, child);
+				return;
+			}
+		}
+
+		final TextureTile textureTile = getTextureTile(dc, tile);
+
+		if ( textureTile != null )
+			drawTiles.add(textureTile);
+	}
+
+	/*
+	 * No visible sector (no terrain yet): the frustum test decides
+	 */
+	private static boolean isVisible (DrawContext dc, Sector sector)
+	{
+		final Sector visible = dc.getVisibleSector();
+		return visible == null || visible.intersects(sector);
+	}
+
+	private static double computeScreenSpaceError (DrawContext dc, Vec4 eye, Tile tile, Extent extent)
+	{
+		final double texelSize 	= tile.texelSize * dc.getGlobe().getEquatorialRadius();
+		final double distance 	= Math.max(eye.distanceTo3(extent.getCenter()) - extent.getRadius(), 1);
+
+		return texelSize / dc.getView().computePixelSizeAtDistance(distance);
+	}
+
+	/*
+	 * Texture of a tile from memory, or upload it if decoded & the frame
+	 * budget allows, or start decoding it.
+	 * @return null if not in memory yet
+	 */
+	private TextureTile getTextureTile (DrawContext dc, final Tile tile)
+	{
+		final MemoryCache cache = WorldWind.getMemoryCache(OverlayPyramid.class.getName());
+		TextureTile textureTile = (TextureTile)cache.getObject(tile.key);
+
+		if ( textureTile != null )
+			return textureTile;
+
+		final TextureData data = tile.data;
+
+		if ( data != null )
+		{
+			if ( ! uploadBudget.acquire(data.getEstimatedMemorySize()) )
+				return null;
+
+			textureTile = new TextureTile(tile.sector);
+			textureTile.setTexture(dc.getTextureCache(), TextureIO.newTexture(data));
+			cache.add(tile.key, textureTile);
+
+			tile.data = null;
+			return textureTile;
+		}
+
+		if ( tile.decoding || tile.failed )
+			return null;
+
+		tile.decoding = true;
+
+		// loader busy: try again on the next frame
+		final boolean queued = TextureLoader.getInstance().submit(new Runnable()
+		{
+			public void run()
+			{
+				try {
+					File file = tile.getFile(TextureTranscoder.SUFFIX);
+
+					if ( ! file.exists() )
+						file = tile.getFile("." + format);
+
+					tile.data = TextureLoader.decode(file.toURI().toURL(), true);
+				}
+				catch (Throwable e) {
+					// out of memory or a decoder bug: not decoded again every frame
+					logger.error("Unable to decode tile " + tile.key + ": " + e);
+					tile.failed = true;
+				}
+				finally {
+					tile.decoding = false;
+				}
+			}
+		});
+
+		if ( ! queued )
+			tile.decoding = false;
+
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return dir + " " + state + " " + width + "x" + height + " levels=" + levels;
+	}
+}
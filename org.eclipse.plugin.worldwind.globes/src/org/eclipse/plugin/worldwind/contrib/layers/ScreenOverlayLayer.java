@@ -121,7 +121,7 @@ public class ScreenOverlayLayer extends AbstractLayer
 
     	// does iconFilePath exist?
     	//boolean iconFound = WorldWind.getDataFileCache().findFile(iconFilePath, false) != null;
-    	boolean iconFound = LayerUtils.getWWFileStore().findFile(iconFilePath, false) != null;
+    	boolean iconFound = LayerUtils.findCacheFile(iconFilePath) != null;
     	
     	try {
         	if ( ! iconFound ) {
@@ -266,7 +266,7 @@ public class ScreenOverlayLayer extends AbstractLayer
         {
         	// look in cache first
         	//URL url = WorldWind.getDataFileCache().findFile(getName(), false);
-        	URL url = LayerUtils.getWWFileStore().findFile(getName(), false);
+        	URL url = LayerUtils.findCacheFile(getName());
         	
         	if ( url != null ) 
         	{
@@ -546,7 +546,7 @@ public class ScreenOverlayLayer extends AbstractLayer
     	
     	// in cache?
     	//URL url = WorldWind.getDataFileCache().findFile(getName(), false);
-    	URL url = LayerUtils.getWWFileStore().findFile(getName(), false);
+    	URL url = LayerUtils.findCacheFile(getName());
     	
     	if ( url != null) return new File( url.toURI());
     	
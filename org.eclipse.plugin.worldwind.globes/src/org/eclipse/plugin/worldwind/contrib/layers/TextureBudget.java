@@ -0,0 +1,288 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import gov.nasa.worldwind.Configuration;
+import gov.nasa.worldwind.WorldWind;
+import gov.nasa.worldwind.avlist.AVKey;
+import gov.nasa.worldwind.cache.MemoryCache;
+
+/**
+ * Global texture memory budget shared by the memory caches of the layers
+ * (quad key tiles, ground overlays). Layer caches are
+ * {@link BudgetedMemoryCache}s created by {@link #createCache(String, String)}.
+ *
+ * <p>Each cache gets a share of the budget weighted by the visibility and 
+ * recency of its layer: layers report each frame they render
+ * ({@link #touch(String)}). When the total used exceeds the budget, 
+ * entries are evicted from the caches above their share: least recently 
+ * used first across caches, least frequently used among the oldest 
+ * entries of a cache.</p>
+ *
+ * <p>The budget is set by the system property {@link #BUDGET_PROPERTY} 
+ * (bytes). Usage per cache is available thru JMX ({@link #OBJECT_NAME}).</p>
+ *
+ * @author vsilva
+ *
+ */
+public class TextureBudget implements TextureBudgetMBean
+{
+	private static final Logger logger = Logger.getLogger(TextureBudget.class);
+
+	public static final String BUDGET_PROPERTY = "worldwind.texture.budget";
+
+	public static final String OBJECT_NAME = "org.eclipse.plugin.worldwind:type=TextureBudget";
+
+	// A layer rendered within this time is visible (ms)
+	static final long VISIBLE_INTERVAL = 2000;
+
+	// Share weight of a hidden layer halves after this time (ms)
+	static final long HIDDEN_HALF_LIFE = 60 * 1000;
+
+	// Share weights: visible layer & min for a hidden one
+	static final double VISIBLE_WEIGHT 	= 1.0;
+	static final double HIDDEN_WEIGHT 	= 0.5;
+	static final double MIN_WEIGHT 		= 0.02;
+
+	// guarded by this
+	private final List<BudgetedMemoryCache> caches = new ArrayList<BudgetedMemoryCache>();
+	private long budget;
+	private long used;
+	private long evictions;
+
+	// access clock of the cache entries, guarded by this
+	private long clock;
+
+	private static final TextureBudget instance = new TextureBudget(defaultBudget());
+
+	private TextureBudget(long budget)
+	{
+		this.budget = budget;
+		logger.debug("Texture memory budget: " + budget + " bytes");
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+
+			if ( ! server.isRegistered(name))
+				server.registerMBean(this, name);
+		}
+		catch (Exception e) {
+			logger.error("Unable to register " + OBJECT_NAME + ": " + e);
+		}
+	}
+
+	public static TextureBudget getInstance() {
+		return instance;
+	}
+
+	/*
+	 * Budget property or 1/4 of the heap capped to 6 layer caches of 
+	 * TEXTURE_IMAGE_CACHE_SIZE
+	 */
+	private static long defaultBudget ()
+	{
+		final long size = Configuration.getLongValue(AVKey.TEXTURE_IMAGE_CACHE_SIZE, 4000000L);
+		final long budget = Long.getLong(BUDGET_PROPERTY, 0);
+
+		if ( budget > 0 )
+			return budget;
+
+		return Math.max(3 * size, Math.min(Runtime.getRuntime().maxMemory() / 4, 6 * size));
+	}
+
+	/**
+	 * Get or create the budgeted memory cache of a layer in the WW memory 
+	 * cache set.
+	 * @param key Cache key in the WW memory cache set
+	 * @param name Display name of the cache
+	 * @return the cache
+	 */
+	public synchronized MemoryCache createCache (String key, String name)
+	{
+		if ( WorldWind.getMemoryCacheSet().containsCache(key))
+			return WorldWind.getMemoryCacheSet().getCache(key);
+
+		BudgetedMemoryCache cache = new BudgetedMemoryCache(this, key);
+		cache.setName(name);
+		caches.add(cache);
+
+		WorldWind.getMemoryCacheSet().addCache(key, cache);
+
+		logger.debug("Initialized memory cache: " + cache);
+		return cache;
+	}
+
+	/**
+	 * Mark the cache of a layer as visible. Called by the layers on each frame.
+	 * @param key Cache key
+	 */
+	public void touch (String key)
+	{
+		final BudgetedMemoryCache cache = getCache(key);
+
+		if ( cache != null )
+			cache.lastRendered = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param key Cache key
+	 * @return the budgeted cache or null
+	 */
+	public synchronized BudgetedMemoryCache getCache (String key)
+	{
+		for (BudgetedMemoryCache cache : caches) {
+			if ( cache.getKey().equals(key))
+				return cache;
+		}
+		return null;
+	}
+
+	/**
+	 * @return a snapshot of the budgeted caches
+	 */
+	public synchronized List<BudgetedMemoryCache> getCaches() {
+		return new ArrayList<BudgetedMemoryCache>(caches);
+	}
+
+	/*
+	 * Tick of the access clock
+	 */
+	long tick () {
+		return ++clock;
+	}
+
+	/*
+	 * Bytes added to/removed from a cache (caller holds the lock)
+	 */
+	void charge (long bytes) {
+		used += bytes;
+	}
+
+	/*
+	 * Share weight of a cache from the time its layer was last rendered
+	 */
+	private static double weight (BudgetedMemoryCache cache, long now)
+	{
+		final long age = now - cache.lastRendered;
+
+		if ( age < VISIBLE_INTERVAL )
+			return VISIBLE_WEIGHT;
+
+		return Math.max(MIN_WEIGHT, HIDDEN_WEIGHT * HIDDEN_HALF_LIFE / (double)(HIDDEN_HALF_LIFE + age));
+	}
+
+	/**
+	 * Compute the share of the budget of each cache
+	 */
+	synchronized void computeShares ()
+	{
+		final long now = System.currentTimeMillis();
+		double total 	= 0;
+
+		for (BudgetedMemoryCache cache : caches)
+			total += weight(cache, now);
+
+		for (BudgetedMemoryCache cache : caches)
+			cache.share = total > 0 ? (long)(budget * weight(cache, now) / total) : budget;
+	}
+
+	/*
+	 * Evict entries until the total fits the budget (caller holds the lock).
+	 * The victim is the least recently used entry among the caches above 
+	 * their share.
+	 */
+	void evict ()
+	{
+		if ( used <= budget )
+			return;
+
+		computeShares();
+
+		while ( used > budget )
+		{
+			BudgetedMemoryCache victim = null;
+			long oldest = Long.MAX_VALUE;
+
+			for (BudgetedMemoryCache cache : caches)
+			{
+				if ( cache.getUsedCapacity() <= cache.share )
+					continue;
+
+				final long lastAccess = cache.getEldestAccess();
+
+				if ( lastAccess < oldest ) {
+					oldest = lastAccess;
+					victim = cache;
+				}
+			}
+
+			if ( victim == null || ! victim.evictOne() )
+				break;
+
+			evictions++;
+		}
+	}
+
+	/**
+	 * @param bytes Global texture memory budget
+	 */
+	public synchronized void setBudget (long bytes)
+	{
+		this.budget = bytes;
+		evict();
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return bytes used by all the caches
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	/**
+	 * @return # of entries evicted to fit the budget
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized String[] getCacheSummary()
+	{
+		computeShares();
+
+		String[] summary = new String[caches.size()];
+
+		for (int i = 0; i < summary.length; i++)
+			summary[i] = caches.get(i).toString();
+
+		return summary;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Texture budget=" + budget + " used=" + used + " caches=" + caches.size()
+			+ " evictions=" + evictions;
+	}
+}
@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers;
+
+/**
+ * JMX view of the {@link TextureBudget}. Sizes are in bytes.
+ * @author vsilva
+ *
+ */
+public interface TextureBudgetMBean
+{
+	public long getBudget();
+	public void setBudget(long bytes);
+
+	public long getUsed();
+	public long getEvictions();
+
+	/** @return one line per layer cache */
+	public String[] getCacheSummary();
+}
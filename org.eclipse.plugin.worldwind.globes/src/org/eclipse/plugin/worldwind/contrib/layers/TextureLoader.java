@@ -0,0 +1,314 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import org.eclipse.plugin.worldwind.contrib.parsers.DownloadMetrics;
+
+import com.sun.opengl.util.texture.TextureData;
+import com.sun.opengl.util.texture.TextureIO;
+
+/**
+ * Off GL thread image decoding. Image files are decoded into a
+ * {@link TextureData} (JPEG/PNG inflate, pixel conversion) by a small pool
+ * of background threads, leaving only the GL upload
+ * ({@link TextureIO#newTexture(TextureData)}) to the render thread.
+ * Layers limit the uploads done per frame (see {@link UploadBudget}).
+ *
+ * <p>Frame times (interval between frames) and the time spent in the
+ * layers render pass are recorded (see {@link FrameTimer}) so long frames 
+ * can be tracked.</p>
+ *
+ * @author vsilva
+ *
+ */
+public class TextureLoader
+{
+	private static final Logger logger = Logger.getLogger(TextureLoader.class);
+
+	// Pending decodes. Callers retry on a later frame when full
+	static final int MAX_QUEUED = 64;
+
+	// Frames longer than this are counted as long (ms)
+	public static final long LONG_FRAME = 33;
+
+	// Frames apart by more than this are idle time, not frames (ms)
+	static final long MAX_FRAME_INTERVAL = 1000;
+
+	private final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(MAX_QUEUED);
+
+	// Frame intervals & layer render times (ms)
+	private final DownloadMetrics.Histogram frameTimes 	= new DownloadMetrics.Histogram();
+	private final DownloadMetrics.Histogram renderTimes = new DownloadMetrics.Histogram();
+	private final AtomicLong longFrames = new AtomicLong();
+
+	// Current frame (shared by the layer FrameTimers, render thread only): 
+	// #, start (ns) & time spent in the layers render pass so far (ns)
+	private int frameNumber;
+	private long frameStart;
+	private long frameRenderTime;
+
+	private static final TextureLoader instance = new TextureLoader(
+			Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)));
+
+	private TextureLoader(int workers)
+	{
+		for (int i = 0; i < workers; i++) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					while ( true ) {
+						try {
+							queue.take().run();
+						}
+						catch (InterruptedException e) {
+							return;
+						}
+						catch (Throwable e) {
+							logger.error("Decode task failed: " + e);
+						}
+					}
+				}
+			}, "TextureLoader-" + i);
+
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			t.start();
+		}
+	}
+
+	public static TextureLoader getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Run a decode task in the background
+	 * @param task
+	 * @return false if the queue is full
+	 */
+	public boolean submit (Runnable task) {
+		return queue.offer(task);
+	}
+
+	/**
+	 * Decode an image file. Called from the decode threads.
+	 * @param url Image file
+	 * @param mipmap Build mipmaps on upload
+	 * @return texture data ready to be uploaded
+	 * @throws IOException if the image cannot be read
+	 */
+	public static TextureData decode (URL url, boolean mipmap) throws IOException
+	{
+		TextureData data = TextureIO.newTextureData(url, mipmap, null);
+
+		if ( data == null )
+			throw new IOException("Unable to decode " + url);
+
+		return data;
+	}
+
+	/**
+	 * Decode an image stream: JPEG, PNG or DDS (see {@link TextureTranscoder}).
+	 * Called from the decode threads.
+	 * @param is Image bytes (not closed)
+	 * @param mipmap Build mipmaps on upload
+	 * @return texture data ready to be uploaded
+	 * @throws IOException if the image cannot be read
+	 */
+	public static TextureData decode (InputStream is, boolean mipmap) throws IOException
+	{
+		// DDS detection peeks at the header
+		if ( ! is.markSupported() )
+			is = new BufferedInputStream(is);
+
+		TextureData data = TextureIO.newTextureData(is, mipmap, null);
+
+		if ( data == null )
+			throw new IOException("Unable to decode image stream");
+
+		return data;
+	}
+
+	/*
+	 * Close the current frame (render thread)
+	 */
+	private void nextFrame (long now)
+	{
+		final long interval = (now - frameStart) / 1000000;
+
+		// idle time (layers hidden, window minimized...) is not a frame
+		if ( interval < MAX_FRAME_INTERVAL ) {
+			recordFrame(interval);
+			renderTimes.record(frameRenderTime / 1000000);
+		}
+		frameNumber++;
+		frameStart 		= now;
+		frameRenderTime = 0;
+	}
+
+	void recordFrame (long millis)
+	{
+		frameTimes.record(millis);
+
+		if ( millis > LONG_FRAME )
+			longFrames.incrementAndGet();
+	}
+
+	/**
+	 * @return Time between frames (ms)
+	 */
+	public DownloadMetrics.Histogram getFrameTimes() {
+		return frameTimes;
+	}
+
+	/**
+	 * @return Time spent in the render pass of the layers per frame (ms)
+	 */
+	public DownloadMetrics.Histogram getRenderTimes() {
+		return renderTimes;
+	}
+
+	/**
+	 * @return # of frames longer than {@link #LONG_FRAME} ms
+	 */
+	public long getLongFrames() {
+		return longFrames.get();
+	}
+
+	/**
+	 * Clear the frame & render time statistics
+	 */
+	public void resetFrameTimes() {
+		frameTimes.reset();
+		renderTimes.reset();
+		longFrames.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "Frames: " + frameTimes.getCount()
+			+ " mean=" + frameTimes.getMean()
+			+ " p99=" + frameTimes.getPercentile(0.99)
+			+ " max=" + frameTimes.getMax()
+			+ " long=" + getLongFrames()
+			+ " Render pass: mean=" + renderTimes.getMean()
+			+ " p99=" + renderTimes.getPercentile(0.99)
+			+ " Decodes queued=" + queue.size();
+	}
+
+	/**
+	 * Render pass timer of a layer (render thread only). All layer timers 
+	 * share the frame: a new frame starts when a layer begins its render pass
+	 * again. Frame intervals & the render time of all layers are recorded 
+	 * once per frame, not once per layer.
+	 */
+	public static class FrameTimer
+	{
+		// frame of the last render pass of the layer
+		private int frame = -1;
+		private long start;
+
+		/**
+		 * Call at the start of the layer's render pass
+		 */
+		public void begin ()
+		{
+			start = System.nanoTime();
+
+			if ( instance.frameStart == 0 )
+				instance.frameStart = start;
+			
+			// layer already rendered in this frame: next frame
+			if ( frame == instance.frameNumber ) 
+				instance.nextFrame(start);
+			
+			frame = instance.frameNumber;
+		}
+
+		/**
+		 * Call at the end of the layer's render pass
+		 */
+		public void end () {
+			instance.frameRenderTime += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Per frame GL upload budget of a layer (render thread only). The
+	 * first upload of a frame is always allowed so large textures are
+	 * not starved.
+	 */
+	public static class UploadBudget
+	{
+		// defaults: ~4 256x256 RGB tiles w/ mipmaps
+		public static final long DEFAULT_MAX_BYTES 	= 1024 * 1024;
+		public static final int DEFAULT_MAX_UPLOADS = 8;
+
+		private long maxBytes 	= DEFAULT_MAX_BYTES;
+		private int maxUploads 	= DEFAULT_MAX_UPLOADS;
+
+		private long bytes;
+		private int uploads;
+
+		/**
+		 * Reset the budget. Called at the start of each frame.
+		 */
+		public void reset () {
+			bytes 	= 0;
+			uploads = 0;
+		}
+
+		/**
+		 * Spend the budget of one upload
+		 * @param size Texture size (bytes)
+		 * @return false if the budget of this frame is exhausted
+		 */
+		public boolean acquire (long size)
+		{
+			if ( uploads > 0 && (uploads >= maxUploads || bytes + size > maxBytes) )
+				return false;
+
+			bytes += size;
+			uploads++;
+			return true;
+		}
+
+		/**
+		 * @param maxBytes Max texture bytes uploaded per frame
+		 */
+		public void setMaxBytes(long maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		public long getMaxBytes() {
+			return maxBytes;
+		}
+
+		/**
+		 * @param maxUploads Max textures uploaded per frame
+		 */
+		public void setMaxUploads(int maxUploads) {
+			this.maxUploads = maxUploads;
+		}
+
+		public int getMaxUploads() {
+			return maxUploads;
+		}
+	}
+}
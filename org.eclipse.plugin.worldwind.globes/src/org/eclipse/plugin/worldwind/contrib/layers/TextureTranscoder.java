@@ -0,0 +1,473 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import javax.media.opengl.GL;
+
+import org.apache.log4j.Logger;
+
+import org.eclipse.plugin.worldwind.contrib.FileStoreIndex;
+
+import com.sun.opengl.util.texture.spi.DDSImage;
+
+/**
+ * Transcodes downloaded images (JPEG, PNG) into pre-mipmapped DDS files
+ * (DXT1 for opaque images, DXT5 w/ alpha) so later loads skip the image
+ * decode & mipmap build and use 1/8 (DXT1) or 1/4 (DXT5) of the texture
+ * memory. The DXT blocks are encoded on the CPU: colors are fitted to the
+ * bounding box of each 4x4 block.
+ *
+ * <p>Disabled by default: set the system property {@link #ENABLED_PROPERTY}
+ * to true. Transcoding stops if the GL has no S3TC support (see
+ * {@link #checkSupport(GL)}). Only power of 2 images are transcoded.</p>
+ *
+ * @author vsilva
+ *
+ */
+public class TextureTranscoder
+{
+	private static final Logger logger = Logger.getLogger(TextureTranscoder.class);
+
+	public static final String ENABLED_PROPERTY = "worldwind.texture.dds";
+
+	/** Suffix of the DDS files stored next to the originals */
+	public static final String SUFFIX = ".dds";
+
+	static final String S3TC_EXTENSION = "GL_EXT_texture_compression_s3tc";
+
+	// DDS file: magic ("DDS ") + 124 byte header
+	static final int HEADER_SIZE 	= 128;
+	static final int MAGIC 			= 0x20534444;
+	static final int FOURCC_DXT1 	= 0x31545844;
+	static final int FOURCC_DXT5 	= 0x35545844;
+
+	private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+	// S3TC support of the GL: null until checked
+	private static volatile Boolean supported;
+
+	private TextureTranscoder() {
+	}
+
+	/**
+	 * @return true if downloaded images should be transcoded & DDS files preferred
+	 */
+	public static boolean isEnabled() {
+		return enabled && supported != Boolean.FALSE;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		TextureTranscoder.enabled = enabled;
+	}
+
+	/**
+	 * Check the GL can load DXT textures (once). Called from the render thread.
+	 * @param gl
+	 */
+	public static void checkSupport (GL gl)
+	{
+		if ( supported != null || gl == null )
+			return;
+
+		supported = Boolean.valueOf(gl.isExtensionAvailable(S3TC_EXTENSION));
+
+		if ( enabled && ! supported.booleanValue() )
+			logger.warn("No " + S3TC_EXTENSION + ": DDS transcoding disabled");
+	}
+
+	/**
+	 * @param file Original image file
+	 * @return DDS file of an image (may not exist)
+	 */
+	public static File getCompressedFile (File file) {
+		return new File(file.getPath() + SUFFIX);
+	}
+
+	/**
+	 * @param file Original image file
+	 * @return the DDS file of an image or null if not transcoded or older
+	 * than the image (image updated)
+	 */
+	public static File findCompressedFile (File file)
+	{
+		if ( ! isEnabled() )
+			return null;
+
+		final File dds = getCompressedFile(file);
+
+		return dds.exists() && dds.lastModified() >= file.lastModified() ? dds : null;
+	}
+
+	/**
+	 * Transcode an image into a DDS file.
+	 * @param image
+	 * @param out DDS file. Replaced atomically if it exists
+	 * @return false if the image cannot be transcoded (not a power of 2)
+	 * @throws IOException if the file cannot be written
+	 */
+	public static boolean transcode (BufferedImage image, File out) throws IOException
+	{
+		final ByteBuffer dds = encode(image);
+
+		if ( dds == null )
+			return false;
+
+		final File tmp = new File(out.getPath() + ".tmp");
+
+		try {
+			final FileChannel channel = new FileOutputStream(tmp).getChannel();
+			try {
+				while ( dds.hasRemaining() )
+					channel.write(dds);
+			}
+			finally {
+				channel.close();
+			}
+
+			if ( out.exists() && ! out.delete() )
+				throw new IOException("Unable to replace " + out);
+
+			if ( ! tmp.renameTo(out) )
+				throw new IOException("Unable to rename " + tmp + " to " + out);
+
+			FileStoreIndex.getInstance().added(out);
+		}
+		finally {
+			tmp.delete();
+		}
+
+		logger.debug("Transcoded " + image.getWidth() + "x" + image.getHeight() + " image to " + out);
+		return true;
+	}
+
+	/**
+	 * Encode an image & its mipmaps: DXT1 if opaque, else DXT5.
+	 * @param image
+	 * @return DDS file contents or null if the size is not a power of 2
+	 */
+	public static ByteBuffer encode (BufferedImage image)
+	{
+		int width 	= image.getWidth();
+		int height 	= image.getHeight();
+
+		if ( ! isPowerOfTwo(width) || ! isPowerOfTwo(height) )
+			return null;
+
+		int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+
+		final boolean alpha = hasAlpha(argb);
+
+		// levels down to 1x1
+		final int levels = 1 + log2(Math.max(width, height));
+		final ByteBuffer[] mipmaps = new ByteBuffer[levels];
+		int size = 0;
+
+		for (int i = 0; i < levels; i++)
+		{
+			mipmaps[i] = alpha ? encodeDXT5(argb, width, height) : encodeDXT1(argb, width, height);
+			size += mipmaps[i].remaining();
+
+			if ( i < levels - 1 ) {
+				final int w = Math.max(1, width / 2);
+				final int h = Math.max(1, height / 2);
+
+				argb 	= downsample(argb, width, height, w, h);
+				width 	= w;
+				height 	= h;
+			}
+		}
+
+		final ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + size).order(ByteOrder.LITTLE_ENDIAN);
+
+		writeHeader(buf, image.getWidth(), image.getHeight(), levels, mipmaps[0].remaining()
+				, alpha ? FOURCC_DXT5 : FOURCC_DXT1);
+
+		for (ByteBuffer mipmap : mipmaps)
+			buf.put(mipmap);
+
+		buf.rewind();
+		return buf;
+	}
+
+	/*
+	 * DDS header. {@link DDSImage#createFromData} can't be used: it 
+	 * miscomputes the size of the levels below 4x4.
+	 */
+	private static void writeHeader (ByteBuffer buf, int width, int height, int levels
+			, int linearSize, int fourCC)
+	{
+		buf.putInt(MAGIC);
+		buf.putInt(124);
+		buf.putInt(DDSImage.DDSD_CAPS | DDSImage.DDSD_HEIGHT | DDSImage.DDSD_WIDTH 
+				| DDSImage.DDSD_PIXELFORMAT | DDSImage.DDSD_MIPMAPCOUNT | DDSImage.DDSD_LINEARSIZE);
+		buf.putInt(height);
+		buf.putInt(width);
+		buf.putInt(linearSize);
+		buf.putInt(0);					// depth
+		buf.putInt(levels);
+
+		for (int i = 0; i < 11; i++)	// reserved
+			buf.putInt(0);
+
+		// pixel format
+		buf.putInt(32);
+		buf.putInt(DDSImage.DDPF_FOURCC);
+		buf.putInt(fourCC);
+
+		for (int i = 0; i < 5; i++)		// bit count & masks
+			buf.putInt(0);
+
+		// caps 1-4 & reserved
+		buf.putInt(DDSImage.DDSCAPS_TEXTURE | DDSImage.DDSCAPS_MIPMAP | DDSImage.DDSCAPS_COMPLEX);
+
+		for (int i = 0; i < 4; i++)
+			buf.putInt(0);
+	}
+
+	static boolean isPowerOfTwo (int n) {
+		return n > 0 && (n & (n - 1)) == 0;
+	}
+
+	private static int log2 (int n) {
+		return 31 - Integer.numberOfLeadingZeros(n);
+	}
+
+	private static boolean hasAlpha (int[] argb)
+	{
+		for (int p : argb) {
+			if ( (p >>> 24) != 0xff )
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Box filter: average of the (up to) 2x2 source pixels
+	 */
+	static int[] downsample (int[] src, int width, int height, int w, int h)
+	{
+		final int[] dst = new int[w * h];
+		final int sx 	= width / w;
+		final int sy 	= height / h;
+
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++)
+			{
+				int a = 0, r = 0, g = 0, b = 0;
+
+				for (int j = 0; j < sy; j++) {
+					for (int i = 0; i < sx; i++) {
+						final int p = src[(y * sy + j) * width + x * sx + i];
+
+						a += p >>> 24;
+						r += (p >> 16) & 0xff;
+						g += (p >> 8) & 0xff;
+						b += p & 0xff;
+					}
+				}
+				final int n = sx * sy;
+				dst[y * w + x] = ((a / n) << 24) | ((r / n) << 16) | ((g / n) << 8) | (b / n);
+			}
+		}
+		return dst;
+	}
+
+	private static int blocks (int size) {
+		return Math.max(1, (size + 3) / 4);
+	}
+
+	/*
+	 * Copy the 4x4 block at bx, by. Pixels outside the image (levels
+	 * below 4x4) are clamped to the edge.
+	 */
+	private static void fetchBlock (int[] argb, int width, int height, int bx, int by, int[] block)
+	{
+		for (int j = 0; j < 4; j++) {
+			final int y = Math.min(by * 4 + j, height - 1);
+
+			for (int i = 0; i < 4; i++)
+				block[j * 4 + i] = argb[y * width + Math.min(bx * 4 + i, width - 1)];
+		}
+	}
+
+	static ByteBuffer encodeDXT1 (int[] argb, int width, int height)
+	{
+		final ByteBuffer buf = ByteBuffer.allocate(blocks(width) * blocks(height) * 8)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		final int[] block = new int[16];
+
+		for (int by = 0; by < blocks(height); by++) {
+			for (int bx = 0; bx < blocks(width); bx++) {
+				fetchBlock(argb, width, height, bx, by, block);
+				encodeColors(block, buf);
+			}
+		}
+		buf.rewind();
+		return buf;
+	}
+
+	static ByteBuffer encodeDXT5 (int[] argb, int width, int height)
+	{
+		final ByteBuffer buf = ByteBuffer.allocate(blocks(width) * blocks(height) * 16)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		final int[] block = new int[16];
+
+		for (int by = 0; by < blocks(height); by++) {
+			for (int bx = 0; bx < blocks(width); bx++) {
+				fetchBlock(argb, width, height, bx, by, block);
+				encodeAlpha(block, buf);
+				encodeColors(block, buf);
+			}
+		}
+		buf.rewind();
+		return buf;
+	}
+
+	private static int to565 (int r, int g, int b) {
+		return ((r >> 3) << 11) | ((g >> 2) << 5) | (b >> 3);
+	}
+
+	/*
+	 * 565 color to 888 (replicating the high bits)
+	 */
+	private static int[] from565 (int c)
+	{
+		final int r = (c >> 11) & 0x1f;
+		final int g = (c >> 5) & 0x3f;
+		final int b = c & 0x1f;
+
+		return new int[] { (r << 3) | (r >> 2), (g << 2) | (g >> 4), (b << 3) | (b >> 2) };
+	}
+
+	/*
+	 * DXT1 color block (4 color mode): 2 endpoints from the bounding box
+	 * of the block (inset by 1/16 to reduce the error) + 2 bit indices.
+	 */
+	private static void encodeColors (int[] block, ByteBuffer buf)
+	{
+		int minR = 255, minG = 255, minB = 255;
+		int maxR = 0, maxG = 0, maxB = 0;
+
+		for (int p : block) {
+			final int r = (p >> 16) & 0xff, g = (p >> 8) & 0xff, b = p & 0xff;
+
+			minR = Math.min(minR, r); maxR = Math.max(maxR, r);
+			minG = Math.min(minG, g); maxG = Math.max(maxG, g);
+			minB = Math.min(minB, b); maxB = Math.max(maxB, b);
+		}
+
+		final int insetR = (maxR - minR) >> 4;
+		final int insetG = (maxG - minG) >> 4;
+		final int insetB = (maxB - minB) >> 4;
+
+		int c0 = to565(maxR - insetR, maxG - insetG, maxB - insetB);
+		int c1 = to565(minR + insetR, minG + insetG, minB + insetB);
+
+		if ( c0 < c1 ) {
+			final int t = c0; c0 = c1; c1 = t;
+		}
+
+		int indices = 0;
+
+		// c0 == c1: single color, all indices 0
+		if ( c0 != c1 )
+		{
+			final int[] e0 = from565(c0);
+			final int[] e1 = from565(c1);
+			final int[][] palette = new int[4][3];
+
+			for (int k = 0; k < 3; k++) {
+				palette[0][k] = e0[k];
+				palette[1][k] = e1[k];
+				palette[2][k] = (2 * e0[k] + e1[k]) / 3;
+				palette[3][k] = (e0[k] + 2 * e1[k]) / 3;
+			}
+
+			for (int i = 0; i < 16; i++)
+			{
+				final int r = (block[i] >> 16) & 0xff, g = (block[i] >> 8) & 0xff, b = block[i] & 0xff;
+				int best = 0, bestError = Integer.MAX_VALUE;
+
+				for (int k = 0; k < 4; k++) {
+					final int dr = r - palette[k][0], dg = g - palette[k][1], db = b - palette[k][2];
+					final int error = dr * dr + dg * dg + db * db;
+
+					if ( error < bestError ) {
+						bestError 	= error;
+						best 		= k;
+					}
+				}
+				indices |= best << (2 * i);
+			}
+		}
+
+		buf.putShort((short)c0);
+		buf.putShort((short)c1);
+		buf.putInt(indices);
+	}
+
+	/*
+	 * DXT5 alpha block (8 alpha mode): max/min endpoints + 3 bit indices
+	 */
+	private static void encodeAlpha (int[] block, ByteBuffer buf)
+	{
+		int min = 255, max = 0;
+
+		for (int p : block) {
+			final int a = p >>> 24;
+			min = Math.min(min, a);
+			max = Math.max(max, a);
+		}
+
+		long indices = 0;
+
+		if ( max != min )
+		{
+			final int[] palette = new int[8];
+
+			palette[0] = max;
+			palette[1] = min;
+
+			for (int k = 1; k < 7; k++)
+				palette[k + 1] = ((7 - k) * max + k * min) / 7;
+
+			for (int i = 0; i < 16; i++)
+			{
+				final int a = block[i] >>> 24;
+				int best = 0, bestError = Integer.MAX_VALUE;
+
+				for (int k = 0; k < 8; k++) {
+					final int error = Math.abs(a - palette[k]);
+
+					if ( error < bestError ) {
+						bestError 	= error;
+						best 		= k;
+					}
+				}
+				indices |= (long)best << (3 * i);
+			}
+		}
+
+		buf.put((byte)max);
+		buf.put((byte)min);
+
+		for (int i = 0; i < 6; i++)
+			buf.put((byte)(indices >>> (8 * i)));
+	}
+}
@@ -0,0 +1,343 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.imageio.ImageIO;
+import javax.media.opengl.GL;
+
+import com.sun.opengl.util.texture.TextureData;
+import com.sun.opengl.util.texture.spi.DDSImage;
+
+/**
+ * Headless round trip checks of the {@link TextureTranscoder} DXT encoder
+ * & the {@link TextureLoader}: images are encoded to DDS, read back thru
+ * the JOGL DDS reader, decoded in software & compared w/ the source (PSNR),
+ * level by level. Prints a line per check and exits with 1 on failure.
+ * <pre>
+ * java ...TextureTranscoderCheck
+ * </pre>
+ * @author vsilva
+ *
+ */
+public class TextureTranscoderCheck
+{
+	// Min PSNR (dB) of the decoded DXT images (full size & mipmaps): colors & alpha
+	static final double MIN_PSNR 				= 35;
+	static final double MIN_MIPMAP_PSNR 		= 28;
+	static final double MIN_ALPHA_PSNR 			= 40;
+	static final double MIN_MIPMAP_ALPHA_PSNR 	= 35;
+
+	// Mipmaps smaller than this (texels per side) are not compared: the
+	// source details take a few blocks & the loss is never magnified
+	static final int MIN_MIPMAP_SIZE = 16;
+
+	private static int failures;
+
+	public static void main(String[] args)
+	{
+		try {
+			// Opaque tile: DXT1 w/ all levels down to 1x1
+			final BufferedImage opaque 	= createImage(256, 256, false);
+			final ByteBuffer dds1 		= TextureTranscoder.encode(opaque);
+			final DDSImage image1 		= DDSImage.read(dds1.duplicate());
+
+			check("opaque image -> DXT1", image1.isCompressed()
+					&& image1.getCompressionFormat() == DDSImage.D3DFMT_DXT1);
+			check("256x256 w/ 9 levels", image1.getWidth() == 256 && image1.getHeight() == 256
+					&& image1.getNumMipMaps() == 9);
+
+			checkLevels("DXT1", opaque, dds1, 8, false);
+
+			// Translucent overlay: DXT5
+			final BufferedImage translucent = createImage(128, 64, true);
+			final ByteBuffer dds5 			= TextureTranscoder.encode(translucent);
+			final DDSImage image5 			= DDSImage.read(dds5.duplicate());
+
+			check("translucent image -> DXT5", image5.getCompressionFormat() == DDSImage.D3DFMT_DXT5);
+			check("128x64 w/ 8 levels", image5.getWidth() == 128 && image5.getHeight() == 64
+					&& image5.getNumMipMaps() == 8);
+
+			checkLevels("DXT5", translucent, dds5, 16, true);
+
+			// Flat color: exact
+			final BufferedImage flat = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = flat.createGraphics();
+			g.setColor(new Color(0x00, 0x80, 0xff));
+			g.fillRect(0, 0, 16, 16);
+			g.dispose();
+
+			final int[] flatDecoded = decodeLevel(TextureTranscoder.encode(flat), 0, 16, 16, 8, false);
+			check("flat color decodes within 565 precision", flatDecoded[0] == 0xff0082ff
+					&& flatDecoded[255] == flatDecoded[0]);
+
+			// Sizes that are not a power of 2 are left alone
+			check("300x200 not transcoded", TextureTranscoder.encode(createImage(300, 200, false)) == null);
+
+			// Loader: DDS stream -> compressed texture data w/ mipmaps
+			final TextureData data = TextureLoader.decode(new ByteArrayInputStream(toArray(dds1)), true);
+
+			check("loader: DDS is compressed", data.isDataCompressed()
+					&& data.getInternalFormat() == GL.GL_COMPRESSED_RGB_S3TC_DXT1_EXT);
+			check("loader: 9 mipmaps, no mipmap generation", data.getMipmapData() != null
+					&& data.getMipmapData().length == 9 && data.getWidth() == 256);
+
+			// Loader: 4x less memory than the decoded RGB image (8x w/o mipmaps)
+			final ByteArrayOutputStream png = new ByteArrayOutputStream();
+			ImageIO.write(opaque, "png", png);
+
+			final TextureData rgb = TextureLoader.decode(new ByteArrayInputStream(png.toByteArray()), true);
+
+			check("loader: PNG is not compressed", ! rgb.isDataCompressed() && rgb.getWidth() == 256);
+			System.out.println("        texture memory: PNG " + rgb.getEstimatedMemorySize()
+					+ " bytes, DDS " + data.getEstimatedMemorySize() + " bytes");
+			check("loader: DDS smaller than the decoded PNG"
+					, data.getEstimatedMemorySize() * 4 <= rgb.getEstimatedMemorySize());
+
+			// File round trip
+			final File file = File.createTempFile("transcode", TextureTranscoder.SUFFIX);
+
+			check("transcode() writes the DDS", TextureTranscoder.transcode(opaque, file)
+					&& file.length() == dds1.remaining());
+
+			final InputStream is = new FileInputStream(file);
+			try {
+				check("DDS file loads", TextureLoader.decode(is, true).isDataCompressed());
+			}
+			finally {
+				is.close();
+			}
+			file.delete();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			failures++;
+		}
+		System.out.println(failures == 0 ? "All checks passed" : failures + " check(s) FAILED");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/*
+	 * Gradient + strokes, w/ a radial alpha ramp if translucent
+	 */
+	private static BufferedImage createImage (int width, int height, boolean alpha)
+	{
+		final BufferedImage image = new BufferedImage(width, height
+				, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+
+		Graphics2D g = image.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, new Color(30, 90, 160), width, height, new Color(200, 180, 90)));
+		g.fillRect(0, 0, width, height);
+		g.setStroke(new BasicStroke(3));
+		g.setColor(new Color(240, 240, 240));
+		g.drawLine(0, height / 3, width, height / 2);
+		g.setColor(new Color(20, 120, 40));
+		g.drawOval(width / 4, height / 4, width / 2, height / 2);
+		g.dispose();
+
+		if ( alpha ) {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					final double d = Math.hypot(x - width / 2.0, y - height / 2.0) / Math.hypot(width / 2.0, height / 2.0);
+					final int a = (int)(255 * (1 - d));
+					image.setRGB(x, y, (a << 24) | (image.getRGB(x, y) & 0xffffff));
+				}
+			}
+		}
+		return image;
+	}
+
+	/*
+	 * Each level decoded vs. the source downsampled by the encoder
+	 */
+	private static void checkLevels (String name, BufferedImage image, ByteBuffer dds, int blockSize, boolean alpha)
+	{
+		int width 	= image.getWidth();
+		int height 	= image.getHeight();
+		int[] argb 	= image.getRGB(0, 0, width, height, null, 0, width);
+
+		double first 		= 0;
+		double firstAlpha 	= 0;
+		double worst 		= Double.MAX_VALUE;
+		double worstAlpha 	= Double.MAX_VALUE;
+		int level 			= 0;
+
+		while ( width >= MIN_MIPMAP_SIZE && height >= MIN_MIPMAP_SIZE )
+		{
+			final int[] decoded = decodeLevel(dds, level, image.getWidth(), image.getHeight(), blockSize, alpha);
+			final double colors = psnr(argb, decoded, 0);
+			final double alphas = alpha ? psnr(argb, decoded, 24) : 0;
+
+			if ( level == 0 ) {
+				first 		= colors;
+				firstAlpha 	= alphas;
+			}
+			else {
+				worst 		= Math.min(worst, colors);
+				worstAlpha 	= Math.min(worstAlpha, alphas);
+			}
+
+			final int w = Math.max(1, width / 2);
+			final int h = Math.max(1, height / 2);
+
+			argb 	= TextureTranscoder.downsample(argb, width, height, w, h);
+			width 	= w;
+			height 	= h;
+			level++;
+		}
+
+		check(name + " colors PSNR " + format(first) + " dB >= " + MIN_PSNR, first >= MIN_PSNR);
+		check(name + " mipmaps colors PSNR " + format(worst) + " dB >= " + MIN_MIPMAP_PSNR
+				+ " (" + (level - 1) + " levels)", worst >= MIN_MIPMAP_PSNR);
+
+		if ( alpha ) {
+			check(name + " alpha PSNR " + format(firstAlpha) + " dB >= " + MIN_ALPHA_PSNR
+					, firstAlpha >= MIN_ALPHA_PSNR);
+			check(name + " mipmaps alpha PSNR " + format(worstAlpha) + " dB >= " + MIN_MIPMAP_ALPHA_PSNR
+					, worstAlpha >= MIN_MIPMAP_ALPHA_PSNR);
+		}
+	}
+
+	/*
+	 * Software DXT1/DXT5 decoder of a mipmap level.
+	 */
+	private static int[] decodeLevel (ByteBuffer dds, int level, int width, int height, int blockSize, boolean alpha)
+	{
+		final ByteBuffer buf = dds.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int offset = 128;
+
+		for (int i = 0; i < level; i++) {
+			offset += blocks(width) * blocks(height) * blockSize;
+			width 	= Math.max(1, width / 2);
+			height 	= Math.max(1, height / 2);
+		}
+
+		final int[] argb = new int[width * height];
+
+		for (int by = 0; by < blocks(height); by++)
+		{
+			for (int bx = 0; bx < blocks(width); bx++)
+			{
+				buf.position(offset);
+				offset += blockSize;
+
+				final int[] alphas = new int[16];
+
+				if ( alpha ) {
+					final int a0 = buf.get() & 0xff, a1 = buf.get() & 0xff;
+					long bits = 0;
+
+					for (int i = 0; i < 6; i++)
+						bits |= (long)(buf.get() & 0xff) << (8 * i);
+
+					final int[] palette = { a0, a1, 0, 0, 0, 0, 0, 0 };
+
+					for (int k = 1; k < 7; k++)
+						palette[k + 1] = a0 > a1 ? ((7 - k) * a0 + k * a1) / 7 : a0;
+
+					for (int i = 0; i < 16; i++)
+						alphas[i] = palette[(int)((bits >>> (3 * i)) & 7)];
+				}
+				else
+					java.util.Arrays.fill(alphas, 255);
+
+				final int c0 = buf.getShort() & 0xffff, c1 = buf.getShort() & 0xffff;
+				final int indices = buf.getInt();
+				final int[][] palette = new int[4][];
+
+				palette[0] = rgb(c0);
+				palette[1] = rgb(c1);
+				palette[2] = new int[3];
+				palette[3] = new int[3];
+
+				for (int k = 0; k < 3; k++) {
+					if ( c0 > c1 ) {
+						palette[2][k] = (2 * palette[0][k] + palette[1][k]) / 3;
+						palette[3][k] = (palette[0][k] + 2 * palette[1][k]) / 3;
+					}
+					else
+						palette[2][k] = (palette[0][k] + palette[1][k]) / 2;
+				}
+
+				for (int i = 0; i < 16; i++) {
+					final int x = bx * 4 + i % 4, y = by * 4 + i / 4;
+
+					if ( x >= width || y >= height )
+						continue;
+
+					final int[] c = palette[(indices >>> (2 * i)) & 3];
+					argb[y * width + x] = (alphas[i] << 24) | (c[0] << 16) | (c[1] << 8) | c[2];
+				}
+			}
+		}
+		return argb;
+	}
+
+	private static int[] rgb (int c)
+	{
+		final int r = (c >> 11) & 0x1f, g = (c >> 5) & 0x3f, b = c & 0x1f;
+		return new int[] { (r << 3) | (r >> 2), (g << 2) | (g >> 4), (b << 3) | (b >> 2) };
+	}
+
+	private static int blocks (int size) {
+		return Math.max(1, (size + 3) / 4);
+	}
+
+	/*
+	 * PSNR of the RGB channels (shift 0) or the alpha channel (shift 24)
+	 */
+	private static double psnr (int[] a, int[] b, int shift)
+	{
+		double sum = 0;
+		int n = 0;
+
+		for (int i = 0; i < a.length; i++) {
+			final int channels = shift == 24 ? 1 : 3;
+
+			for (int c = 0; c < channels; c++) {
+				final int s = shift == 24 ? 24 : c * 8;
+				final int d = ((a[i] >>> s) & 0xff) - ((b[i] >>> s) & 0xff);
+				sum += d * d;
+				n++;
+			}
+		}
+		final double mse = sum / n;
+		return mse == 0 ? 99 : 10 * Math.log10(255 * 255 / mse);
+	}
+
+	private static byte[] toArray (ByteBuffer buf) {
+		final byte[] bytes = new byte[buf.remaining()];
+		buf.duplicate().get(bytes);
+		return bytes;
+	}
+
+	private static String format (double d) {
+		return String.valueOf(Math.round(d * 10) / 10.0);
+	}
+
+	private static void check (String name, boolean ok)
+	{
+		System.out.println((ok ? "OK     " : "FAILED ") + name);
+		if ( ! ok ) failures++;
+	}
+}
@@ -14,16 +14,30 @@ import gov.nasa.worldwind.avlist.AVList;
 import gov.nasa.worldwind.avlist.AVListImpl;
 import gov.nasa.worldwind.geom.Angle;
 import gov.nasa.worldwind.geom.LatLon;
+import gov.nasa.worldwind.geom.Position;
 import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.layers.BasicTiledImageLayer;
+import gov.nasa.worldwind.layers.TextureTile;
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.util.Level;
 import gov.nasa.worldwind.util.LevelSet;
 import gov.nasa.worldwind.util.Tile;
 import gov.nasa.worldwind.util.TileUrlBuilder;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
 
 import org.apache.log4j.Logger;
+import org.eclipse.plugin.worldwind.contrib.LayerUtils;
+import org.eclipse.plugin.worldwind.contrib.parsers.SimpleHTTPClient;
 
 /**
  * Layer representing a WMS 1.1.1 Capabilities<br/>
@@ -69,6 +83,16 @@ public class TiledWMSLayer extends BasicTiledImageLayer //extends TiledImageLaye
 	static public final String FMT_GIF = "image/gif";
 	static public final String FMT_JPG = "image/jpg";
 	
+	// Queue tiles for the predicted view (see MotionPrefetcher)?
+	private boolean prefetchEnabled = true;
+	
+	// Tiles queued for prefetch (true) or known to be on disk (false) by path
+	private final ConcurrentHashMap<String, Boolean> prefetchTiles = new ConcurrentHashMap<String, Boolean>();
+	
+	static final int MAX_PREFETCH_PER_FRAME = 4;
+	static final int PREFETCH_RANGE = 2;
+	static final int MAX_PREFETCH_TILES = 4096;
+	
 	public TiledWMSLayer (TiledWMSLayerDescriptor descriptor)
 	{
         super(makeLevels(descriptor, new WMSURLBuilder()));
@@ -90,7 +114,10 @@ public class TiledWMSLayer extends BasicTiledImageLayer //extends TiledImageLaye
         params.setValue(AVKey.DATA_CACHE_NAME, service.getCacheName());
         params.setValue(AVKey.SERVICE, service.getServiceUrl());
         params.setValue(AVKey.DATASET_NAME, service.getLayerName());
-        params.setValue(AVKey.FORMAT_SUFFIX, service.getFormat().replaceAll("image/", "."));
+        // DDS tiles are transcoded on download (see TextureTranscoder)
+        params.setValue(AVKey.FORMAT_SUFFIX, TextureTranscoder.isEnabled() 
+        		? TextureTranscoder.SUFFIX 
+        		: service.getFormat().replaceAll("image/", "."));
         params.setValue(AVKey.NUM_LEVELS, service.getLevels());
         params.setValue(AVKey.NUM_EMPTY_LEVELS, 0);
         params.setValue(AVKey.LEVEL_ZERO_TILE_DELTA, new LatLon(Angle.fromDegrees(36d), Angle.fromDegrees(36d)));
@@ -158,6 +185,206 @@ public class TiledWMSLayer extends BasicTiledImageLayer //extends TiledImageLaye
         }
     }
 
+    @Override
+    public void render(DrawContext dc) 
+    {
+    	super.render(dc);
+    	
+    	if ( isEnabled() && prefetchEnabled )
+    		prefetchTiles(dc);
+    }
+    
+    /**
+     * Queue low priority downloads for the tiles around the predicted eye 
+     * position, at the level matching the predicted altitude. Limited by 
+     * the {@link MotionPrefetcher} bandwidth budget. Tiles are saved where
+     * {@link BasicTiledImageLayer} looks for them.
+     * @param dc
+     */
+    protected void prefetchTiles (DrawContext dc)
+    {
+		final MotionPrefetcher prefetcher = MotionPrefetcher.getInstance();
+		prefetcher.update(dc);
+		
+		final Sector predicted 	= prefetcher.getPredictedSector();
+		final Position eye 		= prefetcher.getPredictedEye();
+		final Sector visible 	= dc.getVisibleSector();
+		final Sector bounds 	= getLevels().getSector();
+		
+		if ( predicted == null || eye == null || !predicted.intersects(bounds)) 
+			return;
+		
+		final Level level = computePrefetchLevel(dc, eye.getElevation());
+		
+		if ( level == null ) 
+			return;
+		
+		if ( prefetchTiles.size() > MAX_PREFETCH_TILES )
+			prefetchTiles.clear();
+		
+		final Angle dLat 	= level.getTileDelta().getLatitude();
+		final Angle dLon 	= level.getTileDelta().getLongitude();
+		final int eyeRow 	= Tile.computeRow(dLat, eye.getLatitude());
+		final int eyeCol 	= Tile.computeColumn(dLon, eye.getLongitude());
+		
+		int queued = 0;
+		
+		for (int r = 0; r <= PREFETCH_RANGE; r++) 
+		{
+			for (int row = eyeRow - r; row <= eyeRow + r; row++) 
+			{
+				for (int col = eyeCol - r; col <= eyeCol + r; col++) 
+				{
+					// outer edge of the circle only
+					if ( row != eyeRow - r && row != eyeRow + r && col != eyeCol - r && col != eyeCol + r)
+						continue;
+					
+					final Sector s = Sector.fromDegrees(-90 + row * dLat.degrees, -90 + (row + 1) * dLat.degrees
+							, -180 + col * dLon.degrees, -180 + (col + 1) * dLon.degrees);
+					
+					// on screen tiles are loaded by the layer
+					if ( ! predicted.intersects(s) || !bounds.intersects(s) 
+							|| (visible != null && visible.intersects(s)) )
+						continue;
+					
+					final TextureTile tile 	= new TextureTile(s, level, row, col);
+					final String path 		= tile.getPath();
+					
+					if ( prefetchTiles.containsKey(path) || getLevels().isResourceAbsent(tile))
+						continue;
+					
+					if ( LayerUtils.findCacheFile(path) != null ) {
+						prefetchTiles.put(path, Boolean.FALSE);
+						continue;
+					}
+					
+					if ( queued >= MAX_PREFETCH_PER_FRAME || !prefetcher.acquire() )
+						return;
+					
+					prefetchTiles.put(path, Boolean.TRUE);
+					
+					boolean submitted = DownloadScheduler.getInstance().submit(
+							new DownloadScheduler.Request(s, level.getLevelNumber(), this, true) 
+					{
+						@Override
+						protected void dropped() {
+							prefetchTiles.remove(path);
+						}
+						
+						@Override
+						public String toString() {
+							return path;
+						}
+						
+						@Override
+						protected URL getURL() {
+							try {
+								return tile.getResourceURL();
+							} catch (MalformedURLException e) {
+								return null;
+							}
+						}
+						
+						public void run() {
+							prefetch(tile);
+						}
+					});
+					
+					if ( ! submitted )
+						prefetchTiles.remove(path);
+					else
+						queued++;
+				}
+			}
+		}
+    }
+    
+    /*
+     * Highest level whose texels are not smaller than a pixel at the 
+     * given altitude
+     */
+    private Level computePrefetchLevel (DrawContext dc, double altitude)
+    {
+    	final double pixelSize 	= dc.getView().computePixelSizeAtDistance(Math.max(altitude, 1));
+    	final double radius 	= dc.getGlobe().getEquatorialRadius();
+    	
+    	Level best = null;
+    	
+    	for (Level level : getLevels().getLevels()) 
+    	{
+    		if ( level.isEmpty() ) continue;
+    		
+    		best = level;
+    		
+    		if ( level.getTexelSize(radius) <= pixelSize )
+    			break;
+    	}
+    	return best;
+    }
+    
+    /*
+     * Download a tile into the file store (download thread). Downloaded to a
+     * temp file: the tile path only gets a verified (& transcoded) image
+     */
+    private void prefetch (TextureTile tile)
+    {
+    	final File file = LayerUtils.getWWFileStore().newFile(tile.getPath());
+    	File tmp 		= null;
+    	
+    	try {
+    		tmp = SimpleHTTPClient.newTempFile(file);
+    		
+    		SimpleHTTPClient client = new SimpleHTTPClient(tile.getResourceURL());
+    		client.setLayer(getName());
+    		client.doGet(new FileOutputStream(tmp));
+    		
+    		final String type = client.getContentType();
+    		client.close();
+    		
+    		if ( client.getStatus() == HttpURLConnection.HTTP_NOT_FOUND )
+    			getLevels().markResourceAbsent(tile);
+    		
+    		// WMS errors come back as XML w/ status 200 
+    		if ( client.getStatus() != HttpURLConnection.HTTP_OK 
+    				|| type == null || !type.contains("image"))
+    		{
+    			logger.debug("Prefetch of " + tile + " failed: " + client.getStatus() + " " + type);
+    		}
+    		else if ( file.getName().endsWith(TextureTranscoder.SUFFIX) )
+    			transcode(tmp, file);
+    		else
+    			SimpleHTTPClient.publish(tmp, file);
+    	} 
+    	catch (Exception e) {
+    		logger.debug("Prefetch of " + tile + " failed: " + e);
+    	}
+    	finally {
+    		if ( tmp != null ) 
+    			tmp.delete();
+    		
+    		prefetchTiles.put(tile.getPath(), Boolean.FALSE);
+    	}
+    }
+    
+    /*
+     * Write a downloaded image as a DDS (levels named .dds)
+     */
+    private static void transcode (File image, File dds) throws IOException 
+    {
+    	final BufferedImage data = ImageIO.read(image);
+    	
+    	if ( data == null || ! TextureTranscoder.transcode(data, dds) )
+    		throw new IOException("Unable to transcode " + image);
+    }
+    
+    /**
+     * Queue tiles ahead of the camera motion (see {@link MotionPrefetcher})
+     * @param enabled
+     */
+    public void setPrefetchEnabled(boolean enabled) {
+    	this.prefetchEnabled = enabled;
+    }
+    
     @Override
     public String toString()
     {
@@ -11,25 +11,31 @@
 package org.eclipse.plugin.worldwind.contrib.layers.quadkey;
 
 import java.io.File;
-import java.net.URL;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.log4j.Logger;
 
+import org.eclipse.plugin.worldwind.contrib.layers.DownloadScheduler;
+import org.eclipse.plugin.worldwind.contrib.layers.MotionPrefetcher;
 import org.eclipse.plugin.worldwind.contrib.layers.ScreenOverlayLayer;
+import org.eclipse.plugin.worldwind.contrib.layers.TextureBudget;
+import org.eclipse.plugin.worldwind.contrib.layers.TextureLoader;
+import org.eclipse.plugin.worldwind.contrib.layers.TextureTranscoder;
 import org.eclipse.plugin.worldwind.contrib.LayerUtils;
 
+import com.sun.opengl.util.texture.TextureData;
 import com.sun.opengl.util.texture.TextureIO;
 
-import gov.nasa.worldwind.Configuration;
 import gov.nasa.worldwind.WorldWind;
-import gov.nasa.worldwind.avlist.AVKey;
-import gov.nasa.worldwind.cache.BasicMemoryCache;
-import gov.nasa.worldwind.cache.MemoryCache;
 import gov.nasa.worldwind.geom.Angle;
 import gov.nasa.worldwind.geom.Cylinder;
+import gov.nasa.worldwind.geom.Extent;
+import gov.nasa.worldwind.geom.Frustum;
 import gov.nasa.worldwind.geom.Position;
 import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Globe;
 import gov.nasa.worldwind.layers.AbstractLayer;
 import gov.nasa.worldwind.layers.TextureTile;
 import gov.nasa.worldwind.render.DrawContext;
@@ -71,17 +77,108 @@ public abstract class AbstractQuadKeyLayer extends AbstractLayer
 	protected Sector sector;
 	protected String cacheRoot 	= "Earth/";
 	
-	// Used for rendering thread synchronization
-	protected ConcurrentHashMap<String, QuadKeyEarthTile> loadingTiles =
-		new ConcurrentHashMap<String, QuadKeyEarthTile>();
+	// Tiles not yet resident in memory (queued, downloading, failed...) by tile ID. 
+	// Owned by the render thread. Each tile carries its own atomic state.
+	protected LongHashMap<QuadKeyEarthTile> loadingTiles = new LongHashMap<QuadKeyEarthTile>();
+	
+	// Set by other threads to clear the loading tiles on the next frame
+	private volatile boolean resetLoadingTiles;
+	
+	// Frames rendered. Loading tiles not requested for MAX_IDLE_FRAMES are dropped 
+	private int frameCount;
+	static final int MAX_IDLE_FRAMES = 120;
+	
+	// Geometry of recently rendered tiles by tile ID (render thread)
+	private final LongHashMap<TileBounds> tileBounds = new LongHashMap<TileBounds>(1024);
+	static final int MAX_TILE_BOUNDS = 4096;
+	
+	// Ancestor textures drawn for tiles not yet in memory, by tile ID (render thread)
+	private final LongHashMap<TextureTile> fallbackTiles = new LongHashMap<TextureTile>(256);
+	
+	// Tiles (IDs) to render in the current frame & their opacity (< 1 while fading in)
+	protected long[] visibleTiles = new long[64];
+	protected double[] visibleOpacity = new double[64];
+	protected int visibleCount;
+	
+	// Tiles of the previous level drawn under the cross-fades (render thread)
+	protected long[] pinnedTiles = new long[16];
+	protected int pinnedCount;
+	
+	// Tiles split & tiles drawn in the last/current frame (render thread)
+	private LongHashMap<Boolean> splitTiles 	= new LongHashMap<Boolean>(256);
+	private LongHashMap<Boolean> leafTiles 		= new LongHashMap<Boolean>(256);
+	private LongHashMap<Boolean> nextSplitTiles = new LongHashMap<Boolean>(256);
+	private LongHashMap<Boolean> nextLeafTiles 	= new LongHashMap<Boolean>(256);
+	
+	// Level switches waiting for the new level to load: tile ID -> start time (ms)
+	private final LongHashMap<Long> pendingSwitches = new LongHashMap<Long>();
+	
+	// Level switches being cross-faded by tile ID (render thread)
+	private final LongHashMap<LevelFade> levelFades = new LongHashMap<LevelFade>();
+	
+	// Time of the current frame (ms)
+	private long frameTime;
+	
+	// Latitudes of the tile row edges by zoom level (shared by all layers)
+	private static final AtomicReferenceArray<double[]> rowLatitudes = new AtomicReferenceArray<double[]>(24);
 	
 	/*
 	 * Abstract subs: implemented by subclasses
 	 */
 	abstract protected Box QuadKeyToBox(String quadKey, int x, int y, int zoomLevel);
 	abstract protected String TileToQuadKey(int tx, int ty, int zl);
-	abstract protected void renderNeighbor(int tileX, int tileY, int zoomLevel, DrawContext dc);
 	abstract protected String buildRequestUrl(String quadKey, String mapType, String mapExtension);
+	
+	/** @return file name of a tile, relative to the cache root */
+	abstract protected String buildTileKey(int tileX, int tileY, int zoomLevel);
+	
+	/** @return image URL of a tile */
+	abstract protected String buildTileUrl(int tileX, int tileY, int zoomLevel);
+	
+	/**
+	 * Inverse of {@link #buildTileKey(int, int, int)}. Used to migrate tiles
+	 * stored one file per tile into a {@link PackedTileStore}.
+	 * @param fileName tile file name
+	 * @return packed tile ID or -1 if not a tile of this layer (map type)
+	 */
+	protected long parseTileKey(String fileName) {
+		return -1;
+	}
+	
+	/**
+	 * Cross-fade of a level switch: the tiles of the old level are drawn
+	 * under the new level while it fades in.
+	 */
+	static class LevelFade
+	{
+		final long start;
+		final long[] oldTiles;
+		
+		LevelFade(long start, long[] oldTiles) {
+			this.start 		= start;
+			this.oldTiles 	= oldTiles;
+		}
+	}
+	
+	/**
+	 * Cached tile geometry
+	 */
+	static class TileBounds
+	{
+		final Sector sector;
+		
+		// Mercator texel size (meters) at the tile center (256 px tiles)
+		double texelSize;
+		
+		// bounding volume for the globe & exaggeration it was computed for
+		Extent extent;
+		Globe globe;
+		double verticalExaggeration;
+		
+		TileBounds(Sector sector) {
+			this.sector = sector;
+		}
+	}
 
 	// draw bounding cylinders around a tile?
     private boolean drawBoundingVolumes = false;
@@ -91,6 +188,67 @@ public abstract class AbstractQuadKeyLayer extends AbstractLayer
     
     protected Angle trueViewRange; 
 
+    // Tiles w/o Expires or max-age are revalidated after this many ms (default 30 days)
+    protected long tileTimeToLive = 30L * 24 * 3600 * 1000;
+
+    // Tiles whose texels cover more than this many screen pixels are split
+    protected double maxScreenSpaceError = 1.5;
+    
+    // Max # of tiles rendered per frame (nearest to the eye first)
+    protected int maxVisibleTiles = 256;
+    
+    // Levels above the eye zoom where the visible tile search starts 
+    static final int SEARCH_LEVELS = 2;
+    
+    // Hysteresis of the level selection (fraction of a level): a tile (or 
+    // the eye zoom) keeps its level until the error crosses the threshold 
+    // by this much
+    protected double lodHysteresis = 0.25;
+    
+    // Cross-fade time of a level switch (ms)
+    protected long fadeTime = 300;
+    
+    // A level switch waits until 3 of 4 children (or the parent) are 
+    // resident or this many ms
+    static final int MIN_RESIDENT_CHILDREN = 3;
+    static final long MAX_PIN_TIME = 2000;
+    
+    // Level switches: total & per minute (last full minute)
+    private volatile long levelSwitches;
+    private long switchWindowStart;
+    private int switchWindowCount;
+    private volatile double switchRate;
+    
+    // Queue tiles for the predicted view (see MotionPrefetcher)?
+    protected boolean prefetchEnabled = true;
+    
+    // Max # of tiles queued for prefetch per frame & search range (tiles) 
+    // around the predicted eye tile
+    static final int MAX_PREFETCH_PER_FRAME = 8;
+    static final int PREFETCH_RANGE = 3;
+    
+    // Prefetch candidates already seen by tile ID: queued (true), on disk or 
+    // not downloadable (false). Kept apart from the loading tiles (render thread)
+    private final LongHashMap<Boolean> prefetchTiles = new LongHashMap<Boolean>(256);
+    static final int MAX_PREFETCH_TILES = 4096;
+    
+    // Decoded textures uploaded per frame (render thread)
+    protected final TextureLoader.UploadBudget uploadBudget = new TextureLoader.UploadBudget();
+    
+    // Frame & render pass times
+    private final TextureLoader.FrameTimer frameTimer = new TextureLoader.FrameTimer();
+    
+    // Mercator latitude limit
+    static final double MAX_LATITUDE = 85.05112878;
+    
+    // Store tiles in packed archives instead of one file per tile? (see PackedTileStore)
+    public static final String PACKED_TILES_PROPERTY = "worldwind.tiles.packed";
+    protected boolean packedTiles = Boolean.getBoolean(PACKED_TILES_PROPERTY);
+    
+    // Disk storage of the tiles: set by the user or created for the map type 
+    private volatile TileStore userTileStore;
+    private volatile TileStore tileStore;
+
 	/**
 	 * Constructor
 	 * @param name Layer name
@@ -102,51 +260,52 @@ public abstract class AbstractQuadKeyLayer extends AbstractLayer
 	}
 	
 	/**
-	 * initMemoryCache 
+	 * initMemoryCache: the tile cache is charged against the global 
+	 * {@link TextureBudget}
 	 */
 	private void initMemoryCache (String name) 
 	{
-        if (!WorldWind.getMemoryCacheSet().containsCache(name))
-        {
-            long size = Configuration.getLongValue(AVKey.TEXTURE_IMAGE_CACHE_SIZE, 4000000L);
-            
-            MemoryCache cache = new BasicMemoryCache((long) (0.9 * size), size * 3);
-            cache.setName(name + " Texture Tiles");
-            WorldWind.getMemoryCacheSet().addCache(name, cache);
-            
-            logger.debug("Initialized memory cache: " + cache);
-        }
+		TextureBudget.getInstance().createCache(name, name + " Texture Tiles");
 	}
 	
 	/**
-	 * Tile memory caching operations
-	 * @param tileKey
+	 * Tile memory caching operations. The WW memory cache takes object keys: 
+	 * tile IDs are boxed.
+	 * @param tileId
 	 * @return
 	 */
-	protected TextureTile getTileFromMemoryCache(String tileKey) 
+	protected TextureTile getTileFromMemoryCache(long tileId) 
     {
-    	TextureTile tile = (TextureTile) WorldWind.getMemoryCache(getName()).getObject(tileKey);
+    	TextureTile tile = (TextureTile) WorldWind.getMemoryCache(getName()).getObject(Long.valueOf(tileId));
     	return tile;
     }
     
-    protected boolean isTileInMemory (String tileKey) {
-    	boolean bool = WorldWind.getMemoryCache(getName()).contains(tileKey);
+    protected boolean isTileInMemory (long tileId) {
+    	boolean bool = WorldWind.getMemoryCache(getName()).contains(Long.valueOf(tileId));
     	return bool;
     }
 
-    protected void addTileToMemoryCache(String tileKey, TextureTile tile)   
+    protected void addTileToMemoryCache(long tileId, TextureTile tile)   
     {
-        if (getTileFromMemoryCache(tileKey) == null ) { 
+        if (getTileFromMemoryCache(tileId) == null ) { 
         	//logger.debug("Adding tile " + tile + " key=" + tileKey + " to memory cache.");
-            WorldWind.getMemoryCache(getName()).add(tileKey, tile);
+            WorldWind.getMemoryCache(getName()).add(Long.valueOf(tileId), tile);
         }
     }
+    
+    /**
+     * Drop the tiles being loaded (on the next frame). Safe from any thread.
+     */
+    protected void clearLoadingTiles() {
+    	resetLoadingTiles = true;
+    }
 	
     /**
-     * Compute sector/quad key for the eye point
+     * Compute zoom level, tile & sector for the eye point
      * @param dc
+     * @return false if the zoom is outside the layer's min/max zoom
      */
-	protected String computeSectors(DrawContext dc) 
+	protected boolean computeSectors(DrawContext dc) 
 	{
 		BasicOrbitView view = (BasicOrbitView)dc.getView(); 
 	
@@ -154,22 +313,14 @@ public abstract class AbstractQuadKeyLayer extends AbstractLayer
 		Position eyePoint 	= view.getEyePosition();
 		
 		double altitude 	= eyePoint.getElevation();
-		double factor 		= altitude / earthRadius;
-		double distance 	= altitude; //getAltitude();
-	
 		
-		// calculate the true view range for the eye pos
-		if ( factor < 1 )
-			trueViewRange = Angle.fromRadians(Math.abs(Math.asin((distance) / earthRadius))*2);
-		else
-			trueViewRange = Angle.fromRadians(Math.PI);
-		
-		// Get the zoom level 
-		zoomLevel =  GetZoomLevelByTrueViewRange(trueViewRange.degrees);
+		// calculate the true view range & zoom level for the eye pos
+		trueViewRange 	= computeTrueViewRange(altitude);
+		zoomLevel 		= selectZoomLevel(trueViewRange.degrees);
 
 		// return if not at the min display zoom level
 		if ( zoomLevel < minZoomLevel || zoomLevel > maxZoomLevel) 
-			return null;
+			return false;
 		
 		/**
 		 * Compute the quadkey for the eye point
@@ -188,133 +339,833 @@ public abstract class AbstractQuadKeyLayer extends AbstractLayer
 		tileX = meterX / imageSize;
 		tileY = meterY / imageSize;
 
-		final String quadKey = TileToQuadKey(tileX, tileY, zoomLevel);
-
 		// tile sector
-		sector = QuadKeyToSector(quadKey);
+		sector = getTileBounds(TileId.pack(zoomLevel, tileX, tileY)).sector;
 		
-		logger.debug("Zoom=" + zoomLevel + " Quadkey=" + quadKey
+		if ( logger.isDebugEnabled() )
+			logger.debug("Zoom=" + zoomLevel + " Tile=" + tileX + "," + tileY
 				+ " tile sector=" + sector
 				+ " altitude=" + altitude + " eye point=" + eyePoint 
 				+ " trueViewRange=" + trueViewRange  
 				+ " lat=" + lat 
 				+ " lon=" + lon );
 		
-		return quadKey;
+		return true;
 	}
 
+	/**
+	 * Zoom level for the true view range w/ hysteresis: the current level 
+	 * is kept while within {@link #lodHysteresis} of a level of the range, 
+	 * so the eye hovering at a level boundary does not flip levels.
+	 * @param trueViewRange degrees
+	 * @return zoom level
+	 */
+	protected int selectZoomLevel (double trueViewRange)
+	{
+		final int level = GetZoomLevelByTrueViewRange(trueViewRange);
+		
+		if ( zoomLevel == 0 || level == zoomLevel )
+			return level;
+		
+		final double f 	= Math.pow(2, lodHysteresis);
+		final int lo 	= GetZoomLevelByTrueViewRange(trueViewRange * f);
+		final int hi 	= GetZoomLevelByTrueViewRange(trueViewRange / f);
+		
+		return zoomLevel >= lo && zoomLevel <= hi ? zoomLevel : level;
+	}
+	
+	/**
+	 * True view range for an eye altitude
+	 * @param altitude meters
+	 * @return
+	 */
+	protected Angle computeTrueViewRange (double altitude) 
+	{
+		double factor 		= altitude / earthRadius;
+		double distance 	= altitude; //getAltitude();
+		
+		if ( factor < 1 )
+			return Angle.fromRadians(Math.abs(Math.asin((distance) / earthRadius))*2);
+		else
+			return Angle.fromRadians(Math.PI);
+	}
+	
+	@Override
+	public void render(DrawContext dc) 
+	{
+		frameTimer.begin();
+		try {
+			super.render(dc);
+		}
+		finally {
+			frameTimer.end();
+		}
+	}
+	
     /**
      * Render tiles
      * @param dc
      */
 	protected void doRenderTiles(DrawContext dc) 
 	{
-		final String quadKey = computeSectors(dc);
+		// re-prioritize queued downloads for the current view
+		DownloadScheduler.getInstance().updateView(dc);
+		
+		// visible: keep a larger share of the texture budget
+		TextureBudget.getInstance().touch(getName());
+		TextureTranscoder.checkSupport(dc.getGL());
+		
+		beginFrame();
 		
 		// return if not at the min display zoom level
-		if ( quadKey == null ) return;
+		if ( ! computeSectors(dc) ) return;
 		
 
 		// Render logo (lower left)
 		if ( logo != null)
 			logo.drawIcon(dc);
 		
-		// build tile URL
-        String url = buildRequestUrl(quadKey, getMapType(), mapExtension);
+        // no frustum: render center (eye) tile & 3 circles around it 
+        if ( dc.getVisibleSector() == null ) {
+    		renderTile(dc, TileId.pack(zoomLevel, tileX, tileY));
 
-        // render center (eye) tile
-		renderTile(dc, mapType + quadKey + mapExtension, url, sector);
+    		renderNeighborTiles(tileY, tileX, zoomLevel, dc, 1);
+    		renderNeighborTiles(tileY, tileX, zoomLevel, dc, 2);
+    		renderNeighborTiles(tileY, tileX, zoomLevel, dc, 3);
+    		return;
+        }
+        
+        renderVisibleTiles(dc, computeVisibleTiles(dc));
+		
+		prefetchTiles(dc);
+	}
+	
+	/**
+	 * Render the tiles of {@link #computeVisibleTiles(DrawContext)}: the 
+	 * pinned tiles of the previous levels first, then the visible tiles 
+	 * (fading in over them).
+	 * @param dc
+	 * @param count # of visible tiles
+	 */
+	protected void renderVisibleTiles (DrawContext dc, int count)
+	{
+		for (int i = 0; i < pinnedCount; i++) {
+			final TextureTile tile = getTileFromMemoryCache(pinnedTiles[i]);
+			
+			if ( tile != null && tile.isTextureInMemory(dc.getTextureCache()) )
+				dc.getGeographicSurfaceTileRenderer().renderTile(dc, tile);
+		}
+		
+		for (int i = 0; i < count; i++) 
+			renderTile(dc, visibleTiles[i], visibleOpacity[i]);
+	}
+	
+	/**
+	 * Queue low priority downloads for the tiles around the predicted eye
+	 * position (where the camera is heading to) at the predicted zoom. 
+	 * Tiles already visible, in memory or known to the layer are skipped. 
+	 * Limited by the {@link MotionPrefetcher} bandwidth budget.
+	 * @param dc
+	 */
+	protected void prefetchTiles (DrawContext dc)
+	{
+		if ( ! prefetchEnabled ) return;
+		
+		final MotionPrefetcher prefetcher = MotionPrefetcher.getInstance();
+		prefetcher.update(dc);
+		
+		final Sector predicted 	= prefetcher.getPredictedSector();
+		final Position eye 		= prefetcher.getPredictedEye();
+		final Sector visible 	= dc.getVisibleSector();
+		
+		if ( predicted == null || eye == null ) 
+			return;
+		
+		final int zoom = GetZoomLevelByTrueViewRange(computeTrueViewRange(eye.getElevation()).degrees);
+		
+		if ( zoom < minZoomLevel || zoom > maxZoomLevel) 
+			return;
+		
+		if ( prefetchTiles.size() > MAX_PREFETCH_TILES )
+			prefetchTiles.clear();
+		
+		final int max 		= (1 << zoom) - 1;
+		final int eyeCol 	= clamp(LongitudeToXAtZoom(eye.getLongitude().degrees, zoom) / 256, max);
+		final int eyeRow 	= clamp(LatitudeToYAtZoom(
+				Math.max(Math.min(eye.getLatitude().degrees, MAX_LATITUDE), -MAX_LATITUDE), zoom) / 256, max);
+		
+		int queued = 0;
+		
+		for (int r = 0; r <= PREFETCH_RANGE; r++) 
+		{
+			for (int row = Math.max(eyeRow - r, 0); row <= Math.min(eyeRow + r, max); row++) 
+			{
+				for (int col = Math.max(eyeCol - r, 0); col <= Math.min(eyeCol + r, max); col++) 
+				{
+					// outer edge of the circle only
+					if ( row != eyeRow - r && row != eyeRow + r && col != eyeCol - r && col != eyeCol + r)
+						continue;
+					
+					final long tileId 	= TileId.pack(zoom, col, row);
+					final Sector s 		= getTileBounds(tileId).sector;
+					
+					// on screen tiles are loaded by renderTile 
+					if ( ! predicted.intersects(s) || (visible != null && visible.intersects(s)) )
+						continue;
+					
+					if ( prefetchTiles.containsKey(tileId) || loadingTiles.containsKey(tileId) 
+							|| isTileInMemory(tileId) )
+						continue;
+					
+					QuadKeyEarthTile quadTile = new QuadKeyEarthTile(tileId, buildTileKey(col, row, zoom)
+							, buildTileUrl(col, row, zoom), getTileStore(), getName());
+					
+					// on disk (or failed recently): remember it, renderTile loads it when visible
+					if ( quadTile.isStored() || !quadTile.canDownload() ) {
+						prefetchTiles.put(tileId, Boolean.FALSE);
+						continue;
+					}
+					
+					// try again on a later frame
+					if ( queued >= MAX_PREFETCH_PER_FRAME || !prefetcher.acquire() ) 
+						return;
+					
+					// the download in flight is picked up by renderTile
+					prefetchTiles.put(tileId, Boolean.TRUE);
+					loadingTiles.put(tileId, quadTile);
+					quadTile.setLastFrame(frameCount);
+					
+					quadTile.download(s, zoom, this, true);
+					queued++;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Per frame housekeeping of the render thread structures
+	 */
+	protected void beginFrame() 
+	{
+		uploadBudget.reset();
+		
+		if ( resetLoadingTiles ) {
+			resetLoadingTiles = false;
+			loadingTiles.clear();
+			prefetchTiles.clear();
+		}
+		
+		if ( ++frameCount % MAX_IDLE_FRAMES == 0 )
+			pruneLoadingTiles();
+		
+		if ( tileBounds.size() > MAX_TILE_BOUNDS )
+			tileBounds.clear();
+		
+		if ( fallbackTiles.size() > MAX_TILE_BOUNDS )
+			fallbackTiles.clear();
+		
+		// switches of tiles no longer visible
+		if ( pendingSwitches.size() > MAX_TILE_BOUNDS )
+			pendingSwitches.clear();
+		
+		if ( levelFades.size() > MAX_TILE_BOUNDS )
+			levelFades.clear();
+	}
+	
+	/**
+	 * Drop the loading tiles not requested in the last {@link #MAX_IDLE_FRAMES}
+	 * frames (scrolled out of view). Decoded images waiting for the upload are
+	 * released. Downloads in flight still land on disk.
+	 */
+	private void pruneLoadingTiles ()
+	{
+		for (long tileId : loadingTiles.keys()) 
+		{
+			final QuadKeyEarthTile quadTile = loadingTiles.get(tileId);
+			
+			if ( frameCount - quadTile.getLastFrame() > MAX_IDLE_FRAMES ) {
+				quadTile.release();
+				loadingTiles.remove(tileId);
+			}
+		}
+	}
+	
+	/**
+	 * Compute the tiles to render for the current view. The visible sector 
+	 * footprint is scanned a few levels above the eye zoom, in circles 
+	 * outwards from the eye tile. Tiles outside the view frustum are culled, 
+	 * the others are split until their screen space error (texel size / 
+	 * pixel size) is below {@link #maxScreenSpaceError} or the max zoom 
+	 * is reached. Thus near tiles get more detail than tiles on the horizon.
+	 * Level switches use hysteresis, wait for the new level to load & 
+	 * cross-fade (see {@link #switchLevel(DrawContext, long, boolean)}).
+	 * Must be called after {@link #computeSectors(DrawContext)}.
+	 * @param dc
+	 * @return # of tiles stored in {@link #visibleTiles} (packed IDs)
+	 */
+	protected int computeVisibleTiles (DrawContext dc)
+	{
+		final Sector visible 	= dc.getVisibleSector();
+		visibleCount 			= 0;
+		pinnedCount 			= 0;
+		frameTime 				= System.currentTimeMillis();
+		
+		if ( visible == null ) 
+			return 0;
+		
+		updateSwitchRate();
+		
+		// this frame's split & drawn tiles
+		LongHashMap<Boolean> t = splitTiles;
+		splitTiles 		= nextSplitTiles;
+		nextSplitTiles 	= t;
+		nextSplitTiles.clear();
+		
+		t 				= leafTiles;
+		leafTiles 		= nextLeafTiles;
+		nextLeafTiles 	= t;
+		nextLeafTiles.clear();
+		
+		final int base 	= Math.max(minZoomLevel, zoomLevel - SEARCH_LEVELS);
+		final int max 	= (1 << base) - 1;
+		
+		// footprint at the base level (rows grow southwards)
+		final int minCol = clamp(LongitudeToXAtZoom(visible.getMinLongitude().degrees, base) / 256, max);
+		final int maxCol = clamp(LongitudeToXAtZoom(visible.getMaxLongitude().degrees, base) / 256, max);
+		final int minRow = clamp(LatitudeToYAtZoom(
+				Math.min(visible.getMaxLatitude().degrees, MAX_LATITUDE), base) / 256, max);
+		final int maxRow = clamp(LatitudeToYAtZoom(
+				Math.max(visible.getMinLatitude().degrees, -MAX_LATITUDE), base) / 256, max);
+
+		// eye tile at the base level
+		final int eyeCol = clamp(tileX >> (zoomLevel - base), max);
+		final int eyeRow = clamp(tileY >> (zoomLevel - base), max);
+		
+		final int range = Math.max(Math.max(eyeCol - minCol, maxCol - eyeCol)
+				, Math.max(eyeRow - minRow, maxRow - eyeRow));
+		
+		final Frustum frustum 	= dc.getView().getFrustumInModelCoordinates();
+		final Vec4 eye 			= dc.getView().getEyePoint();
+		
+		for (int r = 0; r <= range && visibleCount < maxVisibleTiles; r++) 
+		{
+			for (int row = eyeRow - r; row <= eyeRow + r; row++) 
+			{
+				for (int col = eyeCol - r; col <= eyeCol + r; col++) 
+				{
+					// outer edge of the circle only, within the footprint
+					if ( row != eyeRow - r && row != eyeRow + r && col != eyeCol - r && col != eyeCol + r)
+						continue;
+					
+					if ( row < minRow || row > maxRow || col < minCol || col > maxCol)
+						continue;
 
-		// Render other tiles outwards in surrounding circles
-		renderNeighborTiles(tileY, tileX, zoomLevel, dc, 1);
-		renderNeighborTiles(tileY, tileX, zoomLevel, dc, 2);
-		renderNeighborTiles(tileY, tileX, zoomLevel, dc, 3);
-//		for (int i = 1; i <= zoomLevel; i++) {
-//			renderNeighborTiles(tileY, tileX, zoomLevel, dc, i);
-//		}
+					addVisibleTiles(dc, frustum, eye, visible, TileId.pack(base, col, row), 1);
+				}
+			}
+		}
+		return visibleCount;
+	}
+	
+	/*
+	 * Add a tile or its visible descendants
+	 */
+	private void addVisibleTiles (DrawContext dc, Frustum frustum, Vec4 eye, Sector visible
+			, long tileId, double opacity)
+	{
+		if ( visibleCount >= maxVisibleTiles )
+			return;
+		
+		final TileBounds bounds = getTileBounds(tileId);
+		
+		if ( ! visible.intersects(bounds.sector) ) 
+			return;
+		
+		final Extent extent = getExtent(dc, bounds);
+		
+		if ( ! frustum.intersects(extent) )
+			return;
+		
+		// a level switch fading in: draw the old level underneath
+		final LevelFade fade = levelFades.isEmpty() ? null : levelFades.get(tileId);
+		
+		if ( fade != null ) {
+			final double t = (frameTime - fade.start) / (double)fadeTime;
+			
+			if ( t >= 1 )
+				levelFades.remove(tileId);
+			else {
+				opacity *= t;
+				
+				for (long id : fade.oldTiles)
+					addPinnedTile(id);
+			}
+		}
+		
+		final boolean wasSplit 	= splitTiles.containsKey(tileId);
+		final boolean known 	= wasSplit || leafTiles.containsKey(tileId);
+		
+		// hysteresis: the threshold moves away from the current level
+		final double threshold = ! known ? maxScreenSpaceError 
+				: maxScreenSpaceError * Math.pow(2, wasSplit ? -lodHysteresis : lodHysteresis);
+		
+		boolean split = TileId.getZoom(tileId) < maxZoomLevel 
+			&& computeScreenSpaceError(dc, eye, bounds, extent) > threshold;
+		
+		if ( known && split != wasSplit )
+			split = switchLevel(dc, tileId, split);
+		else if ( ! pendingSwitches.isEmpty() )
+			pendingSwitches.remove(tileId);
+		
+		if ( split ) {
+			nextSplitTiles.put(tileId, Boolean.TRUE);
+			
+			for (int i = 0; i < 4; i++) 
+				addVisibleTiles(dc, frustum, eye, visible, TileId.getChild(tileId, i), opacity);
+		}
+		else {
+			nextLeafTiles.put(tileId, Boolean.TRUE);
+			
+			if ( visibleCount == visibleTiles.length ) {
+				long[] tiles = new long[visibleTiles.length * 2];
+				System.arraycopy(visibleTiles, 0, tiles, 0, visibleCount);
+				visibleTiles = tiles;
+				
+				double[] op = new double[tiles.length];
+				System.arraycopy(visibleOpacity, 0, op, 0, visibleCount);
+				visibleOpacity = op;
+			}
+			visibleOpacity[visibleCount] 	= opacity;
+			visibleTiles[visibleCount++] 	= tileId;
+		}
+	}
+	
+	private void addPinnedTile (long tileId)
+	{
+		if ( pinnedCount == pinnedTiles.length ) {
+			long[] tiles = new long[pinnedTiles.length * 2];
+			System.arraycopy(pinnedTiles, 0, tiles, 0, pinnedCount);
+			pinnedTiles = tiles;
+		}
+		pinnedTiles[pinnedCount++] = tileId;
+	}
+	
+	/**
+	 * Switch the level of a tile drawn in the last frame: split it 
+	 * (refine) or draw it instead of its children (merge). The previous 
+	 * level is kept (pinned) until the new one is mostly resident (or 
+	 * {@link #MAX_PIN_TIME}), then the new level fades in over it for 
+	 * {@link #fadeTime} ms.
+	 * @param dc
+	 * @param tileId
+	 * @param split true to refine, false to merge
+	 * @return the split decision for this frame
+	 */
+	protected boolean switchLevel (DrawContext dc, long tileId, boolean split)
+	{
+		Long start = pendingSwitches.get(tileId);
+		
+		if ( start == null ) {
+			start = Long.valueOf(frameTime);
+			pendingSwitches.put(tileId, start);
+		}
+		
+		if ( ! isLevelReady(dc, tileId, split) && frameTime - start.longValue() < MAX_PIN_TIME )
+			return ! split;
+		
+		pendingSwitches.remove(tileId);
+		countLevelSwitch();
+		
+		if ( fadeTime > 0 ) {
+			final long[] oldTiles;
+			
+			if ( split ) 
+				oldTiles = new long[] { tileId };
+			else {
+				// the leaves drawn under the tile in the last frame
+				oldTiles = new long[countLeaves(tileId)];
+				collectLeaves(tileId, oldTiles, 0);
+			}
+			levelFades.put(tileId, new LevelFade(frameTime, oldTiles));
+		}
+		return split;
+	}
+	
+	/*
+	 * Is the new level resident (or failed)? Start loading it if not.
+	 */
+	private boolean isLevelReady (DrawContext dc, long tileId, boolean split)
+	{
+		if ( ! split )
+			return isTileReady(dc, tileId);
+		
+		int ready = 0;
+		
+		for (int i = 0; i < 4; i++) {
+			if ( isTileReady(dc, TileId.getChild(tileId, i)) )
+				ready++;
+		}
+		return ready >= MIN_RESIDENT_CHILDREN;
+	}
+	
+	private boolean isTileReady (DrawContext dc, long tileId)
+	{
+		if ( loadTile(dc, tileId) != null )
+			return true;
+		
+		final QuadKeyEarthTile quadTile = loadingTiles.get(tileId);
+		return quadTile != null && quadTile.getState() == QuadKeyEarthTile.State.FAILED;
+	}
+	
+	/*
+	 * Leaves (drawn tiles) under a tile in the last frame
+	 */
+	private int countLeaves (long tileId)
+	{
+		if ( leafTiles.containsKey(tileId) )
+			return 1;
+		
+		int n = 0;
+		
+		if ( splitTiles.containsKey(tileId) ) {
+			for (int i = 0; i < 4; i++)
+				n += countLeaves(TileId.getChild(tileId, i));
+		}
+		return n;
+	}
+	
+	private int collectLeaves (long tileId, long[] leaves, int n)
+	{
+		if ( leafTiles.containsKey(tileId) )
+			leaves[n++] = tileId;
+		else if ( splitTiles.containsKey(tileId) ) {
+			for (int i = 0; i < 4; i++)
+				n = collectLeaves(TileId.getChild(tileId, i), leaves, n);
+		}
+		return n;
+	}
+	
+	private void countLevelSwitch () {
+		levelSwitches++;
+		switchWindowCount++;
+	}
+	
+	/*
+	 * Level switch rate of the last minute
+	 */
+	private void updateSwitchRate ()
+	{
+		if ( switchWindowStart == 0 )
+			switchWindowStart = frameTime;
+		
+		final long elapsed = frameTime - switchWindowStart;
+		
+		if ( elapsed < 60000 )
+			return;
+		
+		switchRate = switchWindowCount * 60000.0 / elapsed;
+		
+		if ( logger.isDebugEnabled() )
+			logger.debug(getName() + " level switches/min=" + switchRate);
+		
+		switchWindowStart 	= frameTime;
+		switchWindowCount 	= 0;
+	}
+	
+	/**
+	 * Screen space error test: are the tile texels bigger than 
+	 * {@link #maxScreenSpaceError} pixels at the tile's distance from the eye?
+	 */
+	protected boolean needToSplit (DrawContext dc, Vec4 eye, TileBounds bounds, Extent extent) {
+		return computeScreenSpaceError(dc, eye, bounds, extent) > maxScreenSpaceError;
+	}
+	
+	/**
+	 * @return texel size / pixel size at the tile's distance from the eye
+	 */
+	protected double computeScreenSpaceError (DrawContext dc, Vec4 eye, TileBounds bounds, Extent extent) 
+	{
+		final double texelSize 	= bounds.texelSize * dc.getGlobe().getEquatorialRadius();
+		final double distance 	= Math.max(eye.distanceTo3(extent.getCenter()) - extent.getRadius(), 1);
+		final double pixelSize 	= dc.getView().computePixelSizeAtDistance(distance);
+		
+		return texelSize / pixelSize;
+	}
+	
+	/**
+	 * Cached tile geometry. Render thread only.
+	 * @param tileId
+	 * @return
+	 */
+	protected TileBounds getTileBounds (long tileId) 
+	{
+		TileBounds bounds = tileBounds.get(tileId);
+		
+		if ( bounds == null ) {
+			bounds = new TileBounds(TileToSector(TileId.getX(tileId), TileId.getY(tileId), TileId.getZoom(tileId)));
+			
+			// texel size on a unit sphere
+			bounds.texelSize = bounds.sector.getDeltaLonRadians() 
+				* Math.cos(bounds.sector.getCentroid().getLatitude().radians) / 256;
+			
+			tileBounds.put(tileId, bounds);
+		}
+		return bounds;
+	}
+	
+	/*
+	 * Tile bounding volume, recomputed if the globe or exaggeration change
+	 */
+	private static Extent getExtent (DrawContext dc, TileBounds bounds)
+	{
+		if ( bounds.extent == null || bounds.globe != dc.getGlobe() 
+				|| bounds.verticalExaggeration != dc.getVerticalExaggeration()) 
+		{
+			bounds.globe 				= dc.getGlobe();
+			bounds.verticalExaggeration = dc.getVerticalExaggeration();
+			bounds.extent 				= Sector.computeBoundingCylinder(bounds.globe
+					, bounds.verticalExaggeration, bounds.sector);
+		}
+		return bounds.extent;
+	}
+	
+	/*
+	 * Latitudes of the tile row edges at a zoom level. Computed once.
+	 */
+	private double[] getRowLatitudes (int zoom) 
+	{
+		double[] lats = rowLatitudes.get(zoom);
+		
+		if ( lats == null ) {
+			lats = new double[(1 << zoom) + 1];
+			
+			for (int row = 0; row < lats.length; row++) 
+				lats[row] = YToLatitudeAtZoom(row * 256, zoom);
+			
+			rowLatitudes.compareAndSet(zoom, null, lats);
+		}
+		return lats;
+	}
+	
+	private static int clamp (int v, int max) {
+		return v < 0 ? 0 : v > max ? max : v;
+	}
+	
+	/**
+	 * Sector of a tile w/o building its quad key
+	 * @param col tile column
+	 * @param row tile row (0 = north)
+	 * @param zoom
+	 * @return
+	 */
+	public Sector TileToSector (int col, int row, int zoom)
+	{
+		final double[] lats = getRowLatitudes(zoom);
+		
+		return new Sector(Angle.fromDegrees(lats[row + 1])
+				, Angle.fromDegrees(lats[row])
+				, Angle.fromDegrees(XToLongitudeAtZoom(col * 256, zoom))
+				, Angle.fromDegrees(XToLongitudeAtZoom((col + 1) * 256, zoom)));
 	}
     
 	/**
-	 * Render a VE tile at a given sector
+	 * Render a neighbor tile if inside the visible sector
+	 * @param tileX tile column
+	 * @param tileY tile row
+	 * @param zoomLevel
 	 * @param dc
-	 * @param tileKey
-	 * @param tileURL
-	 * @param sector
 	 */
-	protected synchronized void renderTile (DrawContext dc, String tileKey, final String tileURL, Sector sector) 
+	protected void renderNeighbor(int tileX, int tileY, int zoomLevel, DrawContext dc)
+	{
+		final long tileId 		= TileId.pack(zoomLevel, tileX, tileY);
+		final Sector visible 	= dc.getVisibleSector();
+		
+		// no frustum (the only callers): draw the ring
+		if ( visible == null || visible.intersects(getTileBounds(tileId).sector) )
+			renderTile(dc, tileId);
+	}
+	
+	/**
+	 * Render a tile (opaque)
+	 * @param dc
+	 * @param tileId Packed tile ID (see {@link TileId})
+	 */
+	protected void renderTile (DrawContext dc, long tileId) {
+		renderTile(dc, tileId, 1);
+	}
+	
+	/**
+	 * Render a tile. Until a tile is loaded (see {@link #loadTile(DrawContext, long)})
+	 * its nearest ancestor in memory is drawn instead (no holes).
+	 * @param dc
+	 * @param tileId Packed tile ID (see {@link TileId})
+	 * @param opacity < 1 while fading in
+	 */
+	protected void renderTile (DrawContext dc, long tileId, double opacity) 
+	{
+		final Sector sector = getTileBounds(tileId).sector;
+		TextureTile tile 	= loadTile(dc, tileId);
+		
+		// meanwhile draw the parent (or grand parent...) cropped to the sector
+		if ( tile == null ) 
+			tile = getFallbackTile(dc, tileId, sector);
+		
+		if ( tile != null ) {
+			if ( opacity < 1 )
+				dc.getGeographicSurfaceTileRenderer().renderTile(dc, tile, opacity);
+			else
+				dc.getGeographicSurfaceTileRenderer().renderTile(dc, tile); //, getOpacity());
+		}
+		
+		if ( drawBoundingVolumes)
+			drawBoundingVolumes(dc, sector);
+	}
+	
+	/**
+	 * Load a tile. Called from the render thread only, it never blocks: 
+	 * tile state changes made by the download & decode threads are seen thru 
+	 * the tile's atomic {@link QuadKeyEarthTile.State}. Images on disk are
+	 * decoded in the background, the render thread only uploads decoded 
+	 * textures within the per frame {@link #uploadBudget}. Tile key & URL 
+	 * strings are only built for tiles not in memory.
+	 * @param dc
+	 * @param tileId Packed tile ID (see {@link TileId})
+	 * @return the tile or null if not yet in memory
+	 */
+	protected TextureTile loadTile (DrawContext dc, long tileId) 
 	{
-		final String tileCachePath = cacheRoot +  tileKey;
+		QuadKeyEarthTile quadTile = null;
 		
 		try 
 		{
-			QuadKeyEarthTile quadTile = loadingTiles.containsKey(tileKey)
-				? (QuadKeyEarthTile)loadingTiles.get(tileKey)
-				: new QuadKeyEarthTile( tileKey, tileURL, cacheRoot);
+			// single lookup: the cache may evict between contains() & get()
+			TextureTile tile = getTileFromMemoryCache(tileId);
+			
+			if ( tile != null ) 
+				return tile;
+			
+			quadTile = loadingTiles.get(tileId);
+			
+			if ( quadTile == null ) {
+				final int x 	= TileId.getX(tileId);
+				final int y 	= TileId.getY(tileId);
+				final int zoom 	= TileId.getZoom(tileId);
 				
+				quadTile = new QuadKeyEarthTile(tileId, buildTileKey(x, y, zoom)
+						, buildTileUrl(x, y, zoom), getTileStore(), getName());
 				
-			TextureTile tile 		= null;
-			
-			if (quadTile.isLoading()) {
-				return;
+				loadingTiles.put(tileId, quadTile);
 			}
+			quadTile.setLastFrame(frameCount);
+			
+			final TextureData data = quadTile.getState() == QuadKeyEarthTile.State.DECODED
+				? quadTile.getTextureData()
+				: null;
 			
-			if ( isTileInMemory(tileKey)) {
-				tile = getTileFromMemoryCache(tileKey);
+			// decoded: upload (cheap) if the frame budget allows 
+			if ( data != null ) 
+			{
+				if ( uploadBudget.acquire(data.getEstimatedMemorySize()) ) 
+				{
+					tile = new TextureTile(getTileBounds(tileId).sector);
+					tile.setTexture(dc.getTextureCache(), TextureIO.newTexture(data));
+					
+					// save in mem cache
+					addTileToMemoryCache(tileId, tile);
+					
+					quadTile.resident();
+					loadingTiles.remove(tileId);
+					fallbackTiles.remove(tileId);
+					
+					// refresh stale tiles in the background (tiles stored as files)
+					final File file = quadTile.getFile();
+					
+					if ( file != null )
+						quadTile.revalidate(file, WorldWind.getMemoryCache(getName()), tileTimeToLive);
+				}
 			}
-			else {
+			else if ( ! quadTile.isLoading() )
+			{
 				// tile on disk?
 				//URL fileUrl = WorldWind.getDataFileCache().findFile(tileCachePath, false);
-				URL fileUrl = LayerUtils.getWWFileStore().findFile(tileCachePath, false);
-				
-				if ( fileUrl != null) 
+				if ( quadTile.isStored() ) 
 				{
-					logger.debug("Tile from Disk:" + fileUrl);
-					
-					// Yes, load from disk
-					tile = new TextureTile(sector);
-					tile.setTexture(dc.getTextureCache()
-							, TextureIO.newTexture(fileUrl, true, null));
-					
-					// save in mem cache
-					addTileToMemoryCache(tileKey, tile);
+					logger.debug("Tile from Disk:" + quadTile);
 					
-					loadingTiles.remove(tileKey);
+					// Yes, decode in the background (unless claimed by another thread)
+					if ( quadTile.startDecode() ) 
+						quadTile.decode();
 				}
 				else {
 					// No, load from remote url
-					logger.debug("Tile from Remote url:" + tileURL + " Key=" + tileKey);
+					logger.debug("Tile from Remote url:" + quadTile);
 					
-					loadingTiles.put(tileKey, quadTile);
-					
-					quadTile.download();
+					quadTile.download(getTileBounds(tileId).sector, TileId.getZoom(tileId), this);
 				}
 			}
-			
-			if (tile != null)
-				dc.getGeographicSurfaceTileRenderer().renderTile(dc, tile); //, getOpacity());
-			
-			if ( drawBoundingVolumes)
-				drawBoundingVolumes(dc, sector);
+			return tile;
 		} 
 		catch (Exception e) 
 		{
-			logger.error(e + " for tile:" + tileKey);
-			loadingTiles.remove(tileKey);
+			logger.error(e + " for tile:" + TileId.toString(tileId));
+			
+			if ( quadTile == null ) 
+				return null;
+			
+			// Keep the tile (FAILED) w/ a retry backoff, else a bad tile (or host)
+			// is fetched & deleted on every frame
+			quadTile.failed();
+			loadingTiles.put(tileId, quadTile);
 			
 			// delete tile
-			try {
-				URL fileUrl = LayerUtils.getWWFileStore().findFile(tileCachePath, false);
-				
-				if ( fileUrl != null) 
-				{
-					logger.error("Deleting " + fileUrl);
-					new File(fileUrl.toURI()).delete();
-				}
-			} 
-			catch (Exception ex) {}
+			logger.error("Deleting " + quadTile + " from " + quadTile.getStore());
+			quadTile.delete();
+			return null;
 		}
 	}
 
+	/**
+	 * Texture stand-in for a tile not yet in memory: the nearest ancestor
+	 * whose texture is in memory. The WW {@link TextureTile} crops the 
+	 * fallback texture to the tile sector when bound. A coarse tile may 
+	 * cover many pending tiles.
+	 * @param dc
+	 * @param tileId
+	 * @param sector
+	 * @return tile w/ a fallback texture or null if no ancestor is loaded
+	 */
+	protected TextureTile getFallbackTile (DrawContext dc, long tileId, Sector sector)
+	{
+		TextureTile ancestor = null;
+		
+		for (long id = tileId; TileId.getZoom(id) > minZoomLevel && ancestor == null; ) {
+			id = TileId.getParent(id);
+			
+			TextureTile t = getTileFromMemoryCache(id);
+			
+			if ( t != null && t.isTextureInMemory(dc.getTextureCache()))
+				ancestor = t;
+		}
+		
+		if ( ancestor == null ) {
+			fallbackTiles.remove(tileId);
+			return null;
+		}
+		
+		TextureTile tile = fallbackTiles.get(tileId);
+		
+		if ( tile == null ) {
+			tile = new TextureTile(sector);
+			fallbackTiles.put(tileId, tile);
+		}
+		
+		// a finer ancestor may have arrived
+		if ( tile.getFallbackTile() != ancestor ) 
+			tile.setFallbackTile(ancestor);
+		
+		return tile;
+	}
+
 	/**
 	 * drawBoundingVolumes
 	 * @param dc
@@ -519,7 +1370,14 @@ public abstract class AbstractQuadKeyLayer extends AbstractLayer
 	/**
 	 * @param mapType the mapType to set
 	 */
-	public void setMapType(String mapType) {
+	public void setMapType(String mapType) 
+	{
+		// tiles are keyed by ID: drop the tiles of the previous map type
+		if ( this.mapType != null && !this.mapType.equals(mapType) ) {
+			WorldWind.getMemoryCache(getName()).clear();
+			clearLoadingTiles();
+			tileStore = null;
+		}
 		this.mapType = mapType;
 	}
 
@@ -534,4 +1392,166 @@ public abstract class AbstractQuadKeyLayer extends AbstractLayer
 		this.mapExtension = ext;
 	}
 	
+	/**
+	 * Set the time to live of cached tiles with no HTTP expiration info.
+	 * Stale tiles are revalidated w/ a conditional GET when loaded from disk.
+	 * @param millis
+	 */
+	public void setTileTimeToLive(long millis) {
+		this.tileTimeToLive = millis;
+	}
+	
+	/**
+	 * Tiles whose texels are bigger than this many screen pixels are replaced 
+	 * by their 4 children (up to the max zoom). Lower = sharper, more tiles.
+	 * @param pixels
+	 */
+	public void setMaxScreenSpaceError(double pixels) {
+		this.maxScreenSpaceError = pixels;
+	}
+	
+	/**
+	 * @param max Max # of tiles rendered per frame
+	 */
+	public void setMaxVisibleTiles(int max) {
+		this.maxVisibleTiles = max;
+	}
+	
+	/**
+	 * @param levels Hysteresis of the level selection, as a fraction of a 
+	 * level (0 = hard thresholds)
+	 */
+	public void setLodHysteresis(double levels) {
+		this.lodHysteresis = levels;
+	}
+	
+	/**
+	 * @param millis Cross-fade time of a level switch (0 = no fade)
+	 */
+	public void setFadeTime(long millis) {
+		this.fadeTime = millis;
+	}
+	
+	/**
+	 * @return # of tile level switches (split or merge) since the layer was created
+	 */
+	public long getLevelSwitches() {
+		return levelSwitches;
+	}
+	
+	/**
+	 * @return tile level switches per minute (last full minute)
+	 */
+	public double getLevelSwitchesPerMinute() {
+		return switchRate;
+	}
+	
+	/**
+	 * Queue tiles ahead of the camera motion (see {@link MotionPrefetcher})
+	 * @param enabled
+	 */
+	public void setPrefetchEnabled(boolean enabled) {
+		this.prefetchEnabled = enabled;
+	}
+	
+	/**
+	 * @return Disk storage of the tiles of the current map type
+	 */
+	public TileStore getTileStore() 
+	{
+		if ( userTileStore != null )
+			return userTileStore;
+		
+		TileStore store = tileStore;
+		
+		if ( store == null ) 
+			tileStore = store = createTileStore();
+		
+		return store;
+	}
+	
+	/**
+	 * Default tile storage: one file per tile under the cache root or, if 
+	 * {@link #packedTiles}, a {@link PackedTileStore} per map type.
+	 * @return
+	 */
+	protected TileStore createTileStore() 
+	{
+		if ( packedTiles ) {
+			final File dir = getPackedTilesDirectory();
+			
+			try {
+				return PackedTileStore.open(dir);
+			} 
+			catch (IOException e) {
+				logger.error("Unable to open packed tiles " + dir + ": " + e + ". Using files.");
+			}
+		}
+		return new FileTileStore(cacheRoot);
+	}
+	
+	/**
+	 * @return folder of the packed tiles of the current map type: [cache root]packed/[map type]
+	 */
+	protected File getPackedTilesDirectory() {
+		return new File(LayerUtils.getWWFileStore().getWriteLocation()
+				, cacheRoot + "packed/" + (mapType != null ? mapType : "tiles"));
+	}
+	
+	/**
+	 * Plug a custom tile storage
+	 * @param store Tile store or null to use the default 
+	 */
+	public void setTileStore(TileStore store) {
+		userTileStore 	= store;
+		tileStore 		= null;
+		clearLoadingTiles();
+	}
+	
+	/**
+	 * Store tiles in packed archives (see {@link PackedTileStore}) instead 
+	 * of one file per tile. Tiles already downloaded can be imported
+	 * w/ {@link #migrateTiles(boolean)}.
+	 * @param packed
+	 */
+	public void setPackedTiles(boolean packed) {
+		packedTiles = packed;
+		tileStore 	= null;
+		clearLoadingTiles();
+	}
+	
+	/**
+	 * Import the tiles of the current map type stored one file per tile 
+	 * ([cache root][tile key]) into the packed tile store.
+	 * @param deleteFiles Delete the imported tile files
+	 * @return # of tiles imported
+	 * @throws IOException if the tile store is not a {@link PackedTileStore}
+	 */
+	public int migrateTiles(boolean deleteFiles) throws IOException
+	{
+		final TileStore store = getTileStore();
+		
+		if ( !(store instanceof PackedTileStore) )
+			throw new IOException("Not a packed tile store: " + store);
+		
+		final File source = new File(LayerUtils.getWWFileStore().getWriteLocation(), cacheRoot);
+		
+		return ((PackedTileStore)store).importFiles(source, new PackedTileStore.KeyParser() {
+			public long parseTileKey(String fileName) {
+				return AbstractQuadKeyLayer.this.parseTileKey(fileName);
+			}
+		}, deleteFiles);
+	}
+	
+	/**
+	 * Limit the GL texture uploads done per frame. Decoded tiles over the 
+	 * budget are uploaded on the next frames (their ancestor is drawn meanwhile).
+	 * @param maxUploads Max tiles uploaded per frame
+	 * @param maxBytes Max texture bytes uploaded per frame
+	 */
+	public void setUploadBudget(int maxUploads, long maxBytes) {
+		uploadBudget.setMaxUploads(maxUploads);
+		uploadBudget.setMaxBytes(maxBytes);
+	}
+	
 }
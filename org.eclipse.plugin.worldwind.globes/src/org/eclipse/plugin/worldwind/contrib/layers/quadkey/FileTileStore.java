@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers.quadkey;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import org.apache.log4j.Logger;
+
+import org.eclipse.plugin.worldwind.contrib.LayerUtils;
+import org.eclipse.plugin.worldwind.contrib.parsers.CacheMetadata;
+
+/**
+ * One file per tile in the WW file store: [cache root][tile key]. 
+ * The default {@link TileStore}.
+ * 
+ * @author vsilva
+ *
+ */
+public class FileTileStore implements TileStore 
+{
+	private static final Logger logger = Logger.getLogger(FileTileStore.class);
+	
+	private final String cacheRoot;
+	
+	/**
+	 * @param cacheRoot Tile folder in the WW file store (e.g VirtualEarth/)
+	 */
+	public FileTileStore(String cacheRoot) {
+		this.cacheRoot = cacheRoot;
+	}
+
+	private URL find (String tileKey) {
+		return LayerUtils.findCacheFile(cacheRoot + tileKey);
+	}
+	
+	public boolean contains(long tileId, String tileKey) {
+		return find(tileKey) != null;
+	}
+
+	public InputStream openStream(long tileId, String tileKey) throws IOException {
+		final File file = getFile(tileId, tileKey);
+		return file != null ? new FileInputStream(file) : null;
+	}
+
+	public File getFile(long tileId, String tileKey) 
+	{
+		final URL url = find(tileKey);
+		
+		try {
+			return url != null ? new File(url.toURI()) : null;
+		} catch (Exception e) {
+			logger.error("Invalid tile URL " + url + ": " + e);
+			return null;
+		}
+	}
+
+	public File newDownloadFile(long tileId, String tileKey) {
+		return LayerUtils.getWWFileStore().newFile(cacheRoot + tileKey);
+	}
+
+	public void commit(long tileId, String tileKey, File file) {
+		// downloaded in place
+	}
+
+	public void delete(long tileId, String tileKey) 
+	{
+		final File file = getFile(tileId, tileKey);
+		
+		if ( file == null ) return;
+		
+		logger.debug("Deleting " + file);
+		
+		if ( ! LayerUtils.deleteCacheFile(file) )
+			logger.error("Unable to delete " + file);
+		
+		CacheMetadata.delete(file);
+	}
+	
+	public String getCacheRoot() {
+		return cacheRoot;
+	}
+	
+	@Override
+	public String toString() {
+		return "Files:" + cacheRoot;
+	}
+}
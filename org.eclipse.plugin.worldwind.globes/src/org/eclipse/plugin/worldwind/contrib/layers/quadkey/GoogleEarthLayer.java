@@ -11,8 +11,8 @@
 package org.eclipse.plugin.worldwind.contrib.layers.quadkey;
 
 //import org.apache.log4j.Logger;
+import org.eclipse.plugin.worldwind.contrib.layers.DownloadScheduler;
 import org.eclipse.plugin.worldwind.contrib.layers.ScreenOverlayLayer;
-import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.render.DrawContext;
 
 /**
@@ -84,33 +84,22 @@ public class GoogleEarthLayer extends AbstractQuadKeyLayer
 	}
 	
 	
-	/**
-	 * Render a neighbor tile
-	 * @param tileX tile column
-	 * @param tileY tile row
-	 * @param zoomLevel
-	 * @param dc
-	 */
-	protected void renderNeighbor(int tileX, int tileY, int zoomLevel, DrawContext dc)
+	// Tile key: quadKey + mapExtension
+	@Override
+	protected String buildTileKey(int tileX, int tileY, int zoomLevel) {
+		return TileToQuadKey(tileX, tileY, zoomLevel) + mapExtension;
+	}
+	
+	@Override
+	protected long parseTileKey(String fileName) 
 	{
-		String quadKey 		= TileToQuadKey(tileX, tileY, zoomLevel);
-		Sector sector 		= QuadKeyToSector(quadKey);
-		
-		Sector visible		= dc.getVisibleSector();
-		Sector intersection = visible.intersection(sector);
-		
-		boolean insideView = intersection != null;
-
-		// tile outside eye view
-		if ( ! insideView ) 
-			return;
-		
-		
-		String tileURL = buildRequestUrl(quadKey, null, null);
-		
-		// Tile key: quadKey + mapExtension
-		renderTile(dc, quadKey + mapExtension, tileURL, sector);
-
+		final int dot = fileName.lastIndexOf('.');
+		return dot > 0 ? TileId.fromQuadKey(fileName.substring(0, dot), "qrts") : -1;
+	}
+	
+	@Override
+	protected String buildTileUrl(int tileX, int tileY, int zoomLevel) {
+		return buildRequestUrl(TileToQuadKey(tileX, tileY, zoomLevel), null, null);
 	}
 	
 	
@@ -135,7 +124,10 @@ public class GoogleEarthLayer extends AbstractQuadKeyLayer
     public void setEnabled(boolean enabled) 
     {
     	super.setEnabled(enabled);
-    	if ( ! enabled ) loadingTiles.clear();
+    	if ( ! enabled ) {
+    		DownloadScheduler.getInstance().cancel(this);
+    		clearLoadingTiles();
+    	}
     }
     
 	
@@ -1,6 +1,5 @@
 package org.eclipse.plugin.worldwind.contrib.layers.quadkey;
 
-import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.render.DrawContext;
 
 /**
@@ -94,43 +93,59 @@ public class GoogleRoadsLayer extends AbstractQuadKeyLayer
 		
 	}
 	
+	// render road tile (17 = max zoom). Tiles of several levels are 
+	// rendered at once: the zoom is part of the key
 	@Override
-	protected void renderNeighbor(int tileX, int tileY, int zoomLevel,
-			DrawContext dc) 
+	protected String buildTileKey(int tileX, int tileY, int zoomLevel) {
+		return zoomLevel + "." + tileX + "." + tileY + mapExtension;
+	}
+	
+	@Override
+	protected long parseTileKey(String fileName) 
 	{
-		String quadKey 		= TileToQuadKey(tileX, tileY, zoomLevel);
-		Sector sector 		= QuadKeyToSector(quadKey);
-		
-		// return if outside eye view
-		if ( dc.getVisibleSector().intersection(sector) == null )
-			return;
+		// zoom.x.y.ext
+		final String[] tokens = fileName.split("\\.");
 		
-		// render road tile (17 = max zoom)
-		final String mtUrl = buildRoadsTileUrl(tileX, tileY, 17 - zoomLevel);
-		final String mtKey = tileX + "." + tileY + mapExtension;
+		if ( tokens.length != 4 )
+			return -1;
 		
-		renderTile(dc, mtKey , mtUrl, sector);
+		try {
+			return TileId.pack(Integer.parseInt(tokens[0])
+					, Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]));
+		} 
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	@Override
+	protected String buildTileUrl(int tileX, int tileY, int zoomLevel) {
+		return buildRoadsTileUrl(tileX, tileY, 17 - zoomLevel);
 	}
 
 
 	@Override
 	protected void doRender(DrawContext dc) 
 	{
-		final String quadKey = computeSectors(dc);
+		beginFrame();
 		
 		// return if not at the min display zoom level
-		if ( quadKey == null ) return;
+		if ( ! computeSectors(dc) ) return;
 		
-		// render MT (mass transit) tile 
-		final String mtUrl = buildRoadsTileUrl(tileX, tileY, 17 - zoomLevel);
-		final String mtKey = tileX + "." + tileY + mapExtension;
-
-		renderTile(dc, mtKey , mtUrl, sector);
+		// no frustum: render MT (mass transit) tile & 5 circles around it 
+		if ( dc.getVisibleSector() == null ) 
+		{
+			renderTile(dc, TileId.pack(zoomLevel, tileX, tileY));
 
-		// Render other tiles outwards in surrounding circles
-		for (int i = 1; i <= 5; i++) {
-			renderNeighborTiles(tileY, tileX, zoomLevel, dc, i);
+			for (int i = 1; i <= 5; i++) {
+				renderNeighborTiles(tileY, tileX, zoomLevel, dc, i);
+			}
+			return;
 		}
+		
+		renderVisibleTiles(dc, computeVisibleTiles(dc));
+		
+		prefetchTiles(dc);
 	}
 
 }
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers.quadkey;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map w/ primitive long keys (no boxing) and linear
+ * probing. Null values are not allowed. Not thread safe: meant for
+ * structures owned by the render thread.
+ *
+ * @author vsilva
+ *
+ * @param <V> Value type
+ */
+public class LongHashMap<V>
+{
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	private int mask;
+
+	public LongHashMap() {
+		this(64);
+	}
+
+	/**
+	 * @param capacity Initial capacity (rounded up to a power of 2)
+	 */
+	public LongHashMap(int capacity) {
+		int n = 16;
+		while ( n < capacity * 2 ) n <<= 1;
+
+		keys 	= new long[n];
+		values 	= new Object[n];
+		mask 	= n - 1;
+	}
+
+	static int hash (long key) {
+		// murmur3 finalizer
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+	private int indexOf (long key)
+	{
+		int i = hash(key) & mask;
+
+		while ( values[i] != null ) {
+			if ( keys[i] == key )
+				return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get (long key) {
+		final int i = indexOf(key);
+		return i >= 0 ? (V)values[i] : null;
+	}
+
+	public boolean containsKey (long key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * @return previous value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put (long key, V value)
+	{
+		if ( value == null )
+			throw new IllegalArgumentException("Null value for key " + key);
+
+		int i = hash(key) & mask;
+
+		while ( values[i] != null ) {
+			if ( keys[i] == key ) {
+				V old 		= (V)values[i];
+				values[i] 	= value;
+				return old;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] 	= key;
+		values[i] 	= value;
+
+		// keep the load factor <= 0.5
+		if ( ++size * 2 > keys.length )
+			resize(keys.length * 2);
+
+		return null;
+	}
+
+	/**
+	 * @return removed value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove (long key)
+	{
+		int i = indexOf(key);
+
+		if ( i < 0 ) return null;
+
+		final V old = (V)values[i];
+		values[i] 	= null;
+		size--;
+
+		// shift back the entries of the probe sequence
+		int j = i;
+		while ( true ) {
+			j = (j + 1) & mask;
+
+			if ( values[j] == null )
+				break;
+
+			final int home = hash(keys[j]) & mask;
+
+			// entry j may move to i if its home slot is not in (i, j]
+			if ( i <= j ? (home <= i || home > j) : (home <= i && home > j) ) {
+				keys[i] 	= keys[j];
+				values[i] 	= values[j];
+				values[j] 	= null;
+				i = j;
+			}
+		}
+		return old;
+	}
+
+	private void resize (int capacity)
+	{
+		final long[] oldKeys 	= keys;
+		final Object[] oldValues = values;
+
+		keys 	= new long[capacity];
+		values 	= new Object[capacity];
+		mask 	= capacity - 1;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if ( oldValues[i] == null ) continue;
+
+			int j = hash(oldKeys[i]) & mask;
+			while ( values[j] != null ) j = (j + 1) & mask;
+
+			keys[j] 	= oldKeys[i];
+			values[j] 	= oldValues[i];
+		}
+	}
+
+	/**
+	 * @return a copy of the keys (the map can be changed while iterating)
+	 */
+	public long[] keys ()
+	{
+		final long[] copy = new long[size];
+		int n = 0;
+		
+		for (int i = 0; i < values.length; i++)
+			if ( values[i] != null ) 
+				copy[n++] = keys[i];
+		
+		return copy;
+	}
+	
+	public void clear () {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+}
@@ -0,0 +1,984 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers.quadkey;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import org.eclipse.plugin.worldwind.contrib.parsers.CacheMetadata;
+
+/**
+ * Packed {@link TileStore}: tiles are appended to a large archive file
+ * (tiles-[generation].pack) and located thru a memory mapped hash index
+ * keyed by tile ID (index-[generation].idx). Replaces hundreds of thousands
+ * of small files (slow file store lookups & cache scans) by 2 files per
+ * layer/map type.
+ * <pre>
+ * pack record:  tile ID (8) | length (4) | image bytes
+ * index header: magic | capacity | slots used | live tiles | pack generation | - | dead bytes | data length
+ * index slot:   tile ID + 1 (0 = empty) | offset (40 bits) length (24 bits) (0 = deleted)
+ * </pre>
+ * Records are never modified: replaced & deleted tiles become dead bytes,
+ * reclaimed by {@link #compact()} (run in the background when over half the
+ * archive is dead).
+ * Growing the index or compacting writes a new generation, switched to when
+ * complete. Records past the indexed data length (crash after an append) are
+ * recovered on open; a lost index is rebuilt by scanning the archive.
+ *
+ * <p>Thread safe: reads share a read lock, writes are serialized.
+ * Tiles have no HTTP metadata, so they are not revalidated.</p>
+ *
+ * @author vsilva
+ *
+ */
+public class PackedTileStore implements TileStore
+{
+	private static final Logger logger = Logger.getLogger(PackedTileStore.class);
+
+	static final int MAGIC 			= 0x514b5450;
+	static final int HEADER 		= 48;
+	static final int SLOT 			= 16;
+	static final int RECORD_HEADER 	= 12;
+
+	static final int MIN_CAPACITY 	= 4096;
+	static final int MAX_TILE_SIZE 	= (1 << 24) - 1;
+
+	// compact when dead bytes are over this many & this fraction of the archive
+	static final long MIN_COMPACT_BYTES = 32 * 1024 * 1024;
+	static final double COMPACT_RATIO 	= 0.5;
+
+	// compaction: copy the tiles put meanwhile w/o the lock until there are
+	// this few left (or after this many rounds), then switch w/ the lock held
+	static final int CATCH_UP_TILES 		= 16;
+	static final int MAX_CATCH_UP_ROUNDS 	= 8;
+
+	static final String PACK_PREFIX 	= "tiles-";
+	static final String PACK_SUFFIX 	= ".pack";
+	static final String INDEX_PREFIX 	= "index-";
+	static final String INDEX_SUFFIX 	= ".idx";
+
+	// Open stores by folder
+	private static final Map<File, PackedTileStore> stores = new HashMap<File, PackedTileStore>();
+
+	/**
+	 * Parses tile IDs from the file names of the one file per tile layout
+	 */
+	public static interface KeyParser {
+		/**
+		 * @param fileName Tile file name
+		 * @return packed tile ID or -1 if not a tile
+		 */
+		long parseTileKey (String fileName);
+	}
+
+	private final File dir;
+	private final File incoming;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// all guarded by lock
+	private int indexGeneration;
+	private int packGeneration;
+	private FileChannel pack;
+	private MappedByteBuffer index;
+	private int capacity;
+	private int used;
+	private int live;
+	private long deadBytes;
+	private long dataLength;
+
+	// compaction running & the pack generation it writes (-1 = none)
+	private boolean compacting;
+	private int compactGeneration = -1;
+
+	// one compaction at a time
+	private final Object compactLock = new Object();
+
+	private PackedTileStore(File dir) {
+		this.dir 		= dir;
+		this.incoming 	= new File(dir, "incoming");
+	}
+
+	/**
+	 * Open (or create) the store of a folder. One instance per folder.
+	 * @param dir Store folder
+	 * @return
+	 * @throws IOException
+	 */
+	public static PackedTileStore open (File dir) throws IOException
+	{
+		dir = dir.getCanonicalFile();
+
+		synchronized (stores)
+		{
+			PackedTileStore store = stores.get(dir);
+
+			if ( store == null ) {
+				store = new PackedTileStore(dir);
+				store.load();
+				stores.put(dir, store);
+			}
+			return store;
+		}
+	}
+
+	private File packFile (int generation) {
+		return new File(dir, PACK_PREFIX + generation + PACK_SUFFIX);
+	}
+
+	private File indexFile (int generation) {
+		return new File(dir, INDEX_PREFIX + generation + INDEX_SUFFIX);
+	}
+
+	/*
+	 * Highest generation of the files w/ a prefix & suffix or -1
+	 */
+	private int lastGeneration (String prefix, String suffix)
+	{
+		int last = -1;
+		final String[] names = dir.list();
+
+		for (int i = 0; names != null && i < names.length; i++) {
+			if ( ! names[i].startsWith(prefix) || !names[i].endsWith(suffix) )
+				continue;
+			try {
+				last = Math.max(last, Integer.parseInt(
+						names[i].substring(prefix.length(), names[i].length() - suffix.length())));
+			}
+			catch (NumberFormatException e) {
+			}
+		}
+		return last;
+	}
+
+	/*
+	 * Open the last complete index & its archive. Rebuild the index if missing
+	 */
+	private void load () throws IOException
+	{
+		if ( ! dir.exists() && !dir.mkdirs() )
+			throw new IOException("Unable to create " + dir);
+
+		final int lastIndex = lastGeneration(INDEX_PREFIX, INDEX_SUFFIX);
+
+		for (int gen = lastIndex; gen >= 0; gen--) {
+			if ( loadIndex(gen) ) {
+				recover();
+				deleteStaleFiles();
+				logger.debug("Opened " + this);
+				return;
+			}
+		}
+
+		// no index: scan the last archive (if any) into a new one
+		packGeneration 	= Math.max(lastGeneration(PACK_PREFIX, PACK_SUFFIX), 0);
+		pack 			= new RandomAccessFile(packFile(packGeneration), "rw").getChannel();
+
+		newIndex(Math.max(lastIndex + 1, 0), MIN_CAPACITY);
+
+		dataLength = 0;
+		recover();
+
+		index.putInt(0, MAGIC);
+		index.force();
+		deleteStaleFiles();
+
+		logger.debug("Index rebuilt: " + this);
+	}
+
+	/*
+	 * Map an index file. False if incomplete or its archive is missing
+	 */
+	private boolean loadIndex (int gen) throws IOException
+	{
+		final File file = indexFile(gen);
+
+		if ( file.length() < HEADER )
+			return false;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+			final MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+
+			if ( b.getInt(0) != MAGIC || b.limit() != HEADER + (long)b.getInt(4) * SLOT ) {
+				logger.error("Incomplete tile index " + file);
+				return false;
+			}
+
+			final File packFile = packFile(b.getInt(16));
+
+			if ( ! packFile.exists() || packFile.length() < b.getLong(40) ) {
+				logger.error("Missing or truncated tile archive " + packFile);
+				return false;
+			}
+
+			index 			= b;
+			indexGeneration = gen;
+			capacity 		= b.getInt(4);
+			used 			= b.getInt(8);
+			live 			= b.getInt(12);
+			packGeneration 	= b.getInt(16);
+			deadBytes 		= b.getLong(32);
+			dataLength 		= b.getLong(40);
+			pack 			= new RandomAccessFile(packFile, "rw").getChannel();
+			return true;
+		}
+		finally {
+			// the mapping stays valid
+			raf.close();
+		}
+	}
+
+	/*
+	 * Index the records appended after the indexed data length. A partial
+	 * record at the end (crash while appending) is truncated.
+	 */
+	private void recover () throws IOException
+	{
+		final long length 		= pack.size();
+		final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+		long pos 				= dataLength;
+		int n 					= 0;
+
+		while ( pos + RECORD_HEADER <= length )
+		{
+			header.clear();
+			readFully(pack, header, pos);
+
+			final long tileId 	= header.getLong(0);
+			final int size 		= header.getInt(8);
+
+			if ( tileId < 0 || size <= 0 || size > MAX_TILE_SIZE || pos + RECORD_HEADER + size > length )
+				break;
+
+			indexRecord(tileId, pos, size);
+			pos += RECORD_HEADER + size;
+			n++;
+		}
+
+		if ( pos < length ) {
+			logger.error("Truncating " + (length - pos) + " bytes of partial records in " + packFile(packGeneration));
+			pack.truncate(pos);
+		}
+
+		dataLength = pos;
+		writeHeader();
+
+		if ( n > 0 )
+			logger.debug("Recovered " + n + " tiles in " + packFile(packGeneration));
+	}
+
+	/*
+	 * Remove older generations & leftover downloads. Files still mapped by
+	 * this process may not be deleted on some platforms: retried on next open.
+	 */
+	private void deleteStaleFiles ()
+	{
+		final String[] names = dir.list();
+
+		for (int i = 0; names != null && i < names.length; i++)
+		{
+			final String name = names[i];
+
+			if ( (name.startsWith(PACK_PREFIX) && name.endsWith(PACK_SUFFIX)
+						&& !packFile(packGeneration).getName().equals(name)
+						&& !packFile(compactGeneration).getName().equals(name))
+				|| (name.startsWith(INDEX_PREFIX) && name.endsWith(INDEX_SUFFIX)
+						&& !indexFile(indexGeneration).getName().equals(name)) )
+			{
+				if ( ! new File(dir, name).delete() )
+					logger.debug("Unable to delete " + name + " (in use?)");
+			}
+		}
+	}
+
+	/*
+	 * Create & map an empty index of a given generation
+	 */
+	private static MappedByteBuffer createIndex (File file, int capacity) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+			final long length = HEADER + (long)capacity * SLOT;
+
+			raf.setLength(0);
+			raf.setLength(length);
+
+			MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			b.putInt(4, capacity);
+			return b;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Caller writes the magic # once the index is complete
+	 */
+	private void newIndex (int generation, int capacity) throws IOException
+	{
+		index 			= createIndex(indexFile(generation), capacity);
+		indexGeneration = generation;
+		this.capacity 	= capacity;
+		used 			= 0;
+		live 			= 0;
+		deadBytes 		= 0;
+	}
+
+	private void writeHeader ()
+	{
+		index.putInt(4, capacity);
+		index.putInt(8, used);
+		index.putInt(12, live);
+		index.putInt(16, packGeneration);
+		index.putLong(32, deadBytes);
+		index.putLong(40, dataLength);
+	}
+
+	/*
+	 * Slot holding a tile or -(empty slot) - 1
+	 */
+	private static int slotOf (ByteBuffer index, int capacity, long tileId)
+	{
+		final int mask 	= capacity - 1;
+		int i 			= LongHashMap.hash(tileId) & mask;
+
+		while ( true ) {
+			final long key = index.getLong(HEADER + i * SLOT);
+
+			if ( key == 0 )
+				return -i - 1;
+			if ( key == tileId + 1 )
+				return i;
+
+			i = (i + 1) & mask;
+		}
+	}
+
+	private static long value (long offset, int size) {
+		return (offset << 24) | size;
+	}
+
+	/*
+	 * Point a tile to a record. Caller holds the write lock.
+	 */
+	private void indexRecord (long tileId, long offset, int size) throws IOException
+	{
+		// load factor <= 0.5
+		if ( (used + 1) * 2 > capacity )
+			growIndex();
+
+		int slot = slotOf(index, capacity, tileId);
+
+		if ( slot < 0 ) {
+			slot = -slot - 1;
+			index.putLong(HEADER + slot * SLOT, tileId + 1);
+			used++;
+			live++;
+		}
+		else {
+			final long old = index.getLong(HEADER + slot * SLOT + 8);
+
+			if ( old != 0 )
+				deadBytes += RECORD_HEADER + (old & MAX_TILE_SIZE);
+			else
+				live++;
+		}
+		index.putLong(HEADER + slot * SLOT + 8, value(offset, size));
+	}
+
+	/*
+	 * Copy the live tiles to an index twice as big (new generation).
+	 * Deleted slots are dropped.
+	 */
+	private void growIndex () throws IOException
+	{
+		final MappedByteBuffer old 	= index;
+		final int oldCapacity 		= capacity;
+		final int newCapacity 		= live * 4 > oldCapacity ? oldCapacity * 2 : oldCapacity;
+		final long dead 			= deadBytes;
+		final long length 			= dataLength;
+
+		newIndex(indexGeneration + 1, newCapacity);
+		deadBytes 	= dead;
+		dataLength 	= length;
+
+		for (int i = 0; i < oldCapacity; i++)
+		{
+			final long key 		= old.getLong(HEADER + i * SLOT);
+			final long value 	= old.getLong(HEADER + i * SLOT + 8);
+
+			if ( key == 0 || value == 0 )
+				continue;
+
+			final int slot = -slotOf(index, capacity, key - 1) - 1;
+			index.putLong(HEADER + slot * SLOT, key);
+			index.putLong(HEADER + slot * SLOT + 8, value);
+			used++;
+			live++;
+		}
+		writeHeader();
+		index.putInt(0, MAGIC);
+		index.force();
+
+		deleteStaleFiles();
+		logger.debug("Index grown to " + capacity + " slots: " + this);
+	}
+
+	private static void readFully (FileChannel channel, ByteBuffer buf, long pos) throws IOException
+	{
+		while ( buf.hasRemaining() ) {
+			final int n = channel.read(buf, pos);
+
+			if ( n < 0 )
+				throw new IOException("Unexpected end of tile archive at " + pos);
+			pos += n;
+		}
+	}
+
+	/**
+	 * @param tileId
+	 * @return tile image or null if not stored
+	 * @throws IOException
+	 */
+	public byte[] get (long tileId) throws IOException
+	{
+		lock.readLock().lock();
+		try {
+			final int slot = slotOf(index, capacity, tileId);
+
+			if ( slot < 0 )
+				return null;
+
+			final long value = index.getLong(HEADER + slot * SLOT + 8);
+
+			if ( value == 0 )
+				return null;
+
+			final long offset 	= value >>> 24;
+			final int size 		= (int)(value & MAX_TILE_SIZE);
+
+			ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER + size);
+			readFully(pack, buf, offset);
+
+			if ( buf.getLong(0) != tileId || buf.getInt(8) != size )
+				throw new IOException("Corrupt record for tile " + TileId.toString(tileId) + " at " + offset);
+
+			final byte[] data = new byte[size];
+			System.arraycopy(buf.array(), RECORD_HEADER, data, 0, size);
+			return data;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Append a tile image. Replaces the previous image of the tile.
+	 * @param tileId
+	 * @param data
+	 * @throws IOException
+	 */
+	public void put (long tileId, byte[] data) throws IOException
+	{
+		if ( tileId < 0 )
+			throw new IOException("Invalid tile ID " + tileId);
+
+		if ( data.length == 0 || data.length > MAX_TILE_SIZE )
+			throw new IOException("Invalid tile size " + data.length + " for " + TileId.toString(tileId));
+
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER + data.length);
+		buf.putLong(tileId).putInt(data.length).put(data);
+		buf.flip();
+
+		lock.writeLock().lock();
+		try {
+			// record first, then the index: a crash in between is recovered on open
+			long pos = dataLength;
+
+			while ( buf.hasRemaining() )
+				pos += pack.write(buf, pos);
+
+			indexRecord(tileId, dataLength, data.length);
+			dataLength = pos;
+			writeHeader();
+
+			compactIfNeeded();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean contains (long tileId, String tileKey)
+	{
+		lock.readLock().lock();
+		try {
+			final int slot = slotOf(index, capacity, tileId);
+			return slot >= 0 && index.getLong(HEADER + slot * SLOT + 8) != 0;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public InputStream openStream (long tileId, String tileKey) throws IOException {
+		final byte[] data = get(tileId);
+		return data != null ? new ByteArrayInputStream(data) : null;
+	}
+
+	public File getFile (long tileId, String tileKey) {
+		return null;
+	}
+
+	public File newDownloadFile (long tileId, String tileKey)
+	{
+		if ( ! incoming.exists() )
+			incoming.mkdirs();
+
+		return new File(incoming, tileKey);
+	}
+
+	public void commit (long tileId, String tileKey, File file) throws IOException
+	{
+		try {
+			put(tileId, readFile(file));
+		}
+		finally {
+			file.delete();
+			CacheMetadata.delete(file);
+		}
+	}
+
+	public void delete (long tileId, String tileKey)
+	{
+		lock.writeLock().lock();
+		try {
+			final int slot = slotOf(index, capacity, tileId);
+
+			if ( slot < 0 ) return;
+
+			final long value = index.getLong(HEADER + slot * SLOT + 8);
+
+			if ( value == 0 ) return;
+
+			deadBytes += RECORD_HEADER + (value & MAX_TILE_SIZE);
+			live--;
+			index.putLong(HEADER + slot * SLOT + 8, 0);
+			writeHeader();
+
+			// called from the render thread (tile errors): the next put compacts
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Start a background compaction if over half the archive is dead.
+	 * Caller holds the write lock.
+	 */
+	private void compactIfNeeded ()
+	{
+		if ( compacting || deadBytes <= MIN_COMPACT_BYTES || deadBytes <= dataLength * COMPACT_RATIO )
+			return;
+
+		compacting = true;
+
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					compact();
+				}
+				catch (IOException e) {
+					logger.error("Compaction of " + dir + " failed: " + e);
+				}
+			}
+		}, "PackedTileStore-compact");
+
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	/**
+	 * Copy the live tiles to a new archive & index (new generation) and drop
+	 * the old ones. The tiles are copied w/o the lock: readers & writers only
+	 * wait while the tiles put meanwhile are copied & the generations switched.
+	 * @throws IOException
+	 */
+	public void compact () throws IOException
+	{
+		synchronized (compactLock)
+		{
+			try {
+				compactConcurrently();
+			}
+			finally {
+				lock.writeLock().lock();
+				compacting 			= false;
+				compactGeneration 	= -1;
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	private void compactConcurrently () throws IOException
+	{
+		final long start = System.currentTimeMillis();
+
+		// tile ID -> { old value, new value } of the tiles copied
+		final LongHashMap<long[]> copied = new LongHashMap<long[]>();
+
+		final long oldLength;
+		final FileChannel oldPack;
+		final int newGeneration;
+		long[][] tiles;
+
+		// snapshot of the live tiles: records are never modified & the archive
+		// only grows, so they can be copied w/o the lock
+		lock.writeLock().lock();
+		try {
+			oldLength 		= dataLength;
+			oldPack 		= pack;
+			newGeneration 	= packGeneration + 1;
+			tiles 			= changedTiles(copied);
+
+			compacting 			= true;
+			compactGeneration 	= newGeneration;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+
+		FileChannel newPack = new RandomAccessFile(packFile(newGeneration), "rw").getChannel();
+		File newIndexFile 	= null;
+		File oldIndexFile 	= null;
+		boolean switched 	= false;
+
+		try {
+			newPack.truncate(0);
+
+			long pos = copyTiles(tiles, oldPack, newPack, 0, copied);
+
+			// catch up w/ the tiles put meanwhile, readers & writers running
+			for (int i = 0; i < MAX_CATCH_UP_ROUNDS; i++)
+			{
+				lock.readLock().lock();
+				try {
+					tiles = changedTiles(copied);
+				}
+				finally {
+					lock.readLock().unlock();
+				}
+
+				if ( tiles[0].length <= CATCH_UP_TILES )
+					break;
+
+				pos = copyTiles(tiles, oldPack, newPack, pos, copied);
+			}
+			newPack.force(false);
+
+			final long copyTime = System.currentTimeMillis() - start;
+
+			lock.writeLock().lock();
+			try {
+				final long lockStart = System.currentTimeMillis();
+
+				// the last tiles put meanwhile
+				tiles 		= changedTiles(copied);
+				pos 		= copyTiles(tiles, pack, newPack, pos, copied);
+
+				// index of the current live tiles (deleted meanwhile: dropped)
+				final int newCapacity 		= Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(live, 1) * 4));
+				newIndexFile 				= indexFile(indexGeneration + 1);
+				final MappedByteBuffer b 	= createIndex(newIndexFile, newCapacity);
+				int n = 0;
+
+				for (int i = 0; i < capacity; i++)
+				{
+					final long key 		= index.getLong(HEADER + i * SLOT);
+					final long value 	= index.getLong(HEADER + i * SLOT + 8);
+
+					if ( key == 0 || value == 0 )
+						continue;
+
+					final int slot = -slotOf(b, newCapacity, key - 1) - 1;
+					b.putLong(HEADER + slot * SLOT, key);
+					b.putLong(HEADER + slot * SLOT + 8, copied.get(key - 1)[1]);
+					n++;
+				}
+				newPack.force(true);
+
+				oldIndexFile = indexFile(indexGeneration);
+
+				// switch
+				index 			= b;
+				indexGeneration++;
+				packGeneration 	= newGeneration;
+				pack 			= newPack;
+				capacity 		= newCapacity;
+				used 			= n;
+				live 			= n;
+				deadBytes 		= 0;
+				dataLength 		= pos;
+
+				writeHeader();
+				index.putInt(0, MAGIC);
+				index.force();
+				switched = true;
+
+				compactGeneration = -1;
+
+				logger.debug("Compacted " + dir + " from " + oldLength + " to " + dataLength
+						+ " bytes: copy " + copyTime + " ms, locked " + (System.currentTimeMillis() - lockStart)
+						+ " ms (" + tiles[0].length + " tiles)");
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+
+			// no reader uses the old generation any more: deleted w/o the lock
+			// (slow for large files). Left over files are deleted on next open
+			oldPack.close();
+			packFile(newGeneration - 1).delete();
+			oldIndexFile.delete();
+		}
+		catch (IOException e) {
+			if ( ! switched ) {
+				newPack.close();
+				packFile(newGeneration).delete();
+
+				if ( newIndexFile != null )
+					newIndexFile.delete();
+			}
+			throw e;
+		}
+	}
+
+	/*
+	 * Live tiles not copied (or replaced since). Caller holds the lock.
+	 * @return { tile IDs, values }
+	 */
+	private long[][] changedTiles (LongHashMap<long[]> copied)
+	{
+		long[] keys 	= new long[16];
+		long[] values 	= new long[16];
+		int n 			= 0;
+
+		for (int i = 0; i < capacity; i++)
+		{
+			final long key 		= index.getLong(HEADER + i * SLOT);
+			final long value 	= index.getLong(HEADER + i * SLOT + 8);
+
+			if ( key == 0 || value == 0 )
+				continue;
+
+			final long[] moved = copied.get(key - 1);
+
+			if ( moved != null && moved[0] == value )
+				continue;
+
+			if ( n == keys.length ) {
+				keys 	= Arrays.copyOf(keys, n * 2);
+				values 	= Arrays.copyOf(values, n * 2);
+			}
+			keys[n] 	= key - 1;
+			values[n] 	= value;
+			n++;
+		}
+		return new long[][] { Arrays.copyOf(keys, n), Arrays.copyOf(values, n) };
+	}
+
+	/*
+	 * Append tile records to the new archive
+	 * @return position after the last record
+	 */
+	private static long copyTiles (long[][] tiles, FileChannel from, FileChannel to, long pos
+			, LongHashMap<long[]> copied) throws IOException
+	{
+		for (int i = 0; i < tiles[0].length; i++)
+		{
+			final long value = tiles[1][i];
+
+			copied.put(tiles[0][i], new long[] { value, value(pos, (int)(value & MAX_TILE_SIZE)) });
+			pos = copyRecord(from, value, to, pos);
+		}
+		return pos;
+	}
+
+	/*
+	 * Append a record of an archive to another
+	 * @return position after the record
+	 */
+	private static long copyRecord (FileChannel from, long value, FileChannel to, long pos) throws IOException
+	{
+		final long offset 	= value >>> 24;
+		final int length 	= RECORD_HEADER + (int)(value & MAX_TILE_SIZE);
+		long copied 		= 0;
+
+		to.position(pos);
+
+		while ( copied < length )
+			copied += from.transferTo(offset + copied, length - copied, to);
+
+		return pos + length;
+	}
+
+	/**
+	 * Import the tiles of the one file per tile layout (migration).
+	 * Tiles already in the store are skipped.
+	 * @param sourceDir Folder w/ the tile files (e.g [WW cache]/VirtualEarth)
+	 * @param parser Tile ID of a file name
+	 * @param deleteFiles Delete the imported files (& their metadata)
+	 * @return # of tiles imported
+	 * @throws IOException
+	 */
+	public int importFiles (File sourceDir, KeyParser parser, boolean deleteFiles) throws IOException
+	{
+		final File[] files = sourceDir.listFiles();
+		int n = 0;
+
+		for (int i = 0; files != null && i < files.length; i++)
+		{
+			final File file = files[i];
+
+			if ( ! file.isFile() || file.length() == 0 || file.length() > MAX_TILE_SIZE )
+				continue;
+
+			final long tileId = parser.parseTileKey(file.getName());
+
+			if ( tileId < 0 )
+				continue;
+
+			if ( ! contains(tileId, file.getName()) ) {
+				put(tileId, readFile(file));
+				n++;
+			}
+
+			if ( deleteFiles ) {
+				file.delete();
+				CacheMetadata.delete(file);
+			}
+		}
+
+		lock.writeLock().lock();
+		try {
+			index.force();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+
+		logger.debug("Imported " + n + " tiles from " + sourceDir + " into " + this);
+		return n;
+	}
+
+	private static byte[] readFile (File file) throws IOException
+	{
+		final long length = file.length();
+
+		if ( length > MAX_TILE_SIZE )
+			throw new IOException("Tile too big " + file + " " + length);
+
+		final byte[] data = new byte[(int)length];
+		InputStream is = new FileInputStream(file);
+
+		try {
+			int off = 0;
+			while ( off < data.length ) {
+				final int n = is.read(data, off, data.length - off);
+
+				if ( n < 0 )
+					throw new IOException("Unexpected end of " + file);
+				off += n;
+			}
+		}
+		finally {
+			is.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Flush the index & close the archive. The store cannot be used afterwards.
+	 */
+	public void close ()
+	{
+		synchronized (stores) {
+			stores.remove(dir);
+		}
+
+		lock.writeLock().lock();
+		try {
+			index.force();
+			pack.close();
+		}
+		catch (IOException e) {
+			logger.error("Closing " + dir + ": " + e);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return # of tiles stored
+	 */
+	public int getTileCount() {
+		lock.readLock().lock();
+		try {
+			return live;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return bytes of replaced or deleted tiles (reclaimed by {@link #compact()})
+	 */
+	public long getDeadBytes() {
+		lock.readLock().lock();
+		try {
+			return deadBytes;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	@Override
+	public String toString() {
+		return "Packed:" + dir + " tiles=" + live + " slots=" + used + "/" + capacity
+			+ " bytes=" + dataLength + " dead=" + deadBytes
+			+ " gen=" + packGeneration + "/" + indexGeneration;
+	}
+}
@@ -1,18 +1,35 @@
 package org.eclipse.plugin.worldwind.contrib.layers.quadkey;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
 
 import org.apache.log4j.Logger;
 
-import org.eclipse.plugin.worldwind.contrib.parsers.SimpleHTTPClient;
 import org.eclipse.plugin.worldwind.contrib.LayerUtils;
+import org.eclipse.plugin.worldwind.contrib.layers.DownloadScheduler;
+import org.eclipse.plugin.worldwind.contrib.layers.TextureLoader;
+import org.eclipse.plugin.worldwind.contrib.layers.TextureTranscoder;
+import org.eclipse.plugin.worldwind.contrib.parsers.CacheMetadata;
+import org.eclipse.plugin.worldwind.contrib.parsers.CircuitBreaker;
+import org.eclipse.plugin.worldwind.contrib.parsers.HTTPConnectionPool;
+import org.eclipse.plugin.worldwind.contrib.parsers.NegativeCache;
+import org.eclipse.plugin.worldwind.contrib.parsers.SimpleHTTPClient;
+
+import com.sun.opengl.util.texture.TextureData;
 
 import gov.nasa.worldwind.WorldWind;
+import gov.nasa.worldwind.cache.MemoryCache;
+import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.retrieve.HTTPRetriever;
 import gov.nasa.worldwind.retrieve.RetrievalPostProcessor;
 import gov.nasa.worldwind.retrieve.Retriever;
@@ -20,7 +37,16 @@ import gov.nasa.worldwind.retrieve.URLRetriever;
 import gov.nasa.worldwind.util.WWIO;
 
 /**
- * QuadKey tile 
+ * QuadKey tile. The tile life cycle is an atomic state machine so the
+ * render thread never blocks on (or races with) the download threads:
+ * <pre>
+ * ABSENT -> QUEUED -> DOWNLOADING -> ON_DISK -> DECODING -> DECODED -> RESIDENT
+ *              |           |                        |
+ *              v           v                        v
+ *           ABSENT       FAILED -> QUEUED         FAILED
+ * </pre>
+ * All transitions are done w/ compare-and-set: only the thread that wins
+ * a transition performs the work that follows it.
  * @author Owner
  *
  */
@@ -32,11 +58,56 @@ public class QuadKeyEarthTile
 	// HTTP request read timeout
 //	private final int READ_TIMEOUT = 8000;
 	
-	private String cacheRoot = "Earth/";
+	private TileStore store;
 	private String tileKey;
 	private String tileURL;
 	
-	private boolean loading = false;
+	// Packed tile ID (see TileId), -1 if built w/ a string key only
+	private long tileId = -1;
+	
+	// Layer requesting the tile (download metrics)
+	private String layerName;
+	
+	/**
+	 * Tile states
+	 */
+	public static enum State { 
+		/** Not loaded (or dropped from the download queue) */
+		ABSENT, 
+		/** Waiting in the download queue */
+		QUEUED, 
+		/** HTTP request in progress */
+		DOWNLOADING, 
+		/** Image in the file store */
+		ON_DISK, 
+		/** Image being decoded by the {@link TextureLoader} threads */
+		DECODING, 
+		/** Texture data decoded, waiting for the GL upload */
+		DECODED, 
+		/** Texture in the layer memory cache */
+		RESIDENT, 
+		/** Download or decode failed. Retried after a backoff */
+		FAILED 
+	};
+	
+	private final AtomicReference<State> state = new AtomicReference<State>(State.ABSENT);
+	
+	// Request waiting in the download queue (QUEUED)
+	private volatile DownloadScheduler.Request request;
+	
+	// Decoded image waiting for the GL upload (DECODED)
+	private volatile TextureData textureData;
+	
+	// Last frame the tile was requested by its layer (render thread)
+	private int lastFrame;
+	
+	// Consecutive failures & time (ms) of the next download attempt
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile long retryAt;
+	
+	// Tile retry backoff: min/max delay (ms)
+	static final long RETRY_MIN_DELAY = 2000;
+	static final long RETRY_MAX_DELAY = 5 * 60 * 1000;
 	
 	/**
 	 * Constructor
@@ -45,59 +116,436 @@ public class QuadKeyEarthTile
 	 * @param cacheRoot WW tile cache location
 	 */
 	public QuadKeyEarthTile(String tileKey, final String tileURL, final String cacheRoot) {	
+		this(tileKey, tileURL, cacheRoot, null);
+	}
+	
+	/**
+	 * Constructor
+	 * @param tileKey tile ID
+	 * @param tileURL Image url
+	 * @param cacheRoot WW tile cache location
+	 * @param layerName Name of the layer used to break down the download metrics
+	 */
+	public QuadKeyEarthTile(String tileKey, final String tileURL, final String cacheRoot, String layerName) {	
+		this(-1, tileKey, tileURL, new FileTileStore(cacheRoot), layerName);
+	}
+	
+	/**
+	 * Constructor
+	 * @param tileId Packed tile ID, also the memory cache key of the tile
+	 * @param tileKey tile file name
+	 * @param tileURL Image url
+	 * @param store Disk storage of the layer tiles
+	 * @param layerName Name of the layer used to break down the download metrics
+	 */
+	public QuadKeyEarthTile(long tileId, String tileKey, final String tileURL, final TileStore store, String layerName) {	
+		this.tileId = tileId;
 		this.tileKey = tileKey;
 		this.tileURL = tileURL;
-		this.cacheRoot = cacheRoot;
+		this.store = store;
+		this.layerName = layerName;
 	}
 	
 	/**
 	 * Asynch download
 	 */
-	public synchronized void download()
+	public void download() {
+		download(null, 0, null);
+	}
+	
+	/**
+	 * Asynch download thru the {@link DownloadScheduler}. Tiles closer to the
+	 * eye are fetched first. Tiles that leave the view while queued are dropped
+	 * and fetched again when they come back.
+	 * @param sector Tile sector (null = never dropped)
+	 * @param zoom Tile zoom level
+	 * @param owner Layer requesting the tile
+	 */
+	public void download(Sector sector, int zoom, Object owner) {
+		download(sector, zoom, owner, false);
+	}
+	
+	/**
+	 * Asynch download thru the {@link DownloadScheduler}. 
+	 * @param sector Tile sector (null = never dropped)
+	 * @param zoom Tile zoom level
+	 * @param owner Layer requesting the tile
+	 * @param prefetch If true the tile is not on screen yet: it is fetched after 
+	 * all on-screen tiles. A queued prefetch is promoted when the tile is requested
+	 * for display.
+	 */
+	public void download(Sector sector, int zoom, Object owner, boolean prefetch)
 	{
-		final String cacheFile 	= cacheRoot + tileKey;
-		//final File file 		= WorldWind.getDataFileCache().newFile(cacheFile);
-		final File file 		= LayerUtils.getWWFileStore().newFile(cacheFile);
+		final State current = state.get();
 		
-		if ( loading ) 
+		// queued as prefetch, now needed on screen
+		if ( current == State.QUEUED && !prefetch ) {
+			final DownloadScheduler.Request queued = request;
+			
+			if ( queued != null && queued.isPrefetch() )
+				DownloadScheduler.getInstance().promote(queued);
 			return;
+		}
 		
-		loading = true;
+		// in progress or loaded
+		if ( current == State.QUEUED || current == State.DOWNLOADING || isDecoding(current))
+			return;
 		
-		// Use the WW task service to load the URL asynchronously
-		WorldWind.getTaskService().addTask(new Runnable() 
+		if ( ! canDownload() || !state.compareAndSet(current, State.QUEUED)) 
+			return;
+		
+		//final File file 		= WorldWind.getDataFileCache().newFile(cacheFile);
+		final File file 		= store.newDownloadFile(tileId, tileKey);
+		
+		// Queue by distance to the eye
+		request = new DownloadScheduler.Request(sector, zoom, owner, prefetch) 
 		{
+			@Override
+			protected void dropped() {
+				request = null;
+				state.compareAndSet(State.QUEUED, State.ABSENT);
+			}
+			
+			@Override
+			public String toString() {
+				return tileKey;
+			}
+			
+			@Override
+			protected URL getURL() {
+				try {
+					return new URL(tileURL);
+				} catch (MalformedURLException e) {
+					return null;
+				}
+			}
+			
 			public void run() 
 			{
+				request = null;
+				
+				// dropped or cancelled meanwhile
+				if ( ! state.compareAndSet(State.QUEUED, State.DOWNLOADING))
+					return;
+				
 				try 
 				{
 					logger.debug("Downloading " + tileURL + " to " + file);
 					downloadUrl(tileURL, file);
+					store.commit(tileId, tileKey, file);
+					failures.set(0);
+					
+					// fetched OK: forget past failures
+					NegativeCache.getInstance().remove(layerName, tileKey);
+					state.set(State.ON_DISK);
 				} 
 				catch (Exception e) 
 				{
 					logger.debug("Error " + e.getMessage() + ". Attempting delete.");
+					failed();
 					
-					if (! file.delete() )
+					if (! LayerUtils.deleteCacheFile(file) )
 						logger.error("Uable to delete " + file);
 					
+					CacheMetadata.delete(file);
+					
 				}
-				finally {
-					loading = false;
+			}
+		};
+		
+		if ( ! DownloadScheduler.getInstance().submit(request) ) {
+			request = null;
+			state.compareAndSet(State.QUEUED, State.ABSENT);
+		}
+	}
+	
+	
+	/**
+	 * Asynch revalidation of a tile already on disk. If the tile metadata
+	 * is stale a conditional GET is sent. When the server returns a new image
+	 * the tile is removed from the memory cache so it is reloaded from disk.
+	 * Tiles without metadata (or validators) are left alone.
+	 * @param file Cached tile
+	 * @param memCache Memory cache of the layer
+	 * @param defaultTTL Time to live (ms) for tiles w/o Expires or max-age
+	 */
+	public void revalidate(final File file, final MemoryCache memCache, final long defaultTTL)
+	{
+		WorldWind.getTaskService().addTask(new Runnable() 
+		{
+			public void run() 
+			{
+				CacheMetadata meta = CacheMetadata.load(file);
+				
+				if ( meta == null || !meta.hasValidators() || !meta.isStale(defaultTTL)) 
+					return;
+				
+				try {
+					SimpleHTTPClient client = new SimpleHTTPClient(tileURL);
+					client.setLayer(layerName);
+					
+					// an error page w/ a 200 must not replace the tile
+					client.setAcceptedContentType("image/");
+					
+					if ( client.doConditionalGet(file) ) {
+						logger.debug("Tile " + tileKey + " modified. Evicting from memory.");
+						memCache.remove(getCacheKey());
+					}
+					client.close();
+				} 
+				catch (Exception e) {
+					// keep the old tile
+					logger.error("Revalidation of " + tileURL + " failed: " + e.getMessage());
 				}
 			}
-		});					
+		});
+	}
+	
+	/**
+	 * Can the tile be downloaded now? False while the tile is backing off
+	 * after a failure, is in the {@link NegativeCache} or its host is paused 
+	 * by the circuit breaker.
+	 */
+	public boolean canDownload () 
+	{
+		if ( System.currentTimeMillis() < retryAt )
+			return false;
+		
+		// failed recently (maybe in a previous session)
+		final NegativeCache.Entry failure = NegativeCache.getInstance().get(layerName, tileKey);
 		
+		if ( failure != null ) {
+			retryAt = failure.getExpires();
+			return false;
+		}
+		
+		try {
+			return HTTPConnectionPool.getInstance().isAvailable(new URL(tileURL));
+		} catch (MalformedURLException e) {
+			return false;
+		}
 	}
 	
+	/**
+	 * Record a failed download or a corrupt tile. The next attempt is delayed
+	 * by an exponential backoff w/ jitter, or until the {@link NegativeCache} 
+	 * entry of the tile expires.
+	 */
+	public void failed () 
+	{
+		final int n = failures.incrementAndGet();
+		
+		final long delay = CircuitBreaker.backoff(n, RETRY_MIN_DELAY, RETRY_MAX_DELAY);
+		final NegativeCache.Entry failure = NegativeCache.getInstance().get(layerName, tileKey);
+		
+		retryAt = System.currentTimeMillis() + delay;
+		
+		if ( failure != null && failure.getExpires() > retryAt )
+			retryAt = failure.getExpires();
+		
+		state.set(State.FAILED);
+		
+		logger.debug("Tile " + tileKey + " failed " + n + " times. Retry in " + delay + " ms");
+	}
 	
+	/**
+	 * Claim the decoding of a tile found on disk: ABSENT, ON_DISK, FAILED or
+	 * RESIDENT (evicted from memory) -> DECODING. 
+	 * @return false if another thread owns the tile (queued, downloading or decoding)
+	 */
+	public boolean startDecode () 
+	{
+		final State current = state.get();
+		
+		if ( current == State.QUEUED || current == State.DOWNLOADING || isDecoding(current))
+			return false;
+		
+		return state.compareAndSet(current, State.DECODING);
+	}
+	
+	/**
+	 * Asynch decode of the tile image by the {@link TextureLoader} threads:
+	 * DECODING -> DECODED, or FAILED (tile deleted) if the image is corrupt.
+	 * The decoded data is picked up by the render thread thru {@link #getTextureData()}.
+	 * Must be called after {@link #startDecode()} succeeds.
+	 */
+	public void decode ()
+	{
+		final boolean queued = TextureLoader.getInstance().submit(new Runnable() 
+		{
+			public void run() 
+			{
+				try {
+					final InputStream is = store.openStream(tileId, tileKey);
+					
+					if ( is == null )
+						throw new IOException("Tile not in " + store);
+					
+					final TextureData data;
+					try {
+						data = TextureLoader.decode(is, true);
+					}
+					finally {
+						is.close();
+					}
+					textureData = data;
+					state.compareAndSet(State.DECODING, State.DECODED);
+					
+					// next loads use the compressed texture
+					if ( TextureTranscoder.isEnabled() && ! data.isDataCompressed() )
+						transcode();
+				} 
+				catch (Exception e) 
+				{
+					logger.error(e + " decoding tile " + tileKey + ". Attempting delete.");
+					NegativeCache.getInstance().put(layerName, tileKey
+							, NegativeCache.Reason.CORRUPT, String.valueOf(e));
+					failed();
+					store.delete(tileId, tileKey);
+				}
+			}
+		});
+		
+		// decoder busy: try again on a later frame
+		if ( ! queued ) 
+			state.compareAndSet(State.DECODING, State.ON_DISK);
+	}
+	
+	/*
+	 * Replace the tile image in the store w/ a DDS (decode thread)
+	 */
+	private void transcode ()
+	{
+		try {
+			final InputStream is = store.openStream(tileId, tileKey);
+			
+			if ( is == null ) return;
+			
+			final BufferedImage image;
+			try {
+				image = ImageIO.read(is);
+			}
+			finally {
+				is.close();
+			}
+			
+			final File file = store.newDownloadFile(tileId, tileKey);
+			
+			if ( image != null && TextureTranscoder.transcode(image, file) )
+				store.commit(tileId, tileKey, file);
+		} 
+		catch (IOException e) {
+			logger.error("Unable to transcode tile " + tileKey + ": " + e);
+		}
+	}
+	
+	/**
+	 * @return decoded image waiting for the GL upload (DECODED) or null
+	 */
+	public TextureData getTextureData () {
+		return textureData;
+	}
+	
+	/**
+	 * @return true if the tile image is on disk
+	 */
+	public boolean isStored () {
+		return store.contains(tileId, tileKey);
+	}
+	
+	/**
+	 * @return file holding the tile image (w/ its HTTP metadata) or null 
+	 * if not on disk or packed w/ other tiles
+	 */
+	public File getFile () {
+		return store.getFile(tileId, tileKey);
+	}
+	
+	/**
+	 * Remove the tile image from disk
+	 */
+	public void delete () {
+		store.delete(tileId, tileKey);
+	}
+	
+	public TileStore getStore () {
+		return store;
+	}
+	
+	/**
+	 * Texture uploaded & in the memory cache: DECODED -> RESIDENT. 
+	 * The decoded data is released. 
+	 */
+	public void resident () 
+	{
+		final TextureData data = textureData;
+		textureData = null;
+		
+		if ( data != null )
+			data.flush();
+		
+		state.compareAndSet(State.DECODED, State.RESIDENT);
+	}
+	
+	/**
+	 * Tile no longer needed before its upload: DECODED -> ON_DISK. The decoded 
+	 * data is released (decoded again if the tile comes back).
+	 */
+	public void release () 
+	{
+		if ( ! state.compareAndSet(State.DECODED, State.ON_DISK) ) 
+			return;
+		
+		final TextureData data = textureData;
+		textureData = null;
+		
+		if ( data != null )
+			data.flush();
+	}
+	
+	private static boolean isDecoding (State s) {
+		return s == State.DECODING || s == State.DECODED;
+	}
+	
+	/**
+	 * @return memory cache key: the tile ID if any, else the tile key
+	 */
+	public Object getCacheKey () {
+		return tileId >= 0 ? (Object)Long.valueOf(tileId) : tileKey;
+	}
+	
+	public long getTileId () {
+		return tileId;
+	}
+	
+	
+	public int getLastFrame () {
+		return lastFrame;
+	}
+	
+	public void setLastFrame (int frame) {
+		lastFrame = frame;
+	}
+	
+	public State getState () {
+		return state.get();
+	}
+	
+	public boolean compareAndSetState (State expect, State update) {
+		return state.compareAndSet(expect, update);
+	}
+	
+	/**
+	 * @return true if queued, downloading or decoding
+	 */
 	public boolean isLoading () {
-		return loading;
+		final State current = state.get();
+		return current == State.QUEUED || current == State.DOWNLOADING || isDecoding(current);
 	}
 	
 	@Override
 	public String toString() {
-		return tileKey;
+		return tileKey + " " + state.get();
 	}
 
     
@@ -182,10 +630,39 @@ public class QuadKeyEarthTile
 		
 		// Use a simple client that sets a User-Agent header!
 		SimpleHTTPClient client = new SimpleHTTPClient(url);
-		client.doGet(new FileOutputStream(file));
+		client.setLayer(layerName);
+		
+		final int status;
+		final String contentType;
 		
-		logger.debug("Download Result=" + client.getStatus() + " " + client.getResponseMessage());
-		client.close();
+		try {
+			client.doConditionalGet(file);
+			
+			// close() drops the response headers
+			status 		= client.getStatus();
+			contentType = client.getContentType();
+			
+			logger.debug("Download Result=" + status + " " + client.getResponseMessage());
+		}
+		catch (IOException e) {
+			// 404 (no data), 403...: don't ask again for a while
+			final NegativeCache.Reason reason = NegativeCache.forStatus(client.getStatus());
+			
+			if ( reason != null )
+				NegativeCache.getInstance().put(layerName, tileKey, reason
+						, "HTTP " + client.getStatus() + " " + e.getMessage());
+			throw e;
+		}
+		finally {
+			client.close();
+		}
+		
+		// HTML error page served w/ 200
+		if ( status == HttpURLConnection.HTTP_OK && contentType != null && !contentType.startsWith("image") ) {
+			NegativeCache.getInstance().put(layerName, tileKey
+					, NegativeCache.Reason.NOT_IMAGE, contentType);
+			throw new IOException("Invalid content type " + contentType + " for " + url);
+		}
 	}
 	
 }
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers.quadkey;
+
+/**
+ * Packed quad tile ID: zoom (6 bits), column (29 bits) and row (29 bits)
+ * in a single long. Used as key by the quad key layers so no strings are
+ * built for tiles already loaded.
+ *
+ * @author vsilva
+ *
+ */
+public final class TileId
+{
+	static final int BITS 		= 29;
+	static final long MASK 		= (1L << BITS) - 1;
+
+	private TileId() {
+	}
+
+	/**
+	 * @param zoom Zoom level (0-63)
+	 * @param x Tile column
+	 * @param y Tile row (0 = north)
+	 * @return packed ID
+	 */
+	public static long pack (int zoom, int x, int y) {
+		return ((long)zoom << (2 * BITS)) | ((x & MASK) << BITS) | (y & MASK);
+	}
+
+	public static int getZoom (long id) {
+		return (int)(id >>> (2 * BITS));
+	}
+
+	public static int getX (long id) {
+		return (int)((id >>> BITS) & MASK);
+	}
+
+	public static int getY (long id) {
+		return (int)(id & MASK);
+	}
+
+	/**
+	 * @return ID of the tile one level up holding this tile
+	 */
+	public static long getParent (long id) {
+		return pack(getZoom(id) - 1, getX(id) >> 1, getY(id) >> 1);
+	}
+
+	/**
+	 * @param id tile
+	 * @param i child 0-3: 0=NW, 1=NE, 2=SW, 3=SE
+	 * @return ID of a child tile one level down
+	 */
+	public static long getChild (long id, int i) {
+		return pack(getZoom(id) + 1, (getX(id) << 1) + (i & 1), (getY(id) << 1) + (i >> 1));
+	}
+
+	/**
+	 * Parse a quad key: one digit per level (from the top) holding the x 
+	 * bit (1) and y bit (2) of the tile at that level.
+	 * @param quadKey
+	 * @param digits The 4 digits used by the server, e.g "0123" (VE) or "qrts" (Google)
+	 * @return packed ID or -1 if the key is invalid
+	 */
+	public static long fromQuadKey (String quadKey, String digits)
+	{
+		final int zoom = quadKey.length();
+		
+		if ( zoom == 0 || zoom > BITS )
+			return -1;
+		
+		int x = 0, y = 0;
+		
+		for (int i = 0; i < zoom; i++) {
+			final int d = digits.indexOf(quadKey.charAt(i));
+			
+			if ( d < 0 ) 
+				return -1;
+			
+			x = (x << 1) | (d & 1);
+			y = (y << 1) | (d >> 1);
+		}
+		return pack(zoom, x, y);
+	}
+	
+	public static String toString (long id) {
+		return getZoom(id) + "/" + getX(id) + "/" + getY(id);
+	}
+}
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers.quadkey;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ConcurrentHashMap;
+
+import gov.nasa.worldwind.cache.BasicMemoryCache;
+import gov.nasa.worldwind.cache.MemoryCache;
+import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.layers.TextureTile;
+
+/**
+ * Per frame tile pass of a quad key layer w/o GL: tile lookup by packed
+ * {@link TileId} ({@link LongHashMap} of loading tiles, cached tile bounds,
+ * memory cache w/ boxed IDs) vs. the old pass keyed by strings (quad key,
+ * tile key & URL built per tile, sector from the quad key, String keyed
+ * {@link ConcurrentHashMap}). Two steady states are measured: all tiles
+ * in memory and all tiles loading. Reports ns per tile and bytes allocated
+ * per frame (on JVMs that count thread allocations).
+ * <pre>
+ * java ...TilePassBenchmark [tiles per side (7 17)] [frames (20000)]
+ * </pre>
+ * @author vsilva
+ *
+ */
+public class TilePassBenchmark
+{
+	static final int ZOOM 	= 14;
+
+	// tile block origin (somewhere over the Atlantic coast)
+	static final int X0 	= 4700;
+	static final int Y0 	= 6200;
+
+	private final VirtualEarthLayer layer = new VirtualEarthLayer();
+	private final int side;
+
+	// old pass: String keys
+	private final ConcurrentHashMap<String, QuadKeyEarthTile> legacyLoading =
+		new ConcurrentHashMap<String, QuadKeyEarthTile>();
+	private final MemoryCache legacyCache = new BasicMemoryCache(1L << 30, 1L << 31);
+
+	// new pass: memory cache keyed by boxed tile IDs (as the layer's)
+	private final MemoryCache cache = new BasicMemoryCache(1L << 30, 1L << 31);
+
+	private final Sector visible;
+
+	// result sink (no dead code elimination)
+	private long sink;
+
+	TilePassBenchmark(int side)
+	{
+		this.side = side;
+
+		final Sector first 	= layer.TileToSector(X0, Y0, ZOOM);
+		final Sector last 	= layer.TileToSector(X0 + side - 1, Y0 + side - 1, ZOOM);
+
+		visible = new Sector(last.getMinLatitude(), first.getMaxLatitude()
+				, first.getMinLongitude(), last.getMaxLongitude());
+	}
+
+	public static void main(String[] args)
+	{
+		final int frames = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		final int[] sides = args.length > 0
+			? new int[] { Integer.parseInt(args[0]) }
+			: new int[] { 7, 17 };
+
+		try {
+			for (int side : sides)
+			{
+				TilePassBenchmark b = new TilePassBenchmark(side);
+
+				System.out.println(side * side + " tiles, " + frames + " frames");
+
+				b.fill(true);
+				b.report("in memory  string keys", frames, true);
+				b.report("in memory  tile IDs   ", frames, false);
+
+				b.fill(false);
+				b.report("loading    string keys", frames, true);
+				b.report("loading    tile IDs   ", frames, false);
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Steady state: all tiles in the memory caches or all loading
+	 */
+	private void fill (boolean inMemory)
+	{
+		legacyCache.clear();
+		cache.clear();
+		legacyLoading.clear();
+		layer.loadingTiles.clear();
+
+		for (int y = Y0; y < Y0 + side; y++)
+		{
+			for (int x = X0; x < X0 + side; x++)
+			{
+				final long tileId 		= TileId.pack(ZOOM, x, y);
+				final String quadKey 	= legacyQuadKey(x, y, ZOOM);
+				final String tileKey 	= layer.getMapType() + quadKey + layer.mapExtension;
+
+				if ( inMemory ) {
+					final TextureTile tile = new TextureTile(layer.TileToSector(x, y, ZOOM));
+					legacyCache.add(tileKey, tile, 1);
+					cache.add(Long.valueOf(tileId), tile, 1);
+				}
+				else {
+					final QuadKeyEarthTile quadTile = new QuadKeyEarthTile(tileId, tileKey
+							, layer.buildTileUrl(x, y, ZOOM), null, layer.getName());
+
+					legacyLoading.put(tileKey, quadTile);
+					layer.loadingTiles.put(tileId, quadTile);
+				}
+			}
+		}
+	}
+
+	private void report (String name, int frames, boolean legacy)
+	{
+		// warm up (JIT)
+		for (int i = 0; i < frames / 4; i++)
+			frame(legacy);
+
+		final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		final long bytes0 	= allocatedBytes(mx);
+		final long t0 		= System.nanoTime();
+
+		for (int i = 0; i < frames; i++)
+			frame(legacy);
+
+		final long nanos 	= System.nanoTime() - t0;
+		final long bytes 	= allocatedBytes(mx) - bytes0;
+		final int tiles 	= side * side;
+
+		System.out.println(name + " " + (nanos / frames / tiles) + " ns/tile  "
+				+ (nanos / frames / 1000) + " us/frame  "
+				+ (bytes < 0 ? "n/a" : String.valueOf(bytes / frames)) + " bytes/frame");
+	}
+
+	private void frame (boolean legacy)
+	{
+		for (int y = Y0; y < Y0 + side; y++)
+			for (int x = X0; x < X0 + side; x++)
+				sink += legacy ? legacyTile(x, y, ZOOM) : tile(x, y, ZOOM);
+	}
+
+	/*
+	 * Lookups of AbstractQuadKeyLayer.renderNeighbor & loadTile
+	 */
+	private int tile (int x, int y, int zoom)
+	{
+		final long tileId = TileId.pack(zoom, x, y);
+
+		if ( ! visible.intersects(layer.getTileBounds(tileId).sector) )
+			return 0;
+
+		final Object tile = cache.getObject(Long.valueOf(tileId));
+
+		if ( tile != null )
+			return 1;
+
+		final QuadKeyEarthTile quadTile = layer.loadingTiles.get(tileId);
+
+		return quadTile != null && quadTile.isLoading() ? 2 : 3;
+	}
+
+	/*
+	 * Lookups of the old VirtualEarthLayer.renderNeighbor & renderTile.
+	 * The QuadKeyEarthTile the old pass built for every tile not loading
+	 * is left out.
+	 */
+	private int legacyTile (int x, int y, int zoom)
+	{
+		final String quadKey 	= legacyQuadKey(x, y, zoom);
+		final Sector sector 	= layer.QuadKeyToSector(quadKey);
+
+		if ( visible.intersection(sector) == null )
+			return 0;
+
+		final String url 		= layer.buildRequestUrl(quadKey, layer.getMapType(), layer.mapExtension);
+		final String tileKey 	= layer.getMapType() + quadKey + layer.mapExtension;
+
+		final QuadKeyEarthTile quadTile = legacyLoading.containsKey(tileKey)
+			? legacyLoading.get(tileKey)
+			: null;
+
+		if ( quadTile != null && quadTile.isLoading() )
+			return url.length() > 0 ? 2 : 3;
+
+		if ( legacyCache.contains(tileKey) && legacyCache.getObject(tileKey) != null )
+			return 1;
+
+		return 3;
+	}
+
+	/*
+	 * Quad key as built by the old layers (String concatenation)
+	 */
+	private static String legacyQuadKey (int tx, int ty, int zl)
+	{
+		String quad = "";
+		for (int i = zl; i > 0; i--)
+		{
+			int mask = 1 << (i - 1);
+			int cell = 0;
+			if ((tx & mask) != 0)
+				cell++;
+			if ((ty & mask) != 0)
+				cell += 2;
+			quad += cell;
+		}
+		return quad;
+	}
+
+	/*
+	 * @return bytes allocated by this thread or -1 if not supported
+	 */
+	private static long allocatedBytes (ThreadMXBean mx)
+	{
+		if ( mx instanceof com.sun.management.ThreadMXBean )
+			return ((com.sun.management.ThreadMXBean)mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+}
@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers.quadkey;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import org.eclipse.plugin.worldwind.contrib.layers.TextureLoader;
+import org.eclipse.plugin.worldwind.contrib.parsers.CacheMetadata;
+import org.eclipse.plugin.worldwind.contrib.parsers.DownloadMetrics;
+import org.eclipse.plugin.worldwind.contrib.parsers.HTTPConnectionPool;
+import org.eclipse.plugin.worldwind.contrib.parsers.HTTPFixtureServer;
+import org.eclipse.plugin.worldwind.contrib.parsers.HTTPFixtureStore;
+
+import com.sun.opengl.util.texture.TextureData;
+
+/**
+ * Stress test of the {@link QuadKeyEarthTile} state machine: a render
+ * thread runs the tile pass of {@link AbstractQuadKeyLayer#loadTile} (w/o
+ * the GL upload) over a set of tiles while the {@link org.eclipse.plugin.worldwind.contrib.layers.DownloadScheduler}
+ * and {@link TextureLoader} threads download (from a local {@link HTTPFixtureServer}
+ * injecting 503s) and decode them. Prefetch threads race the render thread
+ * for the same tiles and resident tiles are evicted at random, so every
+ * transition is contended.
+ *
+ * <p>Checked: no exception, a DECODED tile always has its texture data, the
+ * render thread never blocks (tile pass time percentiles) and, once errors
+ * and evictions stop, all tiles end up resident.</p>
+ * <pre>
+ * java ...TileStateStress [tiles (256)] [seconds (10)] [prefetch threads (2)]
+ * </pre>
+ * @author vsilva
+ *
+ */
+public class TileStateStress
+{
+	static final String HOST 	= "http://tiles.stress/";
+	static final int ZOOM 		= 10;
+
+	// Max time for all tiles to become resident after the chaos phase (ms)
+	static final long SETTLE_TIMEOUT = 60000;
+
+	/*
+	 * Tiles in a folder, one file each
+	 */
+	static class DirTileStore implements TileStore
+	{
+		final File dir;
+
+		DirTileStore(File dir) {
+			this.dir = dir;
+		}
+
+		public boolean contains(long tileId, String tileKey) {
+			return new File(dir, tileKey).exists();
+		}
+
+		public InputStream openStream(long tileId, String tileKey) throws IOException {
+			final File file = new File(dir, tileKey);
+			return file.exists() ? new FileInputStream(file) : null;
+		}
+
+		public File getFile(long tileId, String tileKey) {
+			final File file = new File(dir, tileKey);
+			return file.exists() ? file : null;
+		}
+
+		public File newDownloadFile(long tileId, String tileKey) {
+			final File file = new File(dir, tileKey);
+			file.getParentFile().mkdirs();
+			return file;
+		}
+
+		public void commit(long tileId, String tileKey, File file) {
+		}
+
+		public void delete(long tileId, String tileKey) {
+			final File file = new File(dir, tileKey);
+			file.delete();
+			CacheMetadata.delete(file);
+		}
+	}
+
+	// render thread state: tile per slot & "in the memory cache" flags
+	private final QuadKeyEarthTile[] tiles;
+	private final boolean[] resident;
+	private final TileStore store;
+
+	private final TextureLoader.UploadBudget uploadBudget = new TextureLoader.UploadBudget();
+	private final DownloadMetrics.Histogram passTimes = new DownloadMetrics.Histogram();
+
+	private volatile boolean chaos = true;
+	private volatile boolean running = true;
+
+	private final AtomicLong violations 	= new AtomicLong();
+	private final AtomicLong prefetches 	= new AtomicLong();
+	private long uploads, evictions, frames;
+
+	TileStateStress(int count, TileStore store)
+	{
+		this.store 	= store;
+		tiles 		= new QuadKeyEarthTile[count];
+		resident 	= new boolean[count];
+
+		for (int i = 0; i < count; i++)
+			tiles[i] = newTile(i);
+	}
+
+	private QuadKeyEarthTile newTile (int i) {
+		return new QuadKeyEarthTile(TileId.pack(ZOOM, i % 32, i / 32), i + ".png"
+				, HOST + i + ".png", store, "stress");
+	}
+
+	public static void main(String[] args)
+	{
+		final int count 	= args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		final long millis 	= (args.length > 1 ? Integer.parseInt(args[1]) : 10) * 1000L;
+		final int threads 	= args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+		HTTPFixtureServer server = null;
+		boolean ok = false;
+
+		try {
+			final File dir = File.createTempFile("tilestress", "");
+			dir.delete();
+
+			// a 256x256 PNG served for every tile
+			BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = image.createGraphics();
+			g.setPaint(new java.awt.GradientPaint(0, 0, Color.BLUE, 256, 256, Color.GREEN));
+			g.fillRect(0, 0, 256, 256);
+			g.dispose();
+
+			ByteArrayOutputStream png = new ByteArrayOutputStream();
+			ImageIO.write(image, "png", png);
+
+			HTTPFixtureStore fixtures = new HTTPFixtureStore(new File(dir, "fixtures"));
+
+			for (int i = 0; i < count; i++) {
+				HTTPFixtureStore.Fixture f = new HTTPFixtureStore.Fixture();
+				f.url 		= HOST + i + ".png";
+				f.status 	= 200;
+				f.message 	= "OK";
+				f.body 		= png.toByteArray();
+				f.headers.add("Content-Type: image/png");
+				fixtures.save("GET", f);
+			}
+
+			server = new HTTPFixtureServer(fixtures, HTTPFixtureServer.Mode.REPLAY);
+			server.start(0);
+			server.install();
+			server.setInjectedErrors(503, 0.1);
+
+			// 503s are retried by the tile backoff: keep the host open
+			HTTPConnectionPool.getInstance().setCircuitBreaker(Integer.MAX_VALUE, 1, 1);
+
+			final TileStateStress test = new TileStateStress(count, new DirTileStore(new File(dir, "tiles")));
+
+			for (int i = 0; i < threads; i++) {
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						test.prefetch();
+					}
+				}, "Prefetch-" + i);
+				t.setDaemon(true);
+				t.start();
+			}
+
+			System.out.println(count + " tiles, " + threads + " prefetch threads, chaos for " + millis + " ms");
+
+			// chaos: errors, evictions & prefetch races
+			final long end = System.currentTimeMillis() + millis;
+
+			while ( System.currentTimeMillis() < end )
+				test.frame();
+
+			// settle: all tiles must become resident
+			test.chaos = false;
+			server.setInjectedErrors(0, 0);
+
+			final long settleEnd = System.currentTimeMillis() + SETTLE_TIMEOUT;
+
+			while ( test.countResident() < count && System.currentTimeMillis() < settleEnd )
+				test.frame();
+
+			test.running = false;
+
+			final int residentCount = test.countResident();
+
+			System.out.println("Frames: " + test.frames + " uploads: " + test.uploads
+					+ " evictions: " + test.evictions + " prefetch claims: " + test.prefetches
+					+ " injected 503s: " + server.getInjectedCount());
+			System.out.println("Tile pass (ms): mean=" + test.passTimes.getMean()
+					+ " p99=" + test.passTimes.getPercentile(0.99)
+					+ " max=" + test.passTimes.getMax());
+			System.out.println("Resident: " + residentCount + "/" + count
+					+ " violations: " + test.violations);
+
+			ok = residentCount == count && test.violations.get() == 0;
+
+			for (File f : new File(dir, "tiles").listFiles())
+				f.delete();
+			new File(dir, "tiles").delete();
+
+			for (File f : fixtures.getDirectory().listFiles())
+				f.delete();
+			fixtures.getDirectory().delete();
+			dir.delete();
+		}
+		catch (Throwable t) {
+			t.printStackTrace();
+		}
+		finally {
+			if ( server != null ) {
+				server.uninstall();
+				server.stop();
+			}
+		}
+		System.out.println(ok ? "PASSED" : "FAILED");
+		System.exit(ok ? 0 : 1);
+	}
+
+	/*
+	 * Render thread: the tile pass of AbstractQuadKeyLayer.loadTile
+	 */
+	void frame ()
+	{
+		final Random random = new Random();
+		final long start 	= System.nanoTime();
+
+		uploadBudget.reset();
+
+		for (int i = 0; i < tiles.length; i++)
+		{
+			final QuadKeyEarthTile tile = tiles[i];
+
+			if ( resident[i] ) {
+				// memory cache eviction: the layer starts over w/ a new tile
+				if ( chaos && random.nextInt(100) == 0 ) {
+					resident[i] = false;
+					tiles[i] 	= newTile(i);
+					evictions++;
+				}
+				continue;
+			}
+
+			if ( tile.getState() == QuadKeyEarthTile.State.DECODED )
+			{
+				final TextureData data = tile.getTextureData();
+
+				if ( data == null ) {
+					violations.incrementAndGet();
+					System.out.println("DECODED w/o texture data: " + tile);
+					continue;
+				}
+
+				if ( uploadBudget.acquire(data.getEstimatedMemorySize()) ) {
+					tile.resident();
+					resident[i] = true;
+					uploads++;
+				}
+			}
+			else if ( ! tile.isLoading() )
+			{
+				if ( tile.isStored() ) {
+					if ( tile.startDecode() )
+						tile.decode();
+				}
+				else
+					tile.download(null, ZOOM, this);
+			}
+		}
+		passTimes.record((System.nanoTime() - start) / 1000000);
+		frames++;
+
+		try {
+			Thread.sleep(5);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/*
+	 * Prefetch thread: races the render thread for absent tiles
+	 */
+	void prefetch ()
+	{
+		final Random random = new Random();
+
+		while ( running )
+		{
+			// read only: the render thread owns the slots (a stale tile is fine)
+			final QuadKeyEarthTile tile = tiles[random.nextInt(tiles.length)];
+
+			if ( tile.getState() == QuadKeyEarthTile.State.ABSENT && !tile.isStored() ) {
+				tile.download(null, ZOOM, this, true);
+				prefetches.incrementAndGet();
+			}
+			else
+				Thread.yield();
+		}
+	}
+
+	private int countResident () {
+		int n = 0;
+		for (boolean r : resident)
+			if ( r ) n++;
+		return n;
+	}
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.layers.quadkey;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Disk storage of quad key tile images. Tiles are identified by their 
+ * packed ID (see {@link TileId}) and their file name (tile key). A store 
+ * may use either one.
+ * Implementations must be thread safe: tiles are written by the download 
+ * threads & read by the decode threads. 
+ * 
+ * @see FileTileStore
+ * @see PackedTileStore
+ * @author vsilva
+ *
+ */
+public interface TileStore 
+{
+	/**
+	 * @param tileId Packed tile ID
+	 * @param tileKey Tile file name
+	 * @return true if the tile image is stored
+	 */
+	boolean contains (long tileId, String tileKey);
+	
+	/**
+	 * @param tileId Packed tile ID
+	 * @param tileKey Tile file name
+	 * @return tile image stream or null if not stored
+	 * @throws IOException
+	 */
+	InputStream openStream (long tileId, String tileKey) throws IOException;
+	
+	/**
+	 * @param tileId Packed tile ID
+	 * @param tileKey Tile file name
+	 * @return file holding the tile image alone (w/ its HTTP cache metadata)
+	 * or null if the tile is not stored as a single file 
+	 */
+	File getFile (long tileId, String tileKey);
+	
+	/**
+	 * @param tileId Packed tile ID
+	 * @param tileKey Tile file name
+	 * @return file to download a tile image into. See {@link #commit(long, String, File)}
+	 */
+	File newDownloadFile (long tileId, String tileKey);
+	
+	/**
+	 * Store a downloaded tile image. 
+	 * @param tileId Packed tile ID
+	 * @param tileKey Tile file name
+	 * @param file File returned by {@link #newDownloadFile(long, String)}
+	 * @throws IOException
+	 */
+	void commit (long tileId, String tileKey, File file) throws IOException;
+	
+	/**
+	 * Remove a tile (corrupt image)
+	 * @param tileId Packed tile ID
+	 * @param tileKey Tile file name
+	 */
+	void delete (long tileId, String tileKey);
+}
@@ -13,8 +13,8 @@ package org.eclipse.plugin.worldwind.contrib.layers.quadkey;
 
 //import org.apache.log4j.Logger;
 import org.eclipse.plugin.worldwind.contrib.Messages;
+import org.eclipse.plugin.worldwind.contrib.layers.DownloadScheduler;
 import org.eclipse.plugin.worldwind.contrib.layers.ScreenOverlayLayer;
-import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.render.DrawContext;
 import gov.nasa.worldwind.render.SurfaceTileRenderer;
 
@@ -87,30 +87,25 @@ public class VirtualEarthLayer extends AbstractQuadKeyLayer
 	}
 
 	
-	/**
-	 * Render a neighbor tile
-	 * @param tileX tile column
-	 * @param tileY tile row
-	 * @param zoomLevel
-	 * @param dc
-	 */
-	protected void renderNeighbor(int tileX, int tileY, int zoomLevel, DrawContext dc)
+	@Override
+	protected String buildTileKey(int tileX, int tileY, int zoomLevel) {
+		return mapType + TileToQuadKey(tileX, tileY, zoomLevel) + mapExtension;
+	}
+	
+	@Override
+	protected long parseTileKey(String fileName) 
 	{
-		String quadKey 		= TileToQuadKey(tileX, tileY, zoomLevel);
-		Sector sector 		= QuadKeyToSector(quadKey);
-		Sector visible		= dc.getVisibleSector();
-		Sector intersection = visible.intersection(sector);
+		final int dot = fileName.lastIndexOf('.');
 		
-		boolean insideView = intersection != null;
+		if ( ! fileName.startsWith(mapType) || dot < 0 )
+			return -1;
 		
-		if ( ! insideView ) {
-			return;
-		}
-		
-		
-		String tileURL = buildRequestUrl(quadKey, getMapType(), mapExtension);
-		
-		renderTile(dc, mapType + quadKey + mapExtension, tileURL, sector);
+		return TileId.fromQuadKey(fileName.substring(mapType.length(), dot), "0123");
+	}
+	
+	@Override
+	protected String buildTileUrl(int tileX, int tileY, int zoomLevel) {
+		return buildRequestUrl(TileToQuadKey(tileX, tileY, zoomLevel), getMapType(), mapExtension);
 	}
 	
 	/**
@@ -133,7 +128,10 @@ public class VirtualEarthLayer extends AbstractQuadKeyLayer
     public void setEnabled(boolean enabled) 
     {
     	super.setEnabled(enabled);
-    	if ( ! enabled ) loadingTiles.clear();
+    	if ( ! enabled ) {
+    		DownloadScheduler.getInstance().cancel(this);
+    		clearLoadingTiles();
+    	}
     }
     
 	
@@ -214,6 +212,6 @@ public class VirtualEarthLayer extends AbstractQuadKeyLayer
     			&& ! mapType.equalsIgnoreCase(MAP_ROAD)
     			&& ! mapType.equalsIgnoreCase(MAP_HYBRID) )
     		return;
-    	super.mapType = mapType;
+    	super.setMapType(mapType);
     }
 }
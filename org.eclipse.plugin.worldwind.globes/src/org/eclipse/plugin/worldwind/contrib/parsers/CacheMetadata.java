@@ -0,0 +1,301 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.parsers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+
+/**
+ * HTTP validators (ETag, Last-Modified) and freshness (Expires, Cache-Control max-age)
+ * of a resource stored in the WW cache. Saved as a properties file next to the
+ * cached resource: [resource].meta
+ *
+ * Used by {@link SimpleHTTPClient#doConditionalGet(File)} to revalidate cached
+ * resources with If-None-Match/If-Modified-Since, and as the marker of partial
+ * downloads resumed with Range/If-Range.
+ *
+ * @author vsilva
+ *
+ */
+public class CacheMetadata
+{
+	private static final Logger logger = Logger.getLogger(CacheMetadata.class);
+
+	public static final String SUFFIX = ".meta";
+
+	private static final String KEY_URL 			= "url";
+	private static final String KEY_ETAG 			= "etag";
+	private static final String KEY_LAST_MODIFIED 	= "last.modified";
+	private static final String KEY_EXPIRES 		= "expires";
+	private static final String KEY_FETCHED 		= "fetched";
+	private static final String KEY_LENGTH 			= "length";
+
+	private String url;
+	private String etag;
+
+	// milliseconds since epoch. 0 = unknown
+	private long lastModified;
+	private long expires;
+	private long fetched;
+	
+	// full length of the resource in bytes. -1 = unknown
+	private long contentLength = -1;
+
+	CacheMetadata() {
+	}
+
+	/**
+	 * Build metadata from the response headers of a connection
+	 * @param uc
+	 * @return
+	 */
+	static CacheMetadata fromConnection (HttpURLConnection uc)
+	{
+		CacheMetadata meta = new CacheMetadata();
+		meta.url 	= uc.getURL().toString();
+		meta.update(uc);
+		return meta;
+	}
+
+	/**
+	 * Refresh validators & freshness from a 200 or 304 response.
+	 * A 304 may omit validators, in that case the old ones are kept.
+	 */
+	void update (HttpURLConnection uc)
+	{
+		fetched = System.currentTimeMillis();
+
+		final String tag = uc.getHeaderField("ETag");
+		if ( tag != null ) etag = tag;
+
+		if ( uc.getLastModified() > 0 )
+			lastModified = uc.getLastModified();
+
+		// Cache-Control max-age has precedence over Expires
+		final long maxAge = parseMaxAge(uc.getHeaderField("Cache-Control"));
+
+		if ( maxAge >= 0 )
+			expires = fetched + maxAge * 1000;
+		else
+			expires = uc.getExpiration();
+	}
+
+	/*
+	 * Cache-Control: public, max-age=3600
+	 * @return max age in seconds or -1
+	 */
+	static long parseMaxAge (String cacheControl)
+	{
+		if ( cacheControl == null ) return -1;
+
+		for (String directive : cacheControl.split(","))
+		{
+			directive = directive.trim().toLowerCase();
+
+			if ( directive.startsWith("max-age=")) {
+				try {
+					return Long.parseLong(directive.substring(8).trim());
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+			if ( directive.equals("no-cache") || directive.equals("no-store"))
+				return 0;
+		}
+		return -1;
+	}
+
+	/**
+	 * Set the conditional GET request headers
+	 * @param uc connection (not yet connected)
+	 */
+	void setValidators (HttpURLConnection uc)
+	{
+		if ( etag != null )
+			uc.setRequestProperty("If-None-Match", etag);
+
+		if ( lastModified > 0 )
+			uc.setIfModifiedSince(lastModified);
+	}
+
+	/**
+	 * Validator for an If-Range header: a strong ETag or the Last-Modified date.
+	 * @return validator or null if the resource can't be safely resumed
+	 */
+	String getRangeValidator() 
+	{
+		if ( etag != null && !etag.startsWith("W/"))
+			return etag;
+		
+		if ( lastModified > 0 ) {
+			SimpleDateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+			fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return fmt.format(new Date(lastModified));
+		}
+		return null;
+	}
+	
+	/**
+	 * @return true if a conditional request can be built from this metadata
+	 */
+	public boolean hasValidators() {
+		return etag != null || lastModified > 0;
+	}
+
+	/**
+	 * Is the cached resource stale?
+	 * @param defaultTTL Time to live (ms) used when the server sent no Expires or max-age
+	 * @return true if the resource should be revalidated
+	 */
+	public boolean isStale (long defaultTTL)
+	{
+		final long now = System.currentTimeMillis();
+
+		if ( expires > 0 )
+			return now >= expires;
+
+		return now - fetched >= defaultTTL;
+	}
+
+	/**
+	 * @return URL the resource was fetched from
+	 */
+	public String getURL() {
+		return url;
+	}
+
+	public String getETag() {
+		return etag;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public long getExpires() {
+		return expires;
+	}
+
+	public long getFetched() {
+		return fetched;
+	}
+
+	/** @return full length of the resource or -1 if unknown */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	void setContentLength(long length) {
+		contentLength = length;
+	}
+
+	/*
+	 * Sidecar file
+	 */
+	public static File getFile (File resource) {
+		return new File(resource.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Load the metadata of a cached resource
+	 * @param resource cached file
+	 * @return metadata or null if the resource has no (valid) metadata
+	 */
+	public static CacheMetadata load (File resource)
+	{
+		final File file = getFile(resource);
+
+		if ( ! file.exists()) return null;
+
+		Properties props = new Properties();
+
+		try {
+			InputStream is = new FileInputStream(file);
+			try {
+				props.load(is);
+			}
+			finally {
+				is.close();
+			}
+
+			CacheMetadata meta 	= new CacheMetadata();
+			meta.url 			= props.getProperty(KEY_URL);
+			meta.etag 			= props.getProperty(KEY_ETAG);
+			meta.lastModified 	= Long.parseLong(props.getProperty(KEY_LAST_MODIFIED, "0"));
+			meta.expires 		= Long.parseLong(props.getProperty(KEY_EXPIRES, "0"));
+			meta.fetched 		= Long.parseLong(props.getProperty(KEY_FETCHED, "0"));
+			meta.contentLength 	= Long.parseLong(props.getProperty(KEY_LENGTH, "-1"));
+			return meta;
+		}
+		catch (Exception e) {
+			logger.error("Invalid cache metadata " + file + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Save next to the cached resource
+	 * @param resource
+	 */
+	public void save (File resource)
+	{
+		Properties props = new Properties();
+
+		if ( url != null ) 	props.setProperty(KEY_URL, url);
+		if ( etag != null ) props.setProperty(KEY_ETAG, etag);
+
+		props.setProperty(KEY_LAST_MODIFIED, String.valueOf(lastModified));
+		props.setProperty(KEY_EXPIRES, String.valueOf(expires));
+		props.setProperty(KEY_FETCHED, String.valueOf(fetched));
+		props.setProperty(KEY_LENGTH, String.valueOf(contentLength));
+
+		try {
+			OutputStream os = new FileOutputStream(getFile(resource));
+			try {
+				props.store(os, null);
+			}
+			finally {
+				os.close();
+			}
+		} catch (IOException e) {
+			logger.error("Unable to save cache metadata for " + resource + ": " + e);
+		}
+	}
+
+	/**
+	 * Remove the metadata of a resource
+	 * @param resource
+	 */
+	public static void delete (File resource) {
+		File file = getFile(resource);
+
+		if ( file.exists() )
+			file.delete();
+	}
+
+	@Override
+	public String toString() {
+		return "url=" + url + " etag=" + etag + " lm=" + lastModified
+			+ " expires=" + expires + " fetched=" + fetched;
+	}
+}
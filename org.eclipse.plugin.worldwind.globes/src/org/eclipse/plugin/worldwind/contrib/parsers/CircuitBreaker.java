@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.parsers;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Circuit breaker for a remote host.
+ * <ul>
+ * <li>CLOSED: requests flow. After <i>threshold</i> consecutive failures the circuit opens.
+ * <li>OPEN: requests are refused until an exponential backoff (with jitter) expires.
+ * <li>HALF_OPEN: a single trial request is let through. Success closes the circuit,
+ * failure opens it again with a longer backoff.
+ * </ul>
+ * @author vsilva
+ *
+ */
+public class CircuitBreaker
+{
+	private static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+	public static enum State { CLOSED, OPEN, HALF_OPEN };
+
+	/**
+	 * Time source of the breaker, so pauses can be checked w/o waiting
+	 */
+	public static interface Clock {
+		/** @return current time in ms */
+		long currentTimeMillis();
+	}
+
+	/** The system clock */
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	private static final Random random = new Random();
+
+	private final String name;
+	private Clock clock = SYSTEM_CLOCK;
+
+	private int threshold 	= 3;
+	private long baseDelay 	= 1000;
+	private long maxDelay 	= 120000;
+
+	private State state = State.CLOSED;
+
+	// consecutive failures
+	private int failures;
+
+	// # of times the circuit opened in a row (backoff exponent)
+	private int trips;
+
+	private long openUntil;
+	private boolean trialInFlight;
+
+	/**
+	 * @param name Host name used for logging
+	 */
+	public CircuitBreaker(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Exponential backoff w/ "equal" jitter: half the delay is fixed,
+	 * the other half random. Prevents clients from retrying in lock-step.
+	 * @param attempt failed attempt # (1 based)
+	 * @param base Delay after the first failure (ms)
+	 * @param max Max delay (ms)
+	 * @return delay in ms
+	 */
+	public static long backoff (int attempt, long base, long max)
+	{
+		final int shift = Math.min(Math.max(attempt - 1, 0), 30);
+		final long delay = Math.min(base << shift, max);
+		final long half	= delay / 2;
+
+		return half + (long)(random.nextDouble() * (delay - half));
+	}
+
+	/**
+	 * May a request be sent? In HALF_OPEN only one trial request is allowed;
+	 * the caller must report its outcome with {@link #onSuccess()} or {@link #onFailure()}.
+	 * @return false if the circuit is open
+	 */
+	public synchronized boolean allowRequest()
+	{
+		switch (state)
+		{
+		case CLOSED:
+			return true;
+
+		case OPEN:
+			if ( currentTime() < openUntil )
+				return false;
+
+			logger.debug(name + " half open. Sending trial request.");
+			state 			= State.HALF_OPEN;
+			trialInFlight 	= true;
+			return true;
+
+		default:
+			if ( trialInFlight )
+				return false;
+			trialInFlight = true;
+			return true;
+		}
+	}
+
+	/**
+	 * Like {@link #allowRequest()} w/o reserving the trial request.
+	 * Used by render loops to skip work for a host that is down.
+	 */
+	public synchronized boolean isAvailable() {
+		switch (state) {
+		case CLOSED: 	return true;
+		case OPEN:		return currentTime() >= openUntil;
+		default:		return ! trialInFlight;
+		}
+	}
+
+	public synchronized void onSuccess()
+	{
+		if ( state != State.CLOSED )
+			logger.debug(name + " recovered after " + trips + " trips");
+
+		state 			= State.CLOSED;
+		failures 		= 0;
+		trips 			= 0;
+		trialInFlight 	= false;
+	}
+
+	/**
+	 * A request let thru by {@link #allowRequest()} was not sent (e.g. no free
+	 * connection). Neither a success nor a failure: the half open trial is given back.
+	 */
+	public synchronized void onCanceled() {
+		trialInFlight = false;
+	}
+
+	public synchronized void onFailure()
+	{
+		failures++;
+		trialInFlight = false;
+
+		if ( state == State.HALF_OPEN || failures >= threshold )
+		{
+			trips++;
+			state 		= State.OPEN;
+			openUntil 	= currentTime() + backoff(trips, baseDelay, maxDelay);
+
+			logger.error(name + " unavailable after " + failures + " failures. Paused for "
+					+ (openUntil - currentTime()) + " ms");
+		}
+	}
+
+	private long currentTime() {
+		return clock.currentTimeMillis();
+	}
+
+	/**
+	 * @param clock Time source used for the pauses (default {@link #SYSTEM_CLOCK})
+	 */
+	public synchronized void setClock (Clock clock) {
+		this.clock = clock != null ? clock : SYSTEM_CLOCK;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized int getFailures() {
+		return failures;
+	}
+
+	/** @return ms until the next request is allowed, 0 if available */
+	public synchronized long getRetryDelay() {
+		return state == State.OPEN ? Math.max(openUntil - currentTime(), 0) : 0;
+	}
+
+	/**
+	 * @param threshold consecutive failures that open the circuit
+	 * @param baseDelay pause (ms) after the first trip
+	 * @param maxDelay max pause (ms)
+	 */
+	public synchronized void configure (int threshold, long baseDelay, long maxDelay) {
+		if ( threshold < 1 || baseDelay < 1 || maxDelay < baseDelay )
+			throw new IllegalArgumentException("Invalid circuit breaker settings");
+
+		this.threshold 	= threshold;
+		this.baseDelay 	= baseDelay;
+		this.maxDelay 	= maxDelay;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return name + " " + state + " failures=" + failures + " trips=" + trips;
+	}
+}
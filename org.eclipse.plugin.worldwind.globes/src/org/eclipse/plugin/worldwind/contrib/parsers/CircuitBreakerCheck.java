@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.parsers;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Checks the host {@link CircuitBreaker}s of the {@link HTTPConnectionPool}
+ * against a local {@link HTTPFixtureServer} that injects errors. Pauses
+ * are expired with a manual {@link CircuitBreaker.Clock}, so the run takes
+ * a few seconds. Prints a line per check and exits with 1 on failure.
+ * <pre>
+ * java ...CircuitBreakerCheck
+ * </pre>
+ * @author vsilva
+ *
+ */
+public class CircuitBreakerCheck
+{
+	static final String URL = "http://breaker.check/tile.png";
+
+	// Manual time source
+	static class ManualClock implements CircuitBreaker.Clock
+	{
+		long now = 1000000;
+
+		public synchronized long currentTimeMillis() {
+			return now;
+		}
+
+		synchronized void advance(long millis) {
+			now += millis;
+		}
+	}
+
+	private static int failures;
+
+	public static void main(String[] args)
+	{
+		HTTPFixtureServer server = null;
+
+		try {
+			final File dir = File.createTempFile("breaker", "");
+			dir.delete();
+
+			HTTPFixtureStore store = new HTTPFixtureStore(new File(dir, "fixtures"));
+
+			HTTPFixtureStore.Fixture f = new HTTPFixtureStore.Fixture();
+			f.url 		= URL;
+			f.status 	= 200;
+			f.message 	= "OK";
+			f.body 		= "tile".getBytes();
+			f.headers.add("Content-Type: image/png");
+			store.save("GET", f);
+
+			server = new HTTPFixtureServer(store, HTTPFixtureServer.Mode.REPLAY);
+			server.start(0);
+			server.install();
+
+			final ManualClock clock 		= new ManualClock();
+			final HTTPConnectionPool pool 	= HTTPConnectionPool.getInstance();
+			final URL url 					= new URL(URL);
+
+			pool.setClock(clock);
+			pool.setCircuitBreaker(3, 1000, 8000);
+
+			final CircuitBreaker breaker = pool.getCircuitBreaker(url);
+
+			// Backoff w/ jitter stays within [delay/2, delay]
+			boolean inRange = true;
+			for (int attempt = 1; attempt <= 10; attempt++) {
+				final long delay = Math.min(1000L << (attempt - 1), 8000);
+				final long d = CircuitBreaker.backoff(attempt, 1000, 8000);
+				inRange &= d >= delay / 2 && d <= delay;
+			}
+			check("backoff within [delay/2, delay]", inRange);
+
+			// Server errors open the circuit after 3 failures
+			server.setInjectedErrors(503, 1);
+
+			for (int i = 0; i < 3; i++)
+				get(url);
+
+			check("3 x 503 open the circuit", breaker.getState() == CircuitBreaker.State.OPEN);
+
+			long served = server.getInjectedCount();
+			check("open circuit fails fast", get(url) == -1 && server.getInjectedCount() == served);
+
+			// Pause expired: the half open trial fails, longer pause
+			clock.advance(8000);
+			get(url);
+			check("trial request sent after the pause", server.getInjectedCount() == served + 1);
+			check("failed trial opens the circuit", breaker.getState() == CircuitBreaker.State.OPEN);
+
+			// Dropped connections are host failures too
+			server.setInjectedErrors(0, 1);
+			clock.advance(8000);
+			get(url);
+			check("dropped connection keeps it open", breaker.getState() == CircuitBreaker.State.OPEN);
+
+			// Host back: the trial succeeds
+			server.setInjectedErrors(0, 0);
+			clock.advance(8000);
+			check("successful trial", get(url) == 200);
+			check("success closes the circuit", breaker.getState() == CircuitBreaker.State.CLOSED
+					&& breaker.getFailures() == 0);
+
+			// Local problems are not host failures: no free connection in time
+			pool.setAcquireTimeout(100);
+
+			HttpURLConnection[] held = new HttpURLConnection[pool.getMaxConnectionsPerHost()];
+			for (int i = 0; i < held.length; i++)
+				held[i] = pool.open(url);
+
+			for (int i = 0; i < 3; i++) {
+				try {
+					pool.open(url);
+				} catch (IOException e) {
+				}
+			}
+			for (HttpURLConnection uc : held)
+				pool.release(uc, false);
+
+			pool.setAcquireTimeout(30000);
+			check("connection timeouts don't count", breaker.getFailures() == 0
+					&& breaker.getState() == CircuitBreaker.State.CLOSED);
+
+			// ... nor disk errors: the destination can't be replaced (non empty folder)
+			final File target = new File(dir, "tile.png");
+			new File(target, "child").mkdirs();
+
+			for (int i = 0; i < 3; i++) {
+				try {
+					SimpleHTTPClient client = new SimpleHTTPClient(url);
+					client.doGet(target);
+				} catch (IOException e) {
+				}
+			}
+			check("write errors don't count", breaker.getFailures() == 0
+					&& breaker.getState() == CircuitBreaker.State.CLOSED);
+
+			new File(target, "child").delete();
+			target.delete();
+
+			for (File fx : store.getDirectory().listFiles())
+				fx.delete();
+			store.getDirectory().delete();
+			dir.delete();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			failures++;
+		}
+		finally {
+			HTTPConnectionPool.getInstance().setClock(null);
+
+			if ( server != null ) {
+				server.uninstall();
+				server.stop();
+			}
+		}
+		System.out.println(failures == 0 ? "All checks passed" : failures + " check(s) FAILED");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/*
+	 * @return HTTP status, -1 if the request failed w/o response
+	 */
+	private static int get (URL url)
+	{
+		SimpleHTTPClient client = null;
+		try {
+			client = new SimpleHTTPClient(url);
+			client.doGet();
+			return client.getStatus();
+		}
+		catch (IOException e) {
+			return client != null && client.getStatus() > 0 ? client.getStatus() : -1;
+		}
+	}
+
+	private static void check (String name, boolean ok)
+	{
+		System.out.println((ok ? "OK     " : "FAILED ") + name);
+		if ( ! ok ) failures++;
+	}
+}
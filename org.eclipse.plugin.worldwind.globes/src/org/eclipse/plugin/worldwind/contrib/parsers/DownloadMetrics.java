@@ -0,0 +1,409 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.parsers;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process wide download telemetry recorded by {@link SimpleHTTPClient}:
+ * request counts, bytes, time to first byte & total latency histograms
+ * per host and per layer, errors by HTTP status and requests in flight.
+ *
+ * <p>Registered in the platform MBean server as
+ * <code>org.eclipse.plugin.worldwind:type=DownloadMetrics</code></p>
+ *
+ * @author vsilva
+ *
+ */
+public class DownloadMetrics implements DownloadMetricsMBean
+{
+	private static final Logger logger = Logger.getLogger(DownloadMetrics.class);
+
+	public static final String OBJECT_NAME = "org.eclipse.plugin.worldwind:type=DownloadMetrics";
+
+	// Status used for I/O errors (no HTTP response)
+	public static final int STATUS_IO_ERROR = -1;
+
+	private final Stats total = new Stats("total");
+
+	private final ConcurrentHashMap<String, Stats> hosts 	= new ConcurrentHashMap<String, Stats>();
+	private final ConcurrentHashMap<String, Stats> layers 	= new ConcurrentHashMap<String, Stats>();
+
+	private final ConcurrentHashMap<Integer, AtomicLong> errorsByStatus
+		= new ConcurrentHashMap<Integer, AtomicLong>();
+
+	private static final DownloadMetrics instance = new DownloadMetrics();
+
+	/**
+	 * Latency histogram w/ fixed buckets (ms)
+	 */
+	public static class Histogram
+	{
+		static final long[] BOUNDS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+		// last bucket: > 30 s
+		private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+		private final AtomicLong count 	= new AtomicLong();
+		private final AtomicLong sum 	= new AtomicLong();
+		private final AtomicLong max 	= new AtomicLong();
+
+		public void record (long millis)
+		{
+			int i = 0;
+			while ( i < BOUNDS.length && millis > BOUNDS[i] ) i++;
+
+			buckets.incrementAndGet(i);
+			count.incrementAndGet();
+			sum.addAndGet(millis);
+
+			long m;
+			while ( millis > (m = max.get()) && !max.compareAndSet(m, millis) );
+		}
+
+		/**
+		 * @param p percentile 0..1
+		 * @return upper bound (ms) of the bucket holding the percentile. 0 if empty
+		 */
+		public long getPercentile (double p)
+		{
+			final long n = count.get();
+			if ( n == 0 ) return 0;
+
+			final long rank = (long)Math.ceil(p * n);
+			long seen = 0;
+
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+
+				if ( seen >= rank )
+					return i < BOUNDS.length ? Math.min(BOUNDS[i], max.get()) : max.get();
+			}
+			return max.get();
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getMean() {
+			final long n = count.get();
+			return n > 0 ? sum.get() / n : 0;
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		public void reset() {
+			for (int i = 0; i < buckets.length(); i++) buckets.set(i, 0);
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+	}
+
+	/**
+	 * Counters of a host, layer or the whole process
+	 */
+	public static class Stats
+	{
+		final String name;
+		final AtomicLong requests 		= new AtomicLong();
+		final AtomicLong errors 		= new AtomicLong();
+		final AtomicLong bytesRead 		= new AtomicLong();
+		final AtomicLong wireBytes 		= new AtomicLong();
+		final AtomicInteger inFlight 	= new AtomicInteger();
+		final Histogram ttfb 			= new Histogram();
+		final Histogram latency 		= new Histogram();
+
+		Stats(String name) {
+			this.name = name;
+		}
+
+		void record (boolean error, long bytes, long wire, long ttfbMillis, long latencyMillis)
+		{
+			requests.incrementAndGet();
+			if ( error ) errors.incrementAndGet();
+
+			bytesRead.addAndGet(bytes);
+			wireBytes.addAndGet(wire);
+
+			if ( ttfbMillis >= 0 ) ttfb.record(ttfbMillis);
+			latency.record(latencyMillis);
+		}
+
+		void reset() {
+			requests.set(0);
+			errors.set(0);
+			bytesRead.set(0);
+			wireBytes.set(0);
+			ttfb.reset();
+			latency.reset();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getRequests() {
+			return requests.get();
+		}
+
+		public long getErrors() {
+			return errors.get();
+		}
+
+		public long getBytesRead() {
+			return bytesRead.get();
+		}
+
+		public long getWireBytes() {
+			return wireBytes.get();
+		}
+
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		public Histogram getTimeToFirstByte() {
+			return ttfb;
+		}
+
+		public Histogram getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			return name + " req=" + requests + " err=" + errors + " inflight=" + inFlight
+				+ " bytes=" + bytesRead + " wire=" + wireBytes
+				+ " ttfb p50/p95=" + ttfb.getPercentile(0.5) + "/" + ttfb.getPercentile(0.95)
+				+ " latency p50/p95/max=" + latency.getPercentile(0.5) + "/"
+				+ latency.getPercentile(0.95) + "/" + latency.getMax() + " ms";
+		}
+	}
+
+	private DownloadMetrics() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+
+			if ( ! server.isRegistered(name))
+				server.registerMBean(this, name);
+		}
+		catch (Exception e) {
+			logger.error("Unable to register " + OBJECT_NAME + ": " + e);
+		}
+	}
+
+	public static DownloadMetrics getInstance() {
+		return instance;
+	}
+
+	private static Stats getStats (ConcurrentHashMap<String, Stats> map, String key)
+	{
+		Stats stats = map.get(key);
+
+		if ( stats == null ) {
+			Stats prev = map.putIfAbsent(key, stats = new Stats(key));
+			if ( prev != null ) stats = prev;
+		}
+		return stats;
+	}
+
+	/**
+	 * A request was sent
+	 * @param host
+	 * @param layer Layer name or null
+	 */
+	void requestStarted (String host, String layer)
+	{
+		total.inFlight.incrementAndGet();
+		getStats(hosts, host).inFlight.incrementAndGet();
+
+		if ( layer != null )
+			getStats(layers, layer).inFlight.incrementAndGet();
+	}
+
+	/**
+	 * A request completed (or failed)
+	 * @param host
+	 * @param layer Layer name or null
+	 * @param status HTTP status or {@link #STATUS_IO_ERROR}
+	 * @param bytes Decoded body bytes
+	 * @param wire Body bytes received
+	 * @param ttfb Time to first byte (ms). -1 if no response was received
+	 * @param latency Total time (ms)
+	 */
+	void requestFinished (String host, String layer, int status, long bytes, long wire
+			, long ttfb, long latency)
+	{
+		final boolean error = status <= 0 || status >= 400;
+
+		if ( error ) {
+			AtomicLong n = errorsByStatus.get(status);
+
+			if ( n == null ) {
+				AtomicLong prev = errorsByStatus.putIfAbsent(status, n = new AtomicLong());
+				if ( prev != null ) n = prev;
+			}
+			n.incrementAndGet();
+		}
+
+		total.inFlight.decrementAndGet();
+		total.record(error, bytes, wire, ttfb, latency);
+
+		Stats h = getStats(hosts, host);
+		h.inFlight.decrementAndGet();
+		h.record(error, bytes, wire, ttfb, latency);
+
+		if ( layer != null ) {
+			Stats l = getStats(layers, layer);
+			l.inFlight.decrementAndGet();
+			l.record(error, bytes, wire, ttfb, latency);
+		}
+	}
+
+	/** @return process wide counters */
+	public Stats getTotal() {
+		return total;
+	}
+
+	/** @return counters of a host or null */
+	public Stats getHostStats (String host) {
+		return hosts.get(host);
+	}
+
+	/** @return counters of a layer or null */
+	public Stats getLayerStats (String layer) {
+		return layers.get(layer);
+	}
+
+	/** @return status code -> count */
+	public Map<Integer, Long> getErrorCounts() {
+		Map<Integer, Long> map = new TreeMap<Integer, Long>();
+
+		for (Map.Entry<Integer, AtomicLong> e : errorsByStatus.entrySet())
+			map.put(e.getKey(), e.getValue().get());
+
+		return map;
+	}
+
+	/*
+	 * MBean
+	 */
+	public long getRequestCount() {
+		return total.requests.get();
+	}
+
+	public int getInFlight() {
+		return total.inFlight.get();
+	}
+
+	public long getErrorCount() {
+		return total.errors.get();
+	}
+
+	public long getBytesRead() {
+		return total.bytesRead.get();
+	}
+
+	public long getWireBytes() {
+		return total.wireBytes.get();
+	}
+
+	public double getCompressionRatio() {
+		final long wire = total.wireBytes.get();
+		return wire > 0 ? (double)total.bytesRead.get() / wire : 1;
+	}
+
+	public long getLatencyP50() {
+		return total.latency.getPercentile(0.5);
+	}
+
+	public long getLatencyP95() {
+		return total.latency.getPercentile(0.95);
+	}
+
+	public long getLatencyP99() {
+		return total.latency.getPercentile(0.99);
+	}
+
+	public long getTimeToFirstByteP50() {
+		return total.ttfb.getPercentile(0.5);
+	}
+
+	public long getTimeToFirstByteP95() {
+		return total.ttfb.getPercentile(0.95);
+	}
+
+	public String getErrorsByStatus() {
+		return getErrorCounts().toString();
+	}
+
+	public String[] getHostSummary() {
+		return summary(hosts);
+	}
+
+	public String[] getLayerSummary() {
+		return summary(layers);
+	}
+
+	private static String[] summary (Map<String, Stats> map) {
+		List<String> lines = new ArrayList<String>();
+
+		for (Stats s : new TreeMap<String, Stats>(map).values())
+			lines.add(s.toString());
+
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * Reset counters & histograms. Requests in flight are kept.
+	 */
+	public void reset() {
+		total.reset();
+		for (Stats s : hosts.values()) s.reset();
+		for (Stats s : layers.values()) s.reset();
+		errorsByStatus.clear();
+	}
+
+	/**
+	 * Compact one line readout for status bars, e.g:
+	 * <pre>Net: 3 active | 812 req 24.1 MB | p50 120 p95 900 ms | 2 err</pre>
+	 */
+	public String getReadout()
+	{
+		return "Net: " + total.inFlight + " active | "
+			+ total.requests + " req "
+			+ String.format("%.1f MB", total.bytesRead.get() / (1024.0 * 1024.0)) + " | "
+			+ "p50 " + getLatencyP50() + " p95 " + getLatencyP95() + " ms | "
+			+ total.errors + " err";
+	}
+
+	@Override
+	public String toString() {
+		return total.toString();
+	}
+}
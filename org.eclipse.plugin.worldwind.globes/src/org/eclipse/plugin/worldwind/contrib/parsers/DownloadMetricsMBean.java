@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.parsers;
+
+/**
+ * JMX view of the {@link DownloadMetrics}. Times are in milliseconds.
+ * @author vsilva
+ *
+ */
+public interface DownloadMetricsMBean
+{
+	public long getRequestCount();
+	public int getInFlight();
+	public long getErrorCount();
+
+	public long getBytesRead();
+	public long getWireBytes();
+	public double getCompressionRatio();
+
+	public long getLatencyP50();
+	public long getLatencyP95();
+	public long getLatencyP99();
+	public long getTimeToFirstByteP50();
+	public long getTimeToFirstByteP95();
+
+	/** @return status code=count. -1 = I/O error (no response) */
+	public String getErrorsByStatus();
+
+	/** @return one line per host */
+	public String[] getHostSummary();
+
+	/** @return one line per layer */
+	public String[] getLayerSummary();
+
+	public void reset();
+}
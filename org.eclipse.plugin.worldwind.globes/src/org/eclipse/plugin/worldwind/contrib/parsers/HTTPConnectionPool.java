@@ -0,0 +1,417 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.parsers;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process wide HTTP connection pool shared by all {@link SimpleHTTPClient}s.
+ *
+ * <p>Sockets are kept alive by the JDK's HTTP keep-alive cache as long as
+ * the response body is fully read and the connection is not disconnected.
+ * This pool limits the number of concurrent connections per host (the
+ * keep-alive cache holds at most that many idle sockets per host) and keeps
+ * occupancy/reuse statistics.</p>
+ *
+ * <p>Each host has a {@link CircuitBreaker}. Connection errors, 5xx and 429
+ * responses count as failures; a host that keeps failing is paused with an
+ * exponential backoff and {@link #open(URL)} fails fast until the pause expires.
+ * Local problems (no free connection in time, interrupted downloads, disk
+ * errors) are not failures of the host.</p>
+ *
+ * <p>The JDK does not tell whether a socket came from the keep-alive cache,
+ * thus reuse is counted when a request starts while a cleanly finished
+ * connection to the same host is idle within the keep-alive timeout.</p>
+ *
+ * @author vsilva
+ *
+ */
+public class HTTPConnectionPool
+{
+	private static final Logger logger = Logger.getLogger(HTTPConnectionPool.class);
+
+	// Default max # of concurrent connections per host
+	public static final int DEFAULT_MAX_PER_HOST = 4;
+
+	// JDK default keep-alive timeout when the server doesn't send one (ms)
+	static final long KEEP_ALIVE_TIMEOUT = 5000;
+
+	// Max time to wait for a free connection (ms)
+	private long acquireTimeout = 30000;
+
+	private int maxPerHost = DEFAULT_MAX_PER_HOST;
+	
+	// Circuit breaker settings: consecutive failures, min/max pause (ms)
+	private int failureThreshold 	= 3;
+	private long minPause 			= 1000;
+	private long maxPause 			= 120000;
+	private CircuitBreaker.Clock clock = CircuitBreaker.SYSTEM_CLOCK;
+
+	private final ConcurrentHashMap<String, HostEntry> hosts
+		= new ConcurrentHashMap<String, HostEntry>();
+
+	private final AtomicLong requests 	= new AtomicLong();
+	private final AtomicLong reused 	= new AtomicLong();
+
+	private static final HTTPConnectionPool instance = new HTTPConnectionPool();
+
+	/**
+	 * Connection bookkeeping for a host:port
+	 */
+	static class HostEntry
+	{
+		final String host;
+		final Semaphore permits;
+		final AtomicInteger active 	= new AtomicInteger();
+		final AtomicLong requests 	= new AtomicLong();
+		final AtomicLong reused 	= new AtomicLong();
+		final CircuitBreaker breaker;
+
+		// cleanly finished connections and when they became idle
+		int idle;
+		long lastIdle;
+
+		HostEntry(String host, int max) {
+			this.host = host;
+			this.permits = new Semaphore(max, true);
+			this.breaker = new CircuitBreaker(host);
+		}
+
+		/** @return true if an idle keep-alive connection was (probably) taken */
+		synchronized boolean takeIdle() {
+			if ( idle > 0 && System.currentTimeMillis() - lastIdle < KEEP_ALIVE_TIMEOUT) {
+				idle--;
+				return true;
+			}
+			idle = 0;
+			return false;
+		}
+
+		synchronized void putIdle(int max) {
+			if ( idle < max ) idle++;
+			lastIdle = System.currentTimeMillis();
+		}
+
+		synchronized int getIdle() {
+			return System.currentTimeMillis() - lastIdle < KEEP_ALIVE_TIMEOUT ? idle : 0;
+		}
+
+		@Override
+		public String toString() {
+			return host + " active=" + active + " idle=" + getIdle()
+				+ " requests=" + requests + " reused=" + reused
+				+ " " + breaker.getState();
+		}
+	}
+
+	private HTTPConnectionPool() {
+		// Keep-alive is on by default. The # of idle sockets cached per host
+		// is read once by the JDK. Don't override user settings.
+		if ( System.getProperty("http.keepAlive") == null)
+			System.setProperty("http.keepAlive", "true");
+
+		if ( System.getProperty("http.maxConnections") == null)
+			System.setProperty("http.maxConnections", String.valueOf(DEFAULT_MAX_PER_HOST));
+	}
+
+	public static HTTPConnectionPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param url
+	 * @return key of the URL host in this pool: protocol://host:port
+	 */
+	public static String hostKey (URL url) {
+		final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		return url.getProtocol() + "://" + url.getHost() + ":" + port;
+	}
+
+	private HostEntry getHost(URL url)
+	{
+		final String key = hostKey(url);
+		HostEntry entry = hosts.get(key);
+
+		if ( entry == null ) {
+			entry = new HostEntry(key, maxPerHost);
+			entry.breaker.configure(failureThreshold, minPause, maxPause);
+			entry.breaker.setClock(clock);
+			
+			HostEntry prev = hosts.putIfAbsent(key, entry);
+
+			if ( prev != null )
+				entry = prev;
+		}
+		return entry;
+	}
+
+	/**
+	 * Open a connection to a URL. Blocks while the max # of connections
+	 * to the URL host are busy. Every connection returned by this method
+	 * must be given back with {@link #release(HttpURLConnection, boolean, boolean)}
+	 * @param url
+	 * @return
+	 * @throws IOException if the host is paused by its circuit breaker, 
+	 * no connection became available or the URL can't be opened
+	 */
+	public HttpURLConnection open (URL url) throws IOException
+	{
+		final HostEntry entry = getHost(url);
+
+		if ( ! entry.breaker.allowRequest() )
+			throw new IOException("Host " + entry.host + " unavailable. Retry in " 
+					+ entry.breaker.getRetryDelay() + " ms");
+		
+		// our own congestion or a cancel: not the host's fault
+		try {
+			if ( ! entry.permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+				releaseTrial(entry);
+				throw new IOException("Timeout waiting for a connection to " + entry.host
+						+ " (" + entry.active + " busy)");
+			}
+		} catch (InterruptedException e) {
+			releaseTrial(entry);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a connection to " + entry.host);
+		}
+
+		try {
+			HttpURLConnection uc = (HttpURLConnection)url.openConnection();
+
+			entry.active.incrementAndGet();
+			entry.requests.incrementAndGet();
+			requests.incrementAndGet();
+
+			if ( entry.takeIdle() ) {
+				entry.reused.incrementAndGet();
+				reused.incrementAndGet();
+			}
+			return uc;
+		}
+		catch (IOException e) {
+			// openConnection() doesn't connect: bad URL/protocol
+			entry.permits.release();
+			releaseTrial(entry);
+			throw e;
+		}
+	}
+
+	/*
+	 * A request let thru by the breaker never reached the host:
+	 * give the half open trial back w/o counting a failure
+	 */
+	private static void releaseTrial (HostEntry entry) {
+		entry.breaker.onCanceled();
+	}
+
+	/**
+	 * Give a connection back to the pool.
+	 * @param uc Connection obtained from {@link #open(URL)}
+	 * @param keepAlive true if the response body was fully read and its stream closed.
+	 * The socket stays in the JDK keep-alive cache. Else the connection is dropped.
+	 */
+	public void release (HttpURLConnection uc, boolean keepAlive) {
+		release(uc, keepAlive, false);
+	}
+
+	/**
+	 * Give a connection back to the pool and report the outcome to the host's circuit breaker.
+	 * @param uc Connection obtained from {@link #open(URL)}
+	 * @param keepAlive true if the response body was fully read and its stream closed.
+	 * @param hostFailure true if the request failed because of the host: connection error,
+	 * timeout, 5xx or 429 (Too Many Requests) response.
+	 */
+	public void release (HttpURLConnection uc, boolean keepAlive, boolean hostFailure)
+	{
+		if ( uc == null ) return;
+
+		final HostEntry entry = hosts.get(hostKey(uc.getURL()));
+
+		if ( entry != null ) {
+			if ( hostFailure ) 
+				entry.breaker.onFailure();
+			else
+				entry.breaker.onSuccess();
+		}
+
+		if ( keepAlive ) {
+			if ( entry != null ) entry.putIdle(maxPerHost);
+		}
+		else {
+			uc.disconnect();
+		}
+
+		if ( entry != null ) {
+			entry.active.decrementAndGet();
+			entry.permits.release();
+		}
+	}
+
+	/**
+	 * Set the max # of concurrent connections per host. Applies to hosts
+	 * contacted after this call.
+	 * @param max
+	 */
+	public void setMaxConnectionsPerHost(int max) {
+		if ( max < 1 )
+			throw new IllegalArgumentException("Invalid max connections per host " + max);
+		maxPerHost = max;
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return maxPerHost;
+	}
+
+	public void setAcquireTimeout(long millis) {
+		acquireTimeout = millis;
+	}
+
+	/**
+	 * Time source of the host circuit breakers. Lets checks
+	 * expire pauses w/o waiting.
+	 * @param clock Clock or null for the system clock
+	 */
+	public void setClock (CircuitBreaker.Clock clock) {
+		this.clock = clock != null ? clock : CircuitBreaker.SYSTEM_CLOCK;
+
+		for (HostEntry e : hosts.values())
+			e.breaker.setClock(this.clock);
+	}
+
+	/**
+	 * Circuit breaker settings for all hosts
+	 * @param threshold consecutive failures that pause a host
+	 * @param minPause pause (ms) after the first trip. Doubles on each trip, plus jitter.
+	 * @param maxPause max pause (ms)
+	 */
+	public void setCircuitBreaker(int threshold, long minPause, long maxPause) {
+		failureThreshold 	= threshold;
+		this.minPause 		= minPause;
+		this.maxPause 		= maxPause;
+
+		for (HostEntry e : hosts.values())
+			e.breaker.configure(threshold, minPause, maxPause);
+	}
+
+	/**
+	 * Is the host of a URL accepting requests? Does not reserve the half open trial request.
+	 * @param url
+	 * @return false if the host is paused by its circuit breaker
+	 */
+	public boolean isAvailable (URL url) {
+		final HostEntry entry = hosts.get(hostKey(url));
+		return entry == null || entry.breaker.isAvailable();
+	}
+
+	/**
+	 * Can a connection to the host of a URL be opened without waiting?
+	 * @param url
+	 * @return false if all the connections to the host are busy
+	 */
+	public boolean hasCapacity (URL url) {
+		final HostEntry entry = hosts.get(hostKey(url));
+		return entry == null || entry.permits.availablePermits() > 0;
+	}
+
+	/**
+	 * @return the circuit breaker of a URL's host
+	 */
+	public CircuitBreaker getCircuitBreaker (URL url) {
+		return getHost(url).breaker;
+	}
+
+	/*
+	 * Statistics
+	 */
+
+	/** @return Number of connections in use across all hosts */
+	public int getActiveConnections() {
+		int n = 0;
+		for (HostEntry e : hosts.values()) n += e.active.get();
+		return n;
+	}
+
+	/** @return Number of idle keep-alive connections across all hosts */
+	public int getIdleConnections() {
+		int n = 0;
+		for (HostEntry e : hosts.values()) n += e.getIdle();
+		return n;
+	}
+
+	/** @return hosts currently paused by their circuit breaker */
+	public java.util.List<String> getUnavailableHosts() {
+		java.util.List<String> list = new java.util.ArrayList<String>();
+
+		for (HostEntry e : hosts.values())
+			if ( ! e.breaker.isAvailable() ) list.add(e.host);
+
+		return list;
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	/** @return Fraction (0..1) of requests served by a kept-alive connection */
+	public double getReuseRate() {
+		final long n = requests.get();
+		return n > 0 ? (double)reused.get() / n : 0;
+	}
+
+	/**
+	 * @return per host occupancy: host -> {active, idle, requests, reused}
+	 */
+	public Map<String, long[]> getHostStatistics() {
+		Map<String, long[]> stats = new java.util.TreeMap<String, long[]>();
+
+		for (HostEntry e : hosts.values()) {
+			stats.put(e.host, new long[] { e.active.get(), e.getIdle()
+					, e.requests.get(), e.reused.get() });
+		}
+		return stats;
+	}
+
+	/**
+	 * Reset statistics. Hosts with active connections are kept.
+	 */
+	public void resetStatistics() {
+		requests.set(0);
+		reused.set(0);
+
+		for (HostEntry e : hosts.values()) {
+			e.requests.set(0);
+			e.reused.set(0);
+		}
+		logger.debug("Statistics reset");
+	}
+
+	@Override
+	public String toString() {
+		return "HTTP pool active=" + getActiveConnections()
+			+ " idle=" + getIdleConnections()
+			+ " requests=" + requests
+			+ " reuse=" + Math.round(getReuseRate() * 100) + "%";
+	}
+}
@@ -0,0 +1,581 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.parsers;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Embedded HTTP proxy that records responses into a {@link HTTPFixtureStore}
+ * or replays them, so loaders can be benchmarked & regression tested offline.
+ *
+ * <p>Once {@link #install()}ed all HttpURLConnections of the JVM (our
+ * {@link SimpleHTTPClient} as well as the WW retrievers) go thru this proxy:</p>
+ * <ul>
+ * <li>RECORD: requests are forwarded to the origin server. Status, headers, body
+ * and timings are saved.
+ * <li>REPLAY: responses come from the fixture store. Unknown requests get a 404.
+ * Conditional (If-None-Match/If-Modified-Since) and Range requests are honored.
+ * Responses can be shaped w/ extra latency, the recorded time to first byte
+ * and a bandwidth limit. Errors can be injected: a fraction of the responses
+ * is replaced by an error status or a dropped connection.
+ * </ul>
+ *
+ * <p>Enabled at startup w/ system properties (see {@link #startFromSystemProperties()}):</p>
+ * <pre>
+ * -Dworldwind.http.fixtures.mode=record|replay
+ * -Dworldwind.http.fixtures.dir=/path/to/fixtures
+ * -Dworldwind.http.fixtures.latency=50       (extra ms per response, replay)
+ * -Dworldwind.http.fixtures.bandwidth=262144 (bytes/s, replay. 0 = unlimited)
+ * -Dworldwind.http.fixtures.recordedTiming=true (replay the recorded TTFB)
+ * -Dworldwind.http.fixtures.errors=503:0.2   (status:fraction of injected errors, replay.
+ *                                             status 0 drops the connection)
+ * </pre>
+ *
+ * Only plain HTTP is supported (no CONNECT tunnels).
+ *
+ * @author vsilva
+ *
+ */
+public class HTTPFixtureServer
+{
+	private static final Logger logger = Logger.getLogger(HTTPFixtureServer.class);
+
+	public static enum Mode { RECORD, REPLAY };
+
+	public static final String PROP_MODE 		= "worldwind.http.fixtures.mode";
+	public static final String PROP_DIR 		= "worldwind.http.fixtures.dir";
+	public static final String PROP_LATENCY 	= "worldwind.http.fixtures.latency";
+	public static final String PROP_BANDWIDTH 	= "worldwind.http.fixtures.bandwidth";
+	public static final String PROP_TIMING 		= "worldwind.http.fixtures.recordedTiming";
+	public static final String PROP_ERRORS 		= "worldwind.http.fixtures.errors";
+
+	// Socket read timeout for idle keep-alive connections (ms)
+	private static final int IDLE_TIMEOUT = 15000;
+
+	private final HTTPFixtureStore store;
+	private final Mode mode;
+
+	private ServerSocket server;
+	private volatile boolean running;
+
+	// Shaping (replay)
+	private long latency;
+	private long bandwidth;
+	private boolean recordedTiming;
+
+	// Error injection (replay): status (0 = drop the connection) & fraction of responses
+	private volatile int errorStatus;
+	private volatile double errorRate;
+	private final Random random = new Random();
+
+	// previous proxy settings
+	private String oldProxyHost;
+	private String oldProxyPort;
+	private String oldNonProxyHosts;
+
+	private final AtomicLong served 	= new AtomicLong();
+	private final AtomicLong missed 	= new AtomicLong();
+	private final AtomicLong injected 	= new AtomicLong();
+
+	private static HTTPFixtureServer instance;
+
+	/**
+	 * @param store Fixture directory
+	 * @param mode RECORD or REPLAY
+	 */
+	public HTTPFixtureServer(HTTPFixtureStore store, Mode mode) {
+		this.store 	= store;
+		this.mode 	= mode;
+	}
+
+	/**
+	 * Start a server configured by the worldwind.http.fixtures.* system properties
+	 * and route all HTTP traffic thru it. Does nothing if the mode property is not set.
+	 */
+	public static synchronized void startFromSystemProperties()
+	{
+		final String mode = System.getProperty(PROP_MODE);
+
+		if ( mode == null || instance != null ) return;
+
+		try {
+			HTTPFixtureStore store = new HTTPFixtureStore(new File(
+					System.getProperty(PROP_DIR, System.getProperty("user.home") + "/worldwind-fixtures")));
+
+			HTTPFixtureServer server = new HTTPFixtureServer(store, Mode.valueOf(mode.toUpperCase()));
+			server.setLatency(Long.parseLong(System.getProperty(PROP_LATENCY, "0")));
+			server.setBandwidth(Long.parseLong(System.getProperty(PROP_BANDWIDTH, "0")));
+			server.setRecordedTiming(Boolean.parseBoolean(System.getProperty(PROP_TIMING, "false")));
+
+			final String errors = System.getProperty(PROP_ERRORS);
+
+			if ( errors != null ) {
+				final String[] parts = errors.split(":");
+				server.setInjectedErrors(Integer.parseInt(parts[0].trim())
+						, parts.length > 1 ? Double.parseDouble(parts[1].trim()) : 1);
+			}
+
+			server.start(0);
+			server.install();
+			instance = server;
+		}
+		catch (Exception e) {
+			logger.error("Unable to start HTTP fixture server (" + mode + "): " + e);
+		}
+	}
+
+	/**
+	 * Stop the server started by {@link #startFromSystemProperties()}
+	 */
+	public static synchronized void stopInstance() {
+		if ( instance != null ) {
+			instance.uninstall();
+			instance.stop();
+			instance = null;
+		}
+	}
+
+	/**
+	 * Start listening on the loopback interface
+	 * @param port Port or 0 for any free port
+	 * @return listening port
+	 * @throws IOException
+	 */
+	public synchronized int start (int port) throws IOException
+	{
+		server 	= new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		running = true;
+
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				while ( running ) {
+					try {
+						final Socket socket = server.accept();
+
+						Thread handler = new Thread(new Runnable() {
+							public void run() {
+								handle(socket);
+							}
+						}, "HTTPFixtureServer-conn");
+						handler.setDaemon(true);
+						handler.start();
+					}
+					catch (IOException e) {
+						if ( running ) logger.error("Accept failed: " + e);
+					}
+				}
+			}
+		}, "HTTPFixtureServer");
+		t.setDaemon(true);
+		t.start();
+
+		logger.debug(mode + " fixtures " + store.getDirectory() + " on port " + server.getLocalPort());
+		return server.getLocalPort();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		try {
+			if ( server != null ) server.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public int getPort() {
+		return server != null ? server.getLocalPort() : -1;
+	}
+
+	/**
+	 * Route the JVM's HTTP traffic thru this server (http.proxyHost/Port)
+	 */
+	public void install()
+	{
+		oldProxyHost 		= System.getProperty("http.proxyHost");
+		oldProxyPort 		= System.getProperty("http.proxyPort");
+		oldNonProxyHosts 	= System.getProperty("http.nonProxyHosts");
+
+		System.setProperty("http.proxyHost", "127.0.0.1");
+		System.setProperty("http.proxyPort", String.valueOf(getPort()));
+
+		// the JDK bypasses the proxy for localhost by default
+		System.setProperty("http.nonProxyHosts", "");
+	}
+
+	/**
+	 * Restore the previous proxy settings
+	 */
+	public void uninstall()
+	{
+		restore("http.proxyHost", oldProxyHost);
+		restore("http.proxyPort", oldProxyPort);
+		restore("http.nonProxyHosts", oldNonProxyHosts);
+	}
+
+	private static void restore(String key, String value) {
+		if ( value == null )
+			System.clearProperty(key);
+		else
+			System.setProperty(key, value);
+	}
+
+	/*
+	 * Serve the requests of a (keep-alive) connection
+	 */
+	private void handle (Socket socket)
+	{
+		try {
+			socket.setSoTimeout(IDLE_TIMEOUT);
+
+			InputStream in 		= new BufferedInputStream(socket.getInputStream());
+			OutputStream out 	= socket.getOutputStream();
+
+			while ( running )
+			{
+				final String requestLine = readLine(in);
+
+				if ( requestLine == null || requestLine.length() == 0 )
+					break;
+
+				List<String> headers = new ArrayList<String>();
+				String line;
+
+				while ( (line = readLine(in)) != null && line.length() > 0 )
+					headers.add(line);
+
+				// request line: GET http://host/path HTTP/1.1
+				final String[] parts = requestLine.split(" ");
+
+				if ( parts.length < 3 ) break;
+
+				// request bodies are not supported: skip them
+				final String length = header(headers, "Content-Length");
+				if ( length != null )
+					in.skip(Long.parseLong(length));
+
+				if ( mode == Mode.RECORD )
+					record(parts[0], parts[1], headers, out);
+				else
+					replay(parts[0], parts[1], headers, out);
+
+				out.flush();
+
+				if ( "close".equalsIgnoreCase(header(headers, "Connection"))
+						|| "close".equalsIgnoreCase(header(headers, "Proxy-Connection")))
+					break;
+			}
+		}
+		catch (SocketException e) {
+			// client gone
+		}
+		catch (IOException e) {
+			logger.debug("Connection closed: " + e);
+		}
+		finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/*
+	 * Forward a request to the origin and save the response
+	 */
+	private void record (String method, String url, List<String> requestHeaders, OutputStream out)
+		throws IOException
+	{
+		final long start = System.nanoTime();
+
+		HttpURLConnection uc = (HttpURLConnection)new URL(url).openConnection(Proxy.NO_PROXY);
+		uc.setRequestMethod(method);
+		uc.setInstanceFollowRedirects(false);
+
+		for (String h : requestHeaders) {
+			final int i = h.indexOf(':');
+			final String name = h.substring(0, i).trim();
+
+			if ( ! isHopByHop(name) && !name.equalsIgnoreCase("Host"))
+				uc.addRequestProperty(name, h.substring(i + 1).trim());
+		}
+
+		HTTPFixtureStore.Fixture f = new HTTPFixtureStore.Fixture();
+		f.url 		= url;
+
+		try {
+			f.status 	= uc.getResponseCode();
+			f.message 	= uc.getResponseMessage();
+		}
+		catch (IOException e) {
+			// origin unreachable: don't record
+			logger.error("Record of " + url + " failed: " + e);
+			writeResponse(out, 502, "Bad Gateway", new ArrayList<String>(), new byte[0], 0, 0);
+			return;
+		}
+
+		f.timeToFirstByte = (System.nanoTime() - start) / 1000000;
+
+		// headers as received. Transfer-Encoding is replaced by Content-Length
+		for (Map.Entry<String, List<String>> e : uc.getHeaderFields().entrySet()) {
+			if ( e.getKey() == null || isHopByHop(e.getKey())
+					|| e.getKey().equalsIgnoreCase("Content-Length"))
+				continue;
+
+			for (String v : e.getValue())
+				f.headers.add(e.getKey() + ": " + v);
+		}
+
+		// raw body (compressed bodies are kept compressed)
+		InputStream is = f.status >= 400 ? uc.getErrorStream() : uc.getInputStream();
+
+		if ( is != null ) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			SimpleHTTPClient.copy(is, bos);
+			f.body = bos.toByteArray();
+		}
+		f.latency = (System.nanoTime() - start) / 1000000;
+
+		// a 304 is an answer to this client's cache, not a fixture
+		if ( f.status != HttpURLConnection.HTTP_NOT_MODIFIED )
+			store.save(method, f);
+
+		writeResponse(out, f.status, f.message, f.headers, f.body, 0, 0);
+	}
+
+	/*
+	 * Answer a request from the fixture store
+	 */
+	private void replay (String method, String url, List<String> requestHeaders, OutputStream out)
+		throws IOException
+	{
+		if ( errorRate > 0 && random.nextDouble() < errorRate )
+		{
+			injected.incrementAndGet();
+
+			if ( errorStatus <= 0 )
+				throw new SocketException("Injected connection reset for " + url);
+
+			writeResponse(out, errorStatus, "Injected error", new ArrayList<String>(), new byte[0]
+					, latency, 0);
+			return;
+		}
+
+		HTTPFixtureStore.Fixture f = store.load(method, url);
+
+		if ( f == null ) {
+			missed.incrementAndGet();
+			logger.error("No fixture for " + method + " " + url);
+			writeResponse(out, 404, "Not Found (no fixture)", new ArrayList<String>(), new byte[0]
+					, latency, bandwidth);
+			return;
+		}
+		served.incrementAndGet();
+
+		final long delay = latency + (recordedTiming ? f.timeToFirstByte : 0);
+
+		// conditional request
+		final String inm 	= header(requestHeaders, "If-None-Match");
+		final String etag 	= f.getHeader("ETag");
+		final String ims 	= header(requestHeaders, "If-Modified-Since");
+		final String lm 	= f.getHeader("Last-Modified");
+
+		if ( f.status == 200
+				&& ((inm != null && inm.equals(etag)) || (inm == null && ims != null && ims.equals(lm))) )
+		{
+			writeResponse(out, 304, "Not Modified", headersWithout(f.headers, "Content-Encoding")
+					, new byte[0], delay, bandwidth);
+			return;
+		}
+
+		// range request: bytes=N-
+		final String range = header(requestHeaders, "Range");
+
+		if ( f.status == 200 && range != null && range.startsWith("bytes=") && range.endsWith("-"))
+		{
+			final int from = Integer.parseInt(range.substring(6, range.length() - 1).trim());
+
+			if ( from >= f.body.length ) {
+				List<String> h = new ArrayList<String>();
+				h.add("Content-Range: bytes */" + f.body.length);
+				writeResponse(out, 416, "Requested Range Not Satisfiable", h, new byte[0], delay, bandwidth);
+				return;
+			}
+
+			byte[] part = new byte[f.body.length - from];
+			System.arraycopy(f.body, from, part, 0, part.length);
+
+			List<String> h = new ArrayList<String>(f.headers);
+			h.add("Content-Range: bytes " + from + "-" + (f.body.length - 1) + "/" + f.body.length);
+
+			writeResponse(out, 206, "Partial Content", h, part, delay, bandwidth);
+			return;
+		}
+
+		writeResponse(out, f.status, f.message, f.headers, f.body, delay, bandwidth);
+	}
+
+	/*
+	 * Write a response w/ Content-Length (keep-alive friendly). The body is
+	 * throttled to bytesPerSec if > 0.
+	 */
+	private static void writeResponse (OutputStream out, int status, String message, List<String> headers
+			, byte[] body, long delay, long bytesPerSec) throws IOException
+	{
+		sleep(delay);
+
+		StringBuffer buf = new StringBuffer();
+		buf.append("HTTP/1.1 " + status + " " + (message != null ? message : "") + "\r\n");
+
+		for (String h : headers)
+			buf.append(h + "\r\n");
+
+		buf.append("Content-Length: " + body.length + "\r\n\r\n");
+		out.write(buf.toString().getBytes("ISO-8859-1"));
+
+		if ( bytesPerSec <= 0 ) {
+			out.write(body);
+			return;
+		}
+
+		// ~10 writes per second
+		final int chunk = (int)Math.max(bytesPerSec / 10, 1);
+
+		for (int off = 0; off < body.length; off += chunk) {
+			final int n = Math.min(chunk, body.length - off);
+			out.write(body, off, n);
+			out.flush();
+			sleep(n * 1000L / bytesPerSec);
+		}
+	}
+
+	private static void sleep(long millis) {
+		if ( millis <= 0 ) return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static boolean isHopByHop (String name) {
+		return name.equalsIgnoreCase("Connection")
+			|| name.equalsIgnoreCase("Keep-Alive")
+			|| name.equalsIgnoreCase("Proxy-Connection")
+			|| name.equalsIgnoreCase("Transfer-Encoding")
+			|| name.equalsIgnoreCase("TE")
+			|| name.equalsIgnoreCase("Upgrade")
+			|| name.toLowerCase().startsWith("proxy-");
+	}
+
+	private static List<String> headersWithout (List<String> headers, String name) {
+		List<String> list = new ArrayList<String>();
+
+		for (String h : headers)
+			if ( ! h.toLowerCase().startsWith(name.toLowerCase() + ":"))
+				list.add(h);
+
+		return list;
+	}
+
+	private static String header (List<String> headers, String name)
+	{
+		for (String h : headers) {
+			final int i = h.indexOf(':');
+
+			if ( i > 0 && h.substring(0, i).trim().equalsIgnoreCase(name))
+				return h.substring(i + 1).trim();
+		}
+		return null;
+	}
+
+	/*
+	 * Read a CRLF terminated line. Null at the end of the stream
+	 */
+	private static String readLine (InputStream in) throws IOException
+	{
+		StringBuffer buf = new StringBuffer();
+		int c;
+
+		while ( (c = in.read()) != -1 ) {
+			if ( c == '\n' ) break;
+			if ( c != '\r' ) buf.append((char)c);
+		}
+		return c == -1 && buf.length() == 0 ? null : buf.toString();
+	}
+
+	/**
+	 * Extra delay (ms) before each replayed response
+	 */
+	public void setLatency(long millis) {
+		latency = millis;
+	}
+
+	/**
+	 * Replay bandwidth limit in bytes/s. 0 = unlimited
+	 */
+	public void setBandwidth(long bytesPerSec) {
+		bandwidth = bytesPerSec;
+	}
+
+	/**
+	 * Also delay each replayed response by its recorded time to first byte
+	 */
+	public void setRecordedTiming(boolean recorded) {
+		recordedTiming = recorded;
+	}
+
+	/**
+	 * Replace a fraction of the replayed responses by errors
+	 * @param status HTTP status to send (e.g. 503) or 0 to drop the connection
+	 * @param rate Fraction (0..1) of the responses. 0 = off
+	 */
+	public void setInjectedErrors(int status, double rate) {
+		errorStatus = status;
+		errorRate 	= rate;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/** @return # of requests replayed */
+	public long getServedCount() {
+		return served.get();
+	}
+
+	/** @return # of requests w/o fixture (replay) */
+	public long getMissedCount() {
+		return missed.get();
+	}
+
+	/** @return # of injected errors (replay) */
+	public long getInjectedCount() {
+		return injected.get();
+	}
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.parsers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import org.eclipse.plugin.worldwind.contrib.Messages;
+
+/**
+ * Directory of recorded HTTP responses used by the {@link HTTPFixtureServer}.
+ * Each response is stored as two files named after a hash of the method & URL:
+ * <ul>
+ * <li>[hash].properties: URL, status, headers and timings (time to first byte, total)
+ * <li>[hash].body: response body as received from the wire (may be gzipped)
+ * </ul>
+ * @author vsilva
+ *
+ */
+public class HTTPFixtureStore
+{
+	private static final Logger logger = Logger.getLogger(HTTPFixtureStore.class);
+
+	private final File dir;
+
+	/**
+	 * A recorded response
+	 */
+	public static class Fixture
+	{
+		public String url;
+		public int status;
+		public String message;
+
+		// header lines: Name: value
+		public List<String> headers = new ArrayList<String>();
+
+		// ms
+		public long timeToFirstByte;
+		public long latency;
+
+		public byte[] body = new byte[0];
+
+		/**
+		 * @return first value of a header (case insensitive) or null
+		 */
+		public String getHeader (String name)
+		{
+			for (String h : headers) {
+				final int i = h.indexOf(':');
+
+				if ( i > 0 && h.substring(0, i).trim().equalsIgnoreCase(name))
+					return h.substring(i + 1).trim();
+			}
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return status + " " + url + " bytes=" + body.length + " ttfb=" + timeToFirstByte + " ms";
+		}
+	}
+
+	/**
+	 * @param dir Fixture directory. Created if missing.
+	 */
+	public HTTPFixtureStore(File dir) {
+		this.dir = dir;
+
+		if ( ! dir.exists() && !dir.mkdirs())
+			logger.error("Unable to create fixture directory " + dir);
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	/*
+	 * File name of a request
+	 */
+	static String key (String method, String url)
+	{
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] digest = md.digest((method + " " + url).getBytes("UTF-8"));
+
+			StringBuffer buf = new StringBuffer();
+			for (byte b : digest)
+				buf.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+
+			return buf.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString((method + " " + url).hashCode());
+		}
+		catch (IOException e) {
+			return Integer.toHexString((method + " " + url).hashCode());
+		}
+	}
+
+	/**
+	 * Save a response. Replaces any previous recording of the same request.
+	 * @param method HTTP method
+	 * @param fixture
+	 * @throws IOException
+	 */
+	public synchronized void save (String method, Fixture fixture) throws IOException
+	{
+		final String key = key(method, fixture.url);
+
+		Properties props = new Properties();
+		props.setProperty("url", fixture.url);
+		props.setProperty("method", method);
+		props.setProperty("status", String.valueOf(fixture.status));
+		props.setProperty("message", fixture.message != null ? fixture.message : "");
+		props.setProperty("ttfb", String.valueOf(fixture.timeToFirstByte));
+		props.setProperty("latency", String.valueOf(fixture.latency));
+
+		for (int i = 0; i < fixture.headers.size(); i++)
+			props.setProperty("header." + i, fixture.headers.get(i));
+
+		OutputStream os = new FileOutputStream(new File(dir, key + ".body"));
+		try {
+			os.write(fixture.body);
+		}
+		finally {
+			os.close();
+		}
+
+		os = new FileOutputStream(new File(dir, key + ".properties"));
+		try {
+			props.store(os, method + " " + fixture.url);
+		}
+		finally {
+			os.close();
+		}
+		logger.debug("Recorded " + fixture);
+	}
+
+	/**
+	 * Load a recorded response
+	 * @param method
+	 * @param url
+	 * @return fixture or null if the request was never recorded
+	 */
+	public Fixture load (String method, String url)
+	{
+		final String key 	= key(method, url);
+		final File meta 	= new File(dir, key + ".properties");
+
+		if ( ! meta.exists() ) return null;
+
+		try {
+			Properties props = new Properties();
+			InputStream is = new FileInputStream(meta);
+			try {
+				props.load(is);
+			}
+			finally {
+				is.close();
+			}
+
+			Fixture f 			= new Fixture();
+			f.url 				= props.getProperty("url");
+			f.status 			= Integer.parseInt(props.getProperty("status"));
+			f.message 			= props.getProperty("message");
+			f.timeToFirstByte 	= Long.parseLong(props.getProperty("ttfb", "0"));
+			f.latency 			= Long.parseLong(props.getProperty("latency", "0"));
+
+			for (int i = 0; props.getProperty("header." + i) != null; i++)
+				f.headers.add(props.getProperty("header." + i));
+
+			final File body = new File(dir, key + ".body");
+
+			if ( body.exists() )
+				f.body = Messages.readFile(body);
+
+			return f;
+		}
+		catch (Exception e) {
+			logger.error("Invalid fixture " + meta + ": " + e);
+			return null;
+		}
+	}
+}
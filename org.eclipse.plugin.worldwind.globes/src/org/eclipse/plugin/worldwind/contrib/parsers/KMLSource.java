@@ -39,6 +39,7 @@ import org.eclipse.plugin.worldwind.contrib.parsers.SimpleKMLParser.GroundOverla
 import org.eclipse.plugin.worldwind.contrib.parsers.SimpleKMLParser.PlaceMark;
 import org.eclipse.plugin.worldwind.contrib.parsers.SimpleKMLParser.ScreenOverlay;
 import org.eclipse.plugin.worldwind.contrib.LayerUtils;
+import org.eclipse.plugin.worldwind.contrib.FileStoreIndex;
 
 /**
  * A class to convert KML/KMZ documents into World Wind layers
@@ -92,25 +93,24 @@ public class KMLSource
 	private void download(URL url) throws Exception 
 	{
 		SimpleHTTPClient client = new SimpleHTTPClient(url);
+		client.setLayer("KML");
 		
 		// download url into WW cache
 		final String fileName = url.toString().substring(
 				url.toString().lastIndexOf("/") + 1, url.toString().length());
 		
-		File file = LayerUtils.getWWFileStore().newFile(fileName);
-
-		if ( ! file.exists()) {
-			// file couldn't be created. Perhaps URL contains a query string?
-			// Use a generic name
-			file = LayerUtils.newCacheFile("download-" + System.currentTimeMillis());
-			logger.debug("File with name " + fileName + " couldn't be created in cache. Using " + file);
-		}
+		// URLs w/ query strings get a generic name. The name must be stable
+		// so an interrupted download can be resumed
+		final File file = fileName.length() == 0 || fileName.matches(".*[?&=:*\"<>|].*")
+			? LayerUtils.newCacheFile("download-" + Integer.toHexString(url.toString().hashCode()))
+			: LayerUtils.getWWFileStore().newFile(fileName);
 		
 		logger.debug("Downloading " + url + " to " + file);
 
 		try {
-			// fetch doc url
-			client.doGet( new FileOutputStream( file ));
+			// fetch doc url. Large KMZs are resumed if interrupted
+			client.setResumable(true);
+			client.doGet(file);
 			
 			// parse it
 			process(file, client.getContentType());
@@ -120,7 +120,7 @@ public class KMLSource
 		}
 		finally {
 			// done w/ file, remove
-			file.delete();
+			LayerUtils.deleteCacheFile(file);
 		}
 	}
 	
@@ -198,6 +198,7 @@ public class KMLSource
 				fos.write(buf, 0, len);
 			}
 			fos.close();
+			FileStoreIndex.getInstance().added(zeFile);
 		}
 		in.close();
 		return kmlDoc;
@@ -0,0 +1,462 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.parsers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import org.eclipse.plugin.worldwind.contrib.LayerUtils;
+
+/**
+ * Negative cache of failed resource (tile) requests: 404s, error pages
+ * served instead of images and corrupt images. Layers consult it before
+ * scheduling a download so out of coverage tiles (oceans...) are not
+ * requested on every frame.
+ *
+ * <p>Entries are kept per layer by resource key (the tile key held by
+ * the caller: lookups allocate nothing), expire after a TTL that depends
+ * on the failure {@link Reason} and are evicted LRU beyond {@link #MAX_ENTRIES}
+ * per layer. The cache is saved as a properties file in the WW file store
+ * ({@link #FILE_NAME}) so failures survive restarts. A background thread 
+ * loads the file at startup & saves changes at most every {@link #SAVE_INTERVAL}:
+ * callers (the render thread) never do file IO.</p>
+ *
+ * @author vsilva
+ *
+ */
+public class NegativeCache
+{
+	private static final Logger logger = Logger.getLogger(NegativeCache.class);
+
+	public static final String FILE_NAME = "NegativeCache.properties";
+
+	// Max entries per layer
+	public static final int MAX_ENTRIES = 10000;
+
+	// Min time between saves (ms)
+	static final long SAVE_INTERVAL = 60 * 1000;
+
+	// Max length of the saved failure message
+	static final int MAX_MESSAGE = 256;
+
+	/**
+	 * Failure reasons & their default time to live
+	 */
+	public static enum Reason {
+		/** HTTP 404/410: no data there */
+		NOT_FOUND (24L * 3600 * 1000),
+		/** Response is not an image (HTML/XML error page) */
+		NOT_IMAGE (3600 * 1000),
+		/** Image cannot be decoded */
+		CORRUPT (3600 * 1000),
+		/** Other client errors: 400, 403... */
+		HTTP_ERROR (10 * 60 * 1000);
+
+		private final long ttl;
+
+		private Reason(long ttl) {
+			this.ttl = ttl;
+		}
+
+		public long getTTL() {
+			return ttl;
+		}
+	};
+
+	/**
+	 * A failed request
+	 */
+	public static class Entry
+	{
+		final Reason reason;
+		final String message;
+		final long expires;
+
+		Entry(Reason reason, String message, long expires) {
+			this.reason 	= reason;
+			this.message 	= message;
+			this.expires 	= expires;
+		}
+
+		public Reason getReason() {
+			return reason;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * @return expiration time (ms since epoch)
+		 */
+		public long getExpires() {
+			return expires;
+		}
+
+		@Override
+		public String toString() {
+			return reason + " " + message;
+		}
+	}
+
+	/*
+	 * Failures of a layer by resource key (LRU)
+	 */
+	private static class LayerEntries extends LinkedHashMap<String, Entry>
+	{
+		private static final long serialVersionUID = 1L;
+
+		LayerEntries() {
+			super(64, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, NegativeCache.Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	}
+
+	// Failures by layer, guarded by this
+	private final Map<String, LayerEntries> layers = new HashMap<String, LayerEntries>();
+
+	// Saved entries read (changes are not saved before)
+	private boolean loaded;
+	private boolean dirty;
+	private long lastSave;
+
+	// One save at a time (save thread & shutdown): same temp file, newest last
+	private final Object saveLock = new Object();
+
+	private static final NegativeCache instance = new NegativeCache();
+
+	private NegativeCache()
+	{
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				load();
+				saveChanges();
+			}
+		}, "NegativeCache");
+
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	public static NegativeCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param status HTTP status of a failed request
+	 * @return failure reason to cache or null for transient errors (5xx,
+	 * timeouts, throttling) handled by the retry backoff & circuit breaker
+	 */
+	public static Reason forStatus (int status)
+	{
+		if ( status == 404 || status == 410 )
+			return Reason.NOT_FOUND;
+
+		if ( status >= 400 && status < 500 && status != 408 && status != 429 )
+			return Reason.HTTP_ERROR;
+
+		return null;
+	}
+
+	/**
+	 * Record a failed request w/ the default TTL of the reason
+	 * @param layer Layer name
+	 * @param resource Resource (tile) key
+	 * @param reason
+	 * @param message Failure details (HTTP status, error message...)
+	 * @return expiration time (ms since epoch)
+	 */
+	public long put (String layer, String resource, Reason reason, String message) {
+		return put(layer, resource, reason, message, reason.getTTL());
+	}
+
+	/**
+	 * Record a failed request
+	 * @param layer Layer name
+	 * @param resource Resource (tile) key
+	 * @param reason
+	 * @param message Failure details (HTTP status, error message...)
+	 * @param ttl Time to live (ms)
+	 * @return expiration time (ms since epoch)
+	 */
+	public long put (String layer, String resource, Reason reason, String message, long ttl)
+	{
+		final long expires = System.currentTimeMillis() + ttl;
+
+		if ( message == null )
+			message = "";
+		else if ( message.length() > MAX_MESSAGE )
+			message = message.substring(0, MAX_MESSAGE);
+
+		synchronized (this) {
+			LayerEntries entries = layers.get(layer);
+
+			if ( entries == null ) {
+				entries = new LayerEntries();
+				layers.put(layer, entries);
+			}
+			entries.put(resource, new Entry(reason, message, expires));
+			changed();
+		}
+		logger.debug("Negative cache " + layer + " " + resource + ": " + reason + " " + message);
+		return expires;
+	}
+
+	/**
+	 * @param layer Layer name
+	 * @param resource Resource (tile) key
+	 * @return the failure of a resource or null if not cached (or expired)
+	 */
+	public synchronized Entry get (String layer, String resource)
+	{
+		final LayerEntries entries = layers.get(layer);
+
+		if ( entries == null )
+			return null;
+
+		final Entry e = entries.get(resource);
+
+		if ( e == null )
+			return null;
+
+		if ( e.expires <= System.currentTimeMillis() ) {
+			entries.remove(resource);
+			changed();
+			return null;
+		}
+		return e;
+	}
+
+	/**
+	 * @return true if the resource failed recently: do not request it
+	 */
+	public boolean contains (String layer, String resource) {
+		return get(layer, resource) != null;
+	}
+
+	/**
+	 * Forget a resource (it was fetched OK)
+	 */
+	public synchronized void remove (String layer, String resource)
+	{
+		final LayerEntries entries = layers.get(layer);
+
+		if ( entries != null && entries.remove(resource) != null )
+			changed();
+	}
+
+	/**
+	 * Forget all failures of a layer (or all if layer is null)
+	 */
+	public synchronized void clear (String layer)
+	{
+		if ( layer == null )
+			layers.clear();
+		else 
+			layers.remove(layer);
+
+		changed();
+	}
+
+	public synchronized int size()
+	{
+		int n = 0;
+		for (LayerEntries entries : layers.values())
+			n += entries.size();
+		return n;
+	}
+
+	/*
+	 * Wake up the save thread. Caller holds the lock
+	 */
+	private void changed () {
+		dirty = true;
+		notifyAll();
+	}
+
+	/*
+	 * Save thread: save the changes, at most every SAVE_INTERVAL
+	 */
+	private void saveChanges ()
+	{
+		while ( true )
+		{
+			try {
+				long delay;
+
+				synchronized (this) {
+					while ( ! dirty ) 
+						wait();
+
+					delay = lastSave + SAVE_INTERVAL - System.currentTimeMillis();
+				}
+
+				// batch the changes made meanwhile
+				if ( delay > 0 )
+					Thread.sleep(delay);
+
+				save();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private static File getFile () {
+		return LayerUtils.newCacheFile(FILE_NAME);
+	}
+
+	/*
+	 * Load the saved entries (save thread). Expired entries are skipped and
+	 * failures recorded meanwhile are kept (newer).
+	 */
+	private void load ()
+	{
+		final File file = getFile();
+		Properties props = new Properties();
+
+		try {
+			if ( file.exists() ) {
+				InputStream is = new FileInputStream(file);
+				try {
+					props.load(is);
+				}
+				finally {
+					is.close();
+				}
+			}
+		}
+		catch (IOException e) {
+			logger.error("Unable to load negative cache " + file + ": " + e);
+		}
+
+		final long now = System.currentTimeMillis();
+		int count = 0;
+
+		synchronized (this)
+		{
+			for (String key : props.stringPropertyNames())
+			{
+				// key: layer|resource value: expires reason message
+				final int sep 			= key.lastIndexOf('|');
+				final String[] tokens 	= props.getProperty(key).split(" ", 3);
+
+				try {
+					final long expires = Long.parseLong(tokens[0]);
+
+					if ( sep < 0 || expires <= now )
+						continue;
+
+					final String layer 		= key.substring(0, sep);
+					final String resource 	= key.substring(sep + 1);
+
+					LayerEntries entries = layers.get(layer);
+
+					if ( entries == null ) {
+						entries = new LayerEntries();
+						layers.put(layer, entries);
+					}
+
+					if ( ! entries.containsKey(resource) ) {
+						entries.put(resource, new Entry(Reason.valueOf(tokens[1])
+								, tokens.length > 2 ? tokens[2] : "", expires));
+						count++;
+					}
+				}
+				catch (Exception e) {
+					logger.error("Invalid negative cache entry " + key + "=" + props.getProperty(key));
+				}
+			}
+			loaded = true;
+		}
+		logger.debug("Loaded " + count + " negative cache entries from " + file);
+	}
+
+	/**
+	 * Save the live entries to the WW file store (if modified). Changes 
+	 * are saved by a background thread, call on shutdown to save the last 
+	 * ones.
+	 */
+	public void save ()
+	{
+		synchronized (saveLock) {
+			saveEntries();
+		}
+	}
+
+	/*
+	 * Written to a temp file & renamed: a crash while saving never
+	 * leaves a truncated file. Caller holds saveLock
+	 */
+	private void saveEntries ()
+	{
+		Properties props = new Properties();
+		final long now = System.currentTimeMillis();
+
+		synchronized (this)
+		{
+			// don't overwrite the saved entries before they are read
+			if ( ! dirty || ! loaded ) return;
+
+			for (Map.Entry<String, LayerEntries> layer : layers.entrySet()) {
+				for (Map.Entry<String, Entry> e : layer.getValue().entrySet()) {
+					final Entry v = e.getValue();
+
+					if ( v.expires > now )
+						props.setProperty(layer.getKey() + "|" + e.getKey()
+								, v.expires + " " + v.reason + " " + v.message);
+				}
+			}
+			dirty 		= false;
+			lastSave 	= now;
+		}
+
+		final File file = getFile();
+		final File tmp 	= new File(file.getPath() + ".tmp");
+
+		try {
+			OutputStream os = new FileOutputStream(tmp);
+			try {
+				props.store(os, "Failed requests: expires reason message");
+			}
+			finally {
+				os.close();
+			}
+
+			if ( ! tmp.renameTo(file) ) {
+				file.delete();
+
+				if ( ! tmp.renameTo(file) )
+					throw new IOException("Unable to rename " + tmp + " to " + file);
+			}
+		}
+		catch (IOException e) {
+			logger.error("Unable to save negative cache " + file + ": " + e);
+			tmp.delete();
+		}
+	}
+}
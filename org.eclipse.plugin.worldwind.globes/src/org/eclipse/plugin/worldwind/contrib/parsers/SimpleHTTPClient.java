@@ -10,19 +10,33 @@
  *******************************************************************************/
 package org.eclipse.plugin.worldwind.contrib.parsers;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.log4j.Logger;
 
+import org.eclipse.plugin.worldwind.contrib.FileStoreIndex;
+
 public class SimpleHTTPClient 
 {
 	private static final Logger logger = Logger.getLogger(SimpleHTTPClient.class);
@@ -33,12 +47,70 @@ public class SimpleHTTPClient
 	
 	private int READ_TIMEOUT = 8000;
 	
+	// Chunk size used by the bulk transfer loops
+	static final int TRANSFER_CHUNK_SIZE = 64 * 1024;
+	
 	private Map<String, List<String>> headers;
 	private URL url;
     private int status;
     private HttpURLConnection uc;
     private String responseMessage;
     
+    // bytes moved by the last request (decoded) & bytes received from the wire
+    private long bytesRead;
+    private long wireBytes;
+    
+    // reading the body from the socket failed (vs. a local write error)
+    private boolean wireFailed;
+    
+    // send Accept-Encoding: gzip, deflate?
+    private boolean acceptCompression = true;
+    
+    // keep partial downloads & resume them w/ HTTP Range requests?
+    private boolean resumable = false;
+    
+    // Content-Type prefix of the bodies written to files (null = any)
+    private String acceptedType;
+    
+    // Suffix of partial downloads. Their marker is [file].part.meta
+    public static final String PART_SUFFIX = ".part";
+    
+    // Metrics: layer name & request start, first byte times (ns)
+    private String layer;
+    private long startTime;
+    private long firstByteTime;
+    
+    // Process wide totals used to compute the compression ratio
+    private static final AtomicLong totalBytesRead 	= new AtomicLong();
+    private static final AtomicLong totalWireBytes 	= new AtomicLong();
+    
+    // connection given back to the pool?
+    private boolean released = true;
+    
+    // Downloads into files in flight, keyed by URL + file
+    private static final SingleFlight<Response> fileDownloads = new SingleFlight<Response>();
+    
+    // Striped locks: one writer per partial download, see resumableGet()
+    private static final Object[] partLocks = new Object[32];
+    
+    static {
+    	for (int i = 0; i < partLocks.length; i++)
+    		partLocks[i] = new Object();
+    }
+    
+    /*
+     * Response of a file download shared by coalesced callers
+     */
+    private static class Response 
+    {
+    	int status;
+    	String message;
+    	Map<String, List<String>> headers;
+    	long bytesRead;
+    	long wireBytes;
+    	boolean modified;
+    }
+    
 	public SimpleHTTPClient(String url) throws MalformedURLException {
 		this.url = new URL(url);
 	}
@@ -55,22 +127,12 @@ public class SimpleHTTPClient
     public void doGet (OutputStream os)
 		throws  IOException //, MalformedURLException
 	{
+    	boolean done = false;
     	try {
-    	    uc = (HttpURLConnection)url.openConnection();
-    	    uc.setRequestProperty("User-Agent", USER_AGENT);
-    	    uc.setReadTimeout(READ_TIMEOUT);
-    	    
-    	    logger.debug("Connect timeout=" + uc.getConnectTimeout() 
-    	    		+ " read timeout=" + uc.getReadTimeout() + " u=" + url);
-    	    
-    	    InputStream buffer  = new BufferedInputStream(uc.getInputStream());   
+    	    connect();
     	    
-    	    int c;
-    	    
-    	    while ((c = buffer.read()) != -1) 
-    	    {
-    	      os.write(c);
-    	    } 
+    	    bytesRead = copy(openBody(), os);
+    	    done = true;
     	    
     	    headers = uc.getHeaderFields();
     	    status = uc.getResponseCode();
@@ -83,10 +145,10 @@ public class SimpleHTTPClient
 			if ( status != 200)
 				logger.error("Download failed status: " + status + " " + responseMessage + " for " + url);
 			else
-				logger.debug("HTTP status=" + status + " " + uc.getResponseMessage());
+				logger.debug("HTTP status=" + status + " " + responseMessage);
 			
 			os.close();
-			uc.disconnect();
+			release(done);
 		}
 	}
 
@@ -99,24 +161,638 @@ public class SimpleHTTPClient
     public String doGet ()
 		throws MalformedURLException, IOException
 	{
-	    uc = (HttpURLConnection)url.openConnection();
-	    
-	    BufferedInputStream buffer  = new BufferedInputStream(uc.getInputStream());   
-	    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    	boolean done = false;
+    	try {
+    		connect();
+    		
+    		final int length = uc.getContentLength();
+    		ByteArrayOutputStream bos = new ByteArrayOutputStream(length > 0 ? length : TRANSFER_CHUNK_SIZE);
 	    
-	    int c;
-	    while ((c = buffer.read()) != -1) 
-	    {
-	      bos.write(c);
-	    } 
-	    bos.close();
+    		bytesRead = copy(openBody(), bos);
+    		bos.close();
+    		done = true;
 	    
-	    headers = uc.getHeaderFields();
-	    status = uc.getResponseCode();
+    		headers = uc.getHeaderFields();
+    		status = uc.getResponseCode();
 	    
-	    return bos.toString();
+    		return bos.toString();
+    	}
+    	finally {
+    		release(done);
+    	}
 	}
     
+    /**
+     * HTTP Get straight into a {@link File}. The response body is moved
+     * in large chunks into the file's {@link FileChannel}.
+     * Concurrent downloads of the same URL into the same file are coalesced
+     * and the file is published w/ a rename once complete.
+     * @param file destination file (will be overwritten)
+     * @throws IOException
+     */
+    public void doGet (final File file)
+    	throws IOException
+    {
+    	coalesce(file, new Callable<Response>() {
+    		public Response call() throws Exception {
+    			if ( resumable ) 
+    				resumableGet(file);
+    			else
+    				getFile(file);
+    			return toResponse(true);
+    		}
+    	});
+    }
+    
+    private void getFile (File file)
+    	throws IOException
+    {
+    	final File tmp 		= newTempFile(file);
+    	FileOutputStream fos = new FileOutputStream(tmp);
+    	boolean done = false;
+    	
+    	try {
+    	    connect();
+    	    
+    	    final InputStream is = openBody();
+    	    
+    	    headers = uc.getHeaderFields();
+    	    status = uc.getResponseCode();
+    	    responseMessage = uc.getResponseMessage();
+    	    
+    	    checkContentType(is);
+    	    
+    	    bytesRead = transfer(is, fos.getChannel());
+    	    fos.close();
+    	    publish(tmp, file);
+    	    done = true;
+    	    
+		} catch (Exception e) {
+			throw new IOException(e.getMessage());
+		}
+		finally {
+			if ( status != 200)
+				logger.error("Download failed status: " + status + " " + responseMessage + " for " + url);
+			else
+				logger.debug("HTTP status=" + status + " " + responseMessage + " bytes=" + bytesRead + " wire=" + wireBytes + " f=" + file);
+			
+			fos.close();
+			release(done);
+			
+			if ( !done ) tmp.delete();
+		}
+    }
+    
+    /*
+     * Resumable download. The body is written to [file].part and a marker 
+     * w/ the URL, validator (ETag/Last-Modified) & full length is saved next to it.
+     * If the transfer fails both are kept and the next call asks for the remaining
+     * bytes w/ Range + If-Range. The part is published once its length matches
+     * the length announced by the server. 
+     */
+    private void resumableGet (File file)
+    	throws IOException
+    {
+    	final File part = new File(file.getPath() + PART_SUFFIX);
+    	
+    	// downloads of the same URL are coalesced, not those of different URLs
+    	// into the same file: they must not append to the part at the same time
+    	synchronized (getPartLock(part)) {
+    		resumableGet(file, part);
+    	}
+    }
+    
+    private static Object getPartLock (File part) {
+    	return partLocks[(part.getAbsolutePath().hashCode() & 0x7fffffff) % partLocks.length];
+    }
+    
+    private void resumableGet (File file, File part)
+    	throws IOException
+    {
+    	CacheMetadata marker = CacheMetadata.load(part);
+    	
+    	long offset = 0;
+    	
+    	if ( part.exists() && marker != null 
+    			&& url.toString().equals(marker.getURL()) 
+    			&& marker.getRangeValidator() != null ) 
+    	{
+    		offset = part.length();
+    	}
+    	else {
+    		// unusable leftovers
+    		part.delete();
+    		CacheMetadata.delete(part);
+    	}
+    	
+    	boolean done = false;
+    	
+    	try {
+    		connect();
+    		
+    		if ( offset > 0 ) {
+    			logger.debug("Resuming " + url + " at byte " + offset + " of " + marker.getContentLength());
+    			
+    			uc.setRequestProperty("Range", "bytes=" + offset + "-");
+    			uc.setRequestProperty("If-Range", marker.getRangeValidator());
+    		}
+    		
+    	    status 			= uc.getResponseCode();
+    	    responseMessage = uc.getResponseMessage();
+    	    headers 		= uc.getHeaderFields();
+    	    markFirstByte();
+    	    
+    	    long length;
+    	    
+    	    if ( status == 416 && offset > 0 && offset == marker.getContentLength()) 
+    	    {
+    	    	// Requested Range Not Satisfiable: the part is already complete
+    	    	final InputStream es = uc.getErrorStream();
+    	    	if ( es != null ) es.close();
+    	    	length = offset;
+    	    }
+    	    else 
+    	    {
+    	    	if ( status == HttpURLConnection.HTTP_PARTIAL ) {
+    	    		length = parseContentRange(uc.getHeaderField("Content-Range"), offset);
+    	    	}
+    	    	else {
+    	    		// full body: the server ignored the range or the resource changed
+    	    		offset 	= 0;
+    	    		length 	= uc.getContentEncoding() == null ? uc.getContentLength() : -1;
+    	    	}
+    	    	
+    	    	// throws on HTTP errors
+    	    	InputStream is = openBody();
+    	    	checkContentType(is);
+    	    	
+    	    	// marker first: kept if the transfer breaks
+    	    	marker = CacheMetadata.fromConnection(uc);
+    	    	marker.setContentLength(length);
+    	    	marker.save(part);
+    	    	
+        	    RandomAccessFile raf = new RandomAccessFile(part, "rw");
+        	    
+        	    try {
+        	    	raf.setLength(offset);
+        	    	bytesRead = transfer(is, raf.getChannel(), offset);
+        	    }
+        	    finally {
+        	    	raf.close();
+        	    }
+    	    }
+    	    done = true;
+    	    
+    	    // verify
+    	    if ( length >= 0 && part.length() != length )
+    	    	throw new IOException("Incomplete download of " + url + ": " 
+    	    			+ part.length() + " of " + length + " bytes");
+    	    
+    	    publish(part, file);
+    	    
+    	    marker.setContentLength(-1);
+    	    marker.save(file);
+    	    CacheMetadata.delete(part);
+    	}
+    	catch (IOException e) {
+    		if ( status >= 400 ) {
+    			// HTTP error: start over next time
+    			part.delete();
+    			CacheMetadata.delete(part);
+    		}
+    		throw e;
+    	}
+    	finally {
+			if ( status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL)
+				logger.error("Download failed status: " + status + " " + responseMessage + " for " + url);
+			else
+				logger.debug("HTTP status=" + status + " " + responseMessage + " bytes=" + bytesRead 
+						+ " resumed at=" + offset + " f=" + file);
+			
+			release(done);
+    	}
+    }
+    
+    /*
+     * Content-Range: bytes 500-999/1234
+     * @return full length (1234) or -1 if unknown (*)
+     */
+    private long parseContentRange (String range, long offset) throws IOException
+    {
+    	try {
+    		final int slash = range.indexOf('/');
+    		final long start = Long.parseLong(range.substring(range.indexOf(' ') + 1, range.indexOf('-')).trim());
+    		
+    		if ( start != offset )
+    			throw new IOException("Invalid Content-Range " + range + " expected start " + offset);
+    		
+    		final String total = range.substring(slash + 1).trim();
+    		return total.equals("*") ? -1 : Long.parseLong(total);
+		} 
+    	catch (RuntimeException e) {
+			throw new IOException("Invalid Content-Range " + range);
+		}
+    }
+    
+    /**
+     * Conditional HTTP Get into a cached {@link File}. If the file has 
+     * {@link CacheMetadata} the request is sent with If-None-Match/If-Modified-Since
+     * and a 304 (Not Modified) response leaves the file untouched. 
+     * On 200 the file is rewritten and its metadata (ETag, Last-Modified, Expires) saved,
+     * unless the body is not of the {@link #setAcceptedContentType(String) accepted type}.
+     * Concurrent requests for the same URL and file share one download.
+     * @param file cached file
+     * @return true if the file was (re)written, false if the server replied 304
+     * @throws IOException
+     */
+    public boolean doConditionalGet (final File file)
+    	throws IOException
+    {
+    	return coalesce(file, new Callable<Response>() {
+    		public Response call() throws Exception {
+    			// nothing to revalidate: fetch (or resume) the whole thing
+    			if ( resumable && !file.exists() ) {
+    				resumableGet(file);
+    				return toResponse(true);
+    			}
+    			return toResponse(conditionalGet(file));
+    		}
+    	}).modified;
+    }
+    
+    private boolean conditionalGet (File file)
+    	throws IOException
+    {
+    	final CacheMetadata meta = file.exists() ? CacheMetadata.load(file) : null;
+    	boolean done = false;
+    	
+    	try {
+    	    connect();
+    	    
+    	    if ( meta != null )
+    	    	meta.setValidators(uc);
+    	    
+    	    status 			= uc.getResponseCode();
+    	    responseMessage = uc.getResponseMessage();
+    	    headers 		= uc.getHeaderFields();
+    	    markFirstByte();
+    	    
+    	    if ( status == HttpURLConnection.HTTP_NOT_MODIFIED && meta != null ) 
+    	    {
+    	    	// no body. Just refresh freshness
+    	    	uc.getInputStream().close();
+    	    	done 		= true;
+    	    	bytesRead 	= 0;
+    	    	wireBytes 	= 0;
+    	    	
+    	    	meta.update(uc);
+    	    	meta.save(file);
+    	    	
+    	    	logger.debug("Not modified " + url + " f=" + file);
+    	    	return false;
+    	    }
+    	    
+    	    // throws on HTTP errors, before the cached file is touched
+    	    InputStream is 		= openBody();
+    	    
+    	    // error page w/ a 200 (captive portal, WMS exception): keep the cached file
+    	    checkContentType(is);
+    	    
+    	    final File tmp 		= newTempFile(file);
+    	    FileOutputStream fos = new FileOutputStream(tmp);
+    	    
+    	    try {
+    	    	bytesRead = transfer(is, fos.getChannel());
+    	    	fos.close();
+    	    	publish(tmp, file);
+    	    }
+    	    finally {
+    	    	fos.close();
+    	    	tmp.delete();
+    	    }
+    	    done = true;
+    	    
+    	    CacheMetadata.fromConnection(uc).save(file);
+    	    return true;
+		} 
+    	catch (IOException e) {
+			throw e;
+		}
+    	catch (Exception e) {
+			throw new IOException(e.getMessage());
+		}
+		finally {
+			if ( status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_NOT_MODIFIED)
+				logger.error("Download failed status: " + status + " " + responseMessage + " for " + url);
+			else
+				logger.debug("HTTP status=" + status + " " + responseMessage + " bytes=" + bytesRead + " wire=" + wireBytes + " f=" + file);
+			
+			release(done);
+		}
+    }
+    
+    /*
+     * Run a file download or join the one in flight for the same URL & file,
+     * whichever method started it (a plain or a conditional GET both end up
+     * with a fresh file). Followers get the status & headers of the leader.
+     */
+    private Response coalesce (File file, Callable<Response> task)
+    	throws IOException
+    {
+    	final Response r = fileDownloads.execute(url + " " + file.getAbsolutePath(), task);
+    	
+    	status 			= r.status;
+    	responseMessage = r.message;
+    	headers 		= r.headers;
+    	bytesRead 		= r.bytesRead;
+    	wireBytes 		= r.wireBytes;
+    	return r;
+    }
+    
+    private Response toResponse (boolean modified) 
+    {
+    	Response r 		= new Response();
+    	r.status 		= status;
+    	r.message 		= responseMessage;
+    	r.headers 		= headers;
+    	r.bytesRead 	= bytesRead;
+    	r.wireBytes 	= wireBytes;
+    	r.modified 		= modified;
+    	return r;
+    }
+    
+    /*
+     * Reject a body of the wrong type before anything is written
+     * @param is Body (closed if rejected)
+     * @throws IOException if the Content-Type doesn't match the accepted one
+     */
+    private void checkContentType (InputStream is) throws IOException
+    {
+    	final String type = uc.getContentType();
+    	
+    	if ( acceptedType == null || type == null || type.toLowerCase().startsWith(acceptedType) )
+    		return;
+    	
+    	is.close();
+    	throw new IOException("Invalid content type " + type + " for " + url);
+    }
+    
+    /**
+     * Temp file in the same folder as the destination, so it can be
+     * {@link #publish(File, File) renamed} to it
+     * @param file destination file
+     * @return empty temp file
+     * @throws IOException
+     */
+    public static File newTempFile (File file) throws IOException {
+    	return File.createTempFile(file.getName() + "-", ".tmp", file.getAbsoluteFile().getParentFile());
+    }
+    
+    /**
+     * Move a fully written temp file to its final name. Readers see either
+     * the old or the new file, never a partial one. Windows can't rename over
+     * an existing file: it is deleted first.
+     * @param tmp
+     * @param file
+     * @throws IOException
+     */
+    public static void publish (File tmp, File file) throws IOException
+    {
+    	if ( ! tmp.renameTo(file) ) 
+    	{
+    		file.delete();
+    		
+    		if ( ! tmp.renameTo(file) ) 
+    			throw new IOException("Unable to rename " + tmp + " to " + file);
+    	}
+    	FileStoreIndex.getInstance().added(file);
+    }
+    
+    /** @return # of file downloads that joined a download in flight */
+    public static long getCoalescedCount() {
+    	return fileDownloads.getCoalescedCount();
+    }
+    
+    /** @return # of file downloads running */
+    public static int getFileDownloadsInFlight() {
+    	return fileDownloads.getInFlightCount();
+    }
+    
+    /*
+     * Get a connection for the url from the shared pool
+     */
+    private void connect () throws IOException 
+    {
+	    uc 			= HTTPConnectionPool.getInstance().open(url);
+	    released 	= false;
+	    status 		= 0;
+	    bytesRead 	= 0;
+	    wireBytes 	= 0;
+	    wireFailed 	= false;
+	    
+	    startTime 		= System.nanoTime();
+	    firstByteTime 	= 0;
+	    DownloadMetrics.getInstance().requestStarted(url.getHost(), layer);
+	    
+	    uc.setRequestProperty("User-Agent", USER_AGENT);
+	    uc.setReadTimeout(READ_TIMEOUT);
+	    
+	    // ranges are byte offsets of the stored (decoded) file: no compression
+	    if ( acceptCompression && !resumable )
+	    	uc.setRequestProperty("Accept-Encoding", "gzip, deflate");
+	    
+	    logger.debug("Connect timeout=" + uc.getConnectTimeout() 
+	    		+ " read timeout=" + uc.getReadTimeout() + " u=" + url);
+    }
+    
+    /*
+     * Response body stream. gzip/deflate bodies are decoded on the fly.
+     * Bytes received from the wire are counted to compute the compression ratio.
+     * Throws on HTTP errors.
+     */
+    private InputStream openBody () throws IOException 
+    {
+    	final InputStream wire = new CountingInputStream(uc.getInputStream());
+    	markFirstByte();
+    	
+    	final String encoding = uc.getContentEncoding();
+    	
+    	if ( encoding == null || encoding.equalsIgnoreCase("identity"))
+    		return wire;
+    	
+    	logger.debug("Content-Encoding: " + encoding + " for " + url);
+    	
+    	if ( encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip"))
+    		return new GZIPInputStream(wire, TRANSFER_CHUNK_SIZE);
+    	
+    	if ( encoding.equalsIgnoreCase("deflate")) 
+    	{
+    		// Should be zlib wrapped, but some servers send raw deflate
+    		PushbackInputStream pis = new PushbackInputStream(wire, 2);
+    		byte[] hdr = new byte[2];
+    		int n = pis.read(hdr);
+    		
+    		if ( n > 0 ) pis.unread(hdr, 0, n);
+    		
+    		final boolean zlib = n == 2 
+    			&& (hdr[0] & 0x0f) == 8 
+    			&& (((hdr[0] & 0xff) << 8) | (hdr[1] & 0xff)) % 31 == 0;
+    		
+    		return new InflaterInputStream(pis, new Inflater(!zlib), TRANSFER_CHUNK_SIZE);
+    	}
+    	throw new IOException("Unsupported Content-Encoding " + encoding + " for " + url);
+    }
+    
+    /*
+     * Response headers received
+     */
+    private void markFirstByte () {
+    	if ( firstByteTime == 0 ) 
+    		firstByteTime = System.nanoTime();
+    }
+    
+    /*
+     * Counts the (compressed) bytes read from the connection
+     */
+    private class CountingInputStream extends FilterInputStream
+    {
+    	CountingInputStream(InputStream in) {
+    		super(in);
+    	}
+    	
+    	@Override
+    	public int read() throws IOException {
+    		try {
+    			int b = super.read();
+    			if ( b != -1 ) count(1);
+    			return b;
+    		}
+    		catch (IOException e) {
+    			wireFailed = true;
+    			throw e;
+    		}
+    	}
+    	
+    	@Override
+    	public int read(byte[] b, int off, int len) throws IOException {
+    		try {
+    			int n = super.read(b, off, len);
+    			if ( n > 0 ) count(n);
+    			return n;
+    		}
+    		catch (IOException e) {
+    			wireFailed = true;
+    			throw e;
+    		}
+    	}
+    	
+    	@Override
+    	public long skip(long n) throws IOException {
+    		long skipped = super.skip(n);
+    		count(skipped);
+    		return skipped;
+    	}
+    	
+    	private void count (long n) {
+    		wireBytes += n;
+    		totalWireBytes.addAndGet(n);
+    	}
+    }
+    
+    /*
+     * Give the connection back to the pool. If the body was fully read
+     * (and its stream closed) the socket is kept alive for the next request
+     * to the same host. Host errors are reported to the host's circuit breaker;
+     * local errors (disk full, rename, bad output stream) are not.
+     */
+    private void release (boolean keepAlive) 
+    {
+    	if ( released ) return;
+    	
+    	totalBytesRead.addAndGet(bytesRead);
+    	
+    	if ( wireBytes > 0 && wireBytes != bytesRead )
+    		logger.debug("Compressed " + url + " wire=" + wireBytes + " decoded=" + bytesRead 
+    				+ " ratio=" + getCompressionRatio());
+    	
+    	int code = status;
+    	
+    	if ( code == 0 ) {
+    		// the body read failed before the status was saved
+    		try {
+    			code = uc.getResponseCode();
+    		} catch (IOException e) {
+    			code = -1;
+    		}
+    	}
+    	
+    	// a 200 w/ a broken body read is a network failure
+    	final boolean hostFailure = code <= 0 
+    		|| code >= 500 
+    		|| code == 429 
+    		|| (code == HttpURLConnection.HTTP_OK && wireFailed);
+    	
+    	HTTPConnectionPool.getInstance().release(uc, keepAlive, hostFailure);
+    	released = true;
+    	
+    	final long now = System.nanoTime();
+    	
+    	DownloadMetrics.getInstance().requestFinished(url.getHost(), layer
+    			, code > 0 && (keepAlive || code != HttpURLConnection.HTTP_OK) 
+    				? code : DownloadMetrics.STATUS_IO_ERROR
+    			, bytesRead, wireBytes
+    			, firstByteTime > 0 ? (firstByteTime - startTime) / 1000000 : -1
+    			, (now - startTime) / 1000000);
+    }
+    
+    /**
+     * Copy a stream in chunks of TRANSFER_CHUNK_SIZE
+     * @return number of bytes copied
+     */
+    static long copy (InputStream is, OutputStream os) throws IOException 
+    {
+    	byte[] buf = new byte[TRANSFER_CHUNK_SIZE];
+    	long total = 0;
+    	int n;
+    	
+    	while ((n = is.read(buf)) != -1) {
+    		os.write(buf, 0, n);
+    		total += n;
+    	}
+    	is.close();
+    	return total;
+    }
+    
+    /**
+     * Move a stream into a {@link FileChannel} using {@link FileChannel#transferFrom}
+     * @return number of bytes transferred
+     */
+    static long transfer (InputStream is, FileChannel out) throws IOException {
+    	return transfer(is, out, 0);
+    }
+    
+    /**
+     * Move a stream into a {@link FileChannel} starting at a given position
+     * @return number of bytes transferred
+     */
+    static long transfer (InputStream is, FileChannel out, long position) throws IOException 
+    {
+    	ReadableByteChannel in = Channels.newChannel(is);
+    	long total = 0;
+    	long n;
+    	
+    	try {
+    		// transferFrom returns less than the chunk only at the end of the stream
+        	while ((n = out.transferFrom(in, position + total, TRANSFER_CHUNK_SIZE)) > 0) {
+        		total += n;
+        	}
+    	}
+    	finally {
+    		in.close();
+    	}
+    	return total;
+    }
+    
     public InputStream getInputStream() throws IOException {
 	    HttpURLConnection uc = (HttpURLConnection)url.openConnection();
 	    return uc.getInputStream();
@@ -134,8 +810,97 @@ public class SimpleHTTPClient
 		return responseMessage;
 	}
 	
+	/**
+	 * @return Number of body bytes read by the last request (decoded)
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+	
+	/**
+	 * @return Number of body bytes received by the last request (compressed)
+	 */
+	public long getWireBytes() {
+		return wireBytes;
+	}
+	
+	/**
+	 * @return decoded/received bytes of the last request. 1 if not compressed.
+	 */
+	public double getCompressionRatio() {
+		return wireBytes > 0 ? (double)bytesRead / wireBytes : 1;
+	}
+	
+	/**
+	 * Name of the layer requesting the download. Used to break down the {@link DownloadMetrics}
+	 * @param layer
+	 */
+	public void setLayer(String layer) {
+		this.layer = layer;
+	}
+	
+	/**
+	 * Keep partial downloads of files and resume them with HTTP Range requests.
+	 * Meant for large KMZ/images. Disables compression.
+	 * @param resumable
+	 */
+	public void setResumable(boolean resumable) {
+		this.resumable = resumable;
+	}
+	
+	/**
+	 * Send Accept-Encoding: gzip, deflate (default true)
+	 * @param accept
+	 */
+	public void setAcceptCompression(boolean accept) {
+		acceptCompression = accept;
+	}
+	
+	/**
+	 * Only write response bodies of a type to files: a 200 w/ another type
+	 * (an HTML or XML error page) fails the download & leaves the file as is.
+	 * A response w/o Content-Type is accepted.
+	 * @param prefix Content-Type prefix, e.g. "image/". null = any (default)
+	 */
+	public void setAcceptedContentType(String prefix) {
+		this.acceptedType = prefix != null ? prefix.toLowerCase() : null;
+	}
+	
+	/**
+	 * @return decoded/received bytes of all downloads since startup
+	 */
+	public static double getTotalCompressionRatio() {
+		final long wire = totalWireBytes.get();
+		return wire > 0 ? (double)totalBytesRead.get() / wire : 1;
+	}
+	
+	/** @return Body bytes received by all downloads since startup */
+	public static long getTotalWireBytes() {
+		return totalWireBytes.get();
+	}
+	
+	/**
+	 * @return Content-Type of the response or null (no response, header 
+	 * missing or client closed)
+	 */
 	public String getContentType() {
-		return headers.get("Content-Type").get(0);
+		return getHeader("Content-Type");
+	}
+	
+	/**
+	 * @param name Header name (case insensitive: servers & proxies differ)
+	 * @return first value of a response header or null
+	 */
+	public String getHeader (String name)
+	{
+		if ( headers == null ) 
+			return null;
+		
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			if ( name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty() ) 
+				return header.getValue().get(0);
+		}
+		return null;
 	}
 	
 	public boolean isContentTypeKML () {
@@ -147,7 +912,8 @@ public class SimpleHTTPClient
 	}
 
 	public void close () {
-		uc.disconnect();
+		// socket is either kept alive by the pool or already dropped
+		release(false);
 		uc = null;
 		headers = null;
 		url = null;
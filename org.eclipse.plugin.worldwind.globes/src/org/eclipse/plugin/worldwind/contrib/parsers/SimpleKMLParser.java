@@ -269,7 +269,7 @@ public class SimpleKMLParser
 				if ( file.exists())
 					overlays[i] = new GroundOverlay(name, bbox, file.toURL() , time, color); //icon
 				else {
-					final URL url = LayerUtils.getWWFileStore().findFile(icon, false);
+					final URL url = LayerUtils.findCacheFile(icon);
 					
 					logger.debug("File " + file + " not found. Looking in WW cache for " + url);
 					
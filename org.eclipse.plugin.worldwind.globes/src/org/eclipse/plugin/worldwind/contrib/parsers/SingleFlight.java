@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.parsers;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Request coalescing: concurrent calls with the same key share a single
+ * execution. The first caller runs the task in its own thread, the others
+ * wait on the same future and get the same result (or exception).
+ * The key is forgotten as soon as the call completes.
+ *
+ * @author vsilva
+ *
+ * @param <V> Result type
+ */
+public class SingleFlight<V>
+{
+	private static final Logger logger = Logger.getLogger(SingleFlight.class);
+
+	private final ConcurrentHashMap<String, FutureTask<V>> calls
+		= new ConcurrentHashMap<String, FutureTask<V>>();
+
+	private final AtomicLong executed 	= new AtomicLong();
+	private final AtomicLong coalesced 	= new AtomicLong();
+
+	/**
+	 * Run a task or join the call in flight for the same key
+	 * @param key Call key (e.g. URL + destination file)
+	 * @param task
+	 * @return task result
+	 * @throws IOException if the task failed (in this or the leader thread)
+	 */
+	public V execute (String key, Callable<V> task) throws IOException
+	{
+		FutureTask<V> future = new FutureTask<V>(task);
+		FutureTask<V> inFlight = calls.putIfAbsent(key, future);
+
+		if ( inFlight == null ) {
+			// leader
+			executed.incrementAndGet();
+			try {
+				future.run();
+			}
+			finally {
+				calls.remove(key, future);
+			}
+		}
+		else {
+			logger.debug("Joining call in flight for " + key);
+			coalesced.incrementAndGet();
+			future = inFlight;
+		}
+
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for " + key);
+		}
+		catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+
+			if ( cause instanceof IOException )
+				throw (IOException)cause;
+
+			throw new IOException(cause != null ? cause.getMessage() : e.getMessage());
+		}
+	}
+
+	/** @return # of calls running */
+	public int getInFlightCount() {
+		return calls.size();
+	}
+
+	/** @return # of calls executed */
+	public long getExecutedCount() {
+		return executed.get();
+	}
+
+	/** @return # of calls that joined a call in flight instead of running */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+}
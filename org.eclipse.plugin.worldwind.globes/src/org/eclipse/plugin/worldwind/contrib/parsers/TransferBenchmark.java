@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2006 Vladimir Silva and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vladimir Silva - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.plugin.worldwind.contrib.parsers;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+
+/**
+ * Download throughput of {@link SimpleHTTPClient} (MB/s) against a local
+ * {@link HTTPFixtureServer} replaying a random (incompressible) body.
+ * Compares the old byte at a time copy loop with the bulk transfer path:
+ * <pre>
+ * java ...TransferBenchmark [size MB (8)] [runs (5)]
+ * </pre>
+ * @author vsilva
+ *
+ */
+public class TransferBenchmark
+{
+	static final String URL = "http://transfer.benchmark/blob.bin";
+
+	public static void main(String[] args)
+	{
+		final int size = (args.length > 0 ? Integer.parseInt(args[0]) : 8) * 1024 * 1024;
+		final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		HTTPFixtureServer server = null;
+
+		try {
+			final File dir = File.createTempFile("transfer", "");
+			dir.delete();
+
+			// fixture w/ a random body
+			HTTPFixtureStore store = new HTTPFixtureStore(new File(dir, "fixtures"));
+
+			HTTPFixtureStore.Fixture f = new HTTPFixtureStore.Fixture();
+			f.url 		= URL;
+			f.status 	= 200;
+			f.message 	= "OK";
+			f.body 		= new byte[size];
+			f.headers.add("Content-Type: application/octet-stream");
+
+			new Random(1).nextBytes(f.body);
+			store.save("GET", f);
+
+			server = new HTTPFixtureServer(store, HTTPFixtureServer.Mode.REPLAY);
+			server.start(0);
+			server.install();
+
+			final File file = new File(dir, "blob.bin");
+			final URL url 	= new URL(URL);
+
+			System.out.println("Body " + (size >> 20) + " MB, " + runs + " runs, fixture server port " + server.getPort());
+
+			// warm up (JIT, keep-alive sockets)
+			legacyGet(url, new FileOutputStream(file));
+			bulkGet(file);
+
+			report("byte loop -> file  ", size, runs, new Task() {
+				public void run() throws IOException {
+					legacyGet(url, new FileOutputStream(file));
+				}
+			});
+			report("bulk -> file       ", size, runs, new Task() {
+				public void run() throws IOException {
+					bulkGet(file);
+				}
+			});
+			report("byte loop -> memory", size, runs, new Task() {
+				public void run() throws IOException {
+					legacyGet(url, new ByteArrayOutputStream());
+				}
+			});
+			report("bulk -> memory     ", size, runs, new Task() {
+				public void run() throws IOException {
+					SimpleHTTPClient client = new SimpleHTTPClient(url);
+					client.setAcceptCompression(false);
+					client.doGet(new ByteArrayOutputStream(size));
+				}
+			});
+
+			file.delete();
+			for (File fx : store.getDirectory().listFiles())
+				fx.delete();
+			store.getDirectory().delete();
+			dir.delete();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		finally {
+			if ( server != null ) {
+				server.uninstall();
+				server.stop();
+			}
+		}
+	}
+
+	private interface Task {
+		void run() throws IOException;
+	}
+
+	private static void report (String name, int size, int runs, Task task) throws IOException
+	{
+		double best = 0, total = 0;
+
+		for (int i = 0; i < runs; i++) {
+			final long t0 = System.nanoTime();
+			task.run();
+			final double secs = (System.nanoTime() - t0) / 1e9;
+			final double mbs = size / secs / (1024 * 1024);
+
+			best 	= Math.max(best, mbs);
+			total 	+= mbs;
+		}
+		System.out.println(name + " avg " + format(total / runs) + " MB/s  best " + format(best) + " MB/s");
+	}
+
+	private static String format (double d) {
+		return String.valueOf(Math.round(d * 10) / 10.0);
+	}
+
+	private static void bulkGet (File file) throws IOException
+	{
+		SimpleHTTPClient client = new SimpleHTTPClient(URL);
+		client.setAcceptCompression(false);
+		client.doGet(file);
+	}
+
+	/*
+	 * The copy loop SimpleHTTPClient used before the bulk transfer path
+	 */
+	private static void legacyGet (URL url, OutputStream os) throws IOException
+	{
+		HttpURLConnection uc = (HttpURLConnection)url.openConnection();
+		uc.setRequestProperty("User-Agent", SimpleHTTPClient.USER_AGENT);
+
+		try {
+			InputStream buffer = new BufferedInputStream(uc.getInputStream());
+			int c;
+
+			while ((c = buffer.read()) != -1) {
+				os.write(c);
+			}
+			buffer.close();
+		}
+		finally {
+			os.close();
+		}
+	}
+}
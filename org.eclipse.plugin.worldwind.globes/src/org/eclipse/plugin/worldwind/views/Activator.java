@@ -1,5 +1,7 @@
 package org.eclipse.plugin.worldwind.views;
 
+import org.eclipse.plugin.worldwind.contrib.parsers.HTTPFixtureServer;
+import org.eclipse.plugin.worldwind.contrib.parsers.NegativeCache;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
@@ -27,6 +29,9 @@ public class Activator extends AbstractUIPlugin {
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
 		plugin = this;
+
+		// HTTP record/replay (worldwind.http.fixtures.mode)
+		HTTPFixtureServer.startFromSystemProperties();
 	}
 
 	/*
@@ -34,6 +39,8 @@ public class Activator extends AbstractUIPlugin {
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		HTTPFixtureServer.stopInstance();
+		NegativeCache.getInstance().save();
 		plugin = null;
 		super.stop(context);
 	}